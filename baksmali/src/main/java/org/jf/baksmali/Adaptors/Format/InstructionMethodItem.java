@@ -31,6 +31,7 @@ package org.jf.baksmali.Adaptors.Format;
 import org.jf.baksmali.Adaptors.MethodDefinition;
 import org.jf.baksmali.Adaptors.MethodDefinition.InvalidSwitchPayload;
 import org.jf.baksmali.Adaptors.MethodItem;
+import org.jf.baksmali.RenderedReferenceCache;
 import org.jf.baksmali.Renderers.LongRenderer;
 import org.jf.baksmali.baksmaliOptions;
 import org.jf.dexlib2.Opcode;
@@ -108,7 +109,12 @@ public class InstructionMethodItem<T extends Instruction> extends MethodItem {
                     classContext = methodDef.method.getDefiningClass();
                 }
 
-                referenceString = ReferenceUtil.getReferenceString(reference, classContext);
+                RenderedReferenceCache referenceCache = methodDef.classDef.options.referenceCache;
+                if (referenceCache != null) {
+                    referenceString = referenceCache.getReferenceString(reference, classContext);
+                } else {
+                    referenceString = ReferenceUtil.getReferenceString(reference, classContext);
+                }
                 assert referenceString != null;
             } catch (InvalidItemIndex ex) {
                 writer.write("#");
@@ -65,6 +65,10 @@ import java.io.IOException;
 import java.util.*;
 
 public class MethodDefinition {
+    // the sort orders of the code offset comment and the blank line that are written for each instruction
+    private static final double CODE_OFFSET_SORT_ORDER = -1000;
+    private static final double BLANK_LINE_SORT_ORDER = Integer.MAX_VALUE;
+
     @Nonnull public final ClassDefinition classDef;
     @Nonnull public final Method method;
     @Nonnull public final MethodImplementation methodImpl;
@@ -235,12 +239,7 @@ public class MethodDefinition {
 
         writer.write('\n');
 
-        List<MethodItem> methodItems = getMethodItems();
-        for (MethodItem methodItem: methodItems) {
-            if (methodItem.writeTo(writer)) {
-                writer.write('\n');
-            }
-        }
+        writeMethodItems(writer);
         writer.deindent(4);
         writer.write(".end method\n");
     }
@@ -363,32 +362,117 @@ public class MethodDefinition {
         return sparseSwitchMap.get(sparseSwitchPayloadCodeOffset, -1);
     }
 
-    private List<MethodItem> getMethodItems() {
-        ArrayList<MethodItem> methodItems = new ArrayList<MethodItem>();
-
+    /**
+     * Writes out all the method items for this method, ordered by code address and sort order.
+     *
+     * The instructions, try blocks, debug items and labels each produce a stream of items that is already (or nearly)
+     * in order, so rather than sorting a single combined list, the streams are merged as they are written. Ties
+     * between streams go to the earlier stream, which matches the order that a stable sort of the concatenated
+     * streams would produce. The code offset comment and the blank line that follow each instruction are written
+     * directly during the merge, rather than being allocated as separate method items.
+     */
+    private void writeMethodItems(IndentingWriter writer) throws IOException {
+        List<MethodItem> instructionItems = new ArrayList<MethodItem>(effectiveInstructions.size());
+        int[] instructionAddresses;
         if ((classDef.options.registerInfo != 0) || (classDef.options.normalizeVirtualMethods) ||
                 (classDef.options.deodex && needsAnalyzed())) {
-            addAnalyzedInstructionMethodItems(methodItems);
+            instructionAddresses = addAnalyzedInstructionMethodItems(instructionItems);
         } else {
-            addInstructionMethodItems(methodItems);
+            instructionAddresses = addInstructionMethodItems(instructionItems);
         }
 
-        addTries(methodItems);
+        List<MethodItem> tryItems = new ArrayList<MethodItem>();
+        addTries(tryItems);
+
+        List<MethodItem> debugItems = new ArrayList<MethodItem>();
         if (classDef.options.outputDebugInfo) {
-            addDebugInfo(methodItems);
+            addDebugInfo(debugItems);
         }
 
+        // all labels have been created by this point
+        List<LabelMethodItem> labels = labelCache.getSortedLabels();
         if (classDef.options.useSequentialLabels) {
-            setLabelSequentialNumbers();
+            setLabelSequentialNumbers(labels);
         }
 
-        for (LabelMethodItem labelMethodItem: labelCache.getLabels()) {
-            methodItems.add(labelMethodItem);
+        sortIfNeeded(instructionItems);
+        sortIfNeeded(tryItems);
+        sortIfNeeded(debugItems);
+
+        List<List<? extends MethodItem>> streams = ImmutableList.<List<? extends MethodItem>>of(
+                instructionItems, tryItems, debugItems, labels);
+        int[] positions = new int[streams.size()];
+
+        // Each instruction has 2 implicit items: the code offset comment, which sorts before anything else at that
+        // address, and the blank line after the instruction, which sorts after everything else at that address
+        int implicitItemIndex = 0;
+        int implicitItemCount = instructionAddresses.length * 2;
+
+        while (true) {
+            while (implicitItemIndex < implicitItemCount && !isImplicitItemPresent(implicitItemIndex,
+                    instructionAddresses.length)) {
+                implicitItemIndex++;
+            }
+
+            int nextStream = -1;
+            MethodItem nextItem = null;
+            for (int i=0; i<streams.size(); i++) {
+                List<? extends MethodItem> stream = streams.get(i);
+                if (positions[i] < stream.size()) {
+                    MethodItem item = stream.get(positions[i]);
+                    if (nextItem == null || item.compareTo(nextItem) < 0) {
+                        nextStream = i;
+                        nextItem = item;
+                    }
+                }
+            }
+
+            if (implicitItemIndex < implicitItemCount) {
+                int codeAddress = instructionAddresses[implicitItemIndex >> 1];
+                boolean isCodeOffset = (implicitItemIndex & 1) == 0;
+                if (nextItem == null || codeAddress < nextItem.getCodeAddress() ||
+                        (codeAddress == nextItem.getCodeAddress() &&
+                                (isCodeOffset ? CODE_OFFSET_SORT_ORDER : BLANK_LINE_SORT_ORDER) <
+                                        nextItem.getSortOrder())) {
+                    if (isCodeOffset) {
+                        writer.write("#@");
+                        writer.printUnsignedLongAsHex(codeAddress & 0xFFFFFFFFL);
+                    }
+                    writer.write('\n');
+                    implicitItemIndex++;
+                    continue;
+                }
+            }
+
+            if (nextItem == null) {
+                break;
+            }
+            if (nextItem.writeTo(writer)) {
+                writer.write('\n');
+            }
+            positions[nextStream]++;
         }
+    }
 
-        Collections.sort(methodItems);
+    private boolean isImplicitItemPresent(int implicitItemIndex, int instructionCount) {
+        if ((implicitItemIndex & 1) == 0) {
+            return classDef.options.addCodeOffsets;
+        }
+        // there's no blank line after the last instruction
+        return (implicitItemIndex >> 1) != instructionCount - 1;
+    }
 
-        return methodItems;
+    /**
+     * Sorts the given stream of method items, unless it is already in order. The streams are generated in order in
+     * all but a few cases, e.g. debug items at the same address that are out of order in the debug info.
+     */
+    private static void sortIfNeeded(List<MethodItem> methodItems) {
+        for (int i=1; i<methodItems.size(); i++) {
+            if (methodItems.get(i-1).compareTo(methodItems.get(i)) > 0) {
+                Collections.sort(methodItems);
+                return;
+            }
+        }
     }
 
     private boolean needsAnalyzed() {
@@ -400,37 +484,18 @@ public class MethodDefinition {
         return false;
     }
 
-    private void addInstructionMethodItems(List<MethodItem> methodItems) {
+    /**
+     * Adds the method items for each instruction, in order
+     *
+     * @return The code address of each instruction
+     */
+    private int[] addInstructionMethodItems(List<MethodItem> methodItems) {
+        int[] instructionAddresses = new int[effectiveInstructions.size()];
         int currentCodeAddress = 0;
 
         for (int i=0; i<effectiveInstructions.size(); i++) {
             Instruction instruction = effectiveInstructions.get(i);
-
-            MethodItem methodItem = InstructionMethodItemFactory.makeInstructionFormatMethodItem(this,
-                    currentCodeAddress, instruction);
-
-            methodItems.add(methodItem);
-
-            if (i != effectiveInstructions.size() - 1) {
-                methodItems.add(new BlankMethodItem(currentCodeAddress));
-            }
-
-            if (classDef.options.addCodeOffsets) {
-                methodItems.add(new MethodItem(currentCodeAddress) {
-
-                    @Override
-                    public double getSortOrder() {
-                        return -1000;
-                    }
-
-                    @Override
-                    public boolean writeTo(IndentingWriter writer) throws IOException {
-                        writer.write("#@");
-                        writer.printUnsignedLongAsHex(codeAddress & 0xFFFFFFFFL);
-                        return true;
-                    }
-                });
-            }
+            instructionAddresses[i] = currentCodeAddress;
 
             if (!classDef.options.noAccessorComments && (instruction instanceof ReferenceInstruction)) {
                 Opcode opcode = instruction.getOpcode();
@@ -455,17 +520,29 @@ public class MethodDefinition {
                 }
             }
 
+            MethodItem methodItem = InstructionMethodItemFactory.makeInstructionFormatMethodItem(this,
+                    currentCodeAddress, instruction);
+
+            methodItems.add(methodItem);
+
             currentCodeAddress += instruction.getCodeUnits();
         }
+        return instructionAddresses;
     }
 
-    private void addAnalyzedInstructionMethodItems(List<MethodItem> methodItems) {
+    /**
+     * Adds the method items for each analyzed instruction, in order
+     *
+     * @return The code address of each instruction
+     */
+    private int[] addAnalyzedInstructionMethodItems(List<MethodItem> methodItems) {
         MethodAnalyzer methodAnalyzer = new MethodAnalyzer(classDef.options.classPath, method,
                 classDef.options.inlineResolver, classDef.options.normalizeVirtualMethods);
 
         AnalysisException analysisException = methodAnalyzer.getAnalysisException();
         if (analysisException != null) {
             // TODO: need to keep track of whether any errors occurred, so we can exit with a non-zero result
+            // This is out of order unless it's at address 0, in which case the items will be sorted before writing
             methodItems.add(new CommentMethodItem(
                     String.format("AnalysisException: %s", analysisException.getMessage()),
                     analysisException.codeAddress, Integer.MIN_VALUE));
@@ -473,10 +550,21 @@ public class MethodDefinition {
         }
 
         List<AnalyzedInstruction> instructions = methodAnalyzer.getAnalyzedInstructions();
+        int[] instructionAddresses = new int[instructions.size()];
 
         int currentCodeAddress = 0;
         for (int i=0; i<instructions.size(); i++) {
             AnalyzedInstruction instruction = instructions.get(i);
+            instructionAddresses[i] = currentCodeAddress;
+
+            boolean addRegisterInfo = classDef.options.registerInfo != 0 &&
+                    !instruction.getInstruction().getOpcode().format.isPayloadFormat;
+
+            if (addRegisterInfo) {
+                methodItems.add(
+                        new PreInstructionRegisterInfoMethodItem(classDef.options.registerInfo,
+                                methodAnalyzer, registerFormatter, instruction, currentCodeAddress));
+            }
 
             MethodItem methodItem = InstructionMethodItemFactory.makeInstructionFormatMethodItem(
                     this, currentCodeAddress, instruction.getInstruction());
@@ -489,39 +577,14 @@ public class MethodDefinition {
                                 this, currentCodeAddress, instruction.getOriginalInstruction())));
             }
 
-            if (i != instructions.size() - 1) {
-                methodItems.add(new BlankMethodItem(currentCodeAddress));
-            }
-
-            if (classDef.options.addCodeOffsets) {
-                methodItems.add(new MethodItem(currentCodeAddress) {
-
-                    @Override
-                    public double getSortOrder() {
-                        return -1000;
-                    }
-
-                    @Override
-                    public boolean writeTo(IndentingWriter writer) throws IOException {
-                        writer.write("#@");
-                        writer.printUnsignedLongAsHex(codeAddress & 0xFFFFFFFFL);
-                        return true;
-                    }
-                });
-            }
-
-            if (classDef.options.registerInfo != 0 &&
-                    !instruction.getInstruction().getOpcode().format.isPayloadFormat) {
-                methodItems.add(
-                        new PreInstructionRegisterInfoMethodItem(classDef.options.registerInfo,
-                                methodAnalyzer, registerFormatter, instruction, currentCodeAddress));
-
+            if (addRegisterInfo) {
                 methodItems.add(
                         new PostInstructionRegisterInfoMethodItem(registerFormatter, instruction, currentCodeAddress));
             }
 
             currentCodeAddress += instruction.getInstruction().getCodeUnits();
         }
+        return instructionAddresses;
     }
 
     private void addTries(List<MethodItem> methodItems) {
@@ -578,12 +641,8 @@ public class MethodDefinition {
         }
     }
 
-    private void setLabelSequentialNumbers() {
+    private void setLabelSequentialNumbers(List<LabelMethodItem> sortedLabels) {
         HashMap<String, Integer> nextLabelSequenceByType = new HashMap<String, Integer>();
-        ArrayList<LabelMethodItem> sortedLabels = new ArrayList<LabelMethodItem>(labelCache.getLabels());
-
-        //sort the labels by their location in the method
-        Collections.sort(sortedLabels);
 
         for (LabelMethodItem labelMethodItem: sortedLabels) {
             Integer labelSequence = nextLabelSequenceByType.get(labelMethodItem.getLabelPrefix());
@@ -604,23 +663,68 @@ public class MethodDefinition {
     }
 
     public static class LabelCache {
-        protected HashMap<LabelMethodItem, LabelMethodItem> labels = new HashMap<LabelMethodItem, LabelMethodItem>();
+        // The interned labels, in the order they were added, until they are sorted by getSortedLabels
+        @Nonnull private LabelMethodItem[] labels = new LabelMethodItem[16];
+        private int labelCount = 0;
+        // An open addressing hash table, keyed by code address. Each entry is an index into labels, plus 1. 0 is empty
+        @Nonnull private int[] table = new int[32];
 
         public LabelCache() {
         }
 
         public LabelMethodItem internLabel(LabelMethodItem labelMethodItem) {
-            LabelMethodItem internedLabelMethodItem = labels.get(labelMethodItem);
-            if (internedLabelMethodItem != null) {
-                return internedLabelMethodItem;
+            int mask = table.length - 1;
+            int slot = hashAddress(labelMethodItem.getCodeAddress()) & mask;
+            while (table[slot] != 0) {
+                LabelMethodItem internedLabelMethodItem = labels[table[slot] - 1];
+                if (labelMethodItem.equals(internedLabelMethodItem)) {
+                    return internedLabelMethodItem;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            }
+            labels[labelCount++] = labelMethodItem;
+            table[slot] = labelCount;
+
+            if (labelCount * 2 > table.length) {
+                rebuildTable(table.length * 2);
             }
-            labels.put(labelMethodItem, labelMethodItem);
             return labelMethodItem;
         }
 
+        private static int hashAddress(int codeAddress) {
+            int hash = codeAddress * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+
+        private void rebuildTable(int size) {
+            table = new int[size];
+            int mask = size - 1;
+            for (int i=0; i<labelCount; i++) {
+                int slot = hashAddress(labels[i].getCodeAddress()) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
+            }
+        }
+
+        /**
+         * @return A view of the interned labels, sorted by their location in the method
+         */
+        @Nonnull
+        public List<LabelMethodItem> getSortedLabels() {
+            Arrays.sort(labels, 0, labelCount);
+            // the indexes in the table are no longer valid after sorting
+            rebuildTable(table.length);
+            return Arrays.asList(labels).subList(0, labelCount);
+        }
 
         public Collection<LabelMethodItem> getLabels() {
-            return labels.values();
+            return Arrays.asList(labels).subList(0, labelCount);
         }
     }
 
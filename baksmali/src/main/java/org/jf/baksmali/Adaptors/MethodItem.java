@@ -47,12 +47,10 @@ public abstract class MethodItem implements Comparable<MethodItem> {
     public abstract double getSortOrder();
 
     public int compareTo(MethodItem methodItem) {
-        int result = ((Integer) codeAddress).compareTo(methodItem.codeAddress);
-
-        if (result == 0){
-            return ((Double)getSortOrder()).compareTo(methodItem.getSortOrder());
+        if (codeAddress != methodItem.codeAddress) {
+            return codeAddress < methodItem.codeAddress ? -1 : 1;
         }
-        return result;
+        return Double.compare(getSortOrder(), methodItem.getSortOrder());
     }
 
     public abstract boolean writeTo(IndentingWriter writer) throws IOException;
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects classes by their type, using a set of include and exclude patterns.
+ *
+ * A pattern can be given as a type descriptor (Lcom/example/Foo;) or as a java-style class name (com.example.Foo).
+ * Within a pattern, * matches any part of a class or package name, and ** matches any sequence of packages and
+ * classes. A pattern that ends with a '.' or '/' is a package prefix, and matches every class in that package and its
+ * subpackages.
+ *
+ * A class is selected if it matches any include pattern (or if there are no include patterns), and doesn't match any
+ * exclude pattern.
+ */
+public class ClassFilter {
+    @Nonnull private final List<Pattern> includes = Lists.newArrayList();
+    @Nonnull private final List<Pattern> excludes = Lists.newArrayList();
+
+    public void addIncludes(@Nonnull String patterns) throws IOException {
+        addPatterns(includes, patterns);
+    }
+
+    public void addExcludes(@Nonnull String patterns) throws IOException {
+        addPatterns(excludes, patterns);
+    }
+
+    /**
+     * Adds a comma separated list of patterns. An entry of the form @file reads the patterns from the given file, one
+     * per line. Blank lines and lines starting with # are ignored.
+     */
+    private static void addPatterns(@Nonnull List<Pattern> list, @Nonnull String patterns) throws IOException {
+        for (String pattern: patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.startsWith("@")) {
+                for (String line: Files.readLines(new File(pattern.substring(1)), Charsets.UTF_8)) {
+                    line = line.trim();
+                    if (line.length() > 0 && !line.startsWith("#")) {
+                        list.add(compilePattern(line));
+                    }
+                }
+            } else if (pattern.length() > 0) {
+                list.add(compilePattern(pattern));
+            }
+        }
+    }
+
+    @Nonnull
+    static Pattern compilePattern(@Nonnull String pattern) {
+        String path;
+        if (pattern.startsWith("L") && pattern.endsWith(";")) {
+            path = pattern.substring(1, pattern.length() - 1);
+        } else {
+            path = pattern.replace('.', '/');
+        }
+        if (path.endsWith("/")) {
+            path = path + "**";
+        }
+
+        StringBuilder regex = new StringBuilder("L");
+        int literalStart = 0;
+        for (int i=0; i<path.length(); i++) {
+            if (path.charAt(i) == '*') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(path.substring(literalStart, i)));
+                }
+                if (i + 1 < path.length() && path.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < path.length()) {
+            regex.append(Pattern.quote(path.substring(literalStart)));
+        }
+        regex.append(';');
+        return Pattern.compile(regex.toString());
+    }
+
+    public boolean isEmpty() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    public boolean matches(@Nonnull String type) {
+        if (!includes.isEmpty() && !matchesAny(includes, type)) {
+            return false;
+        }
+        return !matchesAny(excludes, type);
+    }
+
+    private static boolean matchesAny(@Nonnull List<Pattern> patterns, @Nonnull String type) {
+        for (Pattern pattern: patterns) {
+            if (pattern.matcher(type).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
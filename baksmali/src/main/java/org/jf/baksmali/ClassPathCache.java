@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.jf.dexlib2.analysis.ClassPath;
+import org.jf.dexlib2.iface.DexFile;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of loaded class path dex files, for reuse across multiple disassembly jobs in the same process.
+ *
+ * Entries are keyed by the class path directories and entries, the api level and whether experimental opcodes are
+ * enabled, and are evicted once they haven't been used for the given amount of time. Concurrent requests for the
+ * same class path only load it once.
+ */
+public class ClassPathCache {
+    @Nonnull private final LoadingCache<Key, List<DexFile>> cache;
+
+    public ClassPathCache(long maxIdleTime, @Nonnull TimeUnit unit) {
+        cache = CacheBuilder.newBuilder()
+                .expireAfterAccess(maxIdleTime, unit)
+                .build(new CacheLoader<Key, List<DexFile>>() {
+                    @Override public List<DexFile> load(@Nonnull Key key) throws Exception {
+                        return ImmutableList.copyOf(ClassPath.loadClassPath(key.classPathDirs, key.classPath,
+                                key.api, key.experimental));
+                    }
+                });
+    }
+
+    /**
+     * Gets the dex files for the given class path, loading them if they aren't already cached.
+     */
+    @Nonnull
+    public List<DexFile> getClassPath(@Nonnull Iterable<String> classPathDirs, @Nonnull Iterable<String> classPath,
+                                      int api, boolean experimental) {
+        try {
+            return cache.getUnchecked(new Key(classPathDirs, classPath, api, experimental));
+        } catch (UncheckedExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Evicts any entries that have been idle for too long. Eviction otherwise only happens as a side effect of other
+     * cache operations.
+     */
+    public void evictIdleEntries() {
+        cache.cleanUp();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static class Key {
+        @Nonnull public final List<String> classPathDirs;
+        @Nonnull public final List<String> classPath;
+        public final int api;
+        public final boolean experimental;
+
+        public Key(@Nonnull Iterable<String> classPathDirs, @Nonnull Iterable<String> classPath, int api,
+                   boolean experimental) {
+            this.classPathDirs = ImmutableList.copyOf(classPathDirs);
+            this.classPath = ImmutableList.copyOf(classPath);
+            this.api = api;
+            this.experimental = experimental;
+        }
+
+        @Override public int hashCode() {
+            return Objects.hashCode(classPathDirs, classPath, api, experimental);
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return classPathDirs.equals(other.classPathDirs) && classPath.equals(other.classPath) &&
+                    api == other.api && experimental == other.experimental;
+        }
+    }
+}
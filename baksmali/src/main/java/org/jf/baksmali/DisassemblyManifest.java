@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.util.ClassDefHasher;
+import org.jf.dexlib2.util.SyntheticAccessorResolver;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The manifest that is written to the output directory by an incremental disassembly. It records the hash of each
+ * class that was disassembled, and the file it was written to, along with a hash of the options that affect the
+ * output. A later incremental run can then skip any class whose hash and output file haven't changed.
+ */
+public class DisassemblyManifest {
+    public static final String FILE_NAME = ".baksmali-manifest";
+
+    private static final String HEADER = "baksmali manifest 1";
+    private static final String OPTIONS_PREFIX = "options ";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Nonnull private final String optionsHash;
+    @Nonnull private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+
+    public DisassemblyManifest(@Nonnull String optionsHash) {
+        this.optionsHash = optionsHash;
+    }
+
+    @Nonnull public String getOptionsHash() {
+        return optionsHash;
+    }
+
+    @Nullable public Entry getEntry(@Nonnull String classType) {
+        return entries.get(classType);
+    }
+
+    @Nonnull public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Records the output of a class. This may be called from multiple threads.
+     */
+    public void addEntry(@Nonnull String classType, @Nonnull String hash, @Nonnull String path) {
+        entries.put(classType, new Entry(classType, hash, path));
+    }
+
+    /**
+     * Computes a hash of everything other than the contents of a class that can affect its disassembly.
+     *
+     * This doesn't cover the options that make use of the class path, since the disassembly of a class can then
+     * depend on any other class.
+     */
+    @Nonnull
+    public static String computeOptionsHash(@Nonnull baksmaliOptions options,
+                                            @Nonnull Iterable<? extends ClassDef> classDefs) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(main.VERSION, UTF8);
+        hasher.putInt(options.apiLevel);
+        hasher.putBoolean(options.noParameterRegisters);
+        hasher.putBoolean(options.useLocalsDirective);
+        hasher.putBoolean(options.useSequentialLabels);
+        hasher.putBoolean(options.outputDebugInfo);
+        hasher.putBoolean(options.addCodeOffsets);
+        hasher.putBoolean(options.noAccessorComments);
+        hasher.putBoolean(options.allowOdex);
+        hasher.putBoolean(options.experimental);
+        hasher.putBoolean(options.useImplicitReferences);
+        hasher.putInt(options.registerInfo);
+
+        hasher.putInt(options.resourceIds.size());
+        for (Map.Entry<Integer, String> resourceId:
+                new TreeMap<Integer, String>(options.resourceIds).entrySet()) {
+            hasher.putInt(resourceId.getKey());
+            hasher.putString(resourceId.getValue(), UTF8);
+        }
+
+        // The comments for calls to synthetic accessors are based on the accessor's implementation, which is usually
+        // in a different class
+        if (!options.noAccessorComments) {
+            for (ClassDef classDef: classDefs) {
+                for (Method method: classDef.getMethods()) {
+                    if (SyntheticAccessorResolver.looksLikeSyntheticAccessor(method.getName())) {
+                        hasher.putString(classDef.getType(), UTF8);
+                        hasher.putBytes(ClassDefHasher.hashMethod(method).asBytes());
+                    }
+                }
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Reads a manifest that was previously written by write()
+     *
+     * @return The manifest, or null if it doesn't exist or can't be read
+     */
+    @Nullable
+    public static DisassemblyManifest read(@Nonnull File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                return null;
+            }
+            line = reader.readLine();
+            if (line == null || !line.startsWith(OPTIONS_PREFIX)) {
+                return null;
+            }
+            DisassemblyManifest manifest = new DisassemblyManifest(line.substring(OPTIONS_PREFIX.length()));
+
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 3);
+                if (parts.length != 3) {
+                    return null;
+                }
+                manifest.addEntry(parts[2], parts[0], parts[1]);
+            }
+            return manifest;
+        } catch (IOException ex) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public void write(@Nonnull File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF8));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write(OPTIONS_PREFIX);
+            writer.write(optionsHash);
+            writer.write('\n');
+            for (String classType: Ordering.natural().sortedCopy(entries.keySet())) {
+                Entry entry = entries.get(classType);
+                writer.write(entry.hash);
+                writer.write('\t');
+                writer.write(entry.path);
+                writer.write('\t');
+                writer.write(entry.classType);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Couldn't replace " + file.getPath());
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Couldn't rename " + tempFile.getPath() + " to " + file.getPath());
+        }
+    }
+
+    public static class Entry {
+        @Nonnull public final String classType;
+        @Nonnull public final String hash;
+        /** The path of the output file, relative to the output directory and using '/' as the separator */
+        @Nonnull public final String path;
+
+        public Entry(@Nonnull String classType, @Nonnull String hash, @Nonnull String path) {
+            this.classType = classType;
+            this.hash = hash;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.reference.DexBackedFieldReference;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
+import org.jf.dexlib2.dexbacked.reference.DexBackedTypeReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A cache of the rendered text of method, field and type references in a single dex file, keyed by their
+ * method_id/field_id/type_id index, and shared between all disassembly threads.
+ *
+ * References from any other source, and all other reference types, are rendered directly with ReferenceUtil.
+ */
+public class RenderedReferenceCache {
+    public static final long DEFAULT_MAX_CACHED_CHARS = 8 * 1024 * 1024;
+
+    @Nonnull private final DexBackedDexFile dexFile;
+    @Nonnull private final AtomicReferenceArray<String> methods;
+    @Nonnull private final AtomicReferenceArray<String> fields;
+    @Nonnull private final AtomicReferenceArray<String> types;
+
+    private final long maxCachedChars;
+    private final AtomicLong cachedChars = new AtomicLong();
+
+    // Lookups are only counted when statistics are enabled, to avoid contending on a shared counter for every
+    // reference in the normal case. Misses are rare enough to always count.
+    private final boolean recordStats;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RenderedReferenceCache(@Nonnull DexBackedDexFile dexFile, long maxCachedChars, boolean recordStats) {
+        this.dexFile = dexFile;
+        this.methods = new AtomicReferenceArray<String>(dexFile.getMethodCount());
+        this.fields = new AtomicReferenceArray<String>(dexFile.getFieldCount());
+        this.types = new AtomicReferenceArray<String>(dexFile.getTypeCount());
+        this.maxCachedChars = maxCachedChars;
+        this.recordStats = recordStats;
+    }
+
+    /**
+     * Gets the rendered text for the given reference, as per ReferenceUtil.getReferenceString
+     */
+    @Nullable
+    public String getReferenceString(@Nonnull Reference reference, @Nullable String containingClass) {
+        String descriptor;
+        if (reference instanceof DexBackedMethodReference) {
+            DexBackedMethodReference methodReference = (DexBackedMethodReference)reference;
+            if (methodReference.dexFile != dexFile) {
+                return ReferenceUtil.getReferenceString(reference, containingClass);
+            }
+            descriptor = methods.get(methodReference.methodIndex);
+            if (descriptor == null) {
+                descriptor = cache(methods, methodReference.methodIndex,
+                        ReferenceUtil.getMethodDescriptor(methodReference));
+            }
+        } else if (reference instanceof DexBackedFieldReference) {
+            DexBackedFieldReference fieldReference = (DexBackedFieldReference)reference;
+            if (fieldReference.dexFile != dexFile) {
+                return ReferenceUtil.getReferenceString(reference, containingClass);
+            }
+            descriptor = fields.get(fieldReference.fieldIndex);
+            if (descriptor == null) {
+                descriptor = cache(fields, fieldReference.fieldIndex,
+                        ReferenceUtil.getFieldDescriptor(fieldReference));
+            }
+        } else if (reference instanceof DexBackedTypeReference) {
+            DexBackedTypeReference typeReference = (DexBackedTypeReference)reference;
+            if (typeReference.dexFile != dexFile) {
+                return typeReference.getType();
+            }
+            descriptor = types.get(typeReference.typeIndex);
+            if (descriptor == null) {
+                descriptor = cache(types, typeReference.typeIndex, typeReference.getType());
+            }
+            if (recordStats) {
+                lookups.incrementAndGet();
+            }
+            return descriptor;
+        } else {
+            return ReferenceUtil.getReferenceString(reference, containingClass);
+        }
+
+        if (recordStats) {
+            lookups.incrementAndGet();
+        }
+
+        // The cached text always includes the defining class. A member descriptor can only start with
+        // "<containingClass>->" if the member is defined in that class, since a class descriptor can't contain "->"
+        if (containingClass != null && descriptor.startsWith(containingClass) &&
+                descriptor.startsWith("->", containingClass.length())) {
+            return descriptor.substring(containingClass.length() + 2);
+        }
+        return descriptor;
+    }
+
+    @Nonnull
+    private String cache(@Nonnull AtomicReferenceArray<String> array, int index, @Nonnull String descriptor) {
+        misses.incrementAndGet();
+        if (cachedChars.get() < maxCachedChars) {
+            // Another thread may have rendered the same reference concurrently. Both results are identical, so
+            // it doesn't matter which one ends up in the cache.
+            array.set(index, descriptor);
+            cachedChars.addAndGet(descriptor.length());
+        }
+        return descriptor;
+    }
+
+    /**
+     * Prints the hit statistics for this cache. Lookups are only counted if the cache was created with recordStats.
+     */
+    public void printStatistics(@Nonnull PrintStream out) {
+        long lookups = this.lookups.get();
+        long hits = lookups - misses.get();
+        out.println(String.format("Reference cache: %d lookups, %d hits (%.1f%%), %d chars cached",
+                lookups, hits, lookups == 0 ? 0.0 : hits * 100.0 / lookups, cachedChars.get()));
+    }
+}
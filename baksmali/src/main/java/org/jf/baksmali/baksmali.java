@@ -32,27 +32,53 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import org.jf.baksmali.Adaptors.ClassDefinition;
 import org.jf.dexlib2.analysis.ClassPath;
+import org.jf.dexlib2.analysis.ClassProvider;
 import org.jf.dexlib2.analysis.CustomInlineMethodResolver;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.util.ClassDefHasher;
 import org.jf.dexlib2.util.SyntheticAccessorResolver;
 import org.jf.util.ClassFileNameHandler;
 import org.jf.util.IndentingWriter;
+import org.jf.util.Utf8ByteWriter;
+import org.jf.util.ZipArchiveWriter;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class baksmali {
+    private static final int MAX_IN_FLIGHT_PER_JOB = 4;
+
+    private static final ThreadLocal<Utf8ByteWriter> renderBuffer =
+            new ThreadLocal<Utf8ByteWriter>() {
+                @Override protected Utf8ByteWriter initialValue() {
+                    return new Utf8ByteWriter(64 * 1024);
+                }
+            };
 
     public static boolean disassembleDexFile(DexFile dexFile, final baksmaliOptions options) {
         if (options.registerInfo != 0 || options.deodex || options.normalizeVirtualMethods) {
@@ -64,9 +90,18 @@ public class baksmali {
                     extraClassPathEntries = ImmutableList.of();
                 }
 
-                options.classPath = ClassPath.fromClassPath(options.bootClassPathDirs,
-                        Iterables.concat(options.bootClassPathEntries, extraClassPathEntries), dexFile,
-                        options.apiLevel, options.checkPackagePrivateAccess, options.experimental);
+                Iterable<String> classPathEntries = Iterables.concat(options.bootClassPathEntries,
+                        extraClassPathEntries);
+                List<DexFile> classPathDexFiles;
+                if (options.classPathCache != null) {
+                    classPathDexFiles = options.classPathCache.getClassPath(options.bootClassPathDirs,
+                            classPathEntries, options.apiLevel, options.experimental);
+                } else {
+                    classPathDexFiles = ClassPath.loadClassPath(options.bootClassPathDirs, classPathEntries,
+                            options.apiLevel, options.experimental);
+                }
+                options.classPath = ClassPath.fromDexFiles(classPathDexFiles, dexFile,
+                        options.checkPackagePrivateAccess, ClassPath.getOatVersion(classPathDexFiles));
 
                 if (options.customInlineDefinitions != null) {
                     options.inlineResolver = new CustomInlineMethodResolver(options.classPath,
@@ -120,43 +155,185 @@ public class baksmali {
             }
         }
 
-        File outputDirectoryFile = new File(options.outputDirectory);
-        if (!outputDirectoryFile.exists()) {
-            if (!outputDirectoryFile.mkdirs()) {
-                System.err.println("Can't create the output directory " + options.outputDirectory);
+        final ClassFileNameHandler fileNameHandler;
+        final ZipArchiveWriter archive;
+        final String outputPrefix;
+        if (options.outputArchive != null) {
+            File archiveFile = new File(options.outputArchive);
+            File archiveParent = archiveFile.getAbsoluteFile().getParentFile();
+            if (!archiveParent.exists() && !archiveParent.mkdirs()) {
+                System.err.println("Can't create the output directory " + archiveParent.getPath());
+                return false;
+            }
+            try {
+                archive = new ZipArchiveWriter(archiveFile);
+            } catch (IOException ex) {
+                System.err.println("Can't create the output archive " + options.outputArchive);
+                ex.printStackTrace(System.err);
                 return false;
             }
+            // The archive could be extracted onto any file system, so use names that are safe on a case
+            // insensitive one. The names are only used as archive entries, so nothing is created on disk
+            fileNameHandler = new ClassFileNameHandler(archiveFile, ".smali", false, true);
+            outputPrefix = archiveFile.getPath() + File.separator;
+        } else {
+            File outputDirectoryFile = new File(options.outputDirectory);
+            if (!outputDirectoryFile.exists()) {
+                if (!outputDirectoryFile.mkdirs()) {
+                    System.err.println("Can't create the output directory " + options.outputDirectory);
+                    return false;
+                }
+            }
+            fileNameHandler = new ClassFileNameHandler(outputDirectoryFile, ".smali");
+            archive = null;
+            outputPrefix = outputDirectoryFile.getPath() + File.separator;
         }
 
         //sort the classes, so that if we're on a case-insensitive file system and need to handle classes with file
         //name collisions, then we'll use the same name for each class, if the dex file goes through multiple
         //baksmali/smali cycles for some reason. If a class with a colliding name is added or removed, the filenames
         //may still change of course
-        List<? extends ClassDef> classDefs = Ordering.natural().sortedCopy(dexFile.getClasses());
+        List<? extends ClassDef> classDefs = Ordering.natural().sortedCopy(getSelectedClasses(dexFile, options));
 
         if (!options.noAccessorComments) {
-            options.syntheticAccessorResolver = new SyntheticAccessorResolver(dexFile.getOpcodes(), classDefs);
+            if (dexFile instanceof DexBackedDexFile) {
+                // Only the classes that actually contain accessors need to be read
+                final DexBackedDexFile dexBackedDexFile = (DexBackedDexFile)dexFile;
+                options.syntheticAccessorResolver = new SyntheticAccessorResolver(dexFile.getOpcodes(),
+                        new ClassProvider() {
+                            @Nullable @Override public ClassDef getClassDef(String type) {
+                                return dexBackedDexFile.getClassByType(type);
+                            }
+                        });
+            } else {
+                options.syntheticAccessorResolver = new SyntheticAccessorResolver(dexFile.getOpcodes(),
+                        dexFile.getClasses());
+            }
         }
 
-        final ClassFileNameHandler fileNameHandler = new ClassFileNameHandler(outputDirectoryFile, ".smali");
+        if (dexFile instanceof DexBackedDexFile) {
+            options.referenceCache = new RenderedReferenceCache((DexBackedDexFile)dexFile,
+                    RenderedReferenceCache.DEFAULT_MAX_CACHED_CHARS, options.printTiming);
+        }
 
-        ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
-        List<Future<Boolean>> tasks = Lists.newArrayList();
+        File manifestFile = null;
+        DisassemblyManifest previousManifest = null;
+        DisassemblyManifest manifest = null;
+        if (archive == null) {
+            manifestFile = new File(options.outputDirectory, DisassemblyManifest.FILE_NAME);
+            if (options.incremental) {
+                if (options.registerInfo != 0 || options.deodex || options.normalizeVirtualMethods) {
+                    System.err.println("Warning: --incremental has no effect when using the class path, since the " +
+                            "output for a class can depend on any other class.");
+                } else if (options.classFilter != null) {
+                    System.err.println("Warning: --incremental has no effect when disassembling a subset of the " +
+                            "classes.");
+                } else {
+                    manifest = new DisassemblyManifest(DisassemblyManifest.computeOptionsHash(options, classDefs));
+                    previousManifest = DisassemblyManifest.read(manifestFile);
+                }
+            }
+            // The manifest describes the files in the output directory, so it's removed before they're changed, and
+            // only written back if everything was disassembled successfully
+            if (manifestFile.exists() && !manifestFile.delete()) {
+                System.err.println("Can't delete " + manifestFile.getPath());
+                return false;
+            }
+        } else if (options.incremental) {
+            System.err.println("Warning: --incremental has no effect when writing to an archive.");
+        }
+        boolean reusePreviousOutput = manifest != null && previousManifest != null &&
+                previousManifest.getOptionsHash().equals(manifest.getOptionsHash());
 
-        for (final ClassDef classDef: classDefs) {
-            tasks.add(executor.submit(new Callable<Boolean>() {
-                @Override public Boolean call() throws Exception {
-                    return disassembleClass(classDef, fileNameHandler, options);
+        final DisassemblyTimer timer = options.printTiming ? new DisassemblyTimer() : null;
+
+        // Assign the output paths up front, in sorted order. If the names were assigned as each class was
+        // disassembled, the order that colliding names are resolved would depend on thread scheduling. Only the path
+        // and cost of each class are kept; its task is created when it's submitted
+        final int classCount = classDefs.size();
+        final String[] relativePaths = new String[classCount];
+        final long[] costs = new long[classCount];
+        Set<String> outputPaths = Sets.newHashSet();
+        Set<File> outputDirectories = Sets.newHashSet();
+        Integer[] order = new Integer[classCount];
+        for (int i=0; i<classCount; i++) {
+            ClassDef classDef = classDefs.get(i);
+            if (isValidClassDescriptor(classDef.getType())) {
+                File smaliFile = fileNameHandler.getUniqueFilenameForClass(classDef.getType());
+                relativePaths[i] = smaliFile.getPath().substring(outputPrefix.length())
+                        .replace(File.separatorChar, '/');
+                outputPaths.add(relativePaths[i]);
+                if (archive == null) {
+                    outputDirectories.add(smaliFile.getParentFile());
                 }
-            }));
+            }
+            costs[i] = estimateDisassemblyCost(classDef);
+            order[i] = i;
+        }
+
+        // Create all the package directories once, up front, rather than having every worker check for its class's
+        // directory. If one can't be created, writing each of its classes will fail and be reported as usual
+        if (archive == null) {
+            for (File directory: outputDirectories) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    System.err.println("Unable to create directory " + directory.toString());
+                }
+            }
         }
 
+        // Start the most expensive classes first. Otherwise, a few huge classes near the end of the list can leave
+        // all but one thread idle for the tail end of the run. This is a stable sort, so classes with the same cost
+        // are still started in name order
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer o1, Integer o2) {
+                return Longs.compare(costs[o2], costs[o1]);
+            }
+        });
+
+        // Only keep a few classes per thread in flight at once, so that the number of pending tasks and results
+        // doesn't grow with the size of the dex file
+        int maxInFlight = options.jobs * MAX_IN_FLIGHT_PER_JOB;
+        ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
+        CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(executor);
+
         boolean errorOccurred = false;
+        int nextTask = 0;
+        int inFlight = 0;
         try {
-            for (Future<Boolean> task: tasks) {
+            while (true) {
+                boolean canSubmit = nextTask < classCount && (options.ignoreErrors || !errorOccurred);
+                if (canSubmit && inFlight < maxInFlight) {
+                    int index = order[nextTask++];
+                    ClassDef classDef = classDefs.get(index);
+                    String relativePath = relativePaths[index];
+                    File smaliFile = null;
+                    DisassemblyManifest.Entry previousEntry = null;
+                    if (relativePath != null) {
+                        smaliFile = new File(outputPrefix + relativePath.replace('/', File.separatorChar));
+                        if (reusePreviousOutput) {
+                            previousEntry = previousManifest.getEntry(classDef.getType());
+                        }
+                    }
+                    completionService.submit(new DisassemblyTask(classDef, smaliFile, relativePath, archive, manifest,
+                            previousEntry, costs[index], options, timer));
+                    inFlight++;
+                    continue;
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+
+                Future<Boolean> result;
+                try {
+                    result = completionService.take();
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                inFlight--;
+
                 while(true) {
                     try {
-                        if (!task.get()) {
+                        if (!result.get()) {
                             errorOccurred = true;
                         }
                     } catch (InterruptedException ex) {
@@ -170,11 +347,270 @@ public class baksmali {
         } finally {
             executor.shutdown();
         }
+
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException ex) {
+                System.err.println("\n\nError occurred while writing " + options.outputArchive);
+                ex.printStackTrace();
+                errorOccurred = true;
+            }
+        }
+
+        if (manifest != null) {
+            // remove the output of any classes that have been removed or moved to a different file
+            if (previousManifest != null) {
+                for (DisassemblyManifest.Entry entry: previousManifest.getEntries()) {
+                    if (!outputPaths.contains(entry.path)) {
+                        // noinspection ResultOfMethodCallIgnored
+                        new File(options.outputDirectory, entry.path).delete();
+                    }
+                }
+            }
+            if (!errorOccurred && nextTask == classCount) {
+                try {
+                    manifest.write(manifestFile);
+                } catch (IOException ex) {
+                    System.err.println("\n\nError occurred while writing " + manifestFile.getPath());
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        if (nextTask < classCount) {
+            System.err.println(String.format("\n\nStopped after an error, skipping the remaining %d classes. Use " +
+                    "--ignore-errors to disassemble them anyway.", classCount - nextTask));
+        }
+
+        if (timer != null) {
+            timer.printSummary(System.out, nextTask, options.jobs);
+            if (options.referenceCache != null) {
+                options.referenceCache.printStatistics(System.out);
+            }
+        }
         return !errorOccurred;
     }
 
-    private static boolean disassembleClass(ClassDef classDef, ClassFileNameHandler fileNameHandler,
+    /**
+     * Gets the classes selected by the class filter, if any. For a dex backed file, the filter is applied to each
+     * class's type before the rest of the class is read.
+     */
+    @Nonnull
+    private static Iterable<? extends ClassDef> getSelectedClasses(@Nonnull DexFile dexFile,
+                                                                 @Nonnull baksmaliOptions options) {
+        ClassFilter classFilter = options.classFilter;
+        if (classFilter == null) {
+            return dexFile.getClasses();
+        }
+
+        List<ClassDef> selectedClasses = Lists.newArrayList();
+        if (dexFile instanceof DexBackedDexFile) {
+            DexBackedDexFile dexBackedDexFile = (DexBackedDexFile)dexFile;
+            for (int i=0; i<dexBackedDexFile.getClassCount(); i++) {
+                if (classFilter.matches(dexBackedDexFile.getType(dexBackedDexFile.getClassTypeIndex(i)))) {
+                    selectedClasses.add(
+                            new DexBackedClassDef(dexBackedDexFile, dexBackedDexFile.getClassDefItemOffset(i)));
+                }
+            }
+        } else {
+            for (ClassDef classDef: dexFile.getClasses()) {
+                if (classFilter.matches(classDef.getType())) {
+                    selectedClasses.add(classDef);
+                }
+            }
+        }
+        return selectedClasses;
+    }
+
+    /**
+     * Estimates the relative cost of disassembling the given class, based on the number of members and the size of
+     * the method bodies.
+     */
+    static long estimateDisassemblyCost(@Nonnull ClassDef classDef) {
+        long cost = 1 + Iterables.size(classDef.getFields());
+        for (Method method: classDef.getMethods()) {
+            cost++;
+            MethodImplementation methodImpl = method.getImplementation();
+            if (methodImpl instanceof DexBackedMethodImplementation) {
+                cost += ((DexBackedMethodImplementation)methodImpl).getInstructionsSize();
+            } else if (methodImpl != null) {
+                for (Instruction instruction: methodImpl.getInstructions()) {
+                    cost += instruction.getCodeUnits();
+                }
+            }
+        }
+        return cost;
+    }
+
+    private static boolean isValidClassDescriptor(@Nonnull String classDescriptor) {
+        return classDescriptor.charAt(0) == 'L' && classDescriptor.charAt(classDescriptor.length()-1) == ';';
+    }
+
+    private static class DisassemblyTask implements Callable<Boolean> {
+        @Nonnull private final ClassDef classDef;
+        @Nullable private final File smaliFile;
+        @Nullable private final String relativePath;
+        @Nullable private final ZipArchiveWriter archive;
+        @Nullable private final DisassemblyManifest manifest;
+        @Nullable private final DisassemblyManifest.Entry previousEntry;
+        private final long cost;
+        @Nonnull private final baksmaliOptions options;
+        @Nullable private final DisassemblyTimer timer;
+
+        /**
+         * @param smaliFile The file to write the class to, or null if the class's name isn't valid
+         * @param relativePath The path of the output file, relative to the output directory or archive, using '/' as
+         *                     the separator
+         * @param archive The archive to write the class to, or null to write it to smaliFile
+         * @param manifest The manifest to record the class in, for an incremental disassembly
+         * @param previousEntry The manifest entry for this class from a previous, compatible, incremental
+         *                      disassembly
+         */
+        public DisassemblyTask(@Nonnull ClassDef classDef, @Nullable File smaliFile, @Nullable String relativePath,
+                               @Nullable ZipArchiveWriter archive, @Nullable DisassemblyManifest manifest,
+                               @Nullable DisassemblyManifest.Entry previousEntry, long cost,
+                               @Nonnull baksmaliOptions options, @Nullable DisassemblyTimer timer) {
+            this.classDef = classDef;
+            this.smaliFile = smaliFile;
+            this.relativePath = relativePath;
+            this.archive = archive;
+            this.manifest = manifest;
+            this.previousEntry = previousEntry;
+            this.cost = cost;
+            this.options = options;
+            this.timer = timer;
+        }
+
+        @Override public Boolean call() throws Exception {
+            if (timer == null) {
+                return disassemble();
+            }
+            long start = timer.classStarted();
+            try {
+                return disassemble();
+            } finally {
+                timer.classFinished(classDef, cost, start);
+            }
+        }
+
+        private boolean disassemble() {
+            if (archive != null) {
+                return disassembleClass(classDef, relativePath, archive, options);
+            }
+            if (manifest == null || smaliFile == null || relativePath == null) {
+                return disassembleClass(classDef, smaliFile, options);
+            }
+
+            String hash = ClassDefHasher.hashClass(classDef).toString();
+            if (previousEntry != null && previousEntry.hash.equals(hash) && previousEntry.path.equals(relativePath) &&
+                    smaliFile.exists()) {
+                manifest.addEntry(classDef.getType(), hash, relativePath);
+                return true;
+            }
+            if (disassembleClass(classDef, smaliFile, options)) {
+                manifest.addEntry(classDef.getType(), hash, relativePath);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Collects the timings for the --timing debug option
+     */
+    private static class DisassemblyTimer {
+        private final long startTime = System.nanoTime();
+        private final AtomicLong lastClassStartTime = new AtomicLong();
+        private final AtomicLong workTime = new AtomicLong();
+
+        private String slowestClass = null;
+        private long slowestClassTime = -1;
+        private long slowestClassCost;
+
+        public long classStarted() {
+            long now = System.nanoTime();
+            long elapsed = now - startTime;
+            long last;
+            do {
+                last = lastClassStartTime.get();
+            } while (elapsed > last && !lastClassStartTime.compareAndSet(last, elapsed));
+            return now;
+        }
+
+        public void classFinished(@Nonnull ClassDef classDef, long cost, long classStartTime) {
+            long classTime = System.nanoTime() - classStartTime;
+            workTime.addAndGet(classTime);
+            synchronized (this) {
+                if (classTime > slowestClassTime) {
+                    slowestClass = classDef.getType();
+                    slowestClassTime = classTime;
+                    slowestClassCost = cost;
+                }
+            }
+        }
+
+        public synchronized void printSummary(@Nonnull PrintStream out, int classCount, int jobs) {
+            long totalTime = System.nanoTime() - startTime;
+
+            out.println(String.format("Disassembled %d classes in %dms, using %d threads",
+                    classCount, toMillis(totalTime), jobs));
+            out.println(String.format("Total disassembly time: %dms (%dms per thread if perfectly balanced)",
+                    toMillis(workTime.get()), toMillis(workTime.get() / jobs)));
+            // The tail is the time after the last class was started, during which at least one thread is idle
+            out.println(String.format("Tail after the last class was started: %dms",
+                    toMillis(totalTime - lastClassStartTime.get())));
+            if (slowestClass != null) {
+                out.println(String.format("Slowest class: %s, %dms (estimated cost %d)",
+                        slowestClass, toMillis(slowestClassTime), slowestClassCost));
+            }
+        }
+
+        private static long toMillis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+
+    private static boolean disassembleClass(ClassDef classDef, String entryName, ZipArchiveWriter archive,
                                             baksmaliOptions options) {
+        String classDescriptor = classDef.getType();
+
+        //validate that the descriptor is formatted like we expect
+        if (!isValidClassDescriptor(classDescriptor)) {
+            System.err.println("Unrecognized class descriptor - " + classDescriptor + " - skipping class");
+            return false;
+        }
+
+        // Render into a buffer that's reused by this thread, and then compress it on this thread too, so that the
+        // archive's writer thread only has to copy the compressed bytes into the file
+        Utf8ByteWriter buffer;
+        try {
+            buffer = renderClass(classDef, options);
+            archive.addEntry(ZipArchiveWriter.compress(entryName, buffer.getBuffer(), buffer.size()));
+        } catch (Exception ex) {
+            System.err.println("\n\nError occurred while disassembling class " + classDescriptor.replace('/', '.') + " - skipping class");
+            ex.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Renders the smali for the given class into this thread's UTF-8 render buffer.
+     *
+     * The returned buffer is only valid until the next call to renderClass on the same thread.
+     */
+    @Nonnull
+    private static Utf8ByteWriter renderClass(ClassDef classDef, baksmaliOptions options) throws IOException {
+        Utf8ByteWriter buffer = renderBuffer.get();
+        buffer.reset();
+        IndentingWriter writer = new IndentingWriter(buffer);
+        new ClassDefinition(options, classDef).writeTo(writer);
+        writer.flush();
+        return buffer;
+    }
+
+    private static boolean disassembleClass(ClassDef classDef, File smaliFile, baksmaliOptions options) {
         /**
          * The path for the disassembly file is based on the package name
          * The class descriptor will look something like:
@@ -185,56 +621,39 @@ public class baksmali {
         String classDescriptor = classDef.getType();
 
         //validate that the descriptor is formatted like we expect
-        if (classDescriptor.charAt(0) != 'L' ||
-                classDescriptor.charAt(classDescriptor.length()-1) != ';') {
+        if (!isValidClassDescriptor(classDescriptor)) {
             System.err.println("Unrecognized class descriptor - " + classDescriptor + " - skipping class");
             return false;
         }
 
-        File smaliFile = fileNameHandler.getUniqueFilenameForClass(classDescriptor);
-
-        //create and initialize the top level string template
-        ClassDefinition classDefinition = new ClassDefinition(options, classDef);
-
         //write the disassembly
-        Writer writer = null;
+        OutputStream out = null;
         try
         {
-            File smaliParent = smaliFile.getParentFile();
-            if (!smaliParent.exists()) {
-                if (!smaliParent.mkdirs()) {
-                    // check again, it's likely it was created in a different thread
-                    if (!smaliParent.exists()) {
-                        System.err.println("Unable to create directory " + smaliParent.toString() + " - skipping class");
-                        return false;
-                    }
-                }
-            }
+            Utf8ByteWriter buffer = renderClass(classDef, options);
 
-            if (!smaliFile.exists()){
-                if (!smaliFile.createNewFile()) {
-                    System.err.println("Unable to create file " + smaliFile.toString() + " - skipping class");
-                    return false;
-                }
-            }
-
-            BufferedWriter bufWriter = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(smaliFile), "UTF8"));
-
-            writer = new IndentingWriter(bufWriter);
-            classDefinition.writeTo((IndentingWriter)writer);
+            // the parent directory was created before the workers were started, and the file is created if needed
+            out = new FileOutputStream(smaliFile);
+            buffer.writeTo(out);
         } catch (Exception ex) {
             System.err.println("\n\nError occurred while disassembling class " + classDescriptor.replace('/', '.') + " - skipping class");
             ex.printStackTrace();
+            if (out != null) {
+                try {
+                    out.close();
+                    out = null;
+                } catch (IOException ignored) {
+                }
+            }
             // noinspection ResultOfMethodCallIgnored
             smaliFile.delete();
             return false;
         }
         finally
         {
-            if (writer != null) {
+            if (out != null) {
                 try {
-                    writer.close();
+                    out.close();
                 } catch (Throwable ex) {
                     System.err.println("\n\nError occurred while closing file " + smaliFile.toString());
                     ex.printStackTrace();
@@ -55,6 +55,7 @@ public class baksmaliOptions {
 
     public int apiLevel = 15;
     public String outputDirectory = "out";
+    @Nullable public String outputArchive = null;
     @Nullable public String dexEntry = null;
     public List<String> bootClassPathDirs = Lists.newArrayList();
 
@@ -81,12 +82,17 @@ public class baksmaliOptions {
     public InlineMethodResolver inlineResolver = null;
     public int registerInfo = 0;
     public ClassPath classPath = null;
+    public ClassPathCache classPathCache = null;
     public int jobs = Runtime.getRuntime().availableProcessors();
     public boolean disassemble = true;
     public boolean dump = false;
+    public boolean printTiming = false;
+    public boolean incremental = false;
     public String dumpFileName = null;
+    public ClassFilter classFilter = null;
 
     public SyntheticAccessorResolver syntheticAccessorResolver = null;
+    public RenderedReferenceCache referenceCache = null;
 
     public void setBootClassPath(String bootClassPath) {
         bootClassPathEntries = Lists.newArrayList(bootClassPath.split(":"));
@@ -38,20 +38,25 @@ import org.jf.dexlib2.dexbacked.DexBackedOdexFile;
 import org.jf.dexlib2.dexbacked.OatFile.OatDexFile;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.util.ConsoleUtil;
+import org.jf.util.JobServer;
 import org.jf.util.SmaliHelpFormatter;
 
 import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.*;
 
 public class main {
 
     public static final String VERSION;
 
+    private static final int DAEMON_CLASS_PATH_IDLE_MINUTES = 10;
+
     private static final Options basicOptions;
     private static final Options debugOptions;
     private static final Options options;
@@ -130,160 +135,223 @@ public class main {
         Locale locale = new Locale("en", "US");
         Locale.setDefault(locale);
 
-        CommandLineParser parser = new PosixParser();
-        CommandLine commandLine;
-
-        try {
-            commandLine = parser.parse(options, args);
-        } catch (ParseException ex) {
-            usage();
-            return;
+        int exitCode = execute(args, null);
+        if (exitCode != 0) {
+            System.exit(exitCode);
         }
+    }
 
+    /**
+     * Runs baksmali with the given command line arguments
+     *
+     * @param args The command line arguments
+     * @param classPathCache If not null, the cache to load the boot class path from. This is set for jobs run by a
+     *                       daemon
+     * @return The exit code
+     */
+    private static int execute(String[] args, ClassPathCache classPathCache) throws IOException {
         baksmaliOptions options = new baksmaliOptions();
+        options.classPathCache = classPathCache;
+        String[] remainingArgs;
+        String daemonPort = null;
+        String daemonTokenFile = null;
 
-        String[] remainingArgs = commandLine.getArgs();
-        Option[] clOptions = commandLine.getOptions();
-
-        for (int i=0; i<clOptions.length; i++) {
-            Option option = clOptions[i];
-            String opt = option.getOpt();
-
-            switch (opt.charAt(0)) {
-                case 'v':
-                    version();
-                    return;
-                case '?':
-                    while (++i < clOptions.length) {
-                        if (clOptions[i].getOpt().charAt(0) == '?') {
-                            usage(true);
-                            return;
-                        }
-                    }
-                    usage(false);
-                    return;
-                case 'o':
-                    options.outputDirectory = commandLine.getOptionValue("o");
-                    break;
-                case 'p':
-                    options.noParameterRegisters = true;
-                    break;
-                case 'l':
-                    options.useLocalsDirective = true;
-                    break;
-                case 's':
-                    options.useSequentialLabels = true;
-                    break;
-                case 'b':
-                    options.outputDebugInfo = false;
-                    break;
-                case 'd':
-                    options.bootClassPathDirs.add(option.getValue());
-                    break;
-                case 'f':
-                    options.addCodeOffsets = true;
-                    break;
-                case 'r':
-                    String[] values = commandLine.getOptionValues('r');
-                    int registerInfo = 0;
-
-                    if (values == null || values.length == 0) {
-                        registerInfo = baksmaliOptions.ARGS | baksmaliOptions.DEST;
-                    } else {
-                        for (String value: values) {
-                            if (value.equalsIgnoreCase("ALL")) {
-                                registerInfo |= baksmaliOptions.ALL;
-                            } else if (value.equalsIgnoreCase("ALLPRE")) {
-                                registerInfo |= baksmaliOptions.ALLPRE;
-                            } else if (value.equalsIgnoreCase("ALLPOST")) {
-                                registerInfo |= baksmaliOptions.ALLPOST;
-                            } else if (value.equalsIgnoreCase("ARGS")) {
-                                registerInfo |= baksmaliOptions.ARGS;
-                            } else if (value.equalsIgnoreCase("DEST")) {
-                                registerInfo |= baksmaliOptions.DEST;
-                            } else if (value.equalsIgnoreCase("MERGE")) {
-                                registerInfo |= baksmaliOptions.MERGE;
-                            } else if (value.equalsIgnoreCase("FULLMERGE")) {
-                                registerInfo |= baksmaliOptions.FULLMERGE;
-                            } else {
-                                usage();
-                                return;
+        // The commons-cli Option objects hold the parsed values, so parsing has to be serialized when running
+        // concurrent daemon jobs
+        synchronized (main.class) {
+            CommandLineParser parser = new PosixParser();
+            CommandLine commandLine;
+
+            try {
+                commandLine = parser.parse(main.options, args);
+            } catch (ParseException ex) {
+                usage();
+                return 0;
+            }
+
+            remainingArgs = commandLine.getArgs();
+            Option[] clOptions = commandLine.getOptions();
+
+            for (int i=0; i<clOptions.length; i++) {
+                Option option = clOptions[i];
+                String opt = option.getOpt();
+
+                switch (opt.charAt(0)) {
+                    case 'v':
+                        version();
+                        return 0;
+                    case '?':
+                        while (++i < clOptions.length) {
+                            if (clOptions[i].getOpt().charAt(0) == '?') {
+                                usage(true);
+                                return 0;
                             }
                         }
+                        usage(false);
+                        return 0;
+                    case 'o':
+                        options.outputDirectory = commandLine.getOptionValue("o");
+                        break;
+                    case 'z':
+                        options.outputArchive = commandLine.getOptionValue("z");
+                        break;
+                    case 'u':
+                        options.incremental = true;
+                        break;
+                    case 'C':
+                        if (options.classFilter == null) {
+                            options.classFilter = new ClassFilter();
+                        }
+                        options.classFilter.addIncludes(commandLine.getOptionValue("C"));
+                        break;
+                    case 'E':
+                        if (options.classFilter == null) {
+                            options.classFilter = new ClassFilter();
+                        }
+                        options.classFilter.addExcludes(commandLine.getOptionValue("E"));
+                        break;
+                    case 'p':
+                        options.noParameterRegisters = true;
+                        break;
+                    case 'l':
+                        options.useLocalsDirective = true;
+                        break;
+                    case 's':
+                        options.useSequentialLabels = true;
+                        break;
+                    case 'b':
+                        options.outputDebugInfo = false;
+                        break;
+                    case 'd':
+                        options.bootClassPathDirs.add(option.getValue());
+                        break;
+                    case 'f':
+                        options.addCodeOffsets = true;
+                        break;
+                    case 'r':
+                        String[] values = commandLine.getOptionValues('r');
+                        int registerInfo = 0;
+
+                        if (values == null || values.length == 0) {
+                            registerInfo = baksmaliOptions.ARGS | baksmaliOptions.DEST;
+                        } else {
+                            for (String value: values) {
+                                if (value.equalsIgnoreCase("ALL")) {
+                                    registerInfo |= baksmaliOptions.ALL;
+                                } else if (value.equalsIgnoreCase("ALLPRE")) {
+                                    registerInfo |= baksmaliOptions.ALLPRE;
+                                } else if (value.equalsIgnoreCase("ALLPOST")) {
+                                    registerInfo |= baksmaliOptions.ALLPOST;
+                                } else if (value.equalsIgnoreCase("ARGS")) {
+                                    registerInfo |= baksmaliOptions.ARGS;
+                                } else if (value.equalsIgnoreCase("DEST")) {
+                                    registerInfo |= baksmaliOptions.DEST;
+                                } else if (value.equalsIgnoreCase("MERGE")) {
+                                    registerInfo |= baksmaliOptions.MERGE;
+                                } else if (value.equalsIgnoreCase("FULLMERGE")) {
+                                    registerInfo |= baksmaliOptions.FULLMERGE;
+                                } else {
+                                    usage();
+                                    return 0;
+                                }
+                            }
 
-                        if ((registerInfo & baksmaliOptions.FULLMERGE) != 0) {
-                            registerInfo &= ~baksmaliOptions.MERGE;
+                            if ((registerInfo & baksmaliOptions.FULLMERGE) != 0) {
+                                registerInfo &= ~baksmaliOptions.MERGE;
+                            }
+                        }
+                        options.registerInfo = registerInfo;
+                        break;
+                    case 'c':
+                        String bcp = commandLine.getOptionValue("c");
+                        if (bcp != null && bcp.charAt(0) == ':') {
+                            options.addExtraClassPath(bcp);
+                        } else {
+                            options.setBootClassPath(bcp);
                         }
-                    }
-                    options.registerInfo = registerInfo;
-                    break;
-                case 'c':
-                    String bcp = commandLine.getOptionValue("c");
-                    if (bcp != null && bcp.charAt(0) == ':') {
-                        options.addExtraClassPath(bcp);
-                    } else {
-                        options.setBootClassPath(bcp);
-                    }
-                    break;
-                case 'x':
-                    options.deodex = true;
-                    break;
-                case 'X':
-                    options.experimental = true;
-                    break;
-                case 'm':
-                    options.noAccessorComments = true;
-                    break;
-                case 'a':
-                    options.apiLevel = Integer.parseInt(commandLine.getOptionValue("a"));
-                    break;
-                case 'j':
-                    options.jobs = Integer.parseInt(commandLine.getOptionValue("j"));
-                    break;
-                case 'i':
-                    String rif = commandLine.getOptionValue("i");
-                    options.setResourceIdFiles(rif);
-                    break;
-                case 't':
-                    options.useImplicitReferences = true;
-                    break;
-                case 'e':
-                    options.dexEntry = commandLine.getOptionValue("e");
-                    break;
-                case 'k':
-                    options.checkPackagePrivateAccess = true;
-                    break;
-                case 'n':
-                    options.normalizeVirtualMethods = true;
-                    break;
-                case 'N':
-                    options.disassemble = false;
-                    break;
-                case 'D':
-                    options.dump = true;
-                    options.dumpFileName = commandLine.getOptionValue("D");
-                    break;
-                case 'I':
-                    options.ignoreErrors = true;
-                    break;
-                case 'T':
-                    options.customInlineDefinitions = new File(commandLine.getOptionValue("T"));
-                    break;
-                default:
-                    assert false;
+                        break;
+                    case 'x':
+                        options.deodex = true;
+                        break;
+                    case 'X':
+                        options.experimental = true;
+                        break;
+                    case 'm':
+                        options.noAccessorComments = true;
+                        break;
+                    case 'a':
+                        options.apiLevel = Integer.parseInt(commandLine.getOptionValue("a"));
+                        break;
+                    case 'j':
+                        options.jobs = Integer.parseInt(commandLine.getOptionValue("j"));
+                        break;
+                    case 'i':
+                        String rif = commandLine.getOptionValue("i");
+                        options.setResourceIdFiles(rif);
+                        break;
+                    case 't':
+                        options.useImplicitReferences = true;
+                        break;
+                    case 'e':
+                        options.dexEntry = commandLine.getOptionValue("e");
+                        break;
+                    case 'k':
+                        options.checkPackagePrivateAccess = true;
+                        break;
+                    case 'n':
+                        options.normalizeVirtualMethods = true;
+                        break;
+                    case 'N':
+                        options.disassemble = false;
+                        break;
+                    case 'D':
+                        options.dump = true;
+                        options.dumpFileName = commandLine.getOptionValue("D");
+                        break;
+                    case 'I':
+                        options.ignoreErrors = true;
+                        break;
+                    case 'T':
+                        options.customInlineDefinitions = new File(commandLine.getOptionValue("T"));
+                        break;
+                    case 'P':
+                        options.printTiming = true;
+                        break;
+                    case 'S':
+                        daemonPort = commandLine.getOptionValue("S", "");
+                        break;
+                    case 'K':
+                        daemonTokenFile = commandLine.getOptionValue("K");
+                        break;
+                    default:
+                        assert false;
+                }
             }
         }
 
+        if (daemonPort != null) {
+            if (classPathCache != null) {
+                System.err.println("The --daemon option can't be used for a daemon job");
+                return 1;
+            }
+            if (daemonPort.length() > 0 && daemonTokenFile == null) {
+                System.err.println("The --daemon-token-file option is required when the daemon listens on a port");
+                return 1;
+            }
+            runDaemon(daemonPort.length() == 0 ? -1 : Integer.parseInt(daemonPort), daemonTokenFile, options.jobs);
+            return 0;
+        }
+
         if (remainingArgs.length != 1) {
             usage();
-            return;
+            return 0;
         }
 
         String inputDexPath = remainingArgs[0];
         File dexFileFile = new File(inputDexPath);
         if (!dexFileFile.exists()) {
             System.err.println("Can't find the file " + inputDexPath);
-            System.exit(1);
+            return 1;
         }
 
         //Read in and parse the dex file
@@ -298,7 +366,7 @@ public class main {
             for (OatDexFile oatDexFile: ex.oatFile.getDexFiles()) {
                 System.err.println(oatDexFile.filename);
             }
-            System.exit(1);
+            return 1;
         }
 
         if (dexFile.hasOdexOpcodes()) {
@@ -320,11 +388,55 @@ public class main {
 
         try {
             if (!run(options, dexFile)) {
-                System.exit(1);
+                return 1;
             }
         } catch (IllegalArgumentException ex) {
             System.err.println(ex.getMessage());
-            System.exit(1);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Runs baksmali as a long-lived daemon, so that the boot class path can be loaded once and shared between jobs.
+     *
+     * @param port The loopback port to listen on, or -1 to read jobs from stdin
+     * @param tokenFile The file to write the token that connections must send to, when listening on a port
+     * @param maxConcurrentJobs The maximum number of jobs to run at once
+     */
+    private static void runDaemon(int port, String tokenFile, int maxConcurrentJobs) throws IOException {
+        final ClassPathCache classPathCache = new ClassPathCache(DAEMON_CLASS_PATH_IDLE_MINUTES, TimeUnit.MINUTES);
+
+        ScheduledExecutorService evictionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(@Nonnull Runnable runnable) {
+                Thread thread = new Thread(runnable, "baksmali-class-path-eviction");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                classPathCache.evictIdleEntries();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+
+        JobServer server = new JobServer(new JobServer.JobHandler() {
+            @Override public int runJob(String[] args) throws Exception {
+                return execute(args, classPathCache);
+            }
+        }, maxConcurrentJobs);
+
+        try {
+            if (port < 0) {
+                // Job output goes to stderr, so that it can't be mixed in with the responses on stdout
+                PrintStream responseStream = System.out;
+                System.setOut(System.err);
+                server.serve(System.in, responseStream);
+            } else {
+                server.serve(port, new File(tokenFile), System.out);
+            }
+        } finally {
+            evictionExecutor.shutdownNow();
         }
     }
 
@@ -355,7 +467,6 @@ public class main {
         System.out.println("baksmali " + VERSION + " (http://smali.googlecode.com)");
         System.out.println("Copyright (C) 2010 Ben Gruver (JesusFreke@JesusFreke.com)");
         System.out.println("BSD license (http://www.opensource.org/licenses/bsd-license.php)");
-        System.exit(0);
     }
 
     @SuppressWarnings("AccessStaticViaInstance")
@@ -374,6 +485,35 @@ public class main {
                 .withArgName("DIR")
                 .create("o");
 
+        Option outputArchiveOption = OptionBuilder.withLongOpt("output-zip")
+                .withDescription("write the disassembled files into a single zip archive named FILE, instead of " +
+                        "into the output directory")
+                .hasArg()
+                .withArgName("FILE")
+                .create("z");
+
+        Option incrementalOption = OptionBuilder.withLongOpt("incremental")
+                .withDescription("only disassemble the classes that have changed since the last incremental " +
+                        "disassembly into the same output directory, and remove the files for classes that no " +
+                        "longer exist")
+                .create("u");
+
+        Option classesOption = OptionBuilder.withLongOpt("classes")
+                .withDescription("only disassemble the classes matching the given comma-separated list of patterns. " +
+                        "A pattern is a class name or descriptor, where * matches any part of a name and ** " +
+                        "matches any sequence of packages. A pattern ending with . or / matches everything in that " +
+                        "package and its subpackages. @FILE reads the patterns from FILE, one per line")
+                .hasArg()
+                .withArgName("PATTERNS")
+                .create("C");
+
+        Option excludeClassesOption = OptionBuilder.withLongOpt("exclude-classes")
+                .withDescription("don't disassemble the classes matching the given comma-separated list of " +
+                        "patterns, in the same format as --classes")
+                .hasArg()
+                .withArgName("PATTERNS")
+                .create("E");
+
         Option noParameterRegistersOption = OptionBuilder.withLongOpt("no-parameter-registers")
                 .withDescription("use the v<n> syntax instead of the p<n> syntax for registers mapped to method " +
                         "parameters")
@@ -498,15 +638,44 @@ public class main {
                 .withArgName("FILE")
                 .create("T");
 
+        Option timingOption = OptionBuilder.withLongOpt("timing")
+                .withDescription("prints a summary of the time spent disassembling, including how long the last " +
+                        "classes kept some threads idle")
+                .create("P");
+
         Option dexEntryOption = OptionBuilder.withLongOpt("dex-file")
                 .withDescription("looks for dex file named DEX_FILE, defaults to classes.dex")
                 .withArgName("DEX_FILE")
                 .hasArg()
                 .create("e");
 
+        Option daemonOption = OptionBuilder.withLongOpt("daemon")
+                .withDescription("runs baksmali as a daemon that keeps the boot class path loaded between jobs. " +
+                        "Jobs are read from stdin as lines of the form \"<id> <baksmali arguments>\", and baksmali " +
+                        "responds to each with a line of the form \"<id> <exit code>\". A \"shutdown\" line stops " +
+                        "the daemon once the running jobs have finished. If PORT is given, jobs are read from " +
+                        "connections to PORT on the loopback interface instead. Any local user can connect to the " +
+                        "port, and a job can read and write any file that the daemon's user can, so each " +
+                        "connection must first send the token from the --daemon-token-file file")
+                .hasOptionalArg()
+                .withArgName("PORT")
+                .create("S");
+
+        Option daemonTokenFileOption = OptionBuilder.withLongOpt("daemon-token-file")
+                .withDescription("the file that a daemon listening on a port writes its token to. The file must " +
+                        "not already exist. It is created readable only by its owner, and is deleted when the " +
+                        "daemon stops")
+                .hasArg()
+                .withArgName("FILE")
+                .create("K");
+
         basicOptions.addOption(versionOption);
         basicOptions.addOption(helpOption);
         basicOptions.addOption(outputDirOption);
+        basicOptions.addOption(outputArchiveOption);
+        basicOptions.addOption(incrementalOption);
+        basicOptions.addOption(classesOption);
+        basicOptions.addOption(excludeClassesOption);
         basicOptions.addOption(noParameterRegistersOption);
         basicOptions.addOption(deodexerantOption);
         basicOptions.addOption(experimentalOption);
@@ -525,11 +694,14 @@ public class main {
         basicOptions.addOption(dexEntryOption);
         basicOptions.addOption(checkPackagePrivateAccessOption);
         basicOptions.addOption(normalizeVirtualMethods);
+        basicOptions.addOption(daemonOption);
+        basicOptions.addOption(daemonTokenFileOption);
 
         debugOptions.addOption(dumpOption);
         debugOptions.addOption(ignoreErrorsOption);
         debugOptions.addOption(noDisassemblyOption);
         debugOptions.addOption(inlineTableOption);
+        debugOptions.addOption(timingOption);
 
         for (Object option: basicOptions.getOptions()) {
             options.addOption((Option)option);
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ClassFilterTest {
+    @Test
+    public void testPatterns() {
+        Assert.assertTrue(ClassFilter.compilePattern("com.example.Foo").matcher("Lcom/example/Foo;").matches());
+        Assert.assertTrue(ClassFilter.compilePattern("Lcom/example/Foo;").matcher("Lcom/example/Foo;").matches());
+        Assert.assertFalse(ClassFilter.compilePattern("com.example.Foo").matcher("Lcom/example/Foo$1;").matches());
+
+        Assert.assertTrue(ClassFilter.compilePattern("com.example.*").matcher("Lcom/example/Foo;").matches());
+        Assert.assertFalse(ClassFilter.compilePattern("com.example.*").matcher("Lcom/example/sub/Foo;").matches());
+        Assert.assertTrue(ClassFilter.compilePattern("com.example.Foo*").matcher("Lcom/example/Foo$1;").matches());
+
+        Assert.assertTrue(ClassFilter.compilePattern("com.example.**").matcher("Lcom/example/sub/Foo;").matches());
+        Assert.assertTrue(ClassFilter.compilePattern("com.example.").matcher("Lcom/example/sub/Foo;").matches());
+        Assert.assertTrue(ClassFilter.compilePattern("com/example/").matcher("Lcom/example/Foo;").matches());
+        Assert.assertFalse(ClassFilter.compilePattern("com.example.").matcher("Lcom/examples/Foo;").matches());
+
+        Assert.assertTrue(ClassFilter.compilePattern("**.R$*").matcher("Lcom/example/R$id;").matches());
+    }
+
+    @Test
+    public void testIncludesAndExcludes() throws IOException {
+        ClassFilter filter = new ClassFilter();
+        Assert.assertTrue(filter.isEmpty());
+        Assert.assertTrue(filter.matches("Lcom/example/Foo;"));
+
+        filter.addIncludes("com.example., org.test.Bar");
+        filter.addExcludes("com.example.internal.");
+        Assert.assertFalse(filter.isEmpty());
+
+        Assert.assertTrue(filter.matches("Lcom/example/Foo;"));
+        Assert.assertTrue(filter.matches("Lorg/test/Bar;"));
+        Assert.assertFalse(filter.matches("Lorg/test/Baz;"));
+        Assert.assertFalse(filter.matches("Lcom/example/internal/Foo;"));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import org.antlr.runtime.RecognitionException;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.smali.SmaliTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class RenderedReferenceCacheTest {
+    private static final String SOURCE = "" +
+            ".class public LHelloWorld;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".field public static field:I\n" +
+            ".method public static main([Ljava/lang/String;)V\n" +
+            "    .registers 2\n" +
+            "    new-instance v0, Ljava/lang/StringBuilder;\n" +
+            "    invoke-direct {v0}, Ljava/lang/StringBuilder;-><init>()V\n" +
+            "    invoke-virtual {v0, p0}, Ljava/lang/StringBuilder;->append(Ljava/lang/Object;)Ljava/lang/StringBuilder;\n" +
+            "    invoke-virtual {v0, p0}, Ljava/lang/StringBuilder;->append(Ljava/lang/Object;)Ljava/lang/StringBuilder;\n" +
+            "    invoke-static {p0}, LHelloWorld;->main([Ljava/lang/String;)V\n" +
+            "    sget v0, LHelloWorld;->field:I\n" +
+            "    sget v0, Ljava/lang/Integer;->MAX_VALUE:I\n" +
+            "    const-class v0, LHelloWorld;\n" +
+            "    const-string v0, \"HelloWorld\"\n" +
+            "    return-void\n" +
+            ".end method";
+
+    private static void assertMatchesReferenceUtil(long maxCachedChars) throws IOException, RecognitionException {
+        ClassDef classDef = SmaliTestUtils.compileSmali(SOURCE);
+        DexBackedDexFile dexFile = ((DexBackedClassDef)classDef).dexFile;
+        RenderedReferenceCache cache = new RenderedReferenceCache(dexFile, maxCachedChars, true);
+
+        int referenceCount = 0;
+        // the second pass is served from the cache, if it's large enough
+        for (int pass=0; pass<2; pass++) {
+            for (Method method: classDef.getMethods()) {
+                MethodImplementation impl = method.getImplementation();
+                if (impl == null) {
+                    continue;
+                }
+                for (Instruction instruction: impl.getInstructions()) {
+                    if (instruction instanceof ReferenceInstruction) {
+                        Reference reference = ((ReferenceInstruction)instruction).getReference();
+                        Assert.assertEquals(ReferenceUtil.getReferenceString(reference),
+                                cache.getReferenceString(reference, null));
+                        Assert.assertEquals(ReferenceUtil.getReferenceString(reference, classDef.getType()),
+                                cache.getReferenceString(reference, classDef.getType()));
+                        referenceCount++;
+                    }
+                }
+            }
+        }
+        Assert.assertEquals(18, referenceCount);
+    }
+
+    @Test
+    public void testCachedReferences() throws IOException, RecognitionException {
+        assertMatchesReferenceUtil(RenderedReferenceCache.DEFAULT_MAX_CACHED_CHARS);
+    }
+
+    @Test
+    public void testFullCache() throws IOException, RecognitionException {
+        assertMatchesReferenceUtil(0);
+    }
+}
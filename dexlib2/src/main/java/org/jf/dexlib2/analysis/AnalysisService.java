@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Analyzes every method of a set of classes in parallel, against a single shared ClassPath.
+ *
+ * A ClassPath and the TypeProtos that it hands out are safe to use from multiple threads, so a single ClassPath can be
+ * shared by all of the worker threads. Each method is analyzed by a separate MethodAnalyzer, which is not itself
+ * thread-safe, and is handed to the ResultHandler on the worker thread that created it.
+ */
+public class AnalysisService {
+    @Nonnull private final ClassPath classPath;
+    @Nullable private final InlineMethodResolver inlineResolver;
+    private final boolean normalizeVirtualMethods;
+    private final int jobs;
+
+    /**
+     * Receives the results of an analysis. The methods of this interface are called concurrently from the worker
+     * threads, so implementations must be thread-safe.
+     */
+    public interface ResultHandler {
+        /**
+         * Called once for each method that was analyzed.
+         *
+         * Note that the analysis may have stopped early due to a verification error. In this case,
+         * analyzer.getAnalysisException() will return the exception.
+         *
+         * @param classDef The class containing the method
+         * @param method The method that was analyzed
+         * @param analyzer The analyzer for the method
+         */
+        void handleResult(@Nonnull ClassDef classDef, @Nonnull Method method, @Nonnull MethodAnalyzer analyzer);
+
+        /**
+         * Called when an unexpected exception occurs while analyzing a method.
+         *
+         * @param classDef The class containing the method
+         * @param method The method that was being analyzed
+         * @param ex The exception that occurred
+         */
+        void handleError(@Nonnull ClassDef classDef, @Nonnull Method method, @Nonnull Exception ex);
+    }
+
+    /**
+     * Creates a new AnalysisService
+     *
+     * @param classPath The ClassPath to analyze the methods against. This is shared by all worker threads.
+     * @param inlineResolver The InlineMethodResolver to use for execute-inline instructions, or null
+     * @param normalizeVirtualMethods Whether to normalize virtual method references to the base method
+     * @param jobs The number of worker threads to use
+     */
+    public AnalysisService(@Nonnull ClassPath classPath, @Nullable InlineMethodResolver inlineResolver,
+                           boolean normalizeVirtualMethods, int jobs) {
+        if (jobs < 1) {
+            throw new IllegalArgumentException("jobs must be at least 1");
+        }
+        this.classPath = classPath;
+        this.inlineResolver = inlineResolver;
+        this.normalizeVirtualMethods = normalizeVirtualMethods;
+        this.jobs = jobs;
+    }
+
+    @Nonnull
+    public ClassPath getClassPath() {
+        return classPath;
+    }
+
+    /**
+     * Analyzes all methods with an implementation in the given dex file.
+     *
+     * @param dexFile The dex file to analyze
+     * @param handler The handler that will receive the results
+     * @return true if all methods were analyzed without an unexpected exception
+     */
+    public boolean analyze(@Nonnull DexFile dexFile, @Nonnull ResultHandler handler) {
+        return analyze(dexFile.getClasses(), handler);
+    }
+
+    /**
+     * Analyzes all methods with an implementation in the given classes.
+     *
+     * The classes are split into one task per class, which are run on a pool of worker threads. This method blocks
+     * until all classes have been analyzed.
+     *
+     * @param classDefs The classes to analyze
+     * @param handler The handler that will receive the results
+     * @return true if all methods were analyzed without an unexpected exception
+     */
+    public boolean analyze(@Nonnull Iterable<? extends ClassDef> classDefs, @Nonnull final ResultHandler handler) {
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<Boolean>> tasks = Lists.newArrayList();
+
+        try {
+            for (final ClassDef classDef: classDefs) {
+                tasks.add(executor.submit(new Callable<Boolean>() {
+                    @Override public Boolean call() throws Exception {
+                        return analyzeClass(classDef, handler);
+                    }
+                }));
+            }
+
+            boolean errorOccurred = false;
+            for (Future<Boolean> task: tasks) {
+                while (true) {
+                    try {
+                        if (!task.get()) {
+                            errorOccurred = true;
+                        }
+                    } catch (InterruptedException ex) {
+                        continue;
+                    } catch (ExecutionException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    break;
+                }
+            }
+            return !errorOccurred;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Analyzes all methods with an implementation in the given class, on the current thread.
+     *
+     * @param classDef The class to analyze
+     * @param handler The handler that will receive the results
+     * @return true if all methods were analyzed without an unexpected exception
+     */
+    public boolean analyzeClass(@Nonnull ClassDef classDef, @Nonnull ResultHandler handler) {
+        boolean success = true;
+        for (Method method: classDef.getMethods()) {
+            if (method.getImplementation() == null) {
+                continue;
+            }
+
+            MethodAnalyzer analyzer;
+            try {
+                analyzer = new MethodAnalyzer(classPath, method, inlineResolver, normalizeVirtualMethods);
+            } catch (Exception ex) {
+                success = false;
+                handler.handleError(classDef, method, ex);
+                continue;
+            }
+            handler.handleResult(classDef, method, analyzer);
+        }
+        return success;
+    }
+}
@@ -308,6 +308,49 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
         return false;
     }
 
+    /**
+     * Copies the register types and deodexed instruction from the corresponding instruction in a previous analysis
+     * of the method.
+     *
+     * @param previousInstruction The corresponding instruction from the previous analysis
+     */
+    protected void copyAnalysisState(@Nonnull AnalyzedInstruction previousInstruction) {
+        assert previousInstruction.originalInstruction == originalInstruction;
+        assert previousInstruction.preRegisterMap.length == preRegisterMap.length;
+
+        System.arraycopy(previousInstruction.preRegisterMap, 0, preRegisterMap, 0, preRegisterMap.length);
+        System.arraycopy(previousInstruction.postRegisterMap, 0, postRegisterMap, 0, postRegisterMap.length);
+        instruction = previousInstruction.instruction;
+    }
+
+    /**
+     * Copies any predecessor register type overrides from the corresponding instruction in a previous analysis of
+     * the method, for those predecessors that don't need to be re-analyzed.
+     *
+     * @param previousInstruction The corresponding instruction from the previous analysis
+     * @param instructionMap A map from the instructions in the previous analysis to the instructions in this analysis
+     * @param affectedInstructions The instructions that will be re-analyzed
+     */
+    protected void copyPredecessorOverrides(@Nonnull AnalyzedInstruction previousInstruction,
+                                            @Nonnull Map<AnalyzedInstruction, AnalyzedInstruction> instructionMap,
+                                            @Nonnull BitSet affectedInstructions) {
+        if (previousInstruction.predecessorRegisterOverrides == null) {
+            return;
+        }
+        for (Map.Entry<PredecessorOverrideKey, RegisterType> entry:
+                previousInstruction.predecessorRegisterOverrides.entrySet()) {
+            AnalyzedInstruction predecessor = instructionMap.get(entry.getKey().analyzedInstruction);
+            if (predecessor != null && predecessor.instructionIndex >= 0 &&
+                    !affectedInstructions.get(predecessor.instructionIndex)) {
+                if (predecessorRegisterOverrides == null) {
+                    predecessorRegisterOverrides = Maps.newHashMap();
+                }
+                predecessorRegisterOverrides.put(
+                        new PredecessorOverrideKey(predecessor, entry.getKey().registerNumber), entry.getValue());
+            }
+        }
+    }
+
     protected boolean isInvokeInit() {
         if (instruction == null || !instruction.getOpcode().canInitializeReference()) {
             return false;
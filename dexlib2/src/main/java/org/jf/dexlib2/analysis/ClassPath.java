@@ -33,12 +33,15 @@ package org.jf.dexlib2.analysis;
 
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.jf.dexlib2.DexFileFactory;
 import org.jf.dexlib2.DexFileFactory.DexFileNotFound;
 import org.jf.dexlib2.DexFileFactory.MultipleDexFilesException;
@@ -59,9 +62,17 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Resolves types to TypeProtos, loading the classes from a list of ClassProviders.
+ *
+ * A ClassPath is thread-safe, and is intended to be shared by all threads that are analyzing methods from the same dex
+ * file (see AnalysisService). TypeProtos are created lazily and cheaply, and any expensive information (vtables, field
+ * offsets, interfaces, etc.) is computed on demand and memoized. Class loading only blocks when multiple threads
+ * attempt to load the same type at the same time.
+ */
 public class ClassPath {
     @Nonnull private final TypeProto unknownClass;
-    @Nonnull private List<ClassProvider> classProviders;
+    @Nonnull private final List<ClassProvider> classProviders;
     private final boolean checkPackagePrivateAccess;
     public final int oatVersion;
 
@@ -104,8 +115,9 @@ public class ClassPath {
         loadPrimitiveType("D");
         loadPrimitiveType("L");
 
-        this.classProviders = Lists.newArrayList(classProviders);
-        this.classProviders.add(getBasicClasses());
+        List<ClassProvider> providers = Lists.newArrayList(classProviders);
+        providers.add(getBasicClasses());
+        this.classProviders = ImmutableList.copyOf(providers);
     }
 
     private void loadPrimitiveType(String type) {
@@ -142,7 +154,67 @@ public class ClassPath {
         }
     };
 
-    @Nonnull private LoadingCache<String, TypeProto> loadedClasses = CacheBuilder.newBuilder().build(classLoader);
+    @Nonnull private final LoadingCache<String, TypeProto> loadedClasses = CacheBuilder.newBuilder()
+            .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+            .build(classLoader);
+
+    private static final int COMMON_SUPERCLASS_CACHE_SIZE = 65536;
+
+    private final CacheLoader<ClassProtoPair, TypeProto> commonSuperclassLoader =
+            new CacheLoader<ClassProtoPair, TypeProto>() {
+                @Override public TypeProto load(ClassProtoPair pair) throws Exception {
+                    return pair.first.computeCommonSuperclass(pair.second);
+                }
+            };
+
+    @Nonnull private final LoadingCache<ClassProtoPair, TypeProto> commonSuperclassCache = CacheBuilder.newBuilder()
+            .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+            .maximumSize(COMMON_SUPERCLASS_CACHE_SIZE)
+            .recordStats()
+            .build(commonSuperclassLoader);
+
+    /**
+     * Gets the common superclass of the given classes. The same pairs of classes tend to be merged over and over
+     * during analysis, so the result is cached.
+     */
+    @Nonnull
+    TypeProto getCommonSuperclass(@Nonnull ClassProto first, @Nonnull ClassProto second) {
+        try {
+            return commonSuperclassCache.getUnchecked(new ClassProtoPair(first, second));
+        } catch (UncheckedExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    /**
+     * @return The hit/miss statistics for the common superclass cache
+     */
+    @Nonnull
+    public CacheStats getCommonSuperclassCacheStats() {
+        return commonSuperclassCache.stats();
+    }
+
+    private static final class ClassProtoPair {
+        @Nonnull public final ClassProto first;
+        @Nonnull public final ClassProto second;
+
+        public ClassProtoPair(@Nonnull ClassProto first, @Nonnull ClassProto second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override public int hashCode() {
+            return first.hashCode() * 31 + second.hashCode();
+        }
+
+        @Override public boolean equals(Object o) {
+            if (o instanceof ClassProtoPair) {
+                ClassProtoPair other = (ClassProtoPair)o;
+                return first == other.first && second == other.second;
+            }
+            return false;
+        }
+    }
 
     @Nonnull
     public ClassDef getClassDef(String type) {
@@ -173,44 +245,66 @@ public class ClassPath {
     @Nonnull
     public static ClassPath fromClassPath(Iterable<String> classPathDirs, Iterable<String> classPath, DexFile dexFile,
                                           int api, boolean checkPackagePrivateAccess, boolean experimental) {
-        List<ClassProvider> providers = Lists.newArrayList();
-
-        int oatVersion = NOT_ART;
-
-        for (String classPathEntry: classPath) {
-            List<? extends DexFile> classPathDexFiles =
-                    loadClassPathEntry(classPathDirs, classPathEntry, api, experimental);
-            if (oatVersion == NOT_ART) {
-                for (DexFile classPathDexFile: classPathDexFiles) {
-                    if (classPathDexFile instanceof OatDexFile) {
-                        oatVersion = ((OatDexFile)classPathDexFile).getOatVersion();
-                        break;
-                    }
-                }
-            }
-            for (DexFile classPathDexFile: classPathDexFiles) {
-                providers.add(new DexClassProvider(classPathDexFile));
-            }
-        }
-        providers.add(new DexClassProvider(dexFile));
-        return new ClassPath(providers, checkPackagePrivateAccess, oatVersion);
+        List<DexFile> classPathDexFiles = loadClassPath(classPathDirs, classPath, api, experimental);
+        return fromDexFiles(classPathDexFiles, dexFile, checkPackagePrivateAccess, getOatVersion(classPathDexFiles));
     }
 
     @Nonnull
     public static ClassPath fromClassPath(Iterable<String> classPathDirs, Iterable<String> classPath, DexFile dexFile,
                                           int api, boolean checkPackagePrivateAccess, boolean experimental,
                                           int oatVersion) {
+        return fromDexFiles(loadClassPath(classPathDirs, classPath, api, experimental), dexFile,
+                checkPackagePrivateAccess, oatVersion);
+    }
+
+    /**
+     * Creates a ClassPath from class path dex files that have already been loaded, e.g. with loadClassPath.
+     *
+     * The class path dex files aren't modified, so the same files can be shared by any number of ClassPaths.
+     *
+     * @param classPathDexFiles The class path dex files, in the order they should be searched
+     * @param dexFile The dex file being analyzed, which is searched after the class path
+     * @param checkPackagePrivateAccess Whether checkPackagePrivateAccess is needed
+     * @param oatVersion The applicable oat version, or NOT_ART
+     */
+    @Nonnull
+    public static ClassPath fromDexFiles(Iterable<? extends DexFile> classPathDexFiles, DexFile dexFile,
+                                         boolean checkPackagePrivateAccess, int oatVersion) {
         List<ClassProvider> providers = Lists.newArrayList();
+        for (DexFile classPathDexFile: classPathDexFiles) {
+            providers.add(new DexClassProvider(classPathDexFile));
+        }
+        providers.add(new DexClassProvider(dexFile));
+        return new ClassPath(providers, checkPackagePrivateAccess, oatVersion);
+    }
 
+    /**
+     * Loads the dex files for each entry in the given class path.
+     *
+     * @param classPathDirs The directories to search for the class path entries
+     * @param classPath The class path entries, e.g. core.jar or boot.oat
+     * @return The dex files for all of the entries, in class path order
+     */
+    @Nonnull
+    public static List<DexFile> loadClassPath(Iterable<String> classPathDirs, Iterable<String> classPath, int api,
+                                              boolean experimental) {
+        List<DexFile> classPathDexFiles = Lists.newArrayList();
         for (String classPathEntry: classPath) {
-            List<? extends DexFile> classPathDexFiles =
-                    loadClassPathEntry(classPathDirs, classPathEntry, api, experimental);
-            for (DexFile classPathDexFile: classPathDexFiles) {
-                providers.add(new DexClassProvider(classPathDexFile));
+            classPathDexFiles.addAll(loadClassPathEntry(classPathDirs, classPathEntry, api, experimental));
+        }
+        return classPathDexFiles;
+    }
+
+    /**
+     * @return The oat version of the first oat dex file in the given list, or NOT_ART if there are none
+     */
+    public static int getOatVersion(Iterable<? extends DexFile> classPathDexFiles) {
+        for (DexFile classPathDexFile: classPathDexFiles) {
+            if (classPathDexFile instanceof OatDexFile) {
+                return ((OatDexFile)classPathDexFile).getOatVersion();
             }
         }
-        providers.add(new DexClassProvider(dexFile));
-        return new ClassPath(providers, checkPackagePrivateAccess, oatVersion);
+        return NOT_ART;
     }
 
     private static final Pattern dalvikCacheOdexPattern = Pattern.compile("@([^@]+)@classes.dex$");
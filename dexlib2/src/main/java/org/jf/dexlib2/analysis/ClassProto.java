@@ -68,8 +68,10 @@ public class ClassProto implements TypeProto {
     @Nonnull protected final ClassPath classPath;
     @Nonnull protected final String type;
 
-    protected boolean vtableFullyResolved = true;
-    protected boolean interfacesFullyResolved = true;
+    // These are only written while computing the memoized vtable/interfaces, and should only be read after calling
+    // getVtable()/getInterfaces(). They are volatile so that the value is visible to other threads
+    protected volatile boolean vtableFullyResolved = true;
+    protected volatile boolean interfacesFullyResolved = true;
 
     public ClassProto(@Nonnull ClassPath classPath, @Nonnull String type) {
         if (type.charAt(0) != 'L') {
@@ -299,9 +301,20 @@ public class ClassProto implements TypeProto {
             return other;
         }
 
+        return classPath.getCommonSuperclass(this, (ClassProto)other);
+    }
+
+    /**
+     * Computes the common superclass of this class and other. This is called by ClassPath, which caches the result.
+     *
+     * @param other The other class
+     * @return The common superclass of this class and other
+     */
+    @Nonnull
+    TypeProto computeCommonSuperclass(@Nonnull ClassProto other) {
         boolean gotException = false;
         try {
-            if (checkInterface((ClassProto)other)) {
+            if (checkInterface(other)) {
                 return this;
             }
         } catch (UnresolvedClassException ex) {
@@ -309,7 +322,7 @@ public class ClassProto implements TypeProto {
         }
 
         try {
-            if (((ClassProto)other).checkInterface(this)) {
+            if (other.checkInterface(this)) {
                 return other;
             }
         } catch (UnresolvedClassException ex) {
@@ -319,19 +332,13 @@ public class ClassProto implements TypeProto {
             return classPath.getUnknownClass();
         }
 
-        List<TypeProto> thisChain = Lists.<TypeProto>newArrayList(this);
-        Iterables.addAll(thisChain, TypeProtoUtils.getSuperclassChain(this));
+        // the first entry in each chain is either Ljava/lang/Object; or Ujava/lang/Object;
+        TypeProto[] thisChain = getAncestors();
+        TypeProto[] otherChain = other.getAncestors();
 
-        List<TypeProto> otherChain = Lists.newArrayList(other);
-        Iterables.addAll(otherChain, TypeProtoUtils.getSuperclassChain(other));
-
-        // reverse them, so that the first entry is either Ljava/lang/Object; or Ujava/lang/Object;
-        thisChain = Lists.reverse(thisChain);
-        otherChain = Lists.reverse(otherChain);
-
-        for (int i=Math.min(thisChain.size(), otherChain.size())-1; i>=0; i--) {
-            TypeProto typeProto = thisChain.get(i);
-            if (typeProto.getType().equals(otherChain.get(i).getType())) {
+        for (int i=Math.min(thisChain.length, otherChain.length)-1; i>=0; i--) {
+            TypeProto typeProto = thisChain[i];
+            if (typeProto == otherChain[i] || typeProto.getType().equals(otherChain[i].getType())) {
                 return typeProto;
             }
         }
@@ -339,6 +346,39 @@ public class ClassProto implements TypeProto {
         return classPath.getUnknownClass();
     }
 
+    /**
+     * Gets the chain of superclasses of this class, starting with the root class and ending with this class. The root
+     * class is either Ljava/lang/Object; or Ujava/lang/Object;, if some class in the chain can't be resolved.
+     *
+     * The index of a class in this array is its depth in the class hierarchy.
+     *
+     * @return The chain of superclasses of this class, including this class
+     */
+    @Nonnull
+    TypeProto[] getAncestors() {
+        return ancestorsSupplier.get();
+    }
+
+    @Nonnull private final Supplier<TypeProto[]> ancestorsSupplier = Suppliers.memoize(new Supplier<TypeProto[]>() {
+        @Override public TypeProto[] get() {
+            List<TypeProto> chain = Lists.<TypeProto>newArrayList(ClassProto.this);
+            Iterables.addAll(chain, TypeProtoUtils.getSuperclassChain(ClassProto.this));
+            return Lists.reverse(chain).toArray(new TypeProto[chain.size()]);
+        }
+    });
+
+    /**
+     * Checks if this class is the given class, or extends from it.
+     *
+     * @param possibleSuper The ClassProto of the possible superclass
+     * @return true if this class is possibleSuper or one of its subclasses
+     */
+    public boolean extendsFrom(@Nonnull ClassProto possibleSuper) {
+        TypeProto[] ancestors = getAncestors();
+        int depth = possibleSuper.getAncestors().length - 1;
+        return depth < ancestors.length && ancestors[depth] == possibleSuper;
+    }
+
     @Override
     @Nullable
     public FieldReference getFieldByOffset(int fieldOffset) {
@@ -34,6 +34,8 @@ package org.jf.dexlib2.analysis;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.iface.*;
@@ -57,7 +59,10 @@ import org.jf.util.SparseArray;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.BitSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The MethodAnalyzer performs several functions. It "analyzes" the instructions and infers the register types
@@ -97,6 +102,33 @@ public class MethodAnalyzer {
 
     public MethodAnalyzer(@Nonnull ClassPath classPath, @Nonnull Method method,
                           @Nullable InlineMethodResolver inlineResolver, boolean normalizeVirtualMethods) {
+        this(classPath, method, inlineResolver, normalizeVirtualMethods, null);
+    }
+
+    /**
+     * Analyzes a modified version of a method that was previously analyzed, reusing as much of the previous analysis
+     * as possible.
+     *
+     * Instructions are matched with the previous analysis by identity, so this is intended to be used with a
+     * MutableMethodImplementation, which keeps the same instruction objects for any locations that weren't modified.
+     * Any instruction that was inserted or replaced, or whose predecessors or successors changed (e.g. due to a removed
+     * instruction), is re-analyzed, along with every instruction reachable from it. The register types for all other
+     * instructions are copied from the previous analysis.
+     *
+     * If the previous analysis failed, or if the method's signature or register count changed, the method is analyzed
+     * from scratch.
+     *
+     * @param previousAnalyzer The MethodAnalyzer for the previous version of the method
+     * @param method The modified method
+     */
+    public MethodAnalyzer(@Nonnull MethodAnalyzer previousAnalyzer, @Nonnull Method method) {
+        this(previousAnalyzer.classPath, method, previousAnalyzer.inlineResolver,
+                previousAnalyzer.normalizeVirtualMethods, previousAnalyzer);
+    }
+
+    private MethodAnalyzer(@Nonnull ClassPath classPath, @Nonnull Method method,
+                           @Nullable InlineMethodResolver inlineResolver, boolean normalizeVirtualMethods,
+                           @Nullable MethodAnalyzer previousAnalyzer) {
         this.classPath = classPath;
         this.inlineResolver = inlineResolver;
         this.normalizeVirtualMethods = normalizeVirtualMethods;
@@ -138,14 +170,16 @@ public class MethodAnalyzer {
 
         analyzedState = new BitSet(analyzedInstructions.size());
         paramRegisterCount = MethodUtil.getParameterRegisterCount(method);
-        analyze();
+        if (previousAnalyzer == null || !analyzeIncrementally(previousAnalyzer)) {
+            analyze();
+        }
     }
 
     public ClassPath getClassPath() {
         return classPath;
     }
 
-    private void analyze() {
+    private void setStartOfMethodRegisterTypes() {
         Method method = this.method;
         MethodImplementation methodImpl = this.methodImpl;
 
@@ -179,6 +213,10 @@ public class MethodAnalyzer {
         for (int i=0; i<nonParameterRegisters; i++) {
             setPostRegisterTypeAndPropagateChanges(startOfMethod, i, uninit);
         }
+    }
+
+    private void analyze() {
+        setStartOfMethodRegisterTypes();
 
         BitSet instructionsToAnalyze = new BitSet(analyzedInstructions.size());
 
@@ -187,6 +225,17 @@ public class MethodAnalyzer {
             instructionsToAnalyze.set(successor.instructionIndex);
         }
 
+        analyzeInstructions(instructionsToAnalyze, null);
+    }
+
+    /**
+     * Runs the analysis until all instructions have been analyzed
+     *
+     * @param instructionsToAnalyze The instructions to start the analysis from
+     * @param affectedInstructions The instructions that need to be analyzed, or null if all instructions need to be
+     *                             analyzed. Any other instruction must already be marked as analyzed.
+     */
+    private void analyzeInstructions(@Nonnull BitSet instructionsToAnalyze, @Nullable BitSet affectedInstructions) {
         BitSet undeodexedInstructions = new BitSet(analyzedInstructions.size());
 
         do {
@@ -251,6 +300,9 @@ public class MethodAnalyzer {
         //that occurs after an unresolvable odex instruction. We deodex if possible, or replace with an
         //UnresolvableOdexInstruction
         for (int i=0; i< analyzedInstructions.size(); i++) {
+            if (affectedInstructions != null && !affectedInstructions.get(i)) {
+                continue;
+            }
             AnalyzedInstruction analyzedInstruction = analyzedInstructions.valueAt(i);
 
             Instruction instruction = analyzedInstruction.getInstruction();
@@ -292,6 +344,142 @@ public class MethodAnalyzer {
         }
     }
 
+    /**
+     * Attempts to analyze this method by reusing the results of a previous analysis of an earlier version of it.
+     *
+     * The analysis is a forward analysis, so the register types for an instruction only depend on the instructions
+     * that can reach it. Any instruction that isn't reachable from a modified instruction will end up with exactly the
+     * same register types as in the previous analysis.
+     *
+     * @return false if the previous analysis can't be reused, in which case nothing has been modified
+     */
+    private boolean analyzeIncrementally(@Nonnull MethodAnalyzer previousAnalyzer) {
+        if (previousAnalyzer.analysisException != null ||
+                previousAnalyzer.methodImpl.getRegisterCount() != methodImpl.getRegisterCount() ||
+                previousAnalyzer.method.getAccessFlags() != method.getAccessFlags() ||
+                !ReferenceUtil.getMethodDescriptor(previousAnalyzer.method).equals(
+                        ReferenceUtil.getMethodDescriptor(method))) {
+            return false;
+        }
+
+        int instructionCount = analyzedInstructions.size();
+        int registerCount = methodImpl.getRegisterCount();
+
+        // match up the instructions with the instructions from the previous analysis. Any instruction object that
+        // occurs multiple times is ambiguous, and is treated as a new instruction
+        IdentityHashMap<Instruction, AnalyzedInstruction> previousInstructionMap = Maps.newIdentityHashMap();
+        Set<Instruction> ambiguousInstructions = Sets.newIdentityHashSet();
+        for (AnalyzedInstruction previousInstruction: previousAnalyzer.analyzedInstructions.getValues()) {
+            if (previousInstructionMap.put(previousInstruction.originalInstruction, previousInstruction) != null) {
+                ambiguousInstructions.add(previousInstruction.originalInstruction);
+            }
+        }
+
+        AnalyzedInstruction[] previousInstructions = new AnalyzedInstruction[instructionCount];
+        IdentityHashMap<AnalyzedInstruction, AnalyzedInstruction> newInstructionMap = Maps.newIdentityHashMap();
+        newInstructionMap.put(previousAnalyzer.startOfMethod, startOfMethod);
+        for (int i=0; i<instructionCount; i++) {
+            AnalyzedInstruction analyzedInstruction = analyzedInstructions.valueAt(i);
+            Instruction instruction = analyzedInstruction.originalInstruction;
+            if (!ambiguousInstructions.contains(instruction)) {
+                AnalyzedInstruction previousInstruction = previousInstructionMap.get(instruction);
+                if (previousInstruction != null && !newInstructionMap.containsKey(previousInstruction)) {
+                    previousInstructions[i] = previousInstruction;
+                    newInstructionMap.put(previousInstruction, analyzedInstruction);
+                }
+            }
+        }
+
+        // any instruction that is new, or whose predecessors or successors changed, needs to be re-analyzed, along
+        // with everything that is reachable from it
+        BitSet affectedInstructions = new BitSet(instructionCount);
+        for (int i=0; i<instructionCount; i++) {
+            AnalyzedInstruction previousInstruction = previousInstructions[i];
+            if (previousInstruction == null ||
+                    !hasSameEdges(analyzedInstructions.valueAt(i), previousInstruction, newInstructionMap)) {
+                affectedInstructions.set(i);
+            }
+        }
+
+        BitSet instructionsToProcess = (BitSet)affectedInstructions.clone();
+        while (!instructionsToProcess.isEmpty()) {
+            int instructionIndex = instructionsToProcess.nextSetBit(0);
+            instructionsToProcess.clear(instructionIndex);
+            for (AnalyzedInstruction successor: analyzedInstructions.valueAt(instructionIndex).successors) {
+                if (!affectedInstructions.get(successor.instructionIndex)) {
+                    affectedInstructions.set(successor.instructionIndex);
+                    instructionsToProcess.set(successor.instructionIndex);
+                }
+            }
+        }
+
+        // copy the results of the previous analysis for all the unaffected instructions. An affected instruction
+        // can still have an unaffected predecessor with a register type override (e.g. from an if-eqz after an
+        // instance-of), so we copy those overrides as well
+        for (int i=0; i<instructionCount; i++) {
+            AnalyzedInstruction analyzedInstruction = analyzedInstructions.valueAt(i);
+            AnalyzedInstruction previousInstruction = previousInstructions[i];
+            if (!affectedInstructions.get(i)) {
+                analyzedInstruction.copyAnalysisState(previousInstruction);
+                analyzedState.set(i);
+            }
+            if (previousInstruction != null) {
+                analyzedInstruction.copyPredecessorOverrides(previousInstruction, newInstructionMap,
+                        affectedInstructions);
+            }
+        }
+
+        setStartOfMethodRegisterTypes();
+
+        // merge the register types from any unaffected predecessors into the affected instructions, and start the
+        // analysis from those instructions
+        BitSet instructionsToAnalyze = new BitSet(instructionCount);
+        BitSet changedInstructions = new BitSet(instructionCount);
+        for (int i=affectedInstructions.nextSetBit(0); i>=0; i=affectedInstructions.nextSetBit(i+1)) {
+            AnalyzedInstruction analyzedInstruction = analyzedInstructions.valueAt(i);
+            for (AnalyzedInstruction predecessor: analyzedInstruction.predecessors) {
+                if (predecessor == startOfMethod) {
+                    instructionsToAnalyze.set(i);
+                } else if (!affectedInstructions.get(predecessor.instructionIndex)) {
+                    instructionsToAnalyze.set(i);
+                    for (int register=0; register<registerCount; register++) {
+                        RegisterType registerType = analyzedInstruction.getPredecessorRegisterType(predecessor,
+                                register);
+                        if (analyzedInstruction.mergeRegister(register, registerType, analyzedState, false)) {
+                            changedInstructions.set(i);
+                            propagateChanges(changedInstructions, register, false);
+                        }
+                    }
+                }
+            }
+        }
+
+        analyzeInstructions(instructionsToAnalyze, affectedInstructions);
+        return true;
+    }
+
+    private static boolean hasSameEdges(@Nonnull AnalyzedInstruction analyzedInstruction,
+                                        @Nonnull AnalyzedInstruction previousInstruction,
+                                        @Nonnull Map<AnalyzedInstruction, AnalyzedInstruction> newInstructionMap) {
+        if (analyzedInstruction.predecessors.size() != previousInstruction.predecessors.size() ||
+                analyzedInstruction.successors.size() != previousInstruction.successors.size()) {
+            return false;
+        }
+        for (AnalyzedInstruction predecessor: previousInstruction.predecessors) {
+            AnalyzedInstruction newPredecessor = newInstructionMap.get(predecessor);
+            if (newPredecessor == null || !analyzedInstruction.predecessors.contains(newPredecessor)) {
+                return false;
+            }
+        }
+        for (AnalyzedInstruction successor: previousInstruction.successors) {
+            AnalyzedInstruction newSuccessor = newInstructionMap.get(successor);
+            if (newSuccessor == null || !analyzedInstruction.successors.contains(newSuccessor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void propagateParameterTypes(int parameterStartRegister) {
         int i=0;
         for (MethodParameter parameter: method.getParameters()) {
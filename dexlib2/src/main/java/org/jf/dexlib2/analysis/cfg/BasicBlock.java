@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.cfg;
+
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A maximal sequence of instructions in a method that can only be entered at the first instruction and only exited
+ * after the last instruction.
+ *
+ * Any instruction that can throw an exception and is covered by a try block is placed in a block by itself. The
+ * exceptional successors of such a block are the handlers for the try block, and execution passes to them from the
+ * state *before* the instruction executes.
+ */
+public class BasicBlock {
+    @Nonnull private final ControlFlowGraph cfg;
+    private final int index;
+    private final int startIndex;
+    private final int endIndex;
+    boolean exceptionHandler;
+
+    @Nonnull final List<BasicBlock> successors = Lists.newArrayListWithCapacity(2);
+    @Nonnull final List<BasicBlock> exceptionSuccessors = Lists.newArrayListWithCapacity(0);
+    @Nonnull final List<BasicBlock> predecessors = Lists.newArrayListWithCapacity(2);
+
+    // the position of this block in the reverse post-order of the cfg, or -1 if it is unreachable
+    int reversePostOrderIndex = -1;
+    @Nullable BasicBlock immediateDominator;
+    // the pre-order and post-order numbers of this block in the dominator tree
+    int dominatorTreePreOrder = -1;
+    int dominatorTreePostOrder = -1;
+    boolean loopHeader;
+
+    BasicBlock(@Nonnull ControlFlowGraph cfg, int index, int startIndex, int endIndex) {
+        this.cfg = cfg;
+        this.index = index;
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
+    }
+
+    @Nonnull public ControlFlowGraph getControlFlowGraph() { return cfg; }
+
+    /**
+     * @return The index of this block in the list of blocks for the method. Blocks are ordered by code address.
+     */
+    public int getIndex() { return index; }
+
+    /**
+     * @return The index of the first instruction in this block
+     */
+    public int getStartIndex() { return startIndex; }
+
+    /**
+     * @return The index after the last instruction in this block
+     */
+    public int getEndIndex() { return endIndex; }
+
+    /**
+     * @return The index of the last instruction in this block
+     */
+    public int getLastIndex() { return endIndex - 1; }
+
+    public int getInstructionCount() { return endIndex - startIndex; }
+
+    public int getStartCodeAddress() { return cfg.getCodeAddress(startIndex); }
+
+    /**
+     * @return The successors of this block during normal execution
+     */
+    @Nonnull public List<BasicBlock> getSuccessors() {
+        return Collections.unmodifiableList(successors);
+    }
+
+    /**
+     * @return The exception handlers that execution can pass to if the instruction in this block throws
+     */
+    @Nonnull public List<BasicBlock> getExceptionSuccessors() {
+        return Collections.unmodifiableList(exceptionSuccessors);
+    }
+
+    /**
+     * @return All blocks that can pass execution to this block, either normally or via an exception
+     */
+    @Nonnull public List<BasicBlock> getPredecessors() {
+        return Collections.unmodifiableList(predecessors);
+    }
+
+    /**
+     * @return true if this block is the start of an exception handler
+     */
+    public boolean isExceptionHandler() { return exceptionHandler; }
+
+    /**
+     * @return true if this block is reachable from the start of the method
+     */
+    public boolean isReachable() { return reversePostOrderIndex >= 0; }
+
+    /**
+     * @return The immediate dominator of this block, or null if this is the entry block or it is unreachable
+     */
+    @Nullable public BasicBlock getImmediateDominator() { return immediateDominator; }
+
+    /**
+     * Checks whether this block dominates the given block. A block dominates itself.
+     *
+     * This is a constant time check, based on the position of the blocks in the dominator tree.
+     *
+     * @param other The block to check
+     * @return true if every path from the start of the method to other passes through this block
+     */
+    public boolean dominates(@Nonnull BasicBlock other) {
+        if (!isReachable() || !other.isReachable()) {
+            return false;
+        }
+        return dominatorTreePreOrder <= other.dominatorTreePreOrder &&
+                dominatorTreePostOrder >= other.dominatorTreePostOrder;
+    }
+
+    /**
+     * @return true if this block is the target of a back edge, i.e. an edge from a block that it dominates
+     */
+    public boolean isLoopHeader() { return loopHeader; }
+
+    @Override public String toString() {
+        return String.format("BasicBlock(%d: 0x%x)", index, getStartCodeAddress());
+    }
+}
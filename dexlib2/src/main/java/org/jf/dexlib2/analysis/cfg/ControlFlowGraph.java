@@ -0,0 +1,446 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.cfg;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.analysis.AnalysisException;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.instruction.SwitchPayload;
+import org.jf.dexlib2.writer.util.TryListBuilder;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A control flow graph of the basic blocks in a method, along with its dominator tree.
+ *
+ * Unlike MethodAnalyzer, this only looks at the structure of the code, so it doesn't need a ClassPath, and it is
+ * built with a small, fixed number of linear passes over the instructions.
+ */
+public class ControlFlowGraph {
+    @Nonnull private final MethodImplementation methodImpl;
+    @Nonnull private final List<Instruction> instructions;
+    @Nonnull private final int[] codeAddresses;
+    @Nonnull private final int[] instructionBlocks;
+    @Nonnull private final List<BasicBlock> blocks;
+    @Nonnull private final List<BasicBlock> reversePostOrder;
+
+    public ControlFlowGraph(@Nonnull MethodImplementation methodImpl) {
+        this.methodImpl = methodImpl;
+        this.instructions = ImmutableList.copyOf(methodImpl.getInstructions());
+
+        int instructionCount = instructions.size();
+        codeAddresses = new int[instructionCount];
+        int codeAddress = 0;
+        for (int i=0; i<instructionCount; i++) {
+            codeAddresses[i] = codeAddress;
+            codeAddress += instructions.get(i).getCodeUnits();
+        }
+
+        int[][] exceptionHandlers = buildExceptionHandlers();
+
+        BitSet leaders = findLeaders(exceptionHandlers);
+        instructionBlocks = new int[instructionCount];
+        List<BasicBlock> blocks = Lists.newArrayListWithCapacity(leaders.cardinality());
+        for (int start=leaders.nextSetBit(0); start>=0 && start<instructionCount; ) {
+            int end = leaders.nextSetBit(start+1);
+            if (end < 0 || end > instructionCount) {
+                end = instructionCount;
+            }
+            BasicBlock block = new BasicBlock(this, blocks.size(), start, end);
+            blocks.add(block);
+            Arrays.fill(instructionBlocks, start, end, block.getIndex());
+            start = end;
+        }
+        this.blocks = ImmutableList.copyOf(blocks);
+
+        addEdges(exceptionHandlers);
+        this.reversePostOrder = computeReversePostOrder();
+        computeDominators();
+    }
+
+    @Nonnull public MethodImplementation getMethodImplementation() { return methodImpl; }
+    @Nonnull public List<Instruction> getInstructions() { return instructions; }
+    @Nonnull public List<BasicBlock> getBlocks() { return blocks; }
+
+    /**
+     * @return The reachable blocks, in reverse post-order. This is a good iteration order for forward dataflow
+     * analyses.
+     */
+    @Nonnull public List<BasicBlock> getReversePostOrder() { return reversePostOrder; }
+
+    @Nonnull
+    public BasicBlock getEntryBlock() {
+        if (blocks.isEmpty()) {
+            throw new IllegalStateException("The method has no instructions");
+        }
+        return blocks.get(0);
+    }
+
+    public int getCodeAddress(int instructionIndex) {
+        return codeAddresses[instructionIndex];
+    }
+
+    /**
+     * @return The index of the instruction at the given code address, or -1 if there is no such instruction
+     */
+    public int getInstructionIndex(int codeAddress) {
+        int index = Arrays.binarySearch(codeAddresses, codeAddress);
+        if (index < 0) {
+            return -1;
+        }
+        return index;
+    }
+
+    @Nonnull
+    public BasicBlock getBlockForInstruction(int instructionIndex) {
+        return blocks.get(instructionBlocks[instructionIndex]);
+    }
+
+    /**
+     * @return For each instruction, the instruction indexes of the exception handlers covering it, or null if the
+     * instruction can't throw or isn't covered by a try block
+     */
+    @Nonnull
+    private int[][] buildExceptionHandlers() {
+        int[][] exceptionHandlers = new int[instructions.size()][];
+
+        List<? extends TryBlock<? extends ExceptionHandler>> tries = methodImpl.getTryBlocks();
+        if (tries.isEmpty()) {
+            return exceptionHandlers;
+        }
+        tries = TryListBuilder.massageTryBlocks(tries);
+
+        int instructionIndex = 0;
+        for (TryBlock<? extends ExceptionHandler> tryBlock: tries) {
+            int startAddress = tryBlock.getStartCodeAddress();
+            int endAddress = startAddress + tryBlock.getCodeUnitCount();
+
+            List<? extends ExceptionHandler> handlers = tryBlock.getExceptionHandlers();
+            int[] handlerIndexes = new int[handlers.size()];
+            for (int i=0; i<handlerIndexes.length; i++) {
+                int handlerAddress = handlers.get(i).getHandlerCodeAddress();
+                handlerIndexes[i] = getInstructionIndex(handlerAddress);
+                if (handlerIndexes[i] < 0) {
+                    throw new AnalysisException("Invalid exception handler address: 0x%x", handlerAddress);
+                }
+            }
+
+            while (instructionIndex < codeAddresses.length && codeAddresses[instructionIndex] < startAddress) {
+                instructionIndex++;
+            }
+            while (instructionIndex < codeAddresses.length && codeAddresses[instructionIndex] < endAddress) {
+                if (instructions.get(instructionIndex).getOpcode().canThrow()) {
+                    exceptionHandlers[instructionIndex] = handlerIndexes;
+                }
+                instructionIndex++;
+            }
+        }
+        return exceptionHandlers;
+    }
+
+    @Nonnull
+    private BitSet findLeaders(@Nonnull int[][] exceptionHandlers) {
+        int instructionCount = instructions.size();
+        BitSet leaders = new BitSet(instructionCount + 1);
+        leaders.set(0);
+
+        for (int i=0; i<instructionCount; i++) {
+            Instruction instruction = instructions.get(i);
+            Opcode opcode = instruction.getOpcode();
+
+            if (opcode.format.isPayloadFormat) {
+                leaders.set(i);
+                leaders.set(i+1);
+                continue;
+            }
+
+            if (exceptionHandlers[i] != null) {
+                leaders.set(i);
+                leaders.set(i+1);
+                for (int handlerIndex: exceptionHandlers[i]) {
+                    leaders.set(handlerIndex);
+                }
+            }
+
+            if (!opcode.canContinue()) {
+                leaders.set(i+1);
+            }
+
+            if (instruction instanceof OffsetInstruction && opcode != Opcode.FILL_ARRAY_DATA) {
+                leaders.set(i+1);
+                for (int target: getBranchTargets(i)) {
+                    leaders.set(target);
+                }
+            }
+        }
+        return leaders;
+    }
+
+    /**
+     * @return The instruction indexes of the targets of the branch or switch instruction at the given index
+     */
+    @Nonnull
+    private int[] getBranchTargets(int instructionIndex) {
+        Instruction instruction = instructions.get(instructionIndex);
+        int codeAddress = codeAddresses[instructionIndex];
+        int offset = ((OffsetInstruction)instruction).getCodeOffset();
+        Opcode opcode = instruction.getOpcode();
+
+        if (opcode == Opcode.PACKED_SWITCH || opcode == Opcode.SPARSE_SWITCH) {
+            int payloadIndex = getInstructionIndex(codeAddress + offset);
+            if (payloadIndex < 0 || !(instructions.get(payloadIndex) instanceof SwitchPayload)) {
+                throw new AnalysisException("Invalid switch payload offset at address 0x%x", codeAddress);
+            }
+            List<? extends SwitchElement> switchElements =
+                    ((SwitchPayload)instructions.get(payloadIndex)).getSwitchElements();
+            int[] targets = new int[switchElements.size()];
+            for (int i=0; i<targets.length; i++) {
+                targets[i] = getTargetIndex(codeAddress, switchElements.get(i).getOffset());
+            }
+            return targets;
+        }
+        return new int[] { getTargetIndex(codeAddress, offset) };
+    }
+
+    private int getTargetIndex(int codeAddress, int offset) {
+        int targetIndex = getInstructionIndex(codeAddress + offset);
+        if (targetIndex < 0) {
+            throw new AnalysisException("Invalid branch target offset at address 0x%x", codeAddress);
+        }
+        return targetIndex;
+    }
+
+    private void addEdges(@Nonnull int[][] exceptionHandlers) {
+        for (BasicBlock block: blocks) {
+            int lastIndex = block.getLastIndex();
+            Instruction lastInstruction = instructions.get(lastIndex);
+            Opcode opcode = lastInstruction.getOpcode();
+
+            if (opcode.format.isPayloadFormat) {
+                continue;
+            }
+
+            if (opcode.canContinue()) {
+                if (lastIndex + 1 >= instructions.size()) {
+                    throw new AnalysisException("Execution can continue past the last instruction");
+                }
+                addEdge(block, getBlockForInstruction(lastIndex + 1), false);
+            }
+
+            if (lastInstruction instanceof OffsetInstruction && opcode != Opcode.FILL_ARRAY_DATA) {
+                for (int target: getBranchTargets(lastIndex)) {
+                    addEdge(block, getBlockForInstruction(target), false);
+                }
+            }
+
+            int[] handlers = exceptionHandlers[lastIndex];
+            if (handlers != null) {
+                for (int handler: handlers) {
+                    BasicBlock handlerBlock = getBlockForInstruction(handler);
+                    handlerBlock.exceptionHandler = true;
+                    addEdge(block, handlerBlock, true);
+                }
+            }
+        }
+    }
+
+    private static void addEdge(@Nonnull BasicBlock from, @Nonnull BasicBlock to, boolean exceptional) {
+        List<BasicBlock> successors = exceptional ? from.exceptionSuccessors : from.successors;
+        if (successors.contains(to)) {
+            return;
+        }
+        successors.add(to);
+        if (!to.predecessors.contains(from)) {
+            to.predecessors.add(from);
+        }
+    }
+
+    @Nonnull
+    private List<BasicBlock> computeReversePostOrder() {
+        if (blocks.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        // an iterative depth-first search, so that we don't overflow the stack on huge methods
+        List<BasicBlock> postOrder = Lists.newArrayListWithCapacity(blocks.size());
+        boolean[] visited = new boolean[blocks.size()];
+        BasicBlock[] blockStack = new BasicBlock[blocks.size()];
+        int[] edgeStack = new int[blocks.size()];
+        int stackSize = 0;
+
+        blockStack[stackSize++] = blocks.get(0);
+        visited[0] = true;
+
+        while (stackSize > 0) {
+            BasicBlock block = blockStack[stackSize-1];
+            int edge = edgeStack[stackSize-1]++;
+            int normalCount = block.successors.size();
+            if (edge < normalCount + block.exceptionSuccessors.size()) {
+                BasicBlock successor = edge < normalCount ? block.successors.get(edge) :
+                        block.exceptionSuccessors.get(edge - normalCount);
+                if (!visited[successor.getIndex()]) {
+                    visited[successor.getIndex()] = true;
+                    blockStack[stackSize] = successor;
+                    edgeStack[stackSize] = 0;
+                    stackSize++;
+                }
+            } else {
+                postOrder.add(block);
+                stackSize--;
+            }
+        }
+
+        Collections.reverse(postOrder);
+        for (int i=0; i<postOrder.size(); i++) {
+            postOrder.get(i).reversePostOrderIndex = i;
+        }
+        return ImmutableList.copyOf(postOrder);
+    }
+
+    /**
+     * Computes the immediate dominators, using the iterative algorithm from "A Simple, Fast Dominance Algorithm" by
+     * Cooper, Harvey and Kennedy. This converges in a couple of passes over the blocks for typical methods.
+     */
+    private void computeDominators() {
+        if (reversePostOrder.isEmpty()) {
+            return;
+        }
+
+        BasicBlock entry = reversePostOrder.get(0);
+        entry.immediateDominator = entry;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i=1; i<reversePostOrder.size(); i++) {
+                BasicBlock block = reversePostOrder.get(i);
+                BasicBlock newDominator = null;
+                for (BasicBlock predecessor: block.predecessors) {
+                    if (predecessor.immediateDominator == null) {
+                        continue;
+                    }
+                    if (newDominator == null) {
+                        newDominator = predecessor;
+                    } else {
+                        newDominator = intersect(predecessor, newDominator);
+                    }
+                }
+                if (newDominator != block.immediateDominator) {
+                    block.immediateDominator = newDominator;
+                    changed = true;
+                }
+            }
+        }
+        entry.immediateDominator = null;
+
+        numberDominatorTree();
+
+        for (BasicBlock block: reversePostOrder) {
+            for (BasicBlock predecessor: block.predecessors) {
+                if (predecessor.isReachable() && block.dominates(predecessor)) {
+                    block.loopHeader = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    private static BasicBlock intersect(@Nonnull BasicBlock block1, @Nonnull BasicBlock block2) {
+        while (block1 != block2) {
+            while (block1.reversePostOrderIndex > block2.reversePostOrderIndex) {
+                block1 = block1.immediateDominator;
+            }
+            while (block2.reversePostOrderIndex > block1.reversePostOrderIndex) {
+                block2 = block2.immediateDominator;
+            }
+        }
+        return block1;
+    }
+
+    /**
+     * Assigns pre-order and post-order numbers to each block in the dominator tree, so that dominance can be checked
+     * in constant time.
+     */
+    private void numberDominatorTree() {
+        int blockCount = reversePostOrder.size();
+
+        // build the child lists of the dominator tree, using a "first child/next sibling" representation
+        int[] firstChild = new int[blocks.size()];
+        int[] nextSibling = new int[blocks.size()];
+        Arrays.fill(firstChild, -1);
+        for (int i=blockCount-1; i>0; i--) {
+            BasicBlock block = reversePostOrder.get(i);
+            BasicBlock dominator = block.immediateDominator;
+            assert dominator != null;
+            nextSibling[block.getIndex()] = firstChild[dominator.getIndex()];
+            firstChild[dominator.getIndex()] = block.getIndex();
+        }
+
+        int[] stack = new int[blockCount];
+        int[] childStack = new int[blockCount];
+        int stackSize = 0;
+        int counter = 0;
+
+        BasicBlock entry = reversePostOrder.get(0);
+        entry.dominatorTreePreOrder = counter++;
+        stack[stackSize] = entry.getIndex();
+        childStack[stackSize] = firstChild[entry.getIndex()];
+        stackSize++;
+
+        while (stackSize > 0) {
+            int child = childStack[stackSize-1];
+            if (child >= 0) {
+                childStack[stackSize-1] = nextSibling[child];
+                blocks.get(child).dominatorTreePreOrder = counter++;
+                stack[stackSize] = child;
+                childStack[stackSize] = firstChild[child];
+                stackSize++;
+            } else {
+                stackSize--;
+                blocks.get(stack[stackSize]).dominatorTreePostOrder = counter++;
+            }
+        }
+    }
+}
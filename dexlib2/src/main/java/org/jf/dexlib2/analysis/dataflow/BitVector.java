@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.dataflow;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+/**
+ * A fixed-size set of bits, backed by a long[]. The set operations work in place on whole words, and require both
+ * vectors to be the same size.
+ */
+public final class BitVector {
+    private final int size;
+    @Nonnull private final long[] words;
+
+    public BitVector(int size) {
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    public BitVector(@Nonnull BitVector other) {
+        this.size = other.size;
+        this.words = other.words.clone();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public void set(int index) {
+        words[index >>> 6] |= 1L << index;
+    }
+
+    public void clear(int index) {
+        words[index >>> 6] &= ~(1L << index);
+    }
+
+    public void setAll() {
+        Arrays.fill(words, -1L);
+        int extraBits = size & 63;
+        if (extraBits != 0) {
+            words[words.length-1] = (1L << extraBits) - 1;
+        }
+    }
+
+    public void clearAll() {
+        Arrays.fill(words, 0);
+    }
+
+    public boolean isEmpty() {
+        for (long word: words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (long word: words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return The index of the first set bit at or after fromIndex, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex >= size) {
+            return -1;
+        }
+        int wordIndex = fromIndex >>> 6;
+        long word = words[wordIndex] & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length) {
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+    }
+
+    public void copyFrom(@Nonnull BitVector other) {
+        System.arraycopy(other.words, 0, words, 0, words.length);
+    }
+
+    public void or(@Nonnull BitVector other) {
+        for (int i=0; i<words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    public void and(@Nonnull BitVector other) {
+        for (int i=0; i<words.length; i++) {
+            words[i] &= other.words[i];
+        }
+    }
+
+    public void andNot(@Nonnull BitVector other) {
+        for (int i=0; i<words.length; i++) {
+            words[i] &= ~other.words[i];
+        }
+    }
+
+    /**
+     * Applies a gen/kill transfer function to this vector, i.e. this = gen | (this & ~kill)
+     */
+    public void transfer(@Nonnull BitVector gen, @Nonnull BitVector kill) {
+        for (int i=0; i<words.length; i++) {
+            words[i] = gen.words[i] | (words[i] & ~kill.words[i]);
+        }
+    }
+
+    @Override public boolean equals(Object o) {
+        if (o instanceof BitVector) {
+            BitVector other = (BitVector)o;
+            return size == other.size && Arrays.equals(words, other.words);
+        }
+        return false;
+    }
+
+    @Override public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        boolean first = true;
+        for (int i=nextSetBit(0); i>=0; i=nextSetBit(i+1)) {
+            if (!first) {
+                sb.append(", ");
+            }
+            sb.append(i);
+            first = false;
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.dataflow;
+
+import org.jf.dexlib2.analysis.cfg.BasicBlock;
+import org.jf.dexlib2.analysis.cfg.ControlFlowGraph;
+
+import javax.annotation.Nonnull;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A generic iterative solver for gen/kill dataflow problems over a ControlFlowGraph, where the dataflow facts are
+ * represented as a BitVector.
+ *
+ * The gen and kill sets of each instruction are composed into a single gen/kill pair per block up front, so the
+ * fixpoint iteration only touches whole blocks. Blocks are visited in reverse post-order for forward problems, and
+ * in post-order for backward problems, using a worklist to revisit only the blocks whose input changed.
+ *
+ * When an instruction throws, it does so before writing its destination register. Since a throwing instruction in a
+ * try block is always in a block by itself, an exceptional edge carries the state at the start of that block,
+ * rather than the state at the end.
+ *
+ * Subclasses must call solve() once they are fully initialized.
+ */
+public abstract class BitVectorDataflowAnalysis {
+    @Nonnull protected final ControlFlowGraph cfg;
+    protected final int bitCount;
+    private final boolean forward;
+    private final boolean union;
+
+    @Nonnull private final BitVector[] blockGen;
+    @Nonnull private final BitVector[] blockKill;
+    @Nonnull private final BitVector[] blockIn;
+    @Nonnull private final BitVector[] blockOut;
+
+    /**
+     * @param cfg The control flow graph of the method to analyze
+     * @param bitCount The number of dataflow facts
+     * @param forward true if facts flow from predecessors to successors, false if they flow backwards
+     * @param union true if facts from multiple paths are combined with a union (a "may" problem), false if they are
+     *              combined with an intersection (a "must" problem)
+     */
+    protected BitVectorDataflowAnalysis(@Nonnull ControlFlowGraph cfg, int bitCount, boolean forward,
+                                        boolean union) {
+        this.cfg = cfg;
+        this.bitCount = bitCount;
+        this.forward = forward;
+        this.union = union;
+
+        int blockCount = cfg.getBlocks().size();
+        blockGen = new BitVector[blockCount];
+        blockKill = new BitVector[blockCount];
+        blockIn = new BitVector[blockCount];
+        blockOut = new BitVector[blockCount];
+    }
+
+    /**
+     * Gets the gen and kill sets for a single instruction. Both vectors are empty when this is called.
+     *
+     * @param instructionIndex The index of the instruction in the method
+     * @param gen The facts that the instruction generates
+     * @param kill The facts that the instruction invalidates
+     */
+    protected abstract void getGenKill(int instructionIndex, @Nonnull BitVector gen, @Nonnull BitVector kill);
+
+    /**
+     * Sets up the facts that hold at the boundary of the method, i.e. at the start of the method for a forward
+     * problem, or at every exit for a backward problem. The vector is empty when this is called.
+     */
+    protected abstract void initializeBoundary(@Nonnull BitVector boundary);
+
+    protected final void solve() {
+        List<BasicBlock> blocks = cfg.getBlocks();
+        List<BasicBlock> order = cfg.getReversePostOrder();
+
+        BitVector gen = new BitVector(bitCount);
+        BitVector kill = new BitVector(bitCount);
+        for (BasicBlock block: order) {
+            BitVector summaryGen = new BitVector(bitCount);
+            BitVector summaryKill = new BitVector(bitCount);
+            if (forward) {
+                for (int i=block.getStartIndex(); i<block.getEndIndex(); i++) {
+                    composeTransfer(i, summaryGen, summaryKill, gen, kill);
+                }
+            } else {
+                for (int i=block.getLastIndex(); i>=block.getStartIndex(); i--) {
+                    composeTransfer(i, summaryGen, summaryKill, gen, kill);
+                }
+            }
+            blockGen[block.getIndex()] = summaryGen;
+            blockKill[block.getIndex()] = summaryKill;
+
+            BitVector in = new BitVector(bitCount);
+            BitVector out = new BitVector(bitCount);
+            if (!union) {
+                in.setAll();
+                out.setAll();
+            }
+            blockIn[block.getIndex()] = in;
+            blockOut[block.getIndex()] = out;
+        }
+
+        BitVector boundary = new BitVector(bitCount);
+        initializeBoundary(boundary);
+
+        // the worklist is indexed by position in the visiting order
+        int blockCount = order.size();
+        int[] position = new int[blocks.size()];
+        for (int i=0; i<blockCount; i++) {
+            position[order.get(i).getIndex()] = forward ? i : blockCount - 1 - i;
+        }
+        BitSet worklist = new BitSet(blockCount);
+        worklist.set(0, blockCount);
+
+        BitVector newValue = new BitVector(bitCount);
+        int next = worklist.nextSetBit(0);
+        while (next >= 0) {
+            worklist.clear(next);
+            BasicBlock block = order.get(forward ? next : blockCount - 1 - next);
+            int blockIndex = block.getIndex();
+
+            if (forward) {
+                computeForwardInput(block, boundary, newValue);
+                if (!newValue.equals(blockIn[blockIndex])) {
+                    blockIn[blockIndex].copyFrom(newValue);
+                    // exceptional successors see our input rather than our output
+                    for (BasicBlock handler: block.getExceptionSuccessors()) {
+                        worklist.set(position[handler.getIndex()]);
+                    }
+                }
+                newValue.transfer(blockGen[blockIndex], blockKill[blockIndex]);
+                if (!newValue.equals(blockOut[blockIndex])) {
+                    blockOut[blockIndex].copyFrom(newValue);
+                    for (BasicBlock successor: block.getSuccessors()) {
+                        worklist.set(position[successor.getIndex()]);
+                    }
+                }
+            } else {
+                computeBackwardOutput(block, boundary, newValue);
+                blockOut[blockIndex].copyFrom(newValue);
+                newValue.transfer(blockGen[blockIndex], blockKill[blockIndex]);
+                for (BasicBlock handler: block.getExceptionSuccessors()) {
+                    meet(newValue, blockIn[handler.getIndex()]);
+                }
+                if (!newValue.equals(blockIn[blockIndex])) {
+                    blockIn[blockIndex].copyFrom(newValue);
+                    for (BasicBlock predecessor: block.getPredecessors()) {
+                        if (predecessor.isReachable()) {
+                            worklist.set(position[predecessor.getIndex()]);
+                        }
+                    }
+                }
+            }
+
+            int candidate = worklist.nextSetBit(next);
+            next = candidate >= 0 ? candidate : worklist.nextSetBit(0);
+        }
+    }
+
+    private void composeTransfer(int instructionIndex, @Nonnull BitVector summaryGen,
+                                 @Nonnull BitVector summaryKill, @Nonnull BitVector gen, @Nonnull BitVector kill) {
+        gen.clearAll();
+        kill.clearAll();
+        getGenKill(instructionIndex, gen, kill);
+        summaryGen.transfer(gen, kill);
+        summaryKill.or(kill);
+        summaryKill.andNot(gen);
+    }
+
+    private void computeForwardInput(@Nonnull BasicBlock block, @Nonnull BitVector boundary,
+                                     @Nonnull BitVector value) {
+        boolean first = true;
+        if (block == cfg.getEntryBlock()) {
+            value.copyFrom(boundary);
+            first = false;
+        }
+        for (BasicBlock predecessor: block.getPredecessors()) {
+            if (!predecessor.isReachable()) {
+                continue;
+            }
+            int predecessorIndex = predecessor.getIndex();
+            if (predecessor.getSuccessors().contains(block)) {
+                first = meetOrCopy(value, blockOut[predecessorIndex], first);
+            }
+            if (predecessor.getExceptionSuccessors().contains(block)) {
+                first = meetOrCopy(value, blockIn[predecessorIndex], first);
+            }
+        }
+        if (first) {
+            value.clearAll();
+        }
+    }
+
+    private void computeBackwardOutput(@Nonnull BasicBlock block, @Nonnull BitVector boundary,
+                                       @Nonnull BitVector value) {
+        List<BasicBlock> successors = block.getSuccessors();
+        if (successors.isEmpty()) {
+            value.copyFrom(boundary);
+            return;
+        }
+        boolean first = true;
+        for (BasicBlock successor: successors) {
+            first = meetOrCopy(value, blockIn[successor.getIndex()], first);
+        }
+    }
+
+    private boolean meetOrCopy(@Nonnull BitVector value, @Nonnull BitVector other, boolean first) {
+        if (first) {
+            value.copyFrom(other);
+        } else {
+            meet(value, other);
+        }
+        return false;
+    }
+
+    private void meet(@Nonnull BitVector value, @Nonnull BitVector other) {
+        if (union) {
+            value.or(other);
+        } else {
+            value.and(other);
+        }
+    }
+
+    /**
+     * @return The facts that hold at the start of the given block, or null if the block is unreachable
+     */
+    public BitVector getBlockIn(@Nonnull BasicBlock block) {
+        return blockIn[block.getIndex()];
+    }
+
+    /**
+     * @return The facts that hold at the end of the given block, or null if the block is unreachable
+     */
+    public BitVector getBlockOut(@Nonnull BasicBlock block) {
+        return blockOut[block.getIndex()];
+    }
+
+    /**
+     * Gets the facts that hold immediately before the given instruction executes.
+     *
+     * The result is recomputed from the block boundary each time, so callers that walk every instruction in a block
+     * should prefer working from getBlockIn/getBlockOut directly.
+     *
+     * @return A new BitVector, or null if the instruction is unreachable
+     */
+    public BitVector getStateBefore(int instructionIndex) {
+        return getInstructionState(instructionIndex, true);
+    }
+
+    /**
+     * Gets the facts that hold immediately after the given instruction executes normally.
+     *
+     * @return A new BitVector, or null if the instruction is unreachable
+     */
+    public BitVector getStateAfter(int instructionIndex) {
+        return getInstructionState(instructionIndex, false);
+    }
+
+    private BitVector getInstructionState(int instructionIndex, boolean before) {
+        BasicBlock block = cfg.getBlockForInstruction(instructionIndex);
+        if (!block.isReachable()) {
+            return null;
+        }
+
+        BitVector gen = new BitVector(bitCount);
+        BitVector kill = new BitVector(bitCount);
+        BitVector value;
+        if (forward) {
+            value = new BitVector(blockIn[block.getIndex()]);
+            int endIndex = before ? instructionIndex : instructionIndex + 1;
+            for (int i=block.getStartIndex(); i<endIndex; i++) {
+                applyTransfer(i, value, gen, kill);
+            }
+        } else {
+            value = new BitVector(blockOut[block.getIndex()]);
+            int endIndex = before ? instructionIndex : instructionIndex + 1;
+            for (int i=block.getLastIndex(); i>=endIndex; i--) {
+                applyTransfer(i, value, gen, kill);
+            }
+            if (before) {
+                // a throwing instruction is alone in its block, so the handlers' input is only relevant here
+                for (BasicBlock handler: block.getExceptionSuccessors()) {
+                    meet(value, blockIn[handler.getIndex()]);
+                }
+            }
+        }
+        return value;
+    }
+
+    private void applyTransfer(int instructionIndex, @Nonnull BitVector value, @Nonnull BitVector gen,
+                               @Nonnull BitVector kill) {
+        gen.clearAll();
+        kill.clearAll();
+        getGenKill(instructionIndex, gen, kill);
+        value.transfer(gen, kill);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.dataflow;
+
+import org.jf.dexlib2.analysis.cfg.ControlFlowGraph;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.util.MethodUtil;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Computes which registers are definitely assigned (written on every path from the start of the method) at each
+ * point in a method. The parameter registers are assigned on entry.
+ *
+ * Bit n of each state corresponds to register n.
+ */
+public class DefiniteAssignmentAnalysis extends BitVectorDataflowAnalysis {
+    @Nonnull private final List<Instruction> instructions;
+    private final int parameterRegisterCount;
+
+    public DefiniteAssignmentAnalysis(@Nonnull ControlFlowGraph cfg, @Nonnull Method method) {
+        this(cfg, MethodUtil.getParameterRegisterCount(method));
+    }
+
+    /**
+     * @param cfg The control flow graph of the method to analyze
+     * @param parameterRegisterCount The number of parameter registers, including the "this" register for
+     *                               non-static methods
+     */
+    public DefiniteAssignmentAnalysis(@Nonnull ControlFlowGraph cfg, int parameterRegisterCount) {
+        super(cfg, cfg.getMethodImplementation().getRegisterCount(), true, false);
+        this.instructions = cfg.getInstructions();
+        this.parameterRegisterCount = parameterRegisterCount;
+        solve();
+    }
+
+    @Override protected void getGenKill(int instructionIndex, @Nonnull BitVector gen, @Nonnull BitVector kill) {
+        RegisterUsage.addDefinedRegisters(instructions.get(instructionIndex), gen);
+    }
+
+    @Override protected void initializeBoundary(@Nonnull BitVector boundary) {
+        MethodImplementation methodImpl = cfg.getMethodImplementation();
+        for (int register = methodImpl.getRegisterCount() - parameterRegisterCount;
+             register < methodImpl.getRegisterCount(); register++) {
+            boundary.set(register);
+        }
+    }
+
+    /**
+     * @return true if the given register has been written on every path that reaches the given instruction
+     */
+    public boolean isDefinitelyAssigned(int instructionIndex, int register) {
+        BitVector state = getStateBefore(instructionIndex);
+        return state != null && state.get(register);
+    }
+}
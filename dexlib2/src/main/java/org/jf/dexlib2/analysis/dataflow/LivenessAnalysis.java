@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.dataflow;
+
+import org.jf.dexlib2.analysis.cfg.ControlFlowGraph;
+import org.jf.dexlib2.iface.instruction.Instruction;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Computes which registers are live (may be read before being written) at each point in a method.
+ *
+ * Bit n of each state corresponds to register n.
+ */
+public class LivenessAnalysis extends BitVectorDataflowAnalysis {
+    @Nonnull private final List<Instruction> instructions;
+
+    public LivenessAnalysis(@Nonnull ControlFlowGraph cfg) {
+        super(cfg, cfg.getMethodImplementation().getRegisterCount(), false, true);
+        this.instructions = cfg.getInstructions();
+        solve();
+    }
+
+    @Override protected void getGenKill(int instructionIndex, @Nonnull BitVector gen, @Nonnull BitVector kill) {
+        Instruction instruction = instructions.get(instructionIndex);
+        RegisterUsage.addDefinedRegisters(instruction, kill);
+        RegisterUsage.addUsedRegisters(instruction, gen);
+    }
+
+    @Override protected void initializeBoundary(@Nonnull BitVector boundary) {
+        // nothing is live after the method returns
+    }
+
+    /**
+     * @return true if the given register may be read at or after the given instruction, before being overwritten
+     */
+    public boolean isLiveBefore(int instructionIndex, int register) {
+        BitVector state = getStateBefore(instructionIndex);
+        return state != null && state.get(register);
+    }
+
+    /**
+     * @return true if the given register may be read after the given instruction completes normally, before being
+     * overwritten
+     */
+    public boolean isLiveAfter(int instructionIndex, int register) {
+        BitVector state = getStateAfter(instructionIndex);
+        return state != null && state.get(register);
+    }
+}
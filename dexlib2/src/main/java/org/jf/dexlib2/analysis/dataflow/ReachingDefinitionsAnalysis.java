@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.dataflow;
+
+import org.jf.dexlib2.analysis.cfg.ControlFlowGraph;
+import org.jf.dexlib2.iface.instruction.Instruction;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Computes which register definitions may reach each point in a method.
+ *
+ * Each definition is a single (instruction, register) pair, so a wide write produces two definitions. The first
+ * registerCount bits represent the initial, implicit definition of each register at the start of the method. The
+ * remaining bits are allocated in instruction order.
+ */
+public class ReachingDefinitionsAnalysis extends BitVectorDataflowAnalysis {
+    /** The pseudo instruction index of the implicit definitions at the start of the method */
+    public static final int METHOD_ENTRY = -1;
+
+    @Nonnull private final List<Instruction> instructions;
+    @Nonnull private final int[] firstDefinition;
+    @Nonnull private final int[] definitionInstruction;
+    @Nonnull private final int[] definitionRegister;
+    @Nonnull private final BitVector[] registerDefinitions;
+
+    public ReachingDefinitionsAnalysis(@Nonnull ControlFlowGraph cfg) {
+        this(cfg, cfg.getMethodImplementation().getRegisterCount(), countDefinitions(cfg));
+    }
+
+    private ReachingDefinitionsAnalysis(@Nonnull ControlFlowGraph cfg, int registerCount, int definitionCount) {
+        super(cfg, registerCount + definitionCount, true, true);
+        this.instructions = cfg.getInstructions();
+
+        int bitCount = registerCount + definitionCount;
+        firstDefinition = new int[instructions.size() + 1];
+        definitionInstruction = new int[bitCount];
+        definitionRegister = new int[bitCount];
+        registerDefinitions = new BitVector[registerCount];
+
+        for (int register=0; register<registerCount; register++) {
+            definitionInstruction[register] = METHOD_ENTRY;
+            definitionRegister[register] = register;
+            registerDefinitions[register] = new BitVector(bitCount);
+            registerDefinitions[register].set(register);
+        }
+
+        BitVector defs = new BitVector(registerCount);
+        int bit = registerCount;
+        for (int i=0; i<instructions.size(); i++) {
+            firstDefinition[i] = bit;
+            defs.clearAll();
+            RegisterUsage.addDefinedRegisters(instructions.get(i), defs);
+            for (int register=defs.nextSetBit(0); register>=0; register=defs.nextSetBit(register+1)) {
+                definitionInstruction[bit] = i;
+                definitionRegister[bit] = register;
+                registerDefinitions[register].set(bit);
+                bit++;
+            }
+        }
+        firstDefinition[instructions.size()] = bit;
+
+        solve();
+    }
+
+    private static int countDefinitions(@Nonnull ControlFlowGraph cfg) {
+        BitVector defs = new BitVector(cfg.getMethodImplementation().getRegisterCount());
+        int count = 0;
+        for (Instruction instruction: cfg.getInstructions()) {
+            defs.clearAll();
+            RegisterUsage.addDefinedRegisters(instruction, defs);
+            count += defs.cardinality();
+        }
+        return count;
+    }
+
+    @Override protected void getGenKill(int instructionIndex, @Nonnull BitVector gen, @Nonnull BitVector kill) {
+        for (int bit=firstDefinition[instructionIndex]; bit<firstDefinition[instructionIndex+1]; bit++) {
+            gen.set(bit);
+            kill.or(registerDefinitions[definitionRegister[bit]]);
+        }
+    }
+
+    @Override protected void initializeBoundary(@Nonnull BitVector boundary) {
+        for (int register=0; register<registerDefinitions.length; register++) {
+            boundary.set(register);
+        }
+    }
+
+    /**
+     * @return The index of the instruction that made the given definition, or METHOD_ENTRY
+     */
+    public int getDefinitionInstruction(int definition) {
+        return definitionInstruction[definition];
+    }
+
+    /**
+     * @return The register written by the given definition
+     */
+    public int getDefinitionRegister(int definition) {
+        return definitionRegister[definition];
+    }
+
+    /**
+     * Gets the instructions whose write to the given register may be the value seen by the given instruction.
+     *
+     * @return The indexes of the defining instructions, in ascending order. METHOD_ENTRY is included if the register
+     * may still hold its value from the start of the method. An empty array is returned if the instruction is
+     * unreachable.
+     */
+    @Nonnull
+    public int[] getReachingDefinitions(int instructionIndex, int register) {
+        BitVector state = getStateBefore(instructionIndex);
+        if (state == null) {
+            return new int[0];
+        }
+        state.and(registerDefinitions[register]);
+        int[] result = new int[state.cardinality()];
+        int i = 0;
+        for (int bit=state.nextSetBit(0); bit>=0; bit=state.nextSetBit(bit+1)) {
+            result[i++] = definitionInstruction[bit];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.dataflow;
+
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.instruction.*;
+
+import javax.annotation.Nonnull;
+import java.util.EnumSet;
+
+/**
+ * Helpers for determining which registers an instruction reads and writes. A wide value occupies both the named
+ * register and the one following it, and both are reported.
+ */
+public final class RegisterUsage {
+    private static final EnumSet<Opcode> WIDE_A_SOURCE = EnumSet.of(
+            Opcode.RETURN_WIDE, Opcode.APUT_WIDE, Opcode.IPUT_WIDE, Opcode.SPUT_WIDE, Opcode.IPUT_WIDE_VOLATILE,
+            Opcode.SPUT_WIDE_VOLATILE, Opcode.IPUT_WIDE_QUICK,
+            Opcode.ADD_LONG_2ADDR, Opcode.SUB_LONG_2ADDR, Opcode.MUL_LONG_2ADDR, Opcode.DIV_LONG_2ADDR,
+            Opcode.REM_LONG_2ADDR, Opcode.AND_LONG_2ADDR, Opcode.OR_LONG_2ADDR, Opcode.XOR_LONG_2ADDR,
+            Opcode.SHL_LONG_2ADDR, Opcode.SHR_LONG_2ADDR, Opcode.USHR_LONG_2ADDR,
+            Opcode.ADD_DOUBLE_2ADDR, Opcode.SUB_DOUBLE_2ADDR, Opcode.MUL_DOUBLE_2ADDR, Opcode.DIV_DOUBLE_2ADDR,
+            Opcode.REM_DOUBLE_2ADDR);
+
+    private static final EnumSet<Opcode> WIDE_B_SOURCE = EnumSet.of(
+            Opcode.MOVE_WIDE, Opcode.MOVE_WIDE_FROM16, Opcode.MOVE_WIDE_16,
+            Opcode.CMPL_DOUBLE, Opcode.CMPG_DOUBLE, Opcode.CMP_LONG,
+            Opcode.NEG_LONG, Opcode.NOT_LONG, Opcode.NEG_DOUBLE,
+            Opcode.LONG_TO_INT, Opcode.LONG_TO_FLOAT, Opcode.LONG_TO_DOUBLE,
+            Opcode.DOUBLE_TO_INT, Opcode.DOUBLE_TO_LONG, Opcode.DOUBLE_TO_FLOAT,
+            Opcode.ADD_LONG, Opcode.SUB_LONG, Opcode.MUL_LONG, Opcode.DIV_LONG, Opcode.REM_LONG, Opcode.AND_LONG,
+            Opcode.OR_LONG, Opcode.XOR_LONG, Opcode.SHL_LONG, Opcode.SHR_LONG, Opcode.USHR_LONG,
+            Opcode.ADD_DOUBLE, Opcode.SUB_DOUBLE, Opcode.MUL_DOUBLE, Opcode.DIV_DOUBLE, Opcode.REM_DOUBLE,
+            Opcode.ADD_LONG_2ADDR, Opcode.SUB_LONG_2ADDR, Opcode.MUL_LONG_2ADDR, Opcode.DIV_LONG_2ADDR,
+            Opcode.REM_LONG_2ADDR, Opcode.AND_LONG_2ADDR, Opcode.OR_LONG_2ADDR, Opcode.XOR_LONG_2ADDR,
+            Opcode.ADD_DOUBLE_2ADDR, Opcode.SUB_DOUBLE_2ADDR, Opcode.MUL_DOUBLE_2ADDR, Opcode.DIV_DOUBLE_2ADDR,
+            Opcode.REM_DOUBLE_2ADDR);
+
+    private static final EnumSet<Opcode> WIDE_C_SOURCE = EnumSet.of(
+            Opcode.CMPL_DOUBLE, Opcode.CMPG_DOUBLE, Opcode.CMP_LONG,
+            Opcode.ADD_LONG, Opcode.SUB_LONG, Opcode.MUL_LONG, Opcode.DIV_LONG, Opcode.REM_LONG, Opcode.AND_LONG,
+            Opcode.OR_LONG, Opcode.XOR_LONG,
+            Opcode.ADD_DOUBLE, Opcode.SUB_DOUBLE, Opcode.MUL_DOUBLE, Opcode.DIV_DOUBLE, Opcode.REM_DOUBLE);
+
+    private RegisterUsage() {
+    }
+
+    /**
+     * Sets the bits for the registers that the given instruction writes.
+     */
+    public static void addDefinedRegisters(@Nonnull Instruction instruction, @Nonnull BitVector defs) {
+        Opcode opcode = instruction.getOpcode();
+        if (opcode.setsRegister()) {
+            int register = ((OneRegisterInstruction)instruction).getRegisterA();
+            defs.set(register);
+            if (opcode.setsWideRegister()) {
+                defs.set(register + 1);
+            }
+        }
+    }
+
+    /**
+     * Sets the bits for the registers that the given instruction reads.
+     */
+    public static void addUsedRegisters(@Nonnull Instruction instruction, @Nonnull BitVector uses) {
+        Opcode opcode = instruction.getOpcode();
+
+        if (instruction instanceof RegisterRangeInstruction) {
+            RegisterRangeInstruction rangeInstruction = (RegisterRangeInstruction)instruction;
+            int startRegister = rangeInstruction.getStartRegister();
+            int endRegister = startRegister + rangeInstruction.getRegisterCount();
+            for (int register=startRegister; register<endRegister; register++) {
+                uses.set(register);
+            }
+            return;
+        }
+
+        if (instruction instanceof FiveRegisterInstruction) {
+            FiveRegisterInstruction fiveRegisterInstruction = (FiveRegisterInstruction)instruction;
+            int registerCount = fiveRegisterInstruction.getRegisterCount();
+            switch (registerCount) {
+                case 5:
+                    uses.set(fiveRegisterInstruction.getRegisterG());
+                    //fall through
+                case 4:
+                    uses.set(fiveRegisterInstruction.getRegisterF());
+                    //fall through
+                case 3:
+                    uses.set(fiveRegisterInstruction.getRegisterE());
+                    //fall through
+                case 2:
+                    uses.set(fiveRegisterInstruction.getRegisterD());
+                    //fall through
+                case 1:
+                    uses.set(fiveRegisterInstruction.getRegisterC());
+            }
+            return;
+        }
+
+        if (instruction instanceof OneFixedFourParameterRegisterInstruction) {
+            OneFixedFourParameterRegisterInstruction lambdaInstruction =
+                    (OneFixedFourParameterRegisterInstruction)instruction;
+            // the lambda closure is a wide value
+            uses.set(lambdaInstruction.getRegisterFixedC());
+            uses.set(lambdaInstruction.getRegisterFixedC() + 1);
+            switch (lambdaInstruction.getParameterRegisterCount()) {
+                case 4:
+                    uses.set(lambdaInstruction.getRegisterParameterG());
+                    //fall through
+                case 3:
+                    uses.set(lambdaInstruction.getRegisterParameterF());
+                    //fall through
+                case 2:
+                    uses.set(lambdaInstruction.getRegisterParameterE());
+                    //fall through
+                case 1:
+                    uses.set(lambdaInstruction.getRegisterParameterD());
+            }
+            return;
+        }
+
+        if (instruction instanceof OneRegisterInstruction) {
+            // register A is normally a destination, except for check-cast and the 2addr instructions, which also
+            // read it
+            if (!opcode.setsRegister() || opcode == Opcode.CHECK_CAST || opcode.name.endsWith("/2addr")) {
+                addRegister(uses, ((OneRegisterInstruction)instruction).getRegisterA(),
+                        WIDE_A_SOURCE.contains(opcode));
+            }
+        }
+        if (instruction instanceof TwoRegisterInstruction) {
+            addRegister(uses, ((TwoRegisterInstruction)instruction).getRegisterB(), WIDE_B_SOURCE.contains(opcode));
+        }
+        if (instruction instanceof ThreeRegisterInstruction) {
+            addRegister(uses, ((ThreeRegisterInstruction)instruction).getRegisterC(), WIDE_C_SOURCE.contains(opcode));
+        }
+    }
+
+    private static void addRegister(@Nonnull BitVector registers, int register, boolean wide) {
+        registers.set(register);
+        if (wide) {
+            registers.set(register + 1);
+        }
+    }
+}
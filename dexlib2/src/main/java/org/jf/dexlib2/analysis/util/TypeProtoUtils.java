@@ -31,6 +31,7 @@
 
 package org.jf.dexlib2.analysis.util;
 
+import org.jf.dexlib2.analysis.ClassProto;
 import org.jf.dexlib2.analysis.TypeProto;
 import org.jf.dexlib2.analysis.UnresolvedClassException;
 
@@ -99,6 +100,12 @@ public class TypeProtoUtils {
         if (candidate.getType().equals(possibleSuper)) {
             return true;
         }
+        if (candidate instanceof ClassProto) {
+            TypeProto possibleSuperProto = candidate.getClassPath().getClass(possibleSuper);
+            if (possibleSuperProto instanceof ClassProto) {
+                return ((ClassProto)candidate).extendsFrom((ClassProto)possibleSuperProto);
+            }
+        }
         for (TypeProto superProto: getSuperclassChain(candidate)) {
             if (superProto.getType().equals(possibleSuper)) {
                 return true;
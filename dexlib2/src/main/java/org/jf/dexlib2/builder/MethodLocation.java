@@ -42,7 +42,9 @@ import javax.annotation.Nullable;
 import java.util.*;
 
 public class MethodLocation {
+    @Nonnull final MutableMethodImplementation methodImpl;
     @Nullable BuilderInstruction instruction;
+    // These may be out of date after instructions are added or removed, until methodImpl.updateLocations() is called
     int codeAddress;
     int index;
 
@@ -55,7 +57,9 @@ public class MethodLocation {
     @Nullable
     private List<BuilderDebugItem> debugItems = null;
 
-    MethodLocation(@Nullable BuilderInstruction instruction, int codeAddress, int index) {
+    MethodLocation(@Nonnull MutableMethodImplementation methodImpl, @Nullable BuilderInstruction instruction,
+                   int codeAddress, int index) {
+        this.methodImpl = methodImpl;
         this.instruction = instruction;
         this.codeAddress = codeAddress;
         this.index = index;
@@ -67,10 +71,12 @@ public class MethodLocation {
     }
 
     public int getCodeAddress() {
+        methodImpl.updateLocations();
         return codeAddress;
     }
 
     public int getIndex() {
+        methodImpl.updateLocations();
         return index;
     }
 
@@ -33,6 +33,7 @@ package org.jf.dexlib2.builder;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import org.jf.dexlib2.DebugItemType;
@@ -55,10 +56,18 @@ import java.util.*;
 
 public class MutableMethodImplementation implements MethodImplementation {
     private final int registerCount;
-    final ArrayList<MethodLocation> instructionList = Lists.newArrayList(new MethodLocation(null, 0, 0));
+    final ArrayList<MethodLocation> instructionList = Lists.newArrayList(new MethodLocation(this, null, 0, 0));
     private final ArrayList<BuilderTryBlock> tryBlocks = Lists.newArrayList();
     private boolean fixInstructions = true;
 
+    // The index of the first MethodLocation whose index and code address may be out of date, or Integer.MAX_VALUE if
+    // they are all up to date. Adding or removing an instruction just lowers this, and the locations are renumbered
+    // the next time an index or address is needed. This way, a series of edits takes linear time overall, rather
+    // than renumbering all of the following locations after each one.
+    private int firstStaleLocation = Integer.MAX_VALUE;
+
+    private int relaxationPasses = 0;
+
     public MutableMethodImplementation(@Nonnull MethodImplementation methodImplementation) {
         this.registerCount = methodImplementation.getRegisterCount();
 
@@ -69,7 +78,7 @@ public class MutableMethodImplementation implements MethodImplementation {
             codeAddress += instruction.getCodeUnits();
             index++;
 
-            instructionList.add(new MethodLocation(null, codeAddress, index));
+            instructionList.add(new MethodLocation(this, null, codeAddress, index));
         }
 
         final int[] codeAddressToIndex = new int[codeAddress+1];
@@ -212,25 +221,72 @@ public class MutableMethodImplementation implements MethodImplementation {
             addInstruction(instruction);
             return;
         }
-        int codeAddress = instructionList.get(index).getCodeAddress();
-        MethodLocation newLoc = new MethodLocation(instruction, codeAddress, index);
+        MethodLocation newLoc = new MethodLocation(this, instruction, 0, index);
         instructionList.add(index, newLoc);
         instruction.location = newLoc;
 
-        codeAddress += instruction.getCodeUnits();
+        invalidateLocations(index);
+        this.fixInstructions = true;
+    }
 
-        for (int i=index+1; i<instructionList.size(); i++) {
-            MethodLocation location = instructionList.get(i);
-            location.index++;
-            location.codeAddress = codeAddress;
-            if (location.instruction != null) {
-                codeAddress += location.instruction.getCodeUnits();
+    /**
+     * Adds a number of instructions in a single pass over the method.
+     *
+     * This gives the same result as adding each of the given instructions with addInstruction(int, BuilderInstruction),
+     * from the last to the first, so that each index still refers to the instruction that was originally at that
+     * index. The instructions for a given index end up in the order they are given, before the original instruction.
+     *
+     * @param instructions A multimap from the index of an existing instruction, to the instructions to add before it
+     */
+    public void addInstructions(@Nonnull ListMultimap<Integer, ? extends BuilderInstruction> instructions) {
+        if (instructions.isEmpty()) {
+            return;
+        }
+
+        int lastIndex = instructionList.size() - 1;
+        int firstIndex = lastIndex;
+        for (int index: instructions.keySet()) {
+            if (index < 0 || index > lastIndex) {
+                throw new IndexOutOfBoundsException();
+            }
+            firstIndex = Math.min(firstIndex, index);
+        }
+
+        ArrayList<MethodLocation> newInstructionList =
+                Lists.newArrayListWithCapacity(instructionList.size() + instructions.size());
+        newInstructionList.addAll(instructionList.subList(0, firstIndex));
+        for (int i=firstIndex; i<lastIndex; i++) {
+            for (BuilderInstruction instruction: instructions.get(i)) {
+                MethodLocation newLoc = new MethodLocation(this, instruction, 0, 0);
+                instruction.location = newLoc;
+                newInstructionList.add(newLoc);
+            }
+            newInstructionList.add(instructionList.get(i));
+        }
+
+        // as with addInstruction(int, BuilderInstruction), the last instruction added at the end of the method takes
+        // the place of the empty MethodLocation at the end, along with any labels or debug items there
+        MethodLocation last = instructionList.get(lastIndex);
+        List<? extends BuilderInstruction> lastInstructions = instructions.get(lastIndex);
+        for (int i=0; i<lastInstructions.size(); i++) {
+            BuilderInstruction instruction = lastInstructions.get(i);
+            MethodLocation newLoc;
+            if (i == lastInstructions.size() - 1) {
+                newLoc = last;
+                newLoc.instruction = instruction;
+                last = new MethodLocation(this, null, 0, 0);
             } else {
-                // only the last MethodLocation should have a null instruction
-                assert i == instructionList.size()-1;
+                newLoc = new MethodLocation(this, instruction, 0, 0);
             }
+            instruction.location = newLoc;
+            newInstructionList.add(newLoc);
         }
+        newInstructionList.add(last);
+
+        instructionList.clear();
+        instructionList.addAll(newInstructionList);
 
+        invalidateLocations(firstIndex);
         this.fixInstructions = true;
     }
 
@@ -239,8 +295,9 @@ public class MutableMethodImplementation implements MethodImplementation {
         last.instruction = instruction;
         instruction.location = last;
 
+        // if the earlier locations are out of date, the new location will be renumbered along with them
         int nextCodeAddress = last.codeAddress + instruction.getCodeUnits();
-        instructionList.add(new MethodLocation(null, nextCodeAddress, instructionList.size()));
+        instructionList.add(new MethodLocation(this, null, nextCodeAddress, instructionList.size()));
 
         this.fixInstructions = true;
     }
@@ -257,20 +314,9 @@ public class MutableMethodImplementation implements MethodImplementation {
         old.location = null;
         replaceLocation.instruction = replacementInstruction;
 
-        // TODO: factor out index/address fix up loop
-        int codeAddress = replaceLocation.codeAddress + replaceLocation.instruction.getCodeUnits();
-        for (int i=index+1; i<instructionList.size(); i++) {
-            MethodLocation location = instructionList.get(i);
-            location.codeAddress = codeAddress;
-
-            Instruction instruction = location.getInstruction();
-            if (instruction != null) {
-                codeAddress += instruction.getCodeUnits();
-            } else {
-                assert i == instructionList.size() - 1;
-            }
+        if (replacementInstruction.getCodeUnits() != old.getCodeUnits()) {
+            invalidateLocations(index + 1);
         }
-
         this.fixInstructions = true;
     }
 
@@ -285,20 +331,8 @@ public class MutableMethodImplementation implements MethodImplementation {
         toRemove.mergeInto(next);
 
         instructionList.remove(index);
-        int codeAddress = toRemove.codeAddress;
-        for (int i=index; i<instructionList.size(); i++) {
-            MethodLocation location = instructionList.get(i);
-            location.index = i;
-            location.codeAddress = codeAddress;
-
-            Instruction instruction = location.getInstruction();
-            if (instruction != null) {
-                codeAddress += instruction.getCodeUnits();
-            } else {
-                assert i == instructionList.size() - 1;
-            }
-        }
 
+        invalidateLocations(index);
         this.fixInstructions = true;
     }
 
@@ -322,23 +356,48 @@ public class MutableMethodImplementation implements MethodImplementation {
             first.instruction = tmp;
         }
 
-        if (index2 < index1) {
-            int tmp = index2;
-            index2 = index1;
-            index1 = tmp;
+        invalidateLocations(Math.min(index1, index2) + 1);
+        this.fixInstructions = true;
+    }
+
+    private void invalidateLocations(int index) {
+        if (index < firstStaleLocation) {
+            firstStaleLocation = index;
         }
+    }
 
-        int codeAddress = first.codeAddress + first.instruction.getCodeUnits();
-        for (int i=index1+1; i<=index2; i++) {
-            MethodLocation location = instructionList.get(i);
+    /**
+     * Renumbers the index and code address of any locations that are out of date, due to instructions being added or
+     * removed.
+     */
+    void updateLocations() {
+        if (firstStaleLocation == Integer.MAX_VALUE) {
+            return;
+        }
+
+        int index = firstStaleLocation;
+        int codeAddress = 0;
+        if (index > 0) {
+            MethodLocation previous = instructionList.get(index - 1);
+            assert previous.instruction != null;
+            codeAddress = previous.codeAddress + previous.instruction.getCodeUnits();
+        }
+
+        for (; index<instructionList.size(); index++) {
+            MethodLocation location = instructionList.get(index);
+            location.index = index;
             location.codeAddress = codeAddress;
 
             Instruction instruction = location.instruction;
-            assert instruction != null;
-            codeAddress += location.instruction.getCodeUnits();
+            if (instruction != null) {
+                codeAddress += instruction.getCodeUnits();
+            } else {
+                // only the last MethodLocation should have a null instruction
+                assert index == instructionList.size() - 1;
+            }
         }
 
-        this.fixInstructions = true;
+        firstStaleLocation = Integer.MAX_VALUE;
     }
 
     @Nullable
@@ -355,6 +414,8 @@ public class MutableMethodImplementation implements MethodImplementation {
     }
 
     private void fixInstructions() {
+        updateLocations();
+
         HashSet<MethodLocation> payloadLocations = Sets.newHashSet();
 
         for (MethodLocation location: instructionList) {
@@ -400,17 +461,27 @@ public class MutableMethodImplementation implements MethodImplementation {
             }
         }
 
+        // Each pass computes the branch offsets from the code addresses as of the start of the pass, which are kept in
+        // the locations until the next call to updateLocations(), so that a pass takes linear time however many
+        // instructions are replaced. Instructions only grow in size, apart from the occasional nop for alignment, so
+        // another pass is made until nothing changes, at which point all of the addresses and offsets are accurate.
+        // The alignment of a payload depends on its exact address, so the amount that the current location has moved
+        // during the pass is tracked separately.
+        relaxationPasses = 0;
         boolean madeChanges;
         do {
             madeChanges = false;
+            relaxationPasses++;
+            updateLocations();
 
+            int growth = 0;
             for (int index=0; index<instructionList.size(); index++) {
                 MethodLocation location = instructionList.get(index);
                 BuilderInstruction instruction = location.instruction;
                 if (instruction != null) {
                     switch (instruction.getOpcode()) {
                         case GOTO: {
-                            int offset = ((BuilderOffsetInstruction)instruction).internalGetCodeOffset();
+                            int offset = getStaleCodeOffset(location, (BuilderOffsetInstruction)instruction);
                             if (offset < Byte.MIN_VALUE || offset > Byte.MAX_VALUE) {
                                 BuilderOffsetInstruction replacement;
                                 if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
@@ -420,17 +491,45 @@ public class MutableMethodImplementation implements MethodImplementation {
                                     replacement = new BuilderInstruction20t(Opcode.GOTO_16,
                                             ((BuilderOffsetInstruction)instruction).getTarget());
                                 }
-                                replaceInstruction(location.index, replacement);
+                                replaceInstruction(index, replacement);
+                                growth += replacement.getCodeUnits() - instruction.getCodeUnits();
                                 madeChanges = true;
                             }
                             break;
                         }
                         case GOTO_16: {
-                            int offset = ((BuilderOffsetInstruction)instruction).internalGetCodeOffset();
+                            int offset = getStaleCodeOffset(location, (BuilderOffsetInstruction)instruction);
                             if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
                                 BuilderOffsetInstruction replacement =  new BuilderInstruction30t(Opcode.GOTO_32,
                                             ((BuilderOffsetInstruction)instruction).getTarget());
-                                replaceInstruction(location.index, replacement);
+                                replaceInstruction(index, replacement);
+                                growth += replacement.getCodeUnits() - instruction.getCodeUnits();
+                                madeChanges = true;
+                            }
+                            break;
+                        }
+                        case IF_EQ:
+                        case IF_NE:
+                        case IF_LT:
+                        case IF_GE:
+                        case IF_GT:
+                        case IF_LE:
+                        case IF_EQZ:
+                        case IF_NEZ:
+                        case IF_LTZ:
+                        case IF_GEZ:
+                        case IF_GTZ:
+                        case IF_LEZ: {
+                            int offset = getStaleCodeOffset(location, (BuilderOffsetInstruction)instruction);
+                            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                                // branch around a goto/32 to the target, with the opposite condition
+                                Label target = ((BuilderOffsetInstruction)instruction).getTarget();
+                                BuilderInstruction gotoInstruction = new BuilderInstruction30t(Opcode.GOTO_32, target);
+                                addInstruction(index + 1, gotoInstruction);
+                                Label skipTarget = instructionList.get(index + 2).addNewLabel();
+                                replaceInstruction(index, invertIf(instruction, skipTarget));
+                                growth += gotoInstruction.getCodeUnits();
+                                index++;
                                 madeChanges = true;
                             }
                             break;
@@ -440,22 +539,25 @@ public class MutableMethodImplementation implements MethodImplementation {
                             if (((BuilderSwitchPayload)instruction).referrer == null) {
                                 // if the switch payload isn't referenced, just remove it
                                 removeInstruction(index);
+                                growth -= instruction.getCodeUnits();
                                 index--;
                                 madeChanges = true;
                                 break;
                             }
                             // intentional fall-through
                         case ARRAY_PAYLOAD: {
-                            if ((location.codeAddress & 0x01) != 0) {
-                                int previousIndex = location.index - 1;
+                            if (((location.codeAddress + growth) & 0x01) != 0) {
+                                int previousIndex = index - 1;
                                 MethodLocation previousLocation = instructionList.get(previousIndex);
                                 Instruction previousInstruction = previousLocation.instruction;
                                 assert previousInstruction != null;
                                 if (previousInstruction.getOpcode() == Opcode.NOP) {
                                     removeInstruction(previousIndex);
+                                    growth -= previousInstruction.getCodeUnits();
                                     index--;
                                 } else {
-                                    addInstruction(location.index, new BuilderInstruction10x(Opcode.NOP));
+                                    addInstruction(index, new BuilderInstruction10x(Opcode.NOP));
+                                    growth++;
                                     index++;
                                 }
                                 madeChanges = true;
@@ -470,6 +572,66 @@ public class MutableMethodImplementation implements MethodImplementation {
         fixInstructions = false;
     }
 
+    /**
+     * @return The offset of the given branch, based on the code addresses as of the last call to updateLocations()
+     */
+    private static int getStaleCodeOffset(@Nonnull MethodLocation location,
+                                          @Nonnull BuilderOffsetInstruction instruction) {
+        return instruction.getTarget().getLocation().codeAddress - location.codeAddress;
+    }
+
+    @Nonnull
+    private static BuilderInstruction invertIf(@Nonnull BuilderInstruction instruction, @Nonnull Label target) {
+        switch (instruction.getOpcode()) {
+            case IF_EQ:
+                return invertIf((BuilderInstruction22t)instruction, Opcode.IF_NE, target);
+            case IF_NE:
+                return invertIf((BuilderInstruction22t)instruction, Opcode.IF_EQ, target);
+            case IF_LT:
+                return invertIf((BuilderInstruction22t)instruction, Opcode.IF_GE, target);
+            case IF_GE:
+                return invertIf((BuilderInstruction22t)instruction, Opcode.IF_LT, target);
+            case IF_GT:
+                return invertIf((BuilderInstruction22t)instruction, Opcode.IF_LE, target);
+            case IF_LE:
+                return invertIf((BuilderInstruction22t)instruction, Opcode.IF_GT, target);
+            case IF_EQZ:
+                return invertIf((BuilderInstruction21t)instruction, Opcode.IF_NEZ, target);
+            case IF_NEZ:
+                return invertIf((BuilderInstruction21t)instruction, Opcode.IF_EQZ, target);
+            case IF_LTZ:
+                return invertIf((BuilderInstruction21t)instruction, Opcode.IF_GEZ, target);
+            case IF_GEZ:
+                return invertIf((BuilderInstruction21t)instruction, Opcode.IF_LTZ, target);
+            case IF_GTZ:
+                return invertIf((BuilderInstruction21t)instruction, Opcode.IF_LEZ, target);
+            case IF_LEZ:
+                return invertIf((BuilderInstruction21t)instruction, Opcode.IF_GTZ, target);
+            default:
+                throw new ExceptionWithContext("Not an if instruction: %s", instruction.getOpcode().name);
+        }
+    }
+
+    @Nonnull
+    private static BuilderInstruction22t invertIf(@Nonnull BuilderInstruction22t instruction, @Nonnull Opcode opcode,
+                                                  @Nonnull Label target) {
+        return new BuilderInstruction22t(opcode, instruction.getRegisterA(), instruction.getRegisterB(), target);
+    }
+
+    @Nonnull
+    private static BuilderInstruction21t invertIf(@Nonnull BuilderInstruction21t instruction, @Nonnull Opcode opcode,
+                                                  @Nonnull Label target) {
+        return new BuilderInstruction21t(opcode, instruction.getRegisterA(), target);
+    }
+
+    /**
+     * @return The number of passes made by the last call to fixInstructions() to fix up branch offsets and payload
+     * alignment
+     */
+    int getRelaxationPasses() {
+        return relaxationPasses;
+    }
+
     private int mapCodeAddressToIndex(@Nonnull int[] codeAddressToIndex, int codeAddress) {
         int index;
         do {
@@ -483,6 +645,8 @@ public class MutableMethodImplementation implements MethodImplementation {
     }
 
     private int mapCodeAddressToIndex(int codeAddress) {
+        updateLocations();
+
         float avgCodeUnitsPerInstruction = 1.9f;
 
         int index = (int)(codeAddress/avgCodeUnitsPerInstruction);
@@ -509,6 +673,7 @@ public class MutableMethodImplementation implements MethodImplementation {
 
     @Nonnull
     public Label newLabelForAddress(int codeAddress) {
+        updateLocations();
         if (codeAddress < 0 || codeAddress > instructionList.get(instructionList.size()-1).codeAddress) {
             throw new IndexOutOfBoundsException(String.format("codeAddress %d out of bounds", codeAddress));
         }
@@ -61,6 +61,10 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
     private final int classCount;
     private final int classStartOffset;
 
+    // For each type index, the index of the class_def_item that defines that type plus 1, or 0 if it isn't defined in
+    // this dex file. This is built on first use, by getClassByType
+    @Nullable private volatile int[] classIndexByType;
+
     private DexBackedDexFile(@Nonnull Opcodes opcodes, @Nonnull byte[] buf, int offset, boolean verifyMagic) {
         super(buf, offset);
 
@@ -265,6 +269,79 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         return getType(typeIndex);
     }
 
+    /**
+     * Gets the type index of the class defined by the given class_def_item, without reading anything else about the
+     * class.
+     *
+     * @param classIndex The index of the class_def_item
+     * @return The index of the class's type
+     */
+    public int getClassTypeIndex(int classIndex) {
+        return readSmallUint(getClassDefItemOffset(classIndex) + ClassDefItem.CLASS_OFFSET);
+    }
+
+    /**
+     * Finds the given type in the type_ids section.
+     *
+     * This is a binary search, which relies on the type_ids section being sorted by the contents of each type's
+     * string, as required by the dex format.
+     *
+     * @param type The type descriptor to look for
+     * @return The index of the type, or -1 if the type isn't referenced by this dex file
+     */
+    public int findTypeIndex(@Nonnull String type) {
+        int low = 0;
+        int high = typeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int result = getType(mid).compareTo(type);
+            if (result < 0) {
+                low = mid + 1;
+            } else if (result > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the class with the given type that is defined in this dex file.
+     *
+     * Unlike searching through getClasses(), this only needs to read the other class_def_items' type indexes, and
+     * doesn't decode their types.
+     *
+     * @param type The type of the class to get
+     * @return The class with the given type, or null if it isn't defined in this dex file
+     */
+    @Nullable
+    public DexBackedClassDef getClassByType(@Nonnull String type) {
+        int typeIndex = findTypeIndex(type);
+        if (typeIndex < 0) {
+            return null;
+        }
+
+        int[] classIndexByType = this.classIndexByType;
+        if (classIndexByType == null) {
+            classIndexByType = new int[typeCount];
+            for (int i=0; i<classCount; i++) {
+                int classTypeIndex = getClassTypeIndex(i);
+                if (classTypeIndex >= 0 && classTypeIndex < typeCount) {
+                    classIndexByType[classTypeIndex] = i + 1;
+                }
+            }
+            // If multiple threads get here at once, they will all build the same array
+            this.classIndexByType = classIndexByType;
+        }
+
+        int classIndex = classIndexByType[typeIndex] - 1;
+        if (classIndex < 0) {
+            return null;
+        }
+        return new DexBackedClassDef(this, getClassDefItemOffset(classIndex));
+    }
+
     @Override
     @Nonnull
     public DexReader readerAt(int offset) {
@@ -63,9 +63,16 @@ public class DexBackedMethodImplementation implements MethodImplementation {
 
     @Override public int getRegisterCount() { return dexFile.readUshort(codeOffset); }
 
+    /**
+     * @return The size of the instruction list, in 16-bit code units. This is not the number of instructions.
+     */
+    public int getInstructionsSize() {
+        return dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+    }
+
     @Nonnull @Override public Iterable<? extends Instruction> getInstructions() {
         // instructionsSize is the number of 16-bit code units in the instruction list, not the number of instructions
-        int instructionsSize = dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+        int instructionsSize = getInstructionsSize();
 
         final int instructionsStartOffset = codeOffset + CodeItem.INSTRUCTION_START_OFFSET;
         final int endOffset = instructionsStartOffset + (instructionsSize*2);
@@ -98,7 +105,7 @@ public class DexBackedMethodImplementation implements MethodImplementation {
     public List<? extends DexBackedTryBlock> getTryBlocks() {
         final int triesSize = dexFile.readUshort(codeOffset + CodeItem.TRIES_SIZE_OFFSET);
         if (triesSize > 0) {
-            int instructionsSize = dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+            int instructionsSize = getInstructionsSize();
             final int triesStartOffset = AlignmentUtils.alignOffset(
                     codeOffset + CodeItem.INSTRUCTION_START_OFFSET + (instructionsSize*2), 4);
             final int handlersStartOffset = triesStartOffset + triesSize*CodeItem.TryItem.ITEM_SIZE;
@@ -39,10 +39,12 @@ import javax.annotation.Nonnull;
 
 public class DexBackedFieldReference extends BaseFieldReference {
     @Nonnull public final DexBackedDexFile dexFile;
+    public final int fieldIndex;
     public final int fieldIdItemOffset;
 
     public DexBackedFieldReference(@Nonnull DexBackedDexFile dexFile, int fieldIndex) {
         this.dexFile = dexFile;
+        this.fieldIndex = fieldIndex;
         this.fieldIdItemOffset = dexFile.getFieldIdItemOffset(fieldIndex);
     }
 
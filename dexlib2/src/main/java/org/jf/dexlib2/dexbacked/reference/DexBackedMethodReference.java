@@ -44,11 +44,13 @@ import java.util.List;
 
 public class DexBackedMethodReference extends BaseMethodReference {
     @Nonnull public final DexBackedDexFile dexFile;
+    public final int methodIndex;
     public final int methodIdItemOffset;
     private int protoIdItemOffset;
 
     public DexBackedMethodReference(@Nonnull DexBackedDexFile dexFile, int methodIndex) {
         this.dexFile = dexFile;
+        this.methodIndex = methodIndex;
         this.methodIdItemOffset = dexFile.getMethodIdItemOffset(methodIndex);
     }
 
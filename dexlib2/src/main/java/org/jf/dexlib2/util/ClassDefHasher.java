@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.util;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.jf.dexlib2.ValueType;
+import org.jf.dexlib2.iface.*;
+import org.jf.dexlib2.iface.debug.*;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.iface.instruction.formats.ArrayPayload;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.value.*;
+import org.jf.util.ExceptionWithContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+/**
+ * Computes a hash of the contents of a class, or of a single method.
+ *
+ * The hash is based on the resolved values of everything the class contains - strings, types and member references
+ * are hashed by value rather than by index - so it doesn't change when unrelated classes are added to or removed from
+ * the dex file. Two classes with the same hash will produce the same disassembly, as long as nothing outside of the
+ * class is consulted while disassembling it.
+ */
+public final class ClassDefHasher {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Nonnull private final Hasher hasher;
+
+    private ClassDefHasher() {
+        this.hasher = HASH_FUNCTION.newHasher();
+    }
+
+    @Nonnull
+    public static HashCode hashClass(@Nonnull ClassDef classDef) {
+        ClassDefHasher classDefHasher = new ClassDefHasher();
+        classDefHasher.putClass(classDef);
+        return classDefHasher.hasher.hash();
+    }
+
+    @Nonnull
+    public static HashCode hashMethod(@Nonnull Method method) {
+        ClassDefHasher classDefHasher = new ClassDefHasher();
+        classDefHasher.putMethod(method);
+        return classDefHasher.hasher.hash();
+    }
+
+    private void putClass(@Nonnull ClassDef classDef) {
+        putString(classDef.getType());
+        hasher.putInt(classDef.getAccessFlags());
+        putString(classDef.getSuperclass());
+        hasher.putInt(classDef.getInterfaces().size());
+        for (String iface: classDef.getInterfaces()) {
+            putString(iface);
+        }
+        putString(classDef.getSourceFile());
+        putAnnotations(classDef.getAnnotations());
+
+        for (Field field: classDef.getFields()) {
+            hasher.putByte((byte)'F');
+            putField(field);
+        }
+        for (Method method: classDef.getMethods()) {
+            hasher.putByte((byte)'M');
+            putMethod(method);
+        }
+        hasher.putByte((byte)'E');
+    }
+
+    private void putField(@Nonnull Field field) {
+        putString(field.getName());
+        putString(field.getType());
+        hasher.putInt(field.getAccessFlags());
+        EncodedValue initialValue = field.getInitialValue();
+        if (initialValue == null) {
+            hasher.putBoolean(false);
+        } else {
+            hasher.putBoolean(true);
+            putEncodedValue(initialValue);
+        }
+        putAnnotations(field.getAnnotations());
+    }
+
+    private void putMethod(@Nonnull Method method) {
+        putString(method.getName());
+        putString(method.getReturnType());
+        hasher.putInt(method.getAccessFlags());
+        Collection<? extends MethodParameter> parameters = method.getParameters();
+        hasher.putInt(parameters.size());
+        for (MethodParameter parameter: parameters) {
+            putString(parameter.getType());
+            putString(parameter.getName());
+            putString(parameter.getSignature());
+            putAnnotations(parameter.getAnnotations());
+        }
+        putAnnotations(method.getAnnotations());
+
+        MethodImplementation methodImpl = method.getImplementation();
+        if (methodImpl == null) {
+            hasher.putBoolean(false);
+            return;
+        }
+        hasher.putBoolean(true);
+        hasher.putInt(methodImpl.getRegisterCount());
+        for (Instruction instruction: methodImpl.getInstructions()) {
+            putInstruction(instruction);
+        }
+        hasher.putByte((byte)'T');
+        for (TryBlock<? extends ExceptionHandler> tryBlock: methodImpl.getTryBlocks()) {
+            hasher.putInt(tryBlock.getStartCodeAddress());
+            hasher.putInt(tryBlock.getCodeUnitCount());
+            hasher.putInt(tryBlock.getExceptionHandlers().size());
+            for (ExceptionHandler handler: tryBlock.getExceptionHandlers()) {
+                putString(handler.getExceptionType());
+                hasher.putInt(handler.getHandlerCodeAddress());
+            }
+        }
+        hasher.putByte((byte)'D');
+        for (DebugItem debugItem: methodImpl.getDebugItems()) {
+            putDebugItem(debugItem);
+        }
+        hasher.putByte((byte)'E');
+    }
+
+    private void putInstruction(@Nonnull Instruction instruction) {
+        hasher.putInt(instruction.getOpcode().ordinal());
+
+        if (instruction instanceof OneRegisterInstruction) {
+            hasher.putInt(((OneRegisterInstruction)instruction).getRegisterA());
+            if (instruction instanceof TwoRegisterInstruction) {
+                hasher.putInt(((TwoRegisterInstruction)instruction).getRegisterB());
+                if (instruction instanceof ThreeRegisterInstruction) {
+                    hasher.putInt(((ThreeRegisterInstruction)instruction).getRegisterC());
+                }
+            }
+        }
+        if (instruction instanceof FiveRegisterInstruction) {
+            FiveRegisterInstruction fiveRegisterInstruction = (FiveRegisterInstruction)instruction;
+            hasher.putInt(fiveRegisterInstruction.getRegisterCount());
+            hasher.putInt(fiveRegisterInstruction.getRegisterC());
+            hasher.putInt(fiveRegisterInstruction.getRegisterD());
+            hasher.putInt(fiveRegisterInstruction.getRegisterE());
+            hasher.putInt(fiveRegisterInstruction.getRegisterF());
+            hasher.putInt(fiveRegisterInstruction.getRegisterG());
+        }
+        if (instruction instanceof OneFixedFourParameterRegisterInstruction) {
+            OneFixedFourParameterRegisterInstruction lambdaInstruction =
+                    (OneFixedFourParameterRegisterInstruction)instruction;
+            hasher.putInt(lambdaInstruction.getRegisterCount());
+            hasher.putInt(lambdaInstruction.getRegisterFixedC());
+            hasher.putInt(lambdaInstruction.getRegisterParameterD());
+            hasher.putInt(lambdaInstruction.getRegisterParameterE());
+            hasher.putInt(lambdaInstruction.getRegisterParameterF());
+            hasher.putInt(lambdaInstruction.getRegisterParameterG());
+        }
+        if (instruction instanceof RegisterRangeInstruction) {
+            RegisterRangeInstruction rangeInstruction = (RegisterRangeInstruction)instruction;
+            hasher.putInt(rangeInstruction.getStartRegister());
+            hasher.putInt(rangeInstruction.getRegisterCount());
+        }
+        if (instruction instanceof ReferenceInstruction) {
+            putReference(((ReferenceInstruction)instruction).getReference());
+        }
+        if (instruction instanceof WideLiteralInstruction) {
+            hasher.putLong(((WideLiteralInstruction)instruction).getWideLiteral());
+        }
+        if (instruction instanceof OffsetInstruction) {
+            hasher.putInt(((OffsetInstruction)instruction).getCodeOffset());
+        }
+        if (instruction instanceof FieldOffsetInstruction) {
+            hasher.putInt(((FieldOffsetInstruction)instruction).getFieldOffset());
+        }
+        if (instruction instanceof InlineIndexInstruction) {
+            hasher.putInt(((InlineIndexInstruction)instruction).getInlineIndex());
+        }
+        if (instruction instanceof VtableIndexInstruction) {
+            hasher.putInt(((VtableIndexInstruction)instruction).getVtableIndex());
+        }
+        if (instruction instanceof VerificationErrorInstruction) {
+            hasher.putInt(((VerificationErrorInstruction)instruction).getVerificationError());
+        }
+        if (instruction instanceof SwitchPayload) {
+            Collection<? extends SwitchElement> switchElements = ((SwitchPayload)instruction).getSwitchElements();
+            hasher.putInt(switchElements.size());
+            for (SwitchElement switchElement: switchElements) {
+                hasher.putInt(switchElement.getKey());
+                hasher.putInt(switchElement.getOffset());
+            }
+        }
+        if (instruction instanceof ArrayPayload) {
+            ArrayPayload arrayPayload = (ArrayPayload)instruction;
+            hasher.putInt(arrayPayload.getElementWidth());
+            hasher.putInt(arrayPayload.getArrayElements().size());
+            for (Number element: arrayPayload.getArrayElements()) {
+                hasher.putLong(element.longValue());
+            }
+        }
+    }
+
+    private void putDebugItem(@Nonnull DebugItem debugItem) {
+        hasher.putInt(debugItem.getDebugItemType());
+        hasher.putInt(debugItem.getCodeAddress());
+        if (debugItem instanceof StartLocal) {
+            hasher.putInt(((StartLocal)debugItem).getRegister());
+        } else if (debugItem instanceof EndLocal) {
+            hasher.putInt(((EndLocal)debugItem).getRegister());
+        } else if (debugItem instanceof RestartLocal) {
+            hasher.putInt(((RestartLocal)debugItem).getRegister());
+        } else if (debugItem instanceof LineNumber) {
+            hasher.putInt(((LineNumber)debugItem).getLineNumber());
+        } else if (debugItem instanceof SetSourceFile) {
+            putString(((SetSourceFile)debugItem).getSourceFile());
+        }
+        if (debugItem instanceof LocalInfo) {
+            LocalInfo localInfo = (LocalInfo)debugItem;
+            putString(localInfo.getName());
+            putString(localInfo.getType());
+            putString(localInfo.getSignature());
+        }
+    }
+
+    private void putAnnotations(@Nonnull Collection<? extends Annotation> annotations) {
+        hasher.putInt(annotations.size());
+        for (Annotation annotation: annotations) {
+            hasher.putInt(annotation.getVisibility());
+            putAnnotation(annotation.getType(), annotation.getElements());
+        }
+    }
+
+    private void putAnnotation(@Nonnull String type, @Nonnull Collection<? extends AnnotationElement> elements) {
+        putString(type);
+        hasher.putInt(elements.size());
+        for (AnnotationElement element: elements) {
+            putString(element.getName());
+            putEncodedValue(element.getValue());
+        }
+    }
+
+    private void putEncodedValue(@Nonnull EncodedValue encodedValue) {
+        int valueType = encodedValue.getValueType();
+        hasher.putInt(valueType);
+        switch (valueType) {
+            case ValueType.BYTE:
+                hasher.putByte(((ByteEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.SHORT:
+                hasher.putShort(((ShortEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.CHAR:
+                hasher.putChar(((CharEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.INT:
+                hasher.putInt(((IntEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.LONG:
+                hasher.putLong(((LongEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.FLOAT:
+                hasher.putFloat(((FloatEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.DOUBLE:
+                hasher.putDouble(((DoubleEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.STRING:
+                putString(((StringEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.TYPE:
+                putString(((TypeEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.FIELD:
+                putReference(((FieldEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.METHOD:
+                putReference(((MethodEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.ENUM:
+                putReference(((EnumEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.ARRAY:
+                Collection<? extends EncodedValue> values = ((ArrayEncodedValue)encodedValue).getValue();
+                hasher.putInt(values.size());
+                for (EncodedValue value: values) {
+                    putEncodedValue(value);
+                }
+                break;
+            case ValueType.ANNOTATION:
+                AnnotationEncodedValue annotationValue = (AnnotationEncodedValue)encodedValue;
+                putAnnotation(annotationValue.getType(), annotationValue.getElements());
+                break;
+            case ValueType.NULL:
+                break;
+            case ValueType.BOOLEAN:
+                hasher.putBoolean(((BooleanEncodedValue)encodedValue).getValue());
+                break;
+            default:
+                throw new ExceptionWithContext("Invalid encoded value type: %d", valueType);
+        }
+    }
+
+    private void putReference(@Nonnull Reference reference) {
+        // member references are always rendered in their explicit form, so the defining class is included
+        putString(ReferenceUtil.getReferenceString(reference));
+    }
+
+    private void putString(@Nullable String string) {
+        if (string == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(string.length());
+            hasher.putString(string, UTF8);
+        }
+    }
+}
@@ -36,6 +36,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.analysis.ClassProvider;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.Method;
 import org.jf.dexlib2.iface.MethodImplementation;
@@ -70,18 +71,34 @@ public class SyntheticAccessorResolver {
     public static final int USHR_ASSIGNMENT = 17;
 
     private final SyntheticAccessorFSM syntheticAccessorFSM;
-    private final Map<String, ClassDef> classDefMap;
+    private final ClassProvider classProvider;
     private final Map<String, AccessedMember> resolvedAccessors = Maps.newConcurrentMap();
 
     public SyntheticAccessorResolver(@Nonnull Opcodes opcodes, @Nonnull Iterable<? extends ClassDef> classDefs) {
-        this.syntheticAccessorFSM = new SyntheticAccessorFSM(opcodes);
         ImmutableMap.Builder<String, ClassDef> builder = ImmutableMap.builder();
 
         for (ClassDef classDef: classDefs) {
             builder.put(classDef.getType(), classDef);
         }
 
-        this.classDefMap = builder.build();
+        final ImmutableMap<String, ClassDef> classDefMap = builder.build();
+        this.syntheticAccessorFSM = new SyntheticAccessorFSM(opcodes);
+        this.classProvider = new ClassProvider() {
+            @Nullable @Override public ClassDef getClassDef(String type) {
+                return classDefMap.get(type);
+            }
+        };
+    }
+
+    /**
+     * Creates a SyntheticAccessorResolver that looks up the classes containing accessor methods as they are needed.
+     *
+     * @param opcodes The opcodes of the dex file containing the accessors
+     * @param classProvider A thread-safe provider for the classes that might contain the accessor methods
+     */
+    public SyntheticAccessorResolver(@Nonnull Opcodes opcodes, @Nonnull ClassProvider classProvider) {
+        this.syntheticAccessorFSM = new SyntheticAccessorFSM(opcodes);
+        this.classProvider = classProvider;
     }
 
     public static boolean looksLikeSyntheticAccessor(String methodName) {
@@ -98,7 +115,7 @@ public class SyntheticAccessorResolver {
         }
 
         String type = methodReference.getDefiningClass();
-        ClassDef classDef = classDefMap.get(type);
+        ClassDef classDef = classProvider.getClassDef(type);
         if (classDef == null) {
             return null;
         }
@@ -80,6 +80,7 @@ public interface ClassSection<StringKey extends CharSequence, TypeKey extends Ch
     @Nonnull List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks(@Nonnull MethodKey key);
     @Nullable TypeKey getExceptionType(@Nonnull ExceptionHandler handler);
     @Nonnull MutableMethodImplementation makeMutableMethodImplementation(@Nonnull MethodKey key);
+    @Nullable EncodedMethodImplementation getEncodedImplementation(@Nonnull MethodKey key);
 
     void setEncodedArrayOffset(@Nonnull ClassKey key, int offset);
     int getEncodedArrayOffset(@Nonnull ClassKey key);
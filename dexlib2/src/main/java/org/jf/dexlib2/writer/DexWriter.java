@@ -36,6 +36,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Format;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ReferenceType;
@@ -52,7 +53,6 @@ import org.jf.dexlib2.iface.debug.LineNumber;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
 import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
-import org.jf.dexlib2.iface.instruction.formats.*;
 import org.jf.dexlib2.iface.reference.FieldReference;
 import org.jf.dexlib2.iface.reference.MethodReference;
 import org.jf.dexlib2.iface.reference.StringReference;
@@ -772,9 +772,22 @@ public abstract class DexWriter<
             for (MethodKey methodKey: methods) {
                 List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks =
                         classSection.getTryBlocks(methodKey);
-                Iterable<? extends Instruction> instructions = classSection.getInstructions(methodKey);
                 Iterable<? extends DebugItem> debugItems = classSection.getDebugItems(methodKey);
 
+                // an encoded implementation is written as is, without decoding its instructions, unless it was
+                // encoded with different opcodes, or has a const-string that needs to be converted to
+                // const-string/jumbo
+                EncodedMethodImplementation encodedImplementation = classSection.getEncodedImplementation(methodKey);
+                if (encodedImplementation != null && (encodedImplementation.opcodes != opcodes ||
+                        hasJumboStringReference(encodedImplementation))) {
+                    encodedImplementation = null;
+                }
+
+                Iterable<? extends Instruction> instructions = null;
+                if (encodedImplementation == null) {
+                    instructions = classSection.getInstructions(methodKey);
+                }
+
                 if (instructions != null && stringSection.hasJumboIndexes()) {
                     boolean needsFix = false;
                     for (Instruction instruction: instructions) {
@@ -800,7 +813,8 @@ public abstract class DexWriter<
 
                 int debugItemOffset = writeDebugItem(offsetWriter, debugWriter,
                         classSection.getParameterNames(methodKey), debugItems);
-                int codeItemOffset = writeCodeItem(codeWriter, ehBuf, methodKey, tryBlocks, instructions, debugItemOffset);
+                int codeItemOffset = writeCodeItem(codeWriter, ehBuf, methodKey, tryBlocks, instructions,
+                        encodedImplementation, debugItemOffset);
 
                 if (codeItemOffset != -1) {
                     codeOffsets.add(new CodeItemOffset<MethodKey>(methodKey, codeItemOffset));
@@ -837,6 +851,21 @@ public abstract class DexWriter<
         }
     }
 
+    private boolean hasJumboStringReference(@Nonnull EncodedMethodImplementation encodedImplementation) {
+        if (!stringSection.hasJumboIndexes()) {
+            return false;
+        }
+        for (int i=0; i<encodedImplementation.references.length; i++) {
+            int offset = encodedImplementation.referenceOffsets[i];
+            Opcode opcode = opcodes.getOpcodeByValue(encodedImplementation.code[offset] & 0xff);
+            if (opcode == Opcode.CONST_STRING &&
+                    stringSection.getItemIndex((StringRef)encodedImplementation.references[i]) >= 65536) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private int writeDebugItem(@Nonnull DexDataWriter writer,
                                @Nonnull DebugWriter<StringKey, TypeKey> debugWriter,
                                @Nullable Iterable<? extends StringKey> parameterNames,
@@ -904,8 +933,9 @@ public abstract class DexWriter<
                               @Nonnull MethodKey methodKey,
                               @Nonnull List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks,
                               @Nullable Iterable<? extends Instruction> instructions,
+                              @Nullable EncodedMethodImplementation encodedImplementation,
                               int debugItemOffset) throws IOException {
-        if (instructions == null && debugItemOffset == NO_OFFSET) {
+        if (instructions == null && encodedImplementation == null && debugItemOffset == NO_OFFSET) {
             return -1;
         }
 
@@ -923,19 +953,24 @@ public abstract class DexWriter<
 
         writer.writeUshort(MethodUtil.getParameterRegisterCount(parameters, isStatic));
 
-        if (instructions != null) {
+        if (instructions != null || encodedImplementation != null) {
             tryBlocks = TryListBuilder.massageTryBlocks(tryBlocks);
 
             int outParamCount = 0;
             int codeUnitCount = 0;
-            for (Instruction instruction: instructions) {
-                codeUnitCount += instruction.getCodeUnits();
-                if (instruction.getOpcode().referenceType == ReferenceType.METHOD) {
-                    ReferenceInstruction refInsn = (ReferenceInstruction)instruction;
-                    MethodReference methodRef = (MethodReference)refInsn.getReference();
-                    int paramCount = MethodUtil.getParameterRegisterCount(methodRef, InstructionUtil.isInvokeStatic(instruction.getOpcode()));
-                    if (paramCount > outParamCount) {
-                        outParamCount = paramCount;
+            if (encodedImplementation != null) {
+                codeUnitCount = encodedImplementation.code.length / 2;
+                outParamCount = encodedImplementation.outParamCount;
+            } else {
+                for (Instruction instruction: instructions) {
+                    codeUnitCount += instruction.getCodeUnits();
+                    if (instruction.getOpcode().referenceType == ReferenceType.METHOD) {
+                        ReferenceInstruction refInsn = (ReferenceInstruction)instruction;
+                        MethodReference methodRef = (MethodReference)refInsn.getReference();
+                        int paramCount = MethodUtil.getParameterRegisterCount(methodRef, InstructionUtil.isInvokeStatic(instruction.getOpcode()));
+                        if (paramCount > outParamCount) {
+                            outParamCount = paramCount;
+                        }
                     }
                 }
             }
@@ -944,106 +979,17 @@ public abstract class DexWriter<
             writer.writeUshort(tryBlocks.size());
             writer.writeInt(debugItemOffset);
 
+            writer.writeInt(codeUnitCount);
+
             InstructionWriter instructionWriter =
                     InstructionWriter.makeInstructionWriter(opcodes, writer, stringSection, typeSection, fieldSection,
                             methodSection);
 
-            writer.writeInt(codeUnitCount);
-            for (Instruction instruction: instructions) {
-                switch (instruction.getOpcode().format) {
-                    case Format10t:
-                        instructionWriter.write((Instruction10t)instruction);
-                        break;
-                    case Format10x:
-                        instructionWriter.write((Instruction10x)instruction);
-                        break;
-                    case Format11n:
-                        instructionWriter.write((Instruction11n)instruction);
-                        break;
-                    case Format11x:
-                        instructionWriter.write((Instruction11x)instruction);
-                        break;
-                    case Format12x:
-                        instructionWriter.write((Instruction12x)instruction);
-                        break;
-                    case Format20bc:
-                        instructionWriter.write((Instruction20bc)instruction);
-                        break;
-                    case Format20t:
-                        instructionWriter.write((Instruction20t)instruction);
-                        break;
-                    case Format21c:
-                        instructionWriter.write((Instruction21c)instruction);
-                        break;
-                    case Format21ih:
-                        instructionWriter.write((Instruction21ih)instruction);
-                        break;
-                    case Format21lh:
-                        instructionWriter.write((Instruction21lh)instruction);
-                        break;
-                    case Format21s:
-                        instructionWriter.write((Instruction21s)instruction);
-                        break;
-                    case Format21t:
-                        instructionWriter.write((Instruction21t)instruction);
-                        break;
-                    case Format22b:
-                        instructionWriter.write((Instruction22b)instruction);
-                        break;
-                    case Format22c:
-                        instructionWriter.write((Instruction22c)instruction);
-                        break;
-                    case Format22s:
-                        instructionWriter.write((Instruction22s)instruction);
-                        break;
-                    case Format22t:
-                        instructionWriter.write((Instruction22t)instruction);
-                        break;
-                    case Format22x:
-                        instructionWriter.write((Instruction22x)instruction);
-                        break;
-                    case Format23x:
-                        instructionWriter.write((Instruction23x)instruction);
-                        break;
-                    case Format25x:
-                        instructionWriter.write((Instruction25x)instruction);
-                        break;
-                    case Format30t:
-                        instructionWriter.write((Instruction30t)instruction);
-                        break;
-                    case Format31c:
-                        instructionWriter.write((Instruction31c)instruction);
-                        break;
-                    case Format31i:
-                        instructionWriter.write((Instruction31i)instruction);
-                        break;
-                    case Format31t:
-                        instructionWriter.write((Instruction31t)instruction);
-                        break;
-                    case Format32x:
-                        instructionWriter.write((Instruction32x)instruction);
-                        break;
-                    case Format35c:
-                        instructionWriter.write((Instruction35c)instruction);
-                        break;
-                    case Format3rc:
-                        instructionWriter.write((Instruction3rc)instruction);
-                        break;
-                    case Format51l:
-                        instructionWriter.write((Instruction51l)instruction);
-                        break;
-                    case ArrayPayload:
-                        instructionWriter.write((ArrayPayload)instruction);
-                        break;
-                    case PackedSwitchPayload:
-                        instructionWriter.write((PackedSwitchPayload)instruction);
-                        break;
-                    case SparseSwitchPayload:
-                        instructionWriter.write((SparseSwitchPayload)instruction);
-                        break;
-                    default:
-                        throw new ExceptionWithContext("Unsupported instruction format: %s",
-                                instruction.getOpcode().format);
+            if (encodedImplementation != null) {
+                writeEncodedInstructions(writer, instructionWriter, encodedImplementation);
+            } else {
+                for (Instruction instruction: instructions) {
+                    instructionWriter.write(instruction);
                 }
             }
 
@@ -1122,6 +1068,31 @@ public abstract class DexWriter<
         return codeItemOffset;
     }
 
+    private void writeEncodedInstructions(@Nonnull DexDataWriter writer,
+                                          @Nonnull InstructionWriter instructionWriter,
+                                          @Nonnull EncodedMethodImplementation encodedImplementation)
+            throws IOException {
+        byte[] code = encodedImplementation.code;
+        int offset = 0;
+        for (int i=0; i<encodedImplementation.references.length; i++) {
+            // the reference index immediately follows the first code unit of each instruction that has one
+            int referenceOffset = encodedImplementation.referenceOffsets[i] + 2;
+            writer.write(code, offset, referenceOffset - offset);
+
+            Opcode opcode = opcodes.getOpcodeByValue(code[encodedImplementation.referenceOffsets[i]] & 0xff);
+            int referenceIndex = instructionWriter.getReferenceIndex(opcode.referenceType,
+                    encodedImplementation.references[i]);
+            if (opcode.format == Format.Format31c) {
+                writer.writeInt(referenceIndex);
+                offset = referenceOffset + 4;
+            } else {
+                writer.writeUshort(referenceIndex);
+                offset = referenceOffset + 2;
+            }
+        }
+        writer.write(code, offset, code.length - offset);
+    }
+
     private int calcNumItems() {
         int numItems = 0;
 
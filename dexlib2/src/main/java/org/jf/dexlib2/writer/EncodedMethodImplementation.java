@@ -0,0 +1,586 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.DebugItemType;
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.base.BaseExceptionHandler;
+import org.jf.dexlib2.base.BaseTryBlock;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.dexbacked.BaseDexBuffer;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.debug.*;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.immutable.debug.*;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.util.InstructionUtil;
+import org.jf.dexlib2.util.MethodUtil;
+import org.jf.util.NibbleUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A method implementation that is held in the form it will be written in, rather than as instruction objects.
+ *
+ * The instructions are stored as their encoded code units, with the index of each reference left as 0 until the
+ * DexWriter fills it in, once the items in each section have been assigned their indexes. The references themselves
+ * are kept in a separate table, in the order that they occur in the instructions. The try blocks and debug items are
+ * packed into int arrays in a similar manner.
+ *
+ * This is considerably smaller than the objects it is encoded from, which matters when a large number of methods
+ * have to be kept in memory until the dex file is written. The instructions, try blocks and debug items are decoded
+ * again each time they are requested.
+ */
+public class EncodedMethodImplementation implements MethodImplementation {
+    @Nonnull final Opcodes opcodes;
+    private final int registerCount;
+
+    // the encoded instructions. The reference index in each instruction that has a reference is 0
+    @Nonnull final byte[] code;
+    @Nonnull final Reference[] references;
+    // the byte offset of the instruction that each reference belongs to
+    @Nonnull final int[] referenceOffsets;
+    final int outParamCount;
+
+    // start address, code unit count and handler count for each try block, followed by the handler addresses
+    @Nonnull private final int[] tryBlocks;
+    // the exception type of each handler, or null for a catch-all handler
+    @Nonnull private final TypeReference[] handlerTypes;
+
+    // type, code address and either the register or line number for each debug item
+    @Nonnull private final int[] debugItems;
+    // the name, type and signature of each start local, and the source file of each set source file
+    @Nonnull private final Reference[] debugReferences;
+
+    private EncodedMethodImplementation(@Nonnull Opcodes opcodes, int registerCount, @Nonnull byte[] code,
+                                        @Nonnull Reference[] references, @Nonnull int[] referenceOffsets,
+                                        int outParamCount, @Nonnull int[] tryBlocks,
+                                        @Nonnull TypeReference[] handlerTypes, @Nonnull int[] debugItems,
+                                        @Nonnull Reference[] debugReferences) {
+        this.opcodes = opcodes;
+        this.registerCount = registerCount;
+        this.code = code;
+        this.references = references;
+        this.referenceOffsets = referenceOffsets;
+        this.outParamCount = outParamCount;
+        this.tryBlocks = tryBlocks;
+        this.handlerTypes = handlerTypes;
+        this.debugItems = debugItems;
+        this.debugReferences = debugReferences;
+    }
+
+    /**
+     * Encodes the given method implementation.
+     *
+     * @param opcodes The Opcodes to encode the instructions with. This should be the Opcodes of the DexWriter that
+     *                the implementation will be written with.
+     * @param methodImplementation The method implementation to encode
+     * @return The encoded method implementation, or null if it contains an instruction that can't be encoded, e.g. an
+     * odex instruction, or an instruction that isn't valid for the given Opcodes.
+     */
+    @Nullable
+    public static EncodedMethodImplementation encode(@Nonnull Opcodes opcodes,
+                                                     @Nonnull MethodImplementation methodImplementation) {
+        Iterable<? extends Instruction> instructions = methodImplementation.getInstructions();
+
+        int codeUnitCount = 0;
+        int referenceCount = 0;
+        for (Instruction instruction: instructions) {
+            codeUnitCount += instruction.getCodeUnits();
+            if (instruction instanceof ReferenceInstruction) {
+                referenceCount++;
+            }
+        }
+
+        ByteArrayOutputStream codeStream = new ByteArrayOutputStream(codeUnitCount * 2);
+        DexDataWriter writer = new DexDataWriter(codeStream, 0, Math.max(codeUnitCount * 2, 1));
+        InstructionWriter<StringReference, TypeReference, FieldReference, MethodReference> instructionWriter =
+                new InstructionWriter<StringReference, TypeReference, FieldReference, MethodReference>(
+                        opcodes, writer) {
+                    @Override int getReferenceIndex(int referenceType, @Nonnull Reference reference) {
+                        // filled in by DexWriter, once the items have been assigned their indexes
+                        return 0;
+                    }
+                };
+
+        Reference[] references = new Reference[referenceCount];
+        int[] referenceOffsets = new int[referenceCount];
+        int referenceIndex = 0;
+        int outParamCount = 0;
+
+        int offset = 0;
+        for (Instruction instruction: instructions) {
+            Opcode opcode = instruction.getOpcode();
+            if (!canEncode(opcode.format)) {
+                return null;
+            }
+            // the opcode has to decode to the same opcode again
+            Short opcodeValue = opcodes.getOpcodeValue(opcode);
+            if (opcodeValue == null || opcodes.getOpcodeByValue(opcodeValue) != opcode) {
+                return null;
+            }
+            instructionWriter.write(instruction);
+
+            if (instruction instanceof ReferenceInstruction) {
+                Reference reference = ((ReferenceInstruction)instruction).getReference();
+                if (opcode.referenceType == ReferenceType.METHOD) {
+                    int paramCount = MethodUtil.getParameterRegisterCount((MethodReference)reference,
+                            InstructionUtil.isInvokeStatic(opcode));
+                    if (paramCount > outParamCount) {
+                        outParamCount = paramCount;
+                    }
+                }
+                references[referenceIndex] = reference;
+                referenceOffsets[referenceIndex] = offset;
+                referenceIndex++;
+            }
+
+            offset += instruction.getCodeUnits() * 2;
+        }
+
+        try {
+            writer.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        byte[] code = codeStream.toByteArray();
+        if (code.length != offset) {
+            // e.g. an array payload with an invalid element width, which InstructionWriter doesn't write any
+            // elements for
+            return null;
+        }
+
+        List<? extends TryBlock<? extends ExceptionHandler>> tryBlockList = methodImplementation.getTryBlocks();
+        int tryBlockSize = 0;
+        int handlerCount = 0;
+        for (TryBlock<? extends ExceptionHandler> tryBlock: tryBlockList) {
+            tryBlockSize += 3 + tryBlock.getExceptionHandlers().size();
+            handlerCount += tryBlock.getExceptionHandlers().size();
+        }
+
+        int[] tryBlocks = new int[tryBlockSize];
+        TypeReference[] handlerTypes = new TypeReference[handlerCount];
+        int tryBlockIndex = 0;
+        int handlerIndex = 0;
+        for (TryBlock<? extends ExceptionHandler> tryBlock: tryBlockList) {
+            List<? extends ExceptionHandler> exceptionHandlers = tryBlock.getExceptionHandlers();
+            tryBlocks[tryBlockIndex++] = tryBlock.getStartCodeAddress();
+            tryBlocks[tryBlockIndex++] = tryBlock.getCodeUnitCount();
+            tryBlocks[tryBlockIndex++] = exceptionHandlers.size();
+            for (ExceptionHandler exceptionHandler: exceptionHandlers) {
+                tryBlocks[tryBlockIndex++] = exceptionHandler.getHandlerCodeAddress();
+                handlerTypes[handlerIndex++] = exceptionHandler.getExceptionTypeReference();
+            }
+        }
+
+        List<DebugItem> debugItemList = ImmutableList.copyOf(methodImplementation.getDebugItems());
+        int[] debugItems = new int[debugItemList.size() * 3];
+        List<Reference> debugReferences = Lists.newArrayList();
+        int debugItemIndex = 0;
+        for (DebugItem debugItem: debugItemList) {
+            int value = 0;
+            switch (debugItem.getDebugItemType()) {
+                case DebugItemType.START_LOCAL: {
+                    StartLocal startLocal = (StartLocal)debugItem;
+                    value = startLocal.getRegister();
+                    debugReferences.add(startLocal.getNameReference());
+                    debugReferences.add(startLocal.getTypeReference());
+                    debugReferences.add(startLocal.getSignatureReference());
+                    break;
+                }
+                case DebugItemType.END_LOCAL:
+                    value = ((EndLocal)debugItem).getRegister();
+                    break;
+                case DebugItemType.RESTART_LOCAL:
+                    value = ((RestartLocal)debugItem).getRegister();
+                    break;
+                case DebugItemType.PROLOGUE_END:
+                case DebugItemType.EPILOGUE_BEGIN:
+                    break;
+                case DebugItemType.LINE_NUMBER:
+                    value = ((LineNumber)debugItem).getLineNumber();
+                    break;
+                case DebugItemType.SET_SOURCE_FILE:
+                    debugReferences.add(((SetSourceFile)debugItem).getSourceFileReference());
+                    break;
+                default:
+                    return null;
+            }
+            debugItems[debugItemIndex++] = debugItem.getDebugItemType();
+            debugItems[debugItemIndex++] = debugItem.getCodeAddress();
+            debugItems[debugItemIndex++] = value;
+        }
+
+        return new EncodedMethodImplementation(opcodes, methodImplementation.getRegisterCount(), code, references,
+                referenceOffsets, outParamCount, tryBlocks, handlerTypes, debugItems,
+                debugReferences.toArray(new Reference[debugReferences.size()]));
+    }
+
+    @Override public int getRegisterCount() {
+        return registerCount;
+    }
+
+    @Nonnull @Override public List<? extends Instruction> getInstructions() {
+        BaseDexBuffer buffer = new BaseDexBuffer(code);
+        ImmutableList.Builder<Instruction> instructions = ImmutableList.builder();
+
+        int referenceIndex = 0;
+        int offset = 0;
+        while (offset < code.length) {
+            int opcodeValue = buffer.readUbyte(offset);
+            if (opcodeValue == 0) {
+                opcodeValue = buffer.readUshort(offset);
+            }
+            Opcode opcode = opcodes.getOpcodeByValue(opcodeValue);
+
+            Reference reference = null;
+            if (referenceIndex < references.length && referenceOffsets[referenceIndex] == offset) {
+                reference = references[referenceIndex++];
+            }
+
+            Instruction instruction = decodeInstruction(buffer, offset, opcode, reference);
+            instructions.add(instruction);
+            offset += instruction.getCodeUnits() * 2;
+        }
+        return instructions.build();
+    }
+
+    @Nonnull @Override public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks() {
+        ImmutableList.Builder<TryBlock<ExceptionHandler>> tryBlockList = ImmutableList.builder();
+
+        int handlerIndex = 0;
+        int tryBlockIndex = 0;
+        while (tryBlockIndex < tryBlocks.length) {
+            final int startCodeAddress = tryBlocks[tryBlockIndex++];
+            final int codeUnitCount = tryBlocks[tryBlockIndex++];
+            int handlerCount = tryBlocks[tryBlockIndex++];
+
+            ImmutableList.Builder<ExceptionHandler> handlerList = ImmutableList.builder();
+            for (int i=0; i<handlerCount; i++) {
+                handlerList.add(makeExceptionHandler(handlerTypes[handlerIndex++], tryBlocks[tryBlockIndex++]));
+            }
+            final List<ExceptionHandler> exceptionHandlers = handlerList.build();
+
+            tryBlockList.add(new BaseTryBlock<ExceptionHandler>() {
+                @Override public int getStartCodeAddress() {
+                    return startCodeAddress;
+                }
+
+                @Override public int getCodeUnitCount() {
+                    return codeUnitCount;
+                }
+
+                @Nonnull @Override public List<? extends ExceptionHandler> getExceptionHandlers() {
+                    return exceptionHandlers;
+                }
+            });
+        }
+        return tryBlockList.build();
+    }
+
+    @Nonnull @Override public List<? extends DebugItem> getDebugItems() {
+        ImmutableList.Builder<DebugItem> debugItemList = ImmutableList.builder();
+
+        int referenceIndex = 0;
+        for (int i=0; i<debugItems.length; i+=3) {
+            int codeAddress = debugItems[i+1];
+            int value = debugItems[i+2];
+            switch (debugItems[i]) {
+                case DebugItemType.START_LOCAL:
+                    debugItemList.add(makeStartLocal(codeAddress, value,
+                            (StringReference)debugReferences[referenceIndex],
+                            (TypeReference)debugReferences[referenceIndex+1],
+                            (StringReference)debugReferences[referenceIndex+2]));
+                    referenceIndex += 3;
+                    break;
+                case DebugItemType.END_LOCAL:
+                    debugItemList.add(new ImmutableEndLocal(codeAddress, value));
+                    break;
+                case DebugItemType.RESTART_LOCAL:
+                    debugItemList.add(new ImmutableRestartLocal(codeAddress, value));
+                    break;
+                case DebugItemType.PROLOGUE_END:
+                    debugItemList.add(new ImmutablePrologueEnd(codeAddress));
+                    break;
+                case DebugItemType.EPILOGUE_BEGIN:
+                    debugItemList.add(new ImmutableEpilogueBegin(codeAddress));
+                    break;
+                case DebugItemType.LINE_NUMBER:
+                    debugItemList.add(new ImmutableLineNumber(codeAddress, value));
+                    break;
+                case DebugItemType.SET_SOURCE_FILE:
+                    debugItemList.add(makeSetSourceFile(codeAddress,
+                            (StringReference)debugReferences[referenceIndex++]));
+                    break;
+            }
+        }
+        return debugItemList.build();
+    }
+
+    @Nonnull private static ExceptionHandler makeExceptionHandler(@Nullable final TypeReference exceptionType,
+                                                                  final int handlerCodeAddress) {
+        return new BaseExceptionHandler() {
+            @Nullable @Override public String getExceptionType() {
+                return exceptionType == null ? null : exceptionType.getType();
+            }
+
+            @Nullable @Override public TypeReference getExceptionTypeReference() {
+                return exceptionType;
+            }
+
+            @Override public int getHandlerCodeAddress() {
+                return handlerCodeAddress;
+            }
+        };
+    }
+
+    @Nonnull private static StartLocal makeStartLocal(int codeAddress, int register,
+                                                      @Nullable final StringReference nameReference,
+                                                      @Nullable final TypeReference typeReference,
+                                                      @Nullable final StringReference signatureReference) {
+        return new ImmutableStartLocal(codeAddress, register,
+                nameReference == null ? null : nameReference.getString(),
+                typeReference == null ? null : typeReference.getType(),
+                signatureReference == null ? null : signatureReference.getString()) {
+            @Nullable @Override public StringReference getNameReference() {
+                return nameReference;
+            }
+
+            @Nullable @Override public TypeReference getTypeReference() {
+                return typeReference;
+            }
+
+            @Nullable @Override public StringReference getSignatureReference() {
+                return signatureReference;
+            }
+        };
+    }
+
+    @Nonnull private static SetSourceFile makeSetSourceFile(int codeAddress,
+                                                            @Nullable final StringReference sourceFileReference) {
+        return new ImmutableSetSourceFile(codeAddress,
+                sourceFileReference == null ? null : sourceFileReference.getString()) {
+            @Nullable @Override public StringReference getSourceFileReference() {
+                return sourceFileReference;
+            }
+        };
+    }
+
+    /**
+     * @return true if instructions of the given format can be encoded, or false if it's a format that isn't
+     * decoded again, i.e. one that is only used in odex files
+     */
+    private static boolean canEncode(@Nonnull Format format) {
+        switch (format) {
+            case Format20bc:
+            case Format22cs:
+            case Format35mi:
+            case Format35ms:
+            case Format3rmi:
+            case Format3rms:
+            case UnresolvedOdexInstruction:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    @Nonnull private Instruction decodeInstruction(@Nonnull BaseDexBuffer buffer, int offset, @Nonnull Opcode opcode,
+                                                   @Nullable Reference reference) {
+        // instructions with a reference are decoded to builder instructions, which keep the original reference
+        // object rather than converting it to an immutable reference
+        switch (opcode.format) {
+            case Format10t:
+                return new ImmutableInstruction10t(opcode, buffer.readByte(offset+1));
+            case Format10x:
+                return new ImmutableInstruction10x(opcode);
+            case Format11n: {
+                int b = buffer.readUbyte(offset+1);
+                return new ImmutableInstruction11n(opcode, NibbleUtils.extractLowUnsignedNibble(b),
+                        NibbleUtils.extractHighSignedNibble(b));
+            }
+            case Format11x:
+                return new ImmutableInstruction11x(opcode, buffer.readUbyte(offset+1));
+            case Format12x: {
+                int b = buffer.readUbyte(offset+1);
+                return new ImmutableInstruction12x(opcode, NibbleUtils.extractLowUnsignedNibble(b),
+                        NibbleUtils.extractHighUnsignedNibble(b));
+            }
+            case Format20t:
+                return new ImmutableInstruction20t(opcode, buffer.readShort(offset+2));
+            case Format21c:
+                return new BuilderInstruction21c(opcode, buffer.readUbyte(offset+1), checkReference(reference));
+            case Format21ih:
+                return new ImmutableInstruction21ih(opcode, buffer.readUbyte(offset+1),
+                        buffer.readShort(offset+2) << 16);
+            case Format21lh:
+                return new ImmutableInstruction21lh(opcode, buffer.readUbyte(offset+1),
+                        ((long)buffer.readShort(offset+2)) << 48);
+            case Format21s:
+                return new ImmutableInstruction21s(opcode, buffer.readUbyte(offset+1), buffer.readShort(offset+2));
+            case Format21t:
+                return new ImmutableInstruction21t(opcode, buffer.readUbyte(offset+1), buffer.readShort(offset+2));
+            case Format22b:
+                return new ImmutableInstruction22b(opcode, buffer.readUbyte(offset+1), buffer.readUbyte(offset+2),
+                        buffer.readByte(offset+3));
+            case Format22c: {
+                int b = buffer.readUbyte(offset+1);
+                return new BuilderInstruction22c(opcode, NibbleUtils.extractLowUnsignedNibble(b),
+                        NibbleUtils.extractHighUnsignedNibble(b), checkReference(reference));
+            }
+            case Format22s: {
+                int b = buffer.readUbyte(offset+1);
+                return new ImmutableInstruction22s(opcode, NibbleUtils.extractLowUnsignedNibble(b),
+                        NibbleUtils.extractHighUnsignedNibble(b), buffer.readShort(offset+2));
+            }
+            case Format22t: {
+                int b = buffer.readUbyte(offset+1);
+                return new ImmutableInstruction22t(opcode, NibbleUtils.extractLowUnsignedNibble(b),
+                        NibbleUtils.extractHighUnsignedNibble(b), buffer.readShort(offset+2));
+            }
+            case Format22x:
+                return new ImmutableInstruction22x(opcode, buffer.readUbyte(offset+1), buffer.readUshort(offset+2));
+            case Format23x:
+                return new ImmutableInstruction23x(opcode, buffer.readUbyte(offset+1), buffer.readUbyte(offset+2),
+                        buffer.readUbyte(offset+3));
+            case Format25x: {
+                int b1 = buffer.readUbyte(offset+1);
+                int b2 = buffer.readUbyte(offset+2);
+                int b3 = buffer.readUbyte(offset+3);
+                return new ImmutableInstruction25x(opcode, NibbleUtils.extractHighUnsignedNibble(b1),
+                        NibbleUtils.extractLowUnsignedNibble(b2), NibbleUtils.extractHighUnsignedNibble(b2),
+                        NibbleUtils.extractLowUnsignedNibble(b3), NibbleUtils.extractHighUnsignedNibble(b3),
+                        NibbleUtils.extractLowUnsignedNibble(b1));
+            }
+            case Format30t:
+                return new ImmutableInstruction30t(opcode, buffer.readInt(offset+2));
+            case Format31c:
+                return new BuilderInstruction31c(opcode, buffer.readUbyte(offset+1), checkReference(reference));
+            case Format31i:
+                return new ImmutableInstruction31i(opcode, buffer.readUbyte(offset+1), buffer.readInt(offset+2));
+            case Format31t:
+                return new ImmutableInstruction31t(opcode, buffer.readUbyte(offset+1), buffer.readInt(offset+2));
+            case Format32x:
+                return new ImmutableInstruction32x(opcode, buffer.readUshort(offset+2), buffer.readUshort(offset+4));
+            case Format35c: {
+                int b1 = buffer.readUbyte(offset+1);
+                int b4 = buffer.readUbyte(offset+4);
+                int b5 = buffer.readUbyte(offset+5);
+                return new BuilderInstruction35c(opcode, NibbleUtils.extractHighUnsignedNibble(b1),
+                        NibbleUtils.extractLowUnsignedNibble(b4), NibbleUtils.extractHighUnsignedNibble(b4),
+                        NibbleUtils.extractLowUnsignedNibble(b5), NibbleUtils.extractHighUnsignedNibble(b5),
+                        NibbleUtils.extractLowUnsignedNibble(b1), checkReference(reference));
+            }
+            case Format3rc:
+                return new BuilderInstruction3rc(opcode, buffer.readUshort(offset+4), buffer.readUbyte(offset+1),
+                        checkReference(reference));
+            case Format51l:
+                return new ImmutableInstruction51l(opcode, buffer.readUbyte(offset+1), buffer.readLong(offset+2));
+            case ArrayPayload: {
+                int elementWidth = buffer.readUshort(offset+2);
+                int elementCount = buffer.readSmallUint(offset+4);
+                List<Number> elements = Lists.newArrayListWithCapacity(elementCount);
+                int elementOffset = offset+8;
+                for (int i=0; i<elementCount; i++) {
+                    switch (elementWidth) {
+                        case 1:
+                            elements.add(buffer.readByte(elementOffset));
+                            break;
+                        case 2:
+                            elements.add(buffer.readShort(elementOffset));
+                            break;
+                        case 4:
+                            elements.add(buffer.readInt(elementOffset));
+                            break;
+                        default:
+                            elements.add(buffer.readLong(elementOffset));
+                            break;
+                    }
+                    elementOffset += elementWidth;
+                }
+                return new ImmutableArrayPayload(elementWidth, elements);
+            }
+            case SparseSwitchPayload: {
+                int elementCount = buffer.readUshort(offset+2);
+                List<SwitchElement> elements = Lists.newArrayListWithCapacity(elementCount);
+                int keyOffset = offset+4;
+                int targetOffset = keyOffset + elementCount*4;
+                for (int i=0; i<elementCount; i++) {
+                    elements.add(new ImmutableSwitchElement(buffer.readInt(keyOffset), buffer.readInt(targetOffset)));
+                    keyOffset += 4;
+                    targetOffset += 4;
+                }
+                return new ImmutableSparseSwitchPayload(elements);
+            }
+            case PackedSwitchPayload: {
+                int elementCount = buffer.readUshort(offset+2);
+                int firstKey = buffer.readInt(offset+4);
+                List<SwitchElement> elements = Lists.newArrayListWithCapacity(elementCount);
+                int targetOffset = offset+8;
+                for (int i=0; i<elementCount; i++) {
+                    elements.add(new ImmutableSwitchElement(firstKey + i, buffer.readInt(targetOffset)));
+                    targetOffset += 4;
+                }
+                return new ImmutablePackedSwitchPayload(elements);
+            }
+            default:
+                // encode() doesn't accept any other formats
+                throw new IllegalStateException("Unexpected instruction format: " + opcode.format);
+        }
+    }
+
+    @Nonnull private static Reference checkReference(@Nullable Reference reference) {
+        if (reference == null) {
+            throw new IllegalStateException("Missing reference for instruction");
+        }
+        return reference;
+    }
+}
@@ -36,16 +36,19 @@ import com.google.common.primitives.Ints;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
 import org.jf.dexlib2.iface.instruction.SwitchElement;
 import org.jf.dexlib2.iface.instruction.formats.*;
 import org.jf.dexlib2.iface.reference.FieldReference;
 import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
 import org.jf.dexlib2.iface.reference.StringReference;
 import org.jf.dexlib2.iface.reference.TypeReference;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.Comparator;
 import java.util.List;
@@ -54,10 +57,11 @@ public class InstructionWriter<StringRef extends StringReference, TypeRef extend
         FieldRefKey extends FieldReference, MethodRefKey extends MethodReference> {
     @Nonnull private final Opcodes opcodes;
     @Nonnull private final DexDataWriter writer;
-    @Nonnull private final StringSection<?, StringRef> stringSection;
-    @Nonnull private final TypeSection<?, ?, TypeRef> typeSection;
-    @Nonnull private final FieldSection<?, ?, FieldRefKey, ?> fieldSection;
-    @Nonnull private final MethodSection<?, ?, ?, MethodRefKey, ?> methodSection;
+    // these are only null for a subclass that overrides getReferenceIndex(int, Reference)
+    @Nullable private final StringSection<?, StringRef> stringSection;
+    @Nullable private final TypeSection<?, ?, TypeRef> typeSection;
+    @Nullable private final FieldSection<?, ?, FieldRefKey, ?> fieldSection;
+    @Nullable private final MethodSection<?, ?, ?, MethodRefKey, ?> methodSection;
 
     @Nonnull static <StringRef extends StringReference, TypeRef extends TypeReference, FieldRefKey extends FieldReference, MethodRefKey extends MethodReference>
             InstructionWriter<StringRef, TypeRef, FieldRefKey, MethodRefKey>
@@ -86,6 +90,19 @@ public class InstructionWriter<StringRef extends StringReference, TypeRef extend
         this.methodSection = methodSection;
     }
 
+    /**
+     * Creates an InstructionWriter without any sections. This is for subclasses that override
+     * getReferenceIndex(int, Reference).
+     */
+    InstructionWriter(@Nonnull Opcodes opcodes, @Nonnull DexDataWriter writer) {
+        this.opcodes = opcodes;
+        this.writer = writer;
+        this.stringSection = null;
+        this.typeSection = null;
+        this.fieldSection = null;
+        this.methodSection = null;
+    }
+
     private short getOpcodeValue(Opcode opcode) {
         Short value = opcodes.getOpcodeValue(opcode);
         if (value == null) {
@@ -94,6 +111,104 @@ public class InstructionWriter<StringRef extends StringReference, TypeRef extend
         return value;
     }
 
+    void write(@Nonnull Instruction instruction) {
+        switch (instruction.getOpcode().format) {
+            case Format10t:
+                write((Instruction10t)instruction);
+                break;
+            case Format10x:
+                write((Instruction10x)instruction);
+                break;
+            case Format11n:
+                write((Instruction11n)instruction);
+                break;
+            case Format11x:
+                write((Instruction11x)instruction);
+                break;
+            case Format12x:
+                write((Instruction12x)instruction);
+                break;
+            case Format20bc:
+                write((Instruction20bc)instruction);
+                break;
+            case Format20t:
+                write((Instruction20t)instruction);
+                break;
+            case Format21c:
+                write((Instruction21c)instruction);
+                break;
+            case Format21ih:
+                write((Instruction21ih)instruction);
+                break;
+            case Format21lh:
+                write((Instruction21lh)instruction);
+                break;
+            case Format21s:
+                write((Instruction21s)instruction);
+                break;
+            case Format21t:
+                write((Instruction21t)instruction);
+                break;
+            case Format22b:
+                write((Instruction22b)instruction);
+                break;
+            case Format22c:
+                write((Instruction22c)instruction);
+                break;
+            case Format22s:
+                write((Instruction22s)instruction);
+                break;
+            case Format22t:
+                write((Instruction22t)instruction);
+                break;
+            case Format22x:
+                write((Instruction22x)instruction);
+                break;
+            case Format23x:
+                write((Instruction23x)instruction);
+                break;
+            case Format25x:
+                write((Instruction25x)instruction);
+                break;
+            case Format30t:
+                write((Instruction30t)instruction);
+                break;
+            case Format31c:
+                write((Instruction31c)instruction);
+                break;
+            case Format31i:
+                write((Instruction31i)instruction);
+                break;
+            case Format31t:
+                write((Instruction31t)instruction);
+                break;
+            case Format32x:
+                write((Instruction32x)instruction);
+                break;
+            case Format35c:
+                write((Instruction35c)instruction);
+                break;
+            case Format3rc:
+                write((Instruction3rc)instruction);
+                break;
+            case Format51l:
+                write((Instruction51l)instruction);
+                break;
+            case ArrayPayload:
+                write((ArrayPayload)instruction);
+                break;
+            case PackedSwitchPayload:
+                write((PackedSwitchPayload)instruction);
+                break;
+            case SparseSwitchPayload:
+                write((SparseSwitchPayload)instruction);
+                break;
+            default:
+                throw new ExceptionWithContext("Unsupported instruction format: %s",
+                        instruction.getOpcode().format);
+        }
+    }
+
     public void write(@Nonnull Instruction10t instruction) {
         try {
             writer.write(getOpcodeValue(instruction.getOpcode()));
@@ -452,18 +567,21 @@ public class InstructionWriter<StringRef extends StringReference, TypeRef extend
     }
 
     private int getReferenceIndex(ReferenceInstruction referenceInstruction) {
-        switch (referenceInstruction.getOpcode().referenceType) {
+        return getReferenceIndex(referenceInstruction.getOpcode().referenceType, referenceInstruction.getReference());
+    }
+
+    int getReferenceIndex(int referenceType, @Nonnull Reference reference) {
+        switch (referenceType) {
             case ReferenceType.FIELD:
-                return fieldSection.getItemIndex((FieldRefKey)referenceInstruction.getReference());
+                return fieldSection.getItemIndex((FieldRefKey)reference);
             case ReferenceType.METHOD:
-                return methodSection.getItemIndex((MethodRefKey)referenceInstruction.getReference());
+                return methodSection.getItemIndex((MethodRefKey)reference);
             case ReferenceType.STRING:
-                return stringSection.getItemIndex((StringRef)referenceInstruction.getReference());
+                return stringSection.getItemIndex((StringRef)reference);
             case ReferenceType.TYPE:
-                return typeSection.getItemIndex((TypeRef)referenceInstruction.getReference());
+                return typeSection.getItemIndex((TypeRef)reference);
             default:
-                throw new ExceptionWithContext("Unknown reference type: %d",
-                        referenceInstruction.getOpcode().referenceType);
+                throw new ExceptionWithContext("Unknown reference type: %d", referenceType);
         }
     }
 }
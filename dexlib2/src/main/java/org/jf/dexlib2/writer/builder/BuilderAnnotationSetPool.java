@@ -56,7 +56,9 @@ class BuilderAnnotationSetPool implements AnnotationSetSection<BuilderAnnotation
     }
 
     @Nonnull public BuilderAnnotationSet internAnnotationSet(@Nullable Set<? extends Annotation> annotations) {
-        if (annotations == null) {
+        // DexWriter never refers to an empty set by its offset, so an empty set in the pool would only be written as
+        // an unused item. This happens e.g. when interning a class from another DexBuilder or from a dex file.
+        if (annotations == null || annotations.isEmpty()) {
             return BuilderAnnotationSet.EMPTY;
         }
 
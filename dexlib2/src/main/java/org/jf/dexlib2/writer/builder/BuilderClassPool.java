@@ -48,6 +48,7 @@ import org.jf.dexlib2.iface.value.EncodedValue;
 import org.jf.dexlib2.util.EncodedValueUtils;
 import org.jf.dexlib2.writer.ClassSection;
 import org.jf.dexlib2.writer.DebugWriter;
+import org.jf.dexlib2.writer.EncodedMethodImplementation;
 import org.jf.dexlib2.writer.builder.BuilderEncodedValues.BuilderEncodedValue;
 import org.jf.util.AbstractForwardSequentialList;
 import org.jf.util.CollectionUtils;
@@ -76,6 +77,15 @@ public class BuilderClassPool implements ClassSection<BuilderStringReference, Bu
         return classDef;
     }
 
+    /**
+     * Removes all of the classes, so that they can be garbage collected once they've been interned into another
+     * DexBuilder.
+     */
+    void clear() {
+        internedItems.clear();
+        sortedClasses = null;
+    }
+
     private ImmutableList<BuilderClassDef> sortedClasses = null;
     @Nonnull @Override public Collection<? extends BuilderClassDef> getSortedClasses() {
         if (sortedClasses == null) {
@@ -323,6 +333,15 @@ public class BuilderClassPool implements ClassSection<BuilderStringReference, Bu
         return new MutableMethodImplementation(impl);
     }
 
+    @Nullable @Override
+    public EncodedMethodImplementation getEncodedImplementation(@Nonnull BuilderMethod builderMethod) {
+        MethodImplementation impl = builderMethod.getImplementation();
+        if (impl instanceof EncodedMethodImplementation) {
+            return (EncodedMethodImplementation)impl;
+        }
+        return null;
+    }
+
     @Override public void setEncodedArrayOffset(@Nonnull BuilderClassDef builderClassDef, int offset) {
         builderClassDef.encodedArrayOffset = offset;
     }
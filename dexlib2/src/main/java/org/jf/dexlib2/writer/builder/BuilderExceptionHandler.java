@@ -32,6 +32,7 @@
 package org.jf.dexlib2.writer.builder;
 
 import org.jf.dexlib2.base.BaseExceptionHandler;
+import org.jf.dexlib2.iface.reference.TypeReference;
 
 import javax.annotation.Nullable;
 
@@ -48,6 +49,10 @@ public class BuilderExceptionHandler extends BaseExceptionHandler {
         return exceptionType==null?null:exceptionType.getType();
     }
 
+    @Nullable @Override public TypeReference getExceptionTypeReference() {
+        return exceptionType;
+    }
+
     @Override public int getHandlerCodeAddress() {
         return handlerCodeAddress;
     }
@@ -34,21 +34,31 @@ package org.jf.dexlib2.writer.builder;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import org.jf.dexlib2.DebugItemType;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ValueType;
-import org.jf.dexlib2.iface.Annotation;
-import org.jf.dexlib2.iface.MethodImplementation;
-import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.iface.*;
+import org.jf.dexlib2.iface.debug.DebugItem;
+import org.jf.dexlib2.iface.debug.SetSourceFile;
+import org.jf.dexlib2.iface.debug.StartLocal;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.formats.*;
 import org.jf.dexlib2.iface.reference.*;
+import org.jf.dexlib2.immutable.debug.ImmutableSetSourceFile;
+import org.jf.dexlib2.immutable.debug.ImmutableStartLocal;
 import org.jf.dexlib2.iface.value.*;
 import org.jf.dexlib2.writer.DexWriter;
+import org.jf.dexlib2.writer.EncodedMethodImplementation;
 import org.jf.dexlib2.writer.builder.BuilderEncodedValues.*;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -59,6 +69,7 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
         BuilderEncodedValue, BuilderAnnotationElement> {
 
     @Nonnull private final BuilderContext context;
+    private boolean encodeMethodImplementations = false;
 
     @Nonnull public static DexBuilder makeDexBuilder() {
         BuilderContext context = new BuilderContext();
@@ -84,6 +95,21 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
         this.context = context;
     }
 
+    /**
+     * Sets whether the implementations of methods added to this DexBuilder are encoded as they are added.
+     *
+     * An encoded implementation is held in the form that it will be written in, which uses considerably less memory
+     * than the instructions, try blocks and debug items it is encoded from, at the cost of having to decode it again
+     * if the implementation is needed for anything other than writing it. This should be set before any methods are
+     * added.
+     *
+     * @param encodeMethodImplementations Whether to encode method implementations
+     * @see EncodedMethodImplementation
+     */
+    public void setEncodeMethodImplementations(boolean encodeMethodImplementations) {
+        this.encodeMethodImplementations = encodeMethodImplementations;
+    }
+
     @Nonnull public BuilderField internField(@Nonnull String definingClass,
                                              @Nonnull String name,
                                              @Nonnull String type,
@@ -106,6 +132,13 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
         if (parameters == null) {
             parameters = ImmutableList.of();
         }
+        if (encodeMethodImplementations && methodImplementation != null) {
+            EncodedMethodImplementation encodedImplementation =
+                    EncodedMethodImplementation.encode(opcodes, methodImplementation);
+            if (encodedImplementation != null) {
+                methodImplementation = encodedImplementation;
+            }
+        }
         return new BuilderMethod(context.methodPool.internMethod(definingClass, name, parameters, returnType),
                 internMethodParameters(parameters),
                 accessFlags,
@@ -146,6 +179,84 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
                 methods));
     }
 
+    /**
+     * Interns a class from some other source, such as an existing dex file.
+     *
+     * All of the references in the class, including those in its instructions, exception handlers and debug info,
+     * are interned into this DexBuilder.
+     *
+     * @param classDef The class to intern
+     * @return The interned class
+     */
+    @Nonnull public BuilderClassDef internClassDef(@Nonnull ClassDef classDef) {
+        List<BuilderField> fields = Lists.newArrayList();
+        for (Field field: classDef.getFields()) {
+            fields.add(internField(field.getDefiningClass(), field.getName(), field.getType(), field.getAccessFlags(),
+                    field.getInitialValue(), field.getAnnotations()));
+        }
+
+        List<BuilderMethod> methods = Lists.newArrayList();
+        for (Method method: classDef.getMethods()) {
+            MethodImplementation methodImplementation = method.getImplementation();
+            methods.add(internMethod(method.getDefiningClass(), method.getName(), method.getParameters(),
+                    method.getReturnType(), method.getAccessFlags(), method.getAnnotations(),
+                    methodImplementation == null ? null : internMethodImplementation(methodImplementation)));
+        }
+
+        return internClassDef(classDef.getType(), classDef.getAccessFlags(), classDef.getSuperclass(),
+                Lists.newArrayList(classDef.getInterfaces()), classDef.getSourceFile(), classDef.getAnnotations(),
+                fields, methods);
+    }
+
+    /**
+     * Interns all of the classes from the given DexBuilders into this one.
+     *
+     * This allows classes to be built concurrently in separate DexBuilders, e.g. one per thread, so that the threads
+     * don't contend on the shared pools, and then combined in a single pass before writing. The classes are interned
+     * in order of their type, so the result doesn't depend on how the classes were split between the builders.
+     *
+     * The classes are removed from the given DexBuilders, and each one is released as soon as it has been interned,
+     * so that the classes aren't held twice until the dex file is written. The given DexBuilders shouldn't be used
+     * afterwards.
+     *
+     * @param dexBuilders The DexBuilders to intern the classes of
+     */
+    public void internClassDefs(@Nonnull Iterable<? extends DexBuilder> dexBuilders) {
+        internClassDefs(dexBuilders, ImmutableList.<DexFile>of());
+    }
+
+    /**
+     * Interns all of the classes from the given DexBuilders and dex files into this one.
+     *
+     * This is like internClassDefs(Iterable), but some of the classes can also come from dex files that were written
+     * separately, e.g. by assembling parts of a large set of classes in different processes. Since all of the classes
+     * are interned in order of their type, the result is identical to interning the same classes from DexBuilders
+     * alone, regardless of which of them were first written to a dex file.
+     *
+     * As with internClassDefs(Iterable), the classes are removed from the given DexBuilders, which shouldn't be used
+     * afterwards.
+     *
+     * @param dexBuilders The DexBuilders to intern the classes of
+     * @param dexFiles The dex files to intern the classes of
+     */
+    public void internClassDefs(@Nonnull Iterable<? extends DexBuilder> dexBuilders,
+                                @Nonnull Iterable<? extends DexFile> dexFiles) {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (DexBuilder dexBuilder: dexBuilders) {
+            classDefs.addAll(dexBuilder.context.classPool.getSortedClasses());
+            dexBuilder.context.classPool.clear();
+        }
+        for (DexFile dexFile: dexFiles) {
+            classDefs.addAll(dexFile.getClasses());
+        }
+        Collections.sort(classDefs);
+        for (int i=0; i<classDefs.size(); i++) {
+            internClassDef(classDefs.get(i));
+            // classDefs holds the only remaining reference to the class and its method bodies
+            classDefs.set(i, null);
+        }
+    }
+
     @Nonnull public BuilderStringReference internStringReference(@Nonnull String string) {
         return context.stringPool.internString(string);
     }
@@ -212,6 +323,132 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
                 context.annotationSetPool.internAnnotationSet(methodParameter.getAnnotations()));
     }
 
+    @Nonnull private MethodImplementation internMethodImplementation(
+            @Nonnull MethodImplementation methodImplementation) {
+        final int registerCount = methodImplementation.getRegisterCount();
+
+        final List<Instruction> instructions = Lists.newArrayList();
+        for (Instruction instruction: methodImplementation.getInstructions()) {
+            instructions.add(internInstruction(instruction));
+        }
+
+        final List<BuilderTryBlock> tryBlocks = Lists.newArrayList();
+        for (TryBlock<? extends ExceptionHandler> tryBlock: methodImplementation.getTryBlocks()) {
+            List<BuilderExceptionHandler> exceptionHandlers = Lists.newArrayList();
+            for (ExceptionHandler exceptionHandler: tryBlock.getExceptionHandlers()) {
+                exceptionHandlers.add(new BuilderExceptionHandler(
+                        internNullableTypeReference(exceptionHandler.getExceptionType()),
+                        exceptionHandler.getHandlerCodeAddress()));
+            }
+            tryBlocks.add(new BuilderTryBlock(tryBlock.getStartCodeAddress(), tryBlock.getCodeUnitCount(),
+                    exceptionHandlers));
+        }
+
+        final List<DebugItem> debugItems = Lists.newArrayList();
+        for (DebugItem debugItem: methodImplementation.getDebugItems()) {
+            debugItems.add(internDebugItem(debugItem));
+        }
+
+        return new MethodImplementation() {
+            @Override public int getRegisterCount() {
+                return registerCount;
+            }
+
+            @Nonnull @Override public Iterable<? extends Instruction> getInstructions() {
+                return instructions;
+            }
+
+            @Nonnull @Override public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks() {
+                return tryBlocks;
+            }
+
+            @Nonnull @Override public Iterable<? extends DebugItem> getDebugItems() {
+                return debugItems;
+            }
+        };
+    }
+
+    /**
+     * @return An equivalent instruction that refers to a reference interned into this DexBuilder, or the instruction
+     * itself if it doesn't have a reference
+     */
+    @Nonnull private Instruction internInstruction(@Nonnull Instruction instruction) {
+        switch (instruction.getOpcode().format) {
+            case Format20bc: {
+                Instruction20bc instruction20bc = (Instruction20bc)instruction;
+                return new BuilderInstruction20bc(instruction.getOpcode(), instruction20bc.getVerificationError(),
+                        internReference(instruction20bc.getReference()));
+            }
+            case Format21c: {
+                Instruction21c instruction21c = (Instruction21c)instruction;
+                return new BuilderInstruction21c(instruction.getOpcode(), instruction21c.getRegisterA(),
+                        internReference(instruction21c.getReference()));
+            }
+            case Format22c: {
+                Instruction22c instruction22c = (Instruction22c)instruction;
+                return new BuilderInstruction22c(instruction.getOpcode(), instruction22c.getRegisterA(),
+                        instruction22c.getRegisterB(), internReference(instruction22c.getReference()));
+            }
+            case Format31c: {
+                Instruction31c instruction31c = (Instruction31c)instruction;
+                return new BuilderInstruction31c(instruction.getOpcode(), instruction31c.getRegisterA(),
+                        internReference(instruction31c.getReference()));
+            }
+            case Format35c: {
+                Instruction35c instruction35c = (Instruction35c)instruction;
+                return new BuilderInstruction35c(instruction.getOpcode(), instruction35c.getRegisterCount(),
+                        instruction35c.getRegisterC(), instruction35c.getRegisterD(), instruction35c.getRegisterE(),
+                        instruction35c.getRegisterF(), instruction35c.getRegisterG(),
+                        internReference(instruction35c.getReference()));
+            }
+            case Format3rc: {
+                Instruction3rc instruction3rc = (Instruction3rc)instruction;
+                return new BuilderInstruction3rc(instruction.getOpcode(), instruction3rc.getStartRegister(),
+                        instruction3rc.getRegisterCount(), internReference(instruction3rc.getReference()));
+            }
+            default:
+                return instruction;
+        }
+    }
+
+    @Nonnull private DebugItem internDebugItem(@Nonnull DebugItem debugItem) {
+        switch (debugItem.getDebugItemType()) {
+            case DebugItemType.START_LOCAL: {
+                StartLocal startLocal = (StartLocal)debugItem;
+                final BuilderStringReference nameReference = internNullableStringReference(startLocal.getName());
+                final BuilderTypeReference typeReference = internNullableTypeReference(startLocal.getType());
+                final BuilderStringReference signatureReference =
+                        internNullableStringReference(startLocal.getSignature());
+                return new ImmutableStartLocal(startLocal.getCodeAddress(), startLocal.getRegister(),
+                        startLocal.getName(), startLocal.getType(), startLocal.getSignature()) {
+                    @Nullable @Override public StringReference getNameReference() {
+                        return nameReference;
+                    }
+
+                    @Nullable @Override public TypeReference getTypeReference() {
+                        return typeReference;
+                    }
+
+                    @Nullable @Override public StringReference getSignatureReference() {
+                        return signatureReference;
+                    }
+                };
+            }
+            case DebugItemType.SET_SOURCE_FILE: {
+                SetSourceFile setSourceFile = (SetSourceFile)debugItem;
+                final BuilderStringReference sourceFileReference =
+                        internNullableStringReference(setSourceFile.getSourceFile());
+                return new ImmutableSetSourceFile(setSourceFile.getCodeAddress(), setSourceFile.getSourceFile()) {
+                    @Nullable @Override public StringReference getSourceFileReference() {
+                        return sourceFileReference;
+                    }
+                };
+            }
+            default:
+                return debugItem;
+        }
+    }
+
     @Override protected void writeEncodedValue(@Nonnull InternalEncodedValueWriter writer,
                                                @Nonnull BuilderEncodedValue encodedValue) throws IOException {
         switch (encodedValue.getValueType()) {
@@ -8,6 +8,7 @@ import java.util.Arrays;
 
 public class MemoryDataStore implements DexDataStore {
     private byte[] buf;
+    private int size = 0;
 
     public MemoryDataStore() {
         this(1024 * 1024);
@@ -21,28 +22,45 @@ public class MemoryDataStore implements DexDataStore {
         return buf;
     }
 
+    /**
+     * @return The number of bytes of the buffer returned by {@link #getData()} that have been written to. The rest of
+     * the buffer is unused capacity.
+     */
+    public int getSize() {
+        return size;
+    }
+
     @Nonnull @Override public OutputStream outputAt(final int offset) {
         return new OutputStream() {
             private int position = offset;
             @Override public void write(int b) throws IOException {
                 growBufferIfNeeded(position);
                 buf[position++] = (byte)b;
+                updateSize(position);
             }
 
             @Override public void write(byte[] b) throws IOException {
                 growBufferIfNeeded(position + b.length);
                 System.arraycopy(b, 0, buf, position, b.length);
                 position += b.length;
+                updateSize(position);
             }
 
             @Override public void write(byte[] b, int off, int len) throws IOException {
                 growBufferIfNeeded(position + len);
                 System.arraycopy(b, off, buf, position, len);
                 position += len;
+                updateSize(position);
             }
         };
     }
 
+    private void updateSize(int position) {
+        if (position > size) {
+            size = position;
+        }
+    }
+
     private void growBufferIfNeeded(int index) {
         if (index < buf.length) {
             return;
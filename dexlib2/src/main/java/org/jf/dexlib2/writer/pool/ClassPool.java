@@ -48,6 +48,7 @@ import org.jf.dexlib2.util.EncodedValueUtils;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.ClassSection;
 import org.jf.dexlib2.writer.DebugWriter;
+import org.jf.dexlib2.writer.EncodedMethodImplementation;
 import org.jf.util.AbstractForwardSequentialList;
 import org.jf.util.CollectionUtils;
 import org.jf.util.ExceptionWithContext;
@@ -439,6 +440,15 @@ public class ClassPool implements ClassSection<CharSequence, CharSequence,
         return new MutableMethodImplementation(poolMethod.getImplementation());
     }
 
+    @Nullable @Override
+    public EncodedMethodImplementation getEncodedImplementation(@Nonnull PoolMethod poolMethod) {
+        MethodImplementation impl = poolMethod.getImplementation();
+        if (impl instanceof EncodedMethodImplementation) {
+            return (EncodedMethodImplementation)impl;
+        }
+        return null;
+    }
+
     @Override public void setEncodedArrayOffset(@Nonnull PoolClassDef classDef, int offset) {
         classDef.encodedArrayOffset = offset;
     }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11x;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+public class AnalysisServiceTest {
+    @Test
+    public void testAnalyzeAllMethods() {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i=0; i<50; i++) {
+            String type = "Ltest/Class" + i + ";";
+            ImmutableMethod identity = new ImmutableMethod(type, "identity",
+                    ImmutableList.of(new ImmutableMethodParameter(type, null, null)), type,
+                    AccessFlags.STATIC.getValue(), null,
+                    new ImmutableMethodImplementation(1, ImmutableList.of(
+                            new ImmutableInstruction11x(Opcode.RETURN_OBJECT, 0)), null, null));
+            ImmutableMethod empty = new ImmutableMethod(type, "empty", null, "V",
+                    AccessFlags.STATIC.getValue(), null,
+                    new ImmutableMethodImplementation(0, ImmutableList.of(
+                            new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null));
+            ImmutableMethod noImpl = new ImmutableMethod(type, "abs", null, "V",
+                    AccessFlags.ABSTRACT.getValue() | AccessFlags.PUBLIC.getValue(), null, null);
+            classDefs.add(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null,
+                    null, null, null, null, ImmutableList.of(identity, empty), ImmutableList.of(noImpl)));
+        }
+
+        DexFile dexFile = new ImmutableDexFile(Opcodes.forApi(19), classDefs);
+        ClassPath classPath = ClassPath.fromClassPath(ImmutableList.<String>of(), ImmutableList.<String>of(), dexFile,
+                19, false);
+
+        final ConcurrentMap<String, MethodAnalyzer> results = Maps.newConcurrentMap();
+        AnalysisService service = new AnalysisService(classPath, null, false, 4);
+        boolean success = service.analyze(dexFile, new AnalysisService.ResultHandler() {
+            @Override
+            public void handleResult(@Nonnull ClassDef classDef, @Nonnull Method method,
+                                     @Nonnull MethodAnalyzer analyzer) {
+                Assert.assertNull(results.put(classDef.getType() + "->" + method.getName(), analyzer));
+            }
+
+            @Override public void handleError(@Nonnull ClassDef classDef, @Nonnull Method method,
+                                              @Nonnull Exception ex) {
+                Assert.fail(ex.toString());
+            }
+        });
+
+        Assert.assertTrue(success);
+        Assert.assertEquals(100, results.size());
+
+        for (int i=0; i<50; i++) {
+            String type = "Ltest/Class" + i + ";";
+            MethodAnalyzer analyzer = results.get(type + "->identity");
+            Assert.assertNull(analyzer.getAnalysisException());
+            RegisterType registerType = analyzer.getAnalyzedInstructions().get(0).getPreInstructionRegisterType(0);
+            Assert.assertEquals(RegisterType.REFERENCE, registerType.category);
+            Assert.assertSame(classPath.getClass(type), registerType.type);
+        }
+    }
+}
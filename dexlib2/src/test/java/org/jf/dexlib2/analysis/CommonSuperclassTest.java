@@ -315,4 +315,36 @@ public class CommonSuperclassTest {
         superclassTest(object, int1, float1);
         superclassTest(object, int1, int2);
     }
+
+    @Test
+    public void testCommonSuperclassCache() {
+        TypeProto onetwothree = classPath.getClass("Ltest/onetwothree;");
+        TypeProto onethree = classPath.getClass("Ltest/onethree;");
+
+        long initialMisses = classPath.getCommonSuperclassCacheStats().missCount();
+        long initialHits = classPath.getCommonSuperclassCacheStats().hitCount();
+
+        for (int i=0; i<10; i++) {
+            Assert.assertSame(classPath.getClass("Ltest/one;"), onetwothree.getCommonSuperclass(onethree));
+        }
+
+        Assert.assertEquals(initialMisses + 1, classPath.getCommonSuperclassCacheStats().missCount());
+        Assert.assertEquals(initialHits + 9, classPath.getCommonSuperclassCacheStats().hitCount());
+    }
+
+    @Test
+    public void testExtendsFrom() {
+        ClassProto one = (ClassProto)classPath.getClass("Ltest/one;");
+        ClassProto onetwothree = (ClassProto)classPath.getClass("Ltest/onetwothree;");
+        ClassProto onethree = (ClassProto)classPath.getClass("Ltest/onethree;");
+        ClassProto fivetwothree = (ClassProto)classPath.getClass("Ltest/fivetwothree;");
+        ClassProto five = (ClassProto)classPath.getClass("Ltest/five;");
+
+        Assert.assertTrue(onetwothree.extendsFrom(one));
+        Assert.assertTrue(onetwothree.extendsFrom(onetwothree));
+        Assert.assertFalse(one.extendsFrom(onetwothree));
+        Assert.assertFalse(onetwothree.extendsFrom(onethree));
+        Assert.assertTrue(fivetwothree.extendsFrom(five));
+        Assert.assertFalse(onethree.extendsFrom(five));
+    }
 }
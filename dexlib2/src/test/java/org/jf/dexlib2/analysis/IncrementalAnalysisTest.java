@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.base.reference.BaseMethodReference;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+public class IncrementalAnalysisTest {
+    private final ClassPath classPath;
+
+    public IncrementalAnalysisTest() throws IOException {
+        classPath = new ClassPath(new DexClassProvider(new ImmutableDexFile(Opcodes.forApi(19),
+                ImmutableSet.<ClassDef>of())));
+    }
+
+    private static class TestMethod extends BaseMethodReference implements Method {
+        @Nonnull private final MutableMethodImplementation methodImpl;
+
+        public TestMethod(@Nonnull MutableMethodImplementation methodImpl) {
+            this.methodImpl = methodImpl;
+        }
+
+        @Nonnull @Override public String getDefiningClass() { return "Ltest;"; }
+        @Nonnull @Override public String getName() { return "test"; }
+        @Nonnull @Override public String getReturnType() { return "V"; }
+        @Override public int getAccessFlags() { return AccessFlags.STATIC.getValue(); }
+        @Nonnull @Override public Set<? extends Annotation> getAnnotations() { return ImmutableSet.of(); }
+        @Nonnull @Override public MutableMethodImplementation getImplementation() { return methodImpl; }
+
+        @Nonnull @Override public List<? extends MethodParameter> getParameters() {
+            return ImmutableList.of(
+                    new ImmutableMethodParameter("Ljava/lang/String;", null, null),
+                    new ImmutableMethodParameter("I", null, null));
+        }
+
+        @Nonnull @Override public List<? extends CharSequence> getParameterTypes() {
+            return ImmutableList.of("Ljava/lang/String;", "I");
+        }
+    }
+
+    @Nonnull
+    private static MutableMethodImplementation buildMethod() {
+        // v2 = String param, v3 = int param
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(4);
+        Label target = builder.getLabel("target");
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, 0));
+        builder.addInstruction(new BuilderInstruction21t(Opcode.IF_EQZ, 3, target));
+        builder.addInstruction(new BuilderInstruction12x(Opcode.MOVE_OBJECT, 0, 2));
+        builder.addInstruction(new BuilderInstruction12x(Opcode.MOVE_OBJECT, 1, 2));
+        builder.addLabel("target");
+        builder.addInstruction(new BuilderInstruction12x(Opcode.MOVE, 1, 3));
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        return new MutableMethodImplementation(builder.getMethodImplementation());
+    }
+
+    private void assertSameAnalysis(@Nonnull MethodAnalyzer expected, @Nonnull MethodAnalyzer actual) {
+        Assert.assertNull(expected.getAnalysisException());
+        Assert.assertNull(actual.getAnalysisException());
+
+        List<AnalyzedInstruction> expectedInstructions = expected.getAnalyzedInstructions();
+        List<AnalyzedInstruction> actualInstructions = actual.getAnalyzedInstructions();
+        Assert.assertEquals(expectedInstructions.size(), actualInstructions.size());
+
+        for (int i=0; i<expectedInstructions.size(); i++) {
+            AnalyzedInstruction expectedInstruction = expectedInstructions.get(i);
+            AnalyzedInstruction actualInstruction = actualInstructions.get(i);
+            Assert.assertSame(expectedInstruction.getOriginalInstruction(), actualInstruction.getOriginalInstruction());
+            for (int register=0; register<expectedInstruction.getRegisterCount(); register++) {
+                Assert.assertEquals(expectedInstruction.getPreInstructionRegisterType(register),
+                        actualInstruction.getPreInstructionRegisterType(register));
+                Assert.assertEquals(expectedInstruction.getPostInstructionRegisterType(register),
+                        actualInstruction.getPostInstructionRegisterType(register));
+            }
+        }
+    }
+
+    @Test
+    public void testInsertInstruction() {
+        MutableMethodImplementation methodImpl = buildMethod();
+        Method method = new TestMethod(methodImpl);
+        MethodAnalyzer previous = new MethodAnalyzer(classPath, method, null, false);
+
+        methodImpl.addInstruction(3, new BuilderInstruction21c(Opcode.CONST_CLASS, 0,
+                new ImmutableTypeReference("Ljava/lang/Object;")));
+
+        assertSameAnalysis(new MethodAnalyzer(classPath, method, null, false),
+                new MethodAnalyzer(previous, method));
+    }
+
+    @Test
+    public void testReplaceInstruction() {
+        MutableMethodImplementation methodImpl = buildMethod();
+        Method method = new TestMethod(methodImpl);
+        MethodAnalyzer previous = new MethodAnalyzer(classPath, method, null, false);
+
+        methodImpl.replaceInstruction(0, new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                new ImmutableStringReference("foo")));
+
+        assertSameAnalysis(new MethodAnalyzer(classPath, method, null, false),
+                new MethodAnalyzer(previous, method));
+    }
+
+    @Test
+    public void testRemoveInstruction() {
+        MutableMethodImplementation methodImpl = buildMethod();
+        Method method = new TestMethod(methodImpl);
+        MethodAnalyzer previous = new MethodAnalyzer(classPath, method, null, false);
+
+        methodImpl.removeInstruction(2);
+
+        assertSameAnalysis(new MethodAnalyzer(classPath, method, null, false),
+                new MethodAnalyzer(previous, method));
+    }
+
+    @Test
+    public void testUnchangedPrefixIsReused() {
+        MutableMethodImplementation methodImpl = buildMethod();
+        Method method = new TestMethod(methodImpl);
+        MethodAnalyzer previous = new MethodAnalyzer(classPath, method, null, false);
+
+        methodImpl.addInstruction(5, new BuilderInstruction10x(Opcode.NOP));
+        MethodAnalyzer incremental = new MethodAnalyzer(previous, method);
+
+        assertSameAnalysis(new MethodAnalyzer(classPath, method, null, false), incremental);
+        Assert.assertSame(previous.getAnalyzedInstructions().get(2).getPostInstructionRegisterType(0),
+                incremental.getAnalyzedInstructions().get(2).getPostInstructionRegisterType(0));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.cfg;
+
+import com.google.common.collect.ImmutableList;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+public class ControlFlowGraphTest {
+    @Nonnull
+    private static BasicBlock getBlock(@Nonnull ControlFlowGraph cfg, @Nonnull Instruction instruction) {
+        int index = cfg.getInstructions().indexOf(instruction);
+        Assert.assertTrue(index >= 0);
+        return cfg.getBlockForInstruction(index);
+    }
+
+    @Test
+    public void testBlocksAndDominators() {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(4);
+
+        BuilderInstruction entryInstruction = new BuilderInstruction11n(Opcode.CONST_4, 0, 0);
+        builder.addInstruction(entryInstruction);
+
+        builder.addLabel("loop");
+        BuilderInstruction loopInstruction = new BuilderInstruction22t(Opcode.IF_GE, 0, 1, builder.getLabel("end"));
+        builder.addInstruction(loopInstruction);
+        BuilderInstruction bodyInstruction = new BuilderInstruction22b(Opcode.ADD_INT_LIT8, 0, 0, 1);
+        builder.addInstruction(bodyInstruction);
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, builder.getLabel("loop")));
+
+        builder.addLabel("end");
+        BuilderInstruction switchInstruction = new BuilderInstruction31t(Opcode.PACKED_SWITCH, 0,
+                builder.getLabel("switch"));
+        builder.addInstruction(switchInstruction);
+        BuilderInstruction defaultInstruction = new BuilderInstruction10x(Opcode.RETURN_VOID);
+        builder.addInstruction(defaultInstruction);
+
+        builder.addLabel("case0");
+        Label tryStart = builder.addLabel("tryStart");
+        BuilderInstruction throwingInstruction = new BuilderInstruction23x(Opcode.AGET, 2, 3, 0);
+        builder.addInstruction(throwingInstruction);
+        Label tryEnd = builder.addLabel("tryEnd");
+        BuilderInstruction afterTryInstruction = new BuilderInstruction10x(Opcode.RETURN_VOID);
+        builder.addInstruction(afterTryInstruction);
+
+        Label handler = builder.addLabel("handler");
+        BuilderInstruction handlerInstruction = new BuilderInstruction11x(Opcode.MOVE_EXCEPTION, 2);
+        builder.addInstruction(handlerInstruction);
+        BuilderInstruction handlerReturn = new BuilderInstruction10x(Opcode.RETURN_VOID);
+        builder.addInstruction(handlerReturn);
+
+        builder.addLabel("switch");
+        BuilderInstruction payload = new BuilderPackedSwitchPayload(0,
+                ImmutableList.of(builder.getLabel("case0")));
+        builder.addInstruction(payload);
+
+        builder.addCatch(tryStart, tryEnd, handler);
+
+        MethodImplementation methodImpl = builder.getMethodImplementation();
+        ControlFlowGraph cfg = new ControlFlowGraph(methodImpl);
+
+        BasicBlock entryBlock = getBlock(cfg, entryInstruction);
+        BasicBlock loopBlock = getBlock(cfg, loopInstruction);
+        BasicBlock bodyBlock = getBlock(cfg, bodyInstruction);
+        BasicBlock switchBlock = getBlock(cfg, switchInstruction);
+        BasicBlock defaultBlock = getBlock(cfg, defaultInstruction);
+        BasicBlock throwingBlock = getBlock(cfg, throwingInstruction);
+        BasicBlock afterTryBlock = getBlock(cfg, afterTryInstruction);
+        BasicBlock handlerBlock = getBlock(cfg, handlerInstruction);
+        BasicBlock payloadBlock = getBlock(cfg, payload);
+
+        Assert.assertSame(cfg.getEntryBlock(), entryBlock);
+        Assert.assertEquals(1, entryBlock.getInstructionCount());
+        Assert.assertEquals(3, bodyBlock.getInstructionCount() + loopBlock.getInstructionCount());
+        Assert.assertSame(handlerBlock, getBlock(cfg, handlerReturn));
+
+        Assert.assertEquals(ImmutableList.of(loopBlock), entryBlock.getSuccessors());
+        Assert.assertEquals(ImmutableList.of(bodyBlock, switchBlock), loopBlock.getSuccessors());
+        Assert.assertEquals(ImmutableList.of(loopBlock), bodyBlock.getSuccessors());
+        Assert.assertEquals(ImmutableList.of(defaultBlock, throwingBlock), switchBlock.getSuccessors());
+        Assert.assertEquals(ImmutableList.of(afterTryBlock), throwingBlock.getSuccessors());
+        Assert.assertEquals(ImmutableList.of(handlerBlock), throwingBlock.getExceptionSuccessors());
+        Assert.assertEquals(1, throwingBlock.getInstructionCount());
+
+        Assert.assertTrue(loopBlock.isLoopHeader());
+        Assert.assertFalse(bodyBlock.isLoopHeader());
+        Assert.assertFalse(entryBlock.isLoopHeader());
+        Assert.assertTrue(handlerBlock.isExceptionHandler());
+        Assert.assertTrue(handlerBlock.isReachable());
+        Assert.assertFalse(payloadBlock.isReachable());
+
+        Assert.assertNull(entryBlock.getImmediateDominator());
+        Assert.assertSame(entryBlock, loopBlock.getImmediateDominator());
+        Assert.assertSame(loopBlock, bodyBlock.getImmediateDominator());
+        Assert.assertSame(loopBlock, switchBlock.getImmediateDominator());
+        Assert.assertSame(switchBlock, throwingBlock.getImmediateDominator());
+        Assert.assertSame(throwingBlock, handlerBlock.getImmediateDominator());
+        Assert.assertSame(throwingBlock, afterTryBlock.getImmediateDominator());
+
+        Assert.assertTrue(entryBlock.dominates(handlerBlock));
+        Assert.assertTrue(loopBlock.dominates(loopBlock));
+        Assert.assertTrue(switchBlock.dominates(afterTryBlock));
+        Assert.assertFalse(bodyBlock.dominates(switchBlock));
+        Assert.assertFalse(defaultBlock.dominates(throwingBlock));
+        Assert.assertFalse(entryBlock.dominates(payloadBlock));
+
+        // the payload, and the alignment nop before it, are unreachable
+        Assert.assertEquals(8, cfg.getReversePostOrder().size());
+        Assert.assertFalse(cfg.getReversePostOrder().contains(payloadBlock));
+        Assert.assertSame(entryBlock, cfg.getReversePostOrder().get(0));
+    }
+
+    @Test
+    public void testStraightLineMethod() {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(1);
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, 0));
+        builder.addInstruction(new BuilderInstruction10x(Opcode.NOP));
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        ControlFlowGraph cfg = new ControlFlowGraph(builder.getMethodImplementation());
+        Assert.assertEquals(1, cfg.getBlocks().size());
+        Assert.assertEquals(3, cfg.getEntryBlock().getInstructionCount());
+        Assert.assertEquals(0, cfg.getEntryBlock().getSuccessors().size());
+        Assert.assertFalse(cfg.getEntryBlock().isLoopHeader());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis.dataflow;
+
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.analysis.cfg.ControlFlowGraph;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.*;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataflowAnalysisTest {
+    private ControlFlowGraph cfg;
+
+    @Before
+    public void buildMethod() {
+        // a static method with 2 parameters, in v3 and v4
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(5);
+
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, 0));                        // 0
+        builder.addLabel("loop");
+        builder.addInstruction(new BuilderInstruction22t(Opcode.IF_GE, 0, 3, builder.getLabel("end"))); // 1
+        builder.addInstruction(new BuilderInstruction22b(Opcode.ADD_INT_LIT8, 0, 0, 1));                // 2
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, builder.getLabel("loop")));       // 3
+        builder.addLabel("end");
+        builder.addInstruction(new BuilderInstruction21s(Opcode.CONST_WIDE_16, 1, 5));                  // 4
+        Label tryStart = builder.addLabel("tryStart");
+        builder.addInstruction(new BuilderInstruction23x(Opcode.AGET, 0, 4, 0));                        // 5
+        Label tryEnd = builder.addLabel("tryEnd");
+        builder.addInstruction(new BuilderInstruction11x(Opcode.RETURN, 0));                            // 6
+        Label handler = builder.addLabel("handler");
+        builder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_EXCEPTION, 1));                    // 7
+        builder.addInstruction(new BuilderInstruction11x(Opcode.RETURN, 2));                            // 8
+        builder.addCatch(tryStart, tryEnd, handler);
+
+        cfg = new ControlFlowGraph(builder.getMethodImplementation());
+    }
+
+    @Test
+    public void testLiveness() {
+        LivenessAnalysis liveness = new LivenessAnalysis(cfg);
+
+        Assert.assertEquals("{3, 4}", liveness.getStateBefore(0).toString());
+        Assert.assertEquals("{0, 3, 4}", liveness.getStateBefore(1).toString());
+        Assert.assertEquals("{0, 4}", liveness.getStateBefore(4).toString());
+
+        // v2 is read by the handler, so it is live across the throwing instruction, but not after it
+        Assert.assertEquals("{0, 2, 4}", liveness.getStateBefore(5).toString());
+        Assert.assertEquals("{0}", liveness.getStateAfter(5).toString());
+        Assert.assertTrue(liveness.isLiveAfter(4, 2));
+        Assert.assertFalse(liveness.isLiveAfter(4, 1));
+        Assert.assertFalse(liveness.isLiveBefore(7, 1));
+        Assert.assertTrue(liveness.isLiveBefore(7, 2));
+    }
+
+    @Test
+    public void testReachingDefinitions() {
+        ReachingDefinitionsAnalysis reachingDefs = new ReachingDefinitionsAnalysis(cfg);
+
+        Assert.assertArrayEquals(new int[] {0, 2}, reachingDefs.getReachingDefinitions(1, 0));
+        Assert.assertArrayEquals(new int[] {ReachingDefinitionsAnalysis.METHOD_ENTRY},
+                reachingDefs.getReachingDefinitions(1, 3));
+        Assert.assertArrayEquals(new int[] {5}, reachingDefs.getReachingDefinitions(6, 0));
+        Assert.assertArrayEquals(new int[] {4}, reachingDefs.getReachingDefinitions(6, 2));
+
+        // the handler sees the state from before the throwing instruction
+        Assert.assertArrayEquals(new int[] {0, 2}, reachingDefs.getReachingDefinitions(7, 0));
+        Assert.assertArrayEquals(new int[] {7}, reachingDefs.getReachingDefinitions(8, 1));
+        Assert.assertArrayEquals(new int[] {4}, reachingDefs.getReachingDefinitions(8, 2));
+    }
+
+    @Test
+    public void testDefiniteAssignment() {
+        DefiniteAssignmentAnalysis definiteAssignment = new DefiniteAssignmentAnalysis(cfg, 2);
+
+        Assert.assertEquals("{3, 4}", definiteAssignment.getStateBefore(0).toString());
+        Assert.assertTrue(definiteAssignment.isDefinitelyAssigned(1, 0));
+        Assert.assertFalse(definiteAssignment.isDefinitelyAssigned(1, 1));
+        Assert.assertFalse(definiteAssignment.isDefinitelyAssigned(4, 2));
+        Assert.assertTrue(definiteAssignment.isDefinitelyAssigned(5, 2));
+        Assert.assertTrue(definiteAssignment.isDefinitelyAssigned(8, 2));
+    }
+
+    @Test
+    public void testBitVector() {
+        BitVector vector = new BitVector(130);
+        vector.set(0);
+        vector.set(64);
+        vector.set(129);
+        Assert.assertEquals(3, vector.cardinality());
+        Assert.assertEquals(64, vector.nextSetBit(1));
+        Assert.assertEquals(129, vector.nextSetBit(65));
+        Assert.assertEquals(-1, vector.nextSetBit(130));
+
+        BitVector full = new BitVector(130);
+        full.setAll();
+        Assert.assertEquals(130, full.cardinality());
+        full.andNot(vector);
+        Assert.assertEquals(127, full.cardinality());
+        full.or(vector);
+        vector.setAll();
+        Assert.assertEquals(vector, full);
+    }
+}
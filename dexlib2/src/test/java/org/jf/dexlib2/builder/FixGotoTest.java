@@ -6,9 +6,11 @@ import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction10t;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction20t;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21t;
 import org.jf.dexlib2.iface.MethodImplementation;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
 import org.junit.Test;
 
 import java.util.List;
@@ -119,4 +121,71 @@ public class FixGotoTest {
         Assert.assertEquals(32769, ((OffsetInstruction)instructions.get(0)).getCodeOffset());
 
     }
+
+    @Test
+    public void testFixIfToGoto32() {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(1);
+
+        Label ifTarget = builder.getLabel("ifTarget");
+        builder.addInstruction(new BuilderInstruction21t(Opcode.IF_EQZ, 0, ifTarget));
+
+        for (int i=0; i<40000; i++) {
+            builder.addInstruction(new BuilderInstruction10x(Opcode.NOP));
+        }
+
+        builder.addLabel("ifTarget");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        MethodImplementation impl = builder.getMethodImplementation();
+
+        List<? extends Instruction> instructions = Lists.newArrayList(impl.getInstructions());
+        Assert.assertEquals(40003, instructions.size());
+
+        // the if is inverted to branch around a goto/32 to the original target
+        Assert.assertEquals(Opcode.IF_NEZ, instructions.get(0).getOpcode());
+        Assert.assertEquals(0, ((OneRegisterInstruction)instructions.get(0)).getRegisterA());
+        Assert.assertEquals(5, ((OffsetInstruction)instructions.get(0)).getCodeOffset());
+        Assert.assertEquals(Opcode.GOTO_32, instructions.get(1).getOpcode());
+        Assert.assertEquals(40003, ((OffsetInstruction)instructions.get(1)).getCodeOffset());
+        Assert.assertEquals(Opcode.NOP, instructions.get(2).getOpcode());
+    }
+
+    @Test
+    public void testRelaxationPasses() {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(1);
+
+        Label gotoTarget = builder.getLabel("gotoTarget");
+        for (int i=0; i<2000; i++) {
+            builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, gotoTarget));
+        }
+
+        for (int i=0; i<100; i++) {
+            builder.addInstruction(new BuilderInstruction10x(Opcode.NOP));
+        }
+
+        builder.addLabel("gotoTarget");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        MutableMethodImplementation impl = (MutableMethodImplementation)builder.getMethodImplementation();
+
+        List<? extends Instruction> instructions = Lists.newArrayList(impl.getInstructions());
+        Assert.assertEquals(2101, instructions.size());
+
+        // all of the gotos are replaced in the first pass, and the second pass finds nothing else to change
+        Assert.assertEquals(2, impl.getRelaxationPasses());
+
+        int targetAddress = 0;
+        for (int i=0; i<2100; i++) {
+            targetAddress += instructions.get(i).getCodeUnits();
+        }
+
+        int codeAddress = 0;
+        for (int i=0; i<2000; i++) {
+            Instruction instruction = instructions.get(i);
+            int offset = targetAddress - codeAddress;
+            Assert.assertEquals(offset, ((OffsetInstruction)instruction).getCodeOffset());
+            Assert.assertEquals(offset <= Byte.MAX_VALUE ? Opcode.GOTO : Opcode.GOTO_16, instruction.getOpcode());
+            codeAddress += instruction.getCodeUnits();
+        }
+    }
 }
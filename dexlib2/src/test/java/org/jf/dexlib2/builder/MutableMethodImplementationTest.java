@@ -31,13 +31,20 @@
 
 package org.jf.dexlib2.builder;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11n;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21s;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction32x;
 import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.NarrowLiteralInstruction;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.List;
+
 public class MutableMethodImplementationTest {
 
     @Test
@@ -115,4 +122,76 @@ public class MutableMethodImplementationTest {
         Assert.assertEquals(1, mutableMethodImplementation.getTryBlocks().get(0).getExceptionHandlers().get(0)
                 .getHandlerCodeAddress());
     }
+
+    @Test
+    public void testLocationsAfterEdits() {
+        MutableMethodImplementation impl = new MutableMethodImplementation(10);
+        for (int i=0; i<20; i++) {
+            impl.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, i % 8));
+        }
+        Label label = impl.newLabelForIndex(10);
+
+        impl.addInstruction(0, new BuilderInstruction32x(Opcode.MOVE_16, 0, 0));
+        impl.addInstruction(5, new BuilderInstruction21s(Opcode.CONST_16, 0, 1000));
+        impl.removeInstruction(2);
+        impl.addInstruction(new BuilderInstruction21s(Opcode.CONST_16, 1, 1000));
+        impl.replaceInstruction(7, new BuilderInstruction32x(Opcode.MOVE_16, 1, 1));
+        impl.swapInstructions(0, 3);
+
+        // 1 MOVE_16 added, 1 CONST_16 added and 1 CONST_4 removed before the label, and one CONST_4 replaced with a
+        // MOVE_16
+        Assert.assertEquals(11, label.getLocation().getIndex());
+        Assert.assertEquals(10 + 3 + 2 - 1 + 2, label.getCodeAddress());
+        assertLocations(impl);
+    }
+
+    @Test
+    public void testAddInstructions() {
+        MutableMethodImplementation sequential = new MutableMethodImplementation(10);
+        MutableMethodImplementation batched = new MutableMethodImplementation(10);
+        for (int i=0; i<10; i++) {
+            sequential.addInstruction(new BuilderInstruction21s(Opcode.CONST_16, 0, i));
+            batched.addInstruction(new BuilderInstruction21s(Opcode.CONST_16, 0, i));
+        }
+        Label sequentialLabel = sequential.newLabelForIndex(4);
+        Label batchedLabel = batched.newLabelForIndex(4);
+        Label sequentialEndLabel = sequential.newLabelForIndex(10);
+        Label batchedEndLabel = batched.newLabelForIndex(10);
+
+        int[] indexes = new int[] { 0, 0, 3, 4, 9, 10, 10 };
+
+        // adding from the end of the method keeps the earlier indexes valid
+        for (int i=indexes.length-1; i>=0; i--) {
+            sequential.addInstruction(indexes[i], new BuilderInstruction11n(Opcode.CONST_4, 1, i));
+        }
+        ListMultimap<Integer, BuilderInstruction> instructions = ArrayListMultimap.create();
+        for (int i=0; i<indexes.length; i++) {
+            instructions.put(indexes[i], new BuilderInstruction11n(Opcode.CONST_4, 1, i));
+        }
+        batched.addInstructions(instructions);
+
+        List<BuilderInstruction> expected = sequential.getInstructions();
+        List<BuilderInstruction> actual = batched.getInstructions();
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i=0; i<expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getOpcode(), actual.get(i).getOpcode());
+            Assert.assertEquals(((NarrowLiteralInstruction)expected.get(i)).getNarrowLiteral(),
+                    ((NarrowLiteralInstruction)actual.get(i)).getNarrowLiteral());
+        }
+        Assert.assertEquals(sequentialLabel.getCodeAddress(), batchedLabel.getCodeAddress());
+        Assert.assertEquals(sequentialEndLabel.getCodeAddress(), batchedEndLabel.getCodeAddress());
+        assertLocations(sequential);
+        assertLocations(batched);
+    }
+
+    private static void assertLocations(MutableMethodImplementation impl) {
+        int codeAddress = 0;
+        List<BuilderInstruction> instructions = impl.getInstructions();
+        for (int i=0; i<instructions.size(); i++) {
+            MethodLocation location = instructions.get(i).getLocation();
+            Assert.assertEquals(i, location.getIndex());
+            Assert.assertEquals(codeAddress, location.getCodeAddress());
+            codeAddress += instructions.get(i).getCodeUnits();
+        }
+    }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+
+public class DexBackedDexFileTest {
+    @Test
+    public void testGetClassByType() throws IOException {
+        URL url = DexBackedDexFileTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(url.getFile(), 15, false);
+
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            DexBackedClassDef found = dexFile.getClassByType(classDef.getType());
+            Assert.assertNotNull(found);
+            Assert.assertEquals(classDef.getType(), found.getType());
+        }
+
+        for (int i=0; i<dexFile.getTypeCount(); i++) {
+            Assert.assertEquals(i, dexFile.findTypeIndex(dexFile.getType(i)));
+        }
+
+        // referenced, but not defined in this dex file
+        Assert.assertTrue(dexFile.findTypeIndex("Ljava/lang/Object;") >= 0);
+        Assert.assertNull(dexFile.getClassByType("Ljava/lang/Object;"));
+        Assert.assertEquals(-1, dexFile.findTypeIndex("Lnot/a/Type;"));
+        Assert.assertNull(dexFile.getClassByType("Lnot/a/Type;"));
+    }
+}
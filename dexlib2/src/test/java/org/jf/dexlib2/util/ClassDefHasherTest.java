@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.util;
+
+import com.google.common.collect.Sets;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Set;
+
+public class ClassDefHasherTest {
+    private static DexFile loadAccessorTest() throws IOException {
+        URL url = ClassDefHasherTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        return DexFileFactory.loadDexFile(url.getFile(), 15, false);
+    }
+
+    @Test
+    public void testHashIsIndependentOfRepresentation() throws IOException {
+        for (ClassDef classDef: loadAccessorTest().getClasses()) {
+            Assert.assertEquals(ClassDefHasher.hashClass(classDef),
+                    ClassDefHasher.hashClass(ImmutableClassDef.of(classDef)));
+        }
+    }
+
+    @Test
+    public void testDistinctClassesHashDifferently() throws IOException {
+        Set<Object> hashes = Sets.newHashSet();
+        int count = 0;
+        for (ClassDef classDef: loadAccessorTest().getClasses()) {
+            hashes.add(ClassDefHasher.hashClass(classDef));
+            count++;
+        }
+        Assert.assertEquals(count, hashes.size());
+    }
+
+    @Test
+    public void testMethodChangeAltersHash() throws IOException {
+        for (ClassDef classDef: loadAccessorTest().getClasses()) {
+            for (Method method: classDef.getMethods()) {
+                ImmutableMethod renamed = new ImmutableMethod(method.getDefiningClass(), method.getName() + "_",
+                        method.getParameters(), method.getReturnType(), method.getAccessFlags(),
+                        method.getAnnotations(), method.getImplementation());
+                Assert.assertFalse(ClassDefHasher.hashMethod(method).equals(ClassDefHasher.hashMethod(renamed)));
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
+import org.jf.dexlib2.writer.builder.BuilderField;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class DexBuilderTest {
+    private static final Opcodes OPCODES = Opcodes.forApi(19);
+
+    private static void addClass(DexBuilder dexBuilder, String type) {
+        ImmutableMethodReference println = new ImmutableMethodReference("Ljava/io/PrintStream;", "println",
+                ImmutableList.of("Ljava/lang/String;"), "V");
+
+        MethodImplementationBuilder implBuilder = new MethodImplementationBuilder(3);
+        Label tryStart = implBuilder.addLabel("try_start");
+        implBuilder.addLineNumber(10);
+        implBuilder.addInstruction(new BuilderInstruction21c(Opcode.SGET_OBJECT, 0,
+                dexBuilder.internFieldReference(new ImmutableFieldReference("Ljava/lang/System;", "out",
+                        "Ljava/io/PrintStream;"))));
+        implBuilder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 1,
+                dexBuilder.internStringReference(type)));
+        implBuilder.addStartLocal(1, dexBuilder.internStringReference("name"),
+                dexBuilder.internTypeReference("Ljava/lang/String;"), null);
+        implBuilder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_VIRTUAL, 2, 0, 1, 0, 0, 0,
+                dexBuilder.internMethodReference(println)));
+        Label tryEnd = implBuilder.addLabel("try_end");
+        implBuilder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        Label handler = implBuilder.addLabel("handler");
+        implBuilder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_EXCEPTION, 0));
+        implBuilder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, tryEnd));
+        implBuilder.addCatch(dexBuilder.internTypeReference("Ljava/lang/RuntimeException;"), tryStart, tryEnd,
+                handler);
+
+        BuilderMethod method = dexBuilder.internMethod(type, "run",
+                ImmutableList.of(new ImmutableMethodParameter("I", null, "count")), "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), ImmutableSet.<Annotation>of(),
+                implBuilder.getMethodImplementation());
+        BuilderField field = dexBuilder.internField(type, "VALUE", "I",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), new ImmutableIntEncodedValue(5),
+                ImmutableSet.<Annotation>of());
+
+        dexBuilder.internClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;",
+                Lists.newArrayList("Ljava/lang/Runnable;"), type.substring(1, type.length() - 1) + ".java",
+                ImmutableSet.<Annotation>of(), ImmutableList.of(field), ImmutableList.of(method));
+    }
+
+    private static byte[] write(DexBuilder dexBuilder) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexBuilder.writeTo(dataStore);
+        byte[] data = dataStore.getData();
+        DexBackedDexFile dexFile = new DexBackedDexFile(OPCODES, data);
+        return Arrays.copyOf(data, dexFile.readSmallUint(32));
+    }
+
+    private static byte[] buildMerged(String[]... split) throws IOException {
+        List<DexBuilder> workerBuilders = Lists.newArrayList();
+        for (String[] types: split) {
+            DexBuilder workerBuilder = DexBuilder.makeDexBuilder(OPCODES);
+            for (String type: types) {
+                addClass(workerBuilder, type);
+            }
+            workerBuilders.add(workerBuilder);
+        }
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(OPCODES);
+        dexBuilder.internClassDefs(workerBuilders);
+        return write(dexBuilder);
+    }
+
+    @Test
+    public void testMergeIsIndependentOfSplit() throws IOException {
+        byte[] expected = buildMerged(new String[] {"LA;", "LB;", "LC;"});
+        Assert.assertArrayEquals(expected, buildMerged(new String[] {"LC;"}, new String[] {"LB;", "LA;"}));
+        Assert.assertArrayEquals(expected, buildMerged(new String[] {"LB;"}, new String[] {"LC;"},
+                new String[] {"LA;"}, new String[0]));
+    }
+
+    @Test
+    public void testMergeDuplicateClass() throws IOException {
+        try {
+            buildMerged(new String[] {"LA;"}, new String[] {"LA;"});
+            Assert.fail();
+        } catch (RuntimeException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInternDexBackedClass() throws IOException {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(OPCODES);
+        addClass(dexBuilder, "LA;");
+        addClass(dexBuilder, "LB;");
+        byte[] expected = write(dexBuilder);
+
+        DexBuilder copyBuilder = DexBuilder.makeDexBuilder(OPCODES);
+        for (ClassDef classDef: new DexBackedDexFile(OPCODES, expected).getClasses()) {
+            copyBuilder.internClassDef(classDef);
+        }
+        Assert.assertArrayEquals(expected, write(copyBuilder));
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.SwitchLabelElement;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.*;
+import org.jf.dexlib2.iface.debug.DebugItem;
+import org.jf.dexlib2.iface.debug.StartLocal;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction22cs;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class EncodedMethodImplementationTest {
+    private final Opcodes opcodes = Opcodes.forApi(19);
+
+    @Test
+    public void testDecode() {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(opcodes);
+        MethodImplementation methodImpl = buildMethodImplementation(dexBuilder);
+        EncodedMethodImplementation encodedImpl = EncodedMethodImplementation.encode(opcodes, methodImpl);
+        Assert.assertNotNull(encodedImpl);
+
+        Assert.assertEquals(methodImpl.getRegisterCount(), encodedImpl.getRegisterCount());
+
+        List<? extends Instruction> instructions = Lists.newArrayList(methodImpl.getInstructions());
+        List<? extends Instruction> decodedInstructions = encodedImpl.getInstructions();
+        Assert.assertEquals(instructions.size(), decodedInstructions.size());
+        for (int i=0; i<instructions.size(); i++) {
+            Instruction instruction = instructions.get(i);
+            Instruction decodedInstruction = decodedInstructions.get(i);
+            Assert.assertEquals(instruction.getOpcode(), decodedInstruction.getOpcode());
+            Assert.assertEquals(instruction.getCodeUnits(), decodedInstruction.getCodeUnits());
+            if (instruction instanceof ReferenceInstruction) {
+                Assert.assertSame(((ReferenceInstruction)instruction).getReference(),
+                        ((ReferenceInstruction)decodedInstruction).getReference());
+            }
+            if (instruction instanceof OffsetInstruction) {
+                Assert.assertEquals(((OffsetInstruction)instruction).getCodeOffset(),
+                        ((OffsetInstruction)decodedInstruction).getCodeOffset());
+            }
+        }
+
+        Assert.assertEquals(methodImpl.getTryBlocks(), encodedImpl.getTryBlocks());
+
+        List<? extends DebugItem> debugItems = Lists.newArrayList(methodImpl.getDebugItems());
+        List<? extends DebugItem> decodedDebugItems = encodedImpl.getDebugItems();
+        Assert.assertEquals(debugItems.size(), decodedDebugItems.size());
+        for (int i=0; i<debugItems.size(); i++) {
+            DebugItem debugItem = debugItems.get(i);
+            DebugItem decodedDebugItem = decodedDebugItems.get(i);
+            Assert.assertEquals(debugItem.getDebugItemType(), decodedDebugItem.getDebugItemType());
+            Assert.assertEquals(debugItem.getCodeAddress(), decodedDebugItem.getCodeAddress());
+            if (debugItem instanceof StartLocal) {
+                Assert.assertSame(((StartLocal)debugItem).getNameReference(),
+                        ((StartLocal)decodedDebugItem).getNameReference());
+                Assert.assertSame(((StartLocal)debugItem).getTypeReference(),
+                        ((StartLocal)decodedDebugItem).getTypeReference());
+            }
+        }
+    }
+
+    @Test
+    public void testEncodedOutputMatches() throws IOException {
+        Assert.assertTrue(Arrays.equals(buildDex(false), buildDex(true)));
+    }
+
+    @Test
+    public void testUnsupportedInstruction() {
+        MethodImplementation methodImpl = new ImmutableMethodImplementation(2,
+                ImmutableList.of(
+                        new ImmutableInstruction22cs(Opcode.IGET_QUICK, 0, 1, 8),
+                        new ImmutableInstruction10x(Opcode.RETURN_VOID)),
+                null, null);
+        Assert.assertNull(EncodedMethodImplementation.encode(opcodes, methodImpl));
+    }
+
+    @Test
+    public void testEncodedJumboStringConversion() throws IOException {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(opcodes);
+        dexBuilder.setEncodeMethodImplementations(true);
+
+        MethodImplementationBuilder methodBuilder = new MethodImplementationBuilder(1);
+        for (int i=0; i<66000; i++) {
+            methodBuilder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                    dexBuilder.internStringReference(String.format("%08d", i))));
+        }
+        methodBuilder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        addTestClass(dexBuilder, methodBuilder.getMethodImplementation());
+
+        MemoryDataStore dexStore = new MemoryDataStore();
+        dexBuilder.writeTo(dexStore);
+
+        DexBackedDexFile dexFile = new DexBackedDexFile(opcodes, dexStore.getData());
+        Method method = Iterables.getFirst(Iterables.getFirst(dexFile.getClasses(), null).getMethods(), null);
+        List<? extends Instruction> instructions = Lists.newArrayList(method.getImplementation().getInstructions());
+        Assert.assertEquals(66001, instructions.size());
+        Assert.assertEquals(Opcode.CONST_STRING, instructions.get(65535).getOpcode());
+        Assert.assertEquals(Opcode.CONST_STRING_JUMBO, instructions.get(65536).getOpcode());
+        Assert.assertEquals("00065536",
+                ((StringReference)((ReferenceInstruction)instructions.get(65536)).getReference()).getString());
+    }
+
+    @Nonnull
+    private byte[] buildDex(boolean encodeMethodImplementations) throws IOException {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(opcodes);
+        dexBuilder.setEncodeMethodImplementations(encodeMethodImplementations);
+        addTestClass(dexBuilder, buildMethodImplementation(dexBuilder));
+
+        MemoryDataStore dexStore = new MemoryDataStore();
+        dexBuilder.writeTo(dexStore);
+        return Arrays.copyOf(dexStore.getData(), dexStore.getSize());
+    }
+
+    private void addTestClass(@Nonnull DexBuilder dexBuilder, @Nonnull MethodImplementation methodImpl) {
+        dexBuilder.internClassDef(
+                "Ltest;",
+                0,
+                "Ljava/lang/Object;",
+                null,
+                null,
+                ImmutableSet.<Annotation>of(),
+                null,
+                ImmutableList.of(
+                        dexBuilder.internMethod(
+                                "Ltest;",
+                                "test",
+                                null,
+                                "V",
+                                AccessFlags.STATIC.getValue(),
+                                ImmutableSet.<Annotation>of(),
+                                methodImpl)));
+    }
+
+    @Nonnull
+    private MethodImplementation buildMethodImplementation(@Nonnull DexBuilder dexBuilder) {
+        MethodImplementationBuilder methodBuilder = new MethodImplementationBuilder(4);
+        Label tryStart = methodBuilder.addLabel("tryStart");
+        methodBuilder.addPrologue();
+        methodBuilder.addLineNumber(10);
+        methodBuilder.addSetSourceFile(dexBuilder.internStringReference("Test.java"));
+        methodBuilder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, -3));
+        methodBuilder.addStartLocal(0, dexBuilder.internStringReference("i"), dexBuilder.internTypeReference("I"),
+                null);
+        methodBuilder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 1,
+                dexBuilder.internStringReference("foo")));
+        methodBuilder.addInstruction(new BuilderInstruction21c(Opcode.SGET_OBJECT, 2,
+                dexBuilder.internFieldReference(
+                        new ImmutableFieldReference("Ljava/lang/System;", "out", "Ljava/io/PrintStream;"))));
+        methodBuilder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_VIRTUAL, 2, 2, 1, 0, 0, 0,
+                dexBuilder.internMethodReference(new ImmutableMethodReference("Ljava/io/PrintStream;", "println",
+                        ImmutableList.of("Ljava/lang/String;"), "V"))));
+        methodBuilder.addInstruction(new BuilderInstruction3rc(Opcode.INVOKE_STATIC_RANGE, 0, 4,
+                dexBuilder.internMethodReference(new ImmutableMethodReference("Ltest;", "range",
+                        ImmutableList.of("I", "I", "J"), "V"))));
+        methodBuilder.addInstruction(new BuilderInstruction21lh(Opcode.CONST_WIDE_HIGH16, 2, 0x4000000000000000L));
+        methodBuilder.addInstruction(new BuilderInstruction21ih(Opcode.CONST_HIGH16, 1, 0x10000));
+        methodBuilder.addInstruction(new BuilderInstruction22c(Opcode.NEW_ARRAY, 1, 0,
+                dexBuilder.internTypeReference("[B")));
+        methodBuilder.addInstruction(new BuilderInstruction31t(Opcode.FILL_ARRAY_DATA, 1,
+                methodBuilder.getLabel("array")));
+        methodBuilder.addInstruction(new BuilderInstruction31t(Opcode.PACKED_SWITCH, 0,
+                methodBuilder.getLabel("packedSwitch")));
+        methodBuilder.addInstruction(new BuilderInstruction31t(Opcode.SPARSE_SWITCH, 0,
+                methodBuilder.getLabel("sparseSwitch")));
+        methodBuilder.addLineNumber(11);
+        methodBuilder.addInstruction(new BuilderInstruction21t(Opcode.IF_EQZ, 0, methodBuilder.getLabel("end")));
+        methodBuilder.addEndLocal(0);
+        methodBuilder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, methodBuilder.getLabel("end")));
+        Label tryEnd = methodBuilder.addLabel("tryEnd");
+        Label handler = methodBuilder.addLabel("handler");
+        methodBuilder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_EXCEPTION, 1));
+        methodBuilder.addInstruction(new BuilderInstruction11x(Opcode.THROW, 1));
+        methodBuilder.addLabel("end");
+        methodBuilder.addEpilogue();
+        methodBuilder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        methodBuilder.addLabel("array");
+        methodBuilder.addInstruction(new BuilderArrayPayload(1, ImmutableList.<Number>of(1, -2, 3)));
+        methodBuilder.addLabel("packedSwitch");
+        methodBuilder.addInstruction(new BuilderPackedSwitchPayload(5,
+                ImmutableList.of(methodBuilder.getLabel("end"), handler)));
+        methodBuilder.addLabel("sparseSwitch");
+        methodBuilder.addInstruction(new BuilderSparseSwitchPayload(ImmutableList.of(
+                new SwitchLabelElement(10, methodBuilder.getLabel("end")),
+                new SwitchLabelElement(-3, handler))));
+
+        methodBuilder.addCatch(dexBuilder.internTypeReference("Ljava/lang/Exception;"), tryStart, tryEnd, handler);
+        methodBuilder.addCatch(tryStart, tryEnd, handler);
+
+        return methodBuilder.getMethodImplementation();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An on-disk cache of assembled classes, for incremental builds.
+ *
+ * Each entry is a small dex file containing the single class from a smali file. Entries are keyed by a hash of the
+ * contents of the smali file, along with the options that affect how it is assembled, so an entry never needs to be
+ * invalidated. A changed file simply gets a new entry.
+ */
+class AssemblyCache {
+    /**
+     * This should be incremented whenever a change in smali would cause a file to be assembled differently
+     */
+    private static final int CACHE_VERSION = 1;
+
+    @Nonnull private final File directory;
+    @Nonnull private final SmaliOptions options;
+    @Nonnull private final Opcodes opcodes;
+
+    public AssemblyCache(@Nonnull File directory, @Nonnull SmaliOptions options) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the cache directory " + directory.getPath());
+        }
+        this.directory = directory;
+        this.options = options;
+        this.opcodes = Opcodes.forApi(options.apiLevel, options.experimental);
+    }
+
+    @Nonnull
+    public String getKey(@Nonnull byte[] smaliBytes) {
+        Hasher hasher = Hashing.sha1().newHasher()
+                .putInt(CACHE_VERSION)
+                .putString(main.VERSION, Charsets.UTF_8)
+                .putInt(options.apiLevel)
+                .putBoolean(options.experimental)
+                .putBoolean(options.allowOdex);
+        return hasher.putBytes(smaliBytes).hash().toString();
+    }
+
+    /**
+     * @return The cached dex file for the given key, or null if there isn't one
+     */
+    @Nullable
+    public byte[] get(@Nonnull String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] dexBytes = Files.toByteArray(file);
+            // a damaged entry is treated the same as a missing one, and will be replaced
+            if (dexBytes.length < HeaderItem.ITEM_SIZE ||
+                    new DexBackedDexFile(opcodes, dexBytes).readSmallUint(HeaderItem.FILE_SIZE_OFFSET) !=
+                            dexBytes.length) {
+                return null;
+            }
+            return dexBytes;
+        } catch (IOException ex) {
+            return null;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return A new DexBuilder to assemble a single class into, for storing in the cache
+     */
+    @Nonnull
+    public DexBuilder makeDexBuilder() {
+        return DexBuilder.makeDexBuilder(opcodes);
+    }
+
+    /**
+     * Writes out a class that was assembled into a DexBuilder from {@link #makeDexBuilder()}, and stores it in the
+     * cache. Failing to write the entry isn't an error, the class just won't be cached.
+     *
+     * @return The dex file that was stored
+     */
+    @Nonnull
+    public byte[] put(@Nonnull String key, @Nonnull DexBuilder classBuilder) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore(64 * 1024);
+        classBuilder.writeTo(dataStore);
+        byte[] dexBytes = Arrays.copyOf(dataStore.getData(), dataStore.getSize());
+
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(key, ".tmp", directory);
+            Files.write(dexBytes, tempFile);
+            // the rename is atomic, so concurrent builds sharing the cache never see a partial entry
+            if (!tempFile.renameTo(getFile(key))) {
+                tempFile.delete();
+            }
+        } catch (IOException ex) {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+        return dexBytes;
+    }
+
+    /**
+     * Interns the class from a cached dex file into the given DexBuilder.
+     */
+    public void intern(@Nonnull byte[] dexBytes, @Nonnull DexBuilder dexBuilder) {
+        for (ClassDef classDef: new DexBackedDexFile(opcodes, dexBytes).getClasses()) {
+            dexBuilder.internClassDef(classDef);
+        }
+    }
+
+    @Nonnull
+    private File getFile(@Nonnull String key) {
+        return new File(directory, key + ".dex");
+    }
+}
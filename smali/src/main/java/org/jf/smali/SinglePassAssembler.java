@@ -0,0 +1,1472 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.VerificationError;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.SwitchLabelElement;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.AnnotationElement;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.immutable.value.*;
+import org.jf.dexlib2.util.MethodUtil;
+import org.jf.dexlib2.writer.builder.BuilderField;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.LinearSearch;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.jf.smali.smaliParser.*;
+
+/**
+ * Assembles a smali file directly from the lexer's tokens into a DexBuilder, without building the intermediate AST
+ * that smaliParser produces and smaliTreeWalker consumes.
+ *
+ * This accepts the same input as the parser and tree walker, and interns exactly the same items. It doesn't report
+ * any errors though - on any input it doesn't accept, including odexed instructions, it gives up and returns false, and
+ * the file should be assembled again with the parser and tree walker, which print the usual error messages.
+ */
+public class SinglePassAssembler {
+    @Nonnull private final smaliFlexLexer lexer;
+    @Nonnull private final DexBuilder dexBuilder;
+    @Nonnull private final Opcodes opcodes;
+    private final int apiLevel;
+    private final boolean allowOdex;
+
+    // the tokens that have been looked at but not consumed yet
+    private final ArrayList<Token> tokens = Lists.newArrayList();
+    private int tokenIndex = 0;
+
+    private String classType;
+
+    private boolean isStatic;
+    private int totalMethodRegisters;
+    private int methodParameterRegisters;
+    @Nullable private Token registersDirective;
+    @Nullable private MethodImplementationBuilder methodBuilder;
+    // the labels that the current method refers to, which must all have been placed by the end of the method
+    private final List<Label> referencedLabels = Lists.newArrayList();
+
+    private SinglePassAssembler(@Nonnull smaliFlexLexer lexer, @Nonnull Opcodes opcodes,
+                                @Nonnull DexBuilder dexBuilder, @Nonnull SmaliOptions options) {
+        this.lexer = lexer;
+        this.lexer.setSuppressErrors(true);
+        this.dexBuilder = dexBuilder;
+        this.opcodes = opcodes;
+        this.apiLevel = options.apiLevel;
+        this.allowOdex = options.allowOdex;
+    }
+
+    /**
+     * Assembles a smali file into the given DexBuilder.
+     *
+     * The class is only interned once the whole file has been read, but the strings, types, references and
+     * annotation sets in its fields and methods are interned as they are read. When this returns false, the ones
+     * from the part of the file before the unsupported input are left in the DexBuilder. The parser and tree walker
+     * intern all of them when they assemble the same file, so this doesn't change the output if the file is then
+     * assembled that way. If that fails too, the DexBuilder may contain items that no class refers to.
+     *
+     * SmaliAssembler reuses a lexer for each thread, and should be used when assembling a number of files.
+     *
+     * @param chars The contents of the smali file
+     * @param opcodes The opcodes for the api level and experimental setting in options
+     * @param dexBuilder The DexBuilder to intern the class into
+     * @param options The options to assemble with
+     * @return true if the class was assembled, or false if the file has to be assembled with the parser and tree
+     * walker instead
+     */
+    public static boolean assemble(@Nonnull char[] chars, @Nonnull Opcodes opcodes, @Nonnull DexBuilder dexBuilder,
+                                   @Nonnull SmaliOptions options) {
+        return assemble(new smaliFlexLexer(chars), opcodes, dexBuilder, options);
+    }
+
+    /**
+     * Assembles a smali file into the given DexBuilder, using an existing lexer and opcode table.
+     *
+     * @param lexer A lexer that has been reset to the start of the smali file
+     * @param opcodes The opcodes for the api level in options
+     */
+    static boolean assemble(@Nonnull smaliFlexLexer lexer, @Nonnull Opcodes opcodes, @Nonnull DexBuilder dexBuilder,
+                            @Nonnull SmaliOptions options) {
+        try {
+            new SinglePassAssembler(lexer, opcodes, dexBuilder, options).smaliFile();
+            return true;
+        } catch (UnsupportedInputException ex) {
+            return false;
+        }
+    }
+
+    private static class UnsupportedInputException extends RuntimeException {
+        @Override public synchronized Throwable fillInStackTrace() {
+            // this is only used for control flow, so there's no need for the stack trace
+            return this;
+        }
+    }
+
+    @Nonnull
+    private static UnsupportedInputException unsupported() {
+        return new UnsupportedInputException();
+    }
+
+    @Nonnull
+    private Token LT(int k) {
+        int index = tokenIndex + k - 1;
+        while (tokens.size() <= index) {
+            Token token = lexer.nextToken();
+            if (token.getChannel() == ERROR_CHANNEL) {
+                throw unsupported();
+            }
+            if (token.getChannel() != Token.HIDDEN_CHANNEL) {
+                tokens.add(token);
+            }
+        }
+        return tokens.get(index);
+    }
+
+    private int LA(int k) {
+        return LT(k).getType();
+    }
+
+    @Nonnull
+    private Token consume() {
+        Token token = LT(1);
+        if (++tokenIndex == tokens.size()) {
+            tokens.clear();
+            tokenIndex = 0;
+        }
+        return token;
+    }
+
+    @Nonnull
+    private Token match(int type) {
+        if (LA(1) != type) {
+            throw unsupported();
+        }
+        return consume();
+    }
+
+    private void smaliFile() {
+        boolean hasClassSpec = false;
+        boolean hasSuperSpec = false;
+        boolean hasSourceSpec = false;
+
+        int accessFlags = 0;
+        String superType = null;
+        List<String> implementsList = Lists.newArrayList();
+        String source = null;
+        List<Annotation> classAnnotations = Lists.newArrayList();
+        List<BuilderField> fields = Lists.newArrayList();
+        List<BuilderMethod> methods = Lists.newArrayList();
+
+        if (LA(1) == EOF) {
+            throw unsupported();
+        }
+
+        while (LA(1) != EOF) {
+            switch (LA(1)) {
+                case CLASS_DIRECTIVE:
+                    if (hasClassSpec) {
+                        throw unsupported();
+                    }
+                    consume();
+                    accessFlags = accessList();
+                    classType = match(CLASS_DESCRIPTOR).getText();
+                    hasClassSpec = true;
+                    break;
+                case SUPER_DIRECTIVE:
+                    if (hasSuperSpec) {
+                        throw unsupported();
+                    }
+                    consume();
+                    superType = match(CLASS_DESCRIPTOR).getText();
+                    hasSuperSpec = true;
+                    break;
+                case IMPLEMENTS_DIRECTIVE:
+                    consume();
+                    implementsList.add(match(CLASS_DESCRIPTOR).getText());
+                    break;
+                case SOURCE_DIRECTIVE:
+                    if (hasSourceSpec) {
+                        throw unsupported();
+                    }
+                    consume();
+                    source = stringLiteral(match(STRING_LITERAL));
+                    hasSourceSpec = true;
+                    break;
+                case METHOD_DIRECTIVE:
+                    // member references without an explicit type refer to the class, so it must be known by now
+                    if (classType == null) {
+                        throw unsupported();
+                    }
+                    methods.add(method());
+                    break;
+                case FIELD_DIRECTIVE:
+                    if (classType == null) {
+                        throw unsupported();
+                    }
+                    fields.add(field(classAnnotations));
+                    break;
+                case ANNOTATION_DIRECTIVE:
+                    classAnnotations.add(annotation());
+                    break;
+                default:
+                    throw unsupported();
+            }
+        }
+
+        if (!hasClassSpec) {
+            throw unsupported();
+        }
+        if (!hasSuperSpec && !classType.equals("Ljava/lang/Object;")) {
+            throw unsupported();
+        }
+
+        try {
+            dexBuilder.internClassDef(classType, accessFlags, superType,
+                    implementsList.size() > 0 ? implementsList : null, source, annotationSet(classAnnotations),
+                    fields, methods);
+        } catch (ExceptionWithContext ex) {
+            // e.g. a class that has already been interned, which the tree walker reports
+            throw unsupported();
+        }
+    }
+
+    private int accessList() {
+        int value = 0;
+        while (LA(1) == ACCESS_SPEC) {
+            value |= AccessFlags.getAccessFlag(consume().getText()).getValue();
+        }
+        return value;
+    }
+
+    @Nonnull
+    private BuilderField field(@Nonnull List<Annotation> classAnnotations) {
+        match(FIELD_DIRECTIVE);
+        int accessFlags = accessList();
+        String name = memberName();
+        match(COLON);
+        String type = nonvoidTypeDescriptor();
+
+        EncodedValue initialValue = null;
+        if (LA(1) == EQUAL) {
+            consume();
+            initialValue = literal();
+        }
+
+        // as in the parser, any annotations after the field belong to the class if there is no .end field
+        List<Annotation> annotations = Lists.newArrayList();
+        while (LA(1) == ANNOTATION_DIRECTIVE) {
+            annotations.add(annotation());
+        }
+        Set<Annotation> fieldAnnotations = null;
+        if (LA(1) == END_FIELD_DIRECTIVE) {
+            consume();
+            fieldAnnotations = annotationSet(annotations);
+        } else {
+            classAnnotations.addAll(annotations);
+        }
+
+        if (!AccessFlags.STATIC.isSet(accessFlags) && initialValue != null) {
+            throw unsupported();
+        }
+
+        return dexBuilder.internField(classType, name, type, accessFlags, initialValue, fieldAnnotations);
+    }
+
+    @Nonnull
+    private BuilderMethod method() {
+        match(METHOD_DIRECTIVE);
+        int accessFlags = accessList();
+        String name = memberName();
+        List<String> parameterTypes = Lists.newArrayList();
+        String returnType = methodPrototype(parameterTypes);
+
+        List<SmaliMethodParameter> parameters = Lists.newArrayList();
+        int paramRegister = 0;
+        for (String type: parameterTypes) {
+            parameters.add(new SmaliMethodParameter(paramRegister++, type));
+            char c = type.charAt(0);
+            if (c == 'D' || c == 'J') {
+                paramRegister++;
+            }
+        }
+
+        isStatic = AccessFlags.STATIC.isSet(accessFlags);
+        totalMethodRegisters = 0;
+        methodParameterRegisters = MethodUtil.getParameterRegisterCount(parameters, isStatic);
+        registersDirective = null;
+        methodBuilder = null;
+        referencedLabels.clear();
+
+        // the tree walker adds the catches after all of the other items in the method
+        List<String> catches = Lists.newArrayList();
+        List<String> catchalls = Lists.newArrayList();
+        List<String> catchTypes = Lists.newArrayList();
+        List<Annotation> methodAnnotations = Lists.newArrayList();
+
+        while (LA(1) != END_METHOD_DIRECTIVE) {
+            switch (LA(1)) {
+                case REGISTERS_DIRECTIVE:
+                case LOCALS_DIRECTIVE: {
+                    Token directive = consume();
+                    Token value = consume();
+                    if (registersDirective == null) {
+                        registersDirective(directive, value);
+                    } else if (registersDirective != directive) {
+                        throw unsupported();
+                    }
+                    break;
+                }
+                case CATCH_DIRECTIVE:
+                    consume();
+                    catchTypes.add(nonvoidTypeDescriptor());
+                    catches.addAll(catchLabels());
+                    break;
+                case CATCHALL_DIRECTIVE:
+                    consume();
+                    catchalls.addAll(catchLabels());
+                    break;
+                case PARAMETER_DIRECTIVE:
+                    parameterDirective(parameters, methodAnnotations);
+                    break;
+                case ANNOTATION_DIRECTIVE:
+                    methodAnnotations.add(annotation());
+                    break;
+                case COLON: {
+                    consume();
+                    String labelName = simpleName();
+                    MethodImplementationBuilder methodBuilder = startMethodImplementation();
+                    if (methodBuilder.getLabel(labelName).isPlaced()) {
+                        throw unsupported();
+                    }
+                    methodBuilder.addLabel(labelName);
+                    break;
+                }
+                case EOF:
+                    throw unsupported();
+                default:
+                    orderedMethodItem();
+                    break;
+            }
+        }
+        MethodImplementationBuilder methodBuilder = startMethodImplementation();
+        consume();
+
+        for (int i=0; i<catchTypes.size(); i++) {
+            methodBuilder.addCatch(dexBuilder.internTypeReference(catchTypes.get(i)),
+                    catchLabel(catches.get(i*3)),
+                    catchLabel(catches.get(i*3+1)),
+                    catchLabel(catches.get(i*3+2)));
+        }
+        for (int i=0; i<catchalls.size(); i+=3) {
+            methodBuilder.addCatch(catchLabel(catchalls.get(i)),
+                    catchLabel(catchalls.get(i+1)),
+                    catchLabel(catchalls.get(i+2)));
+        }
+        for (Label label: referencedLabels) {
+            if (!label.isPlaced()) {
+                throw unsupported();
+            }
+        }
+
+        boolean isAbstract = (accessFlags & AccessFlags.ABSTRACT.getValue()) != 0;
+        boolean isNative = !isAbstract && (accessFlags & AccessFlags.NATIVE.getValue()) != 0;
+
+        MethodImplementation methodImplementation = methodBuilder.getMethodImplementation();
+
+        if (!methodImplementation.getInstructions().iterator().hasNext()) {
+            if (!isAbstract && !isNative) {
+                throw unsupported();
+            }
+            if (registersDirective != null || methodImplementation.getTryBlocks().size() > 0 ||
+                    methodImplementation.getDebugItems().iterator().hasNext()) {
+                throw unsupported();
+            }
+            methodImplementation = null;
+        } else {
+            if (isAbstract || isNative || registersDirective == null ||
+                    totalMethodRegisters < methodParameterRegisters) {
+                throw unsupported();
+            }
+        }
+
+        return dexBuilder.internMethod(classType, name, parameters, returnType, accessFlags,
+                annotationSet(methodAnnotations), methodImplementation);
+    }
+
+    /**
+     * Gets the builder for the current method's implementation, creating it if needed.
+     *
+     * The tree walker handles the .registers or .locals directive before anything else in the method, so if it
+     * hasn't been seen yet, this looks ahead for it, since it determines the number of each p register.
+     */
+    @Nonnull
+    private MethodImplementationBuilder startMethodImplementation() {
+        if (methodBuilder == null) {
+            if (registersDirective == null) {
+                for (int k=1; LA(k) != END_METHOD_DIRECTIVE && LA(k) != EOF; k++) {
+                    if (LA(k) == REGISTERS_DIRECTIVE || LA(k) == LOCALS_DIRECTIVE) {
+                        registersDirective(LT(k), LT(k+1));
+                        break;
+                    }
+                }
+            }
+            methodBuilder = new MethodImplementationBuilder(totalMethodRegisters);
+        }
+        return methodBuilder;
+    }
+
+    private void registersDirective(@Nonnull Token directive, @Nonnull Token value) {
+        int registers;
+        try {
+            registers = shortIntegralLiteral(value) & 0xFFFF;
+        } catch (NumberFormatException ex) {
+            throw unsupported();
+        }
+        if (directive.getType() == LOCALS_DIRECTIVE) {
+            totalMethodRegisters = registers + methodParameterRegisters;
+        } else {
+            totalMethodRegisters = registers;
+        }
+        registersDirective = directive;
+    }
+
+    /**
+     * Parses the labels of a .catch or .catchall directive, after its type.
+     *
+     * @return The names of the from, to and using labels
+     */
+    @Nonnull
+    private List<String> catchLabels() {
+        List<String> labels = new ArrayList<String>(3);
+        match(OPEN_BRACE);
+        match(COLON);
+        labels.add(simpleName());
+        match(DOTDOT);
+        match(COLON);
+        labels.add(simpleName());
+        match(CLOSE_BRACE);
+        match(COLON);
+        labels.add(simpleName());
+        return labels;
+    }
+
+    private void parameterDirective(@Nonnull List<SmaliMethodParameter> parameters,
+                                    @Nonnull List<Annotation> methodAnnotations) {
+        match(PARAMETER_DIRECTIVE);
+        String register = match(REGISTER).getText();
+        String name = null;
+        if (LA(1) == COMMA) {
+            consume();
+            name = stringLiteral(match(STRING_LITERAL));
+        }
+
+        List<Annotation> annotations = Lists.newArrayList();
+        while (LA(1) == ANNOTATION_DIRECTIVE) {
+            annotations.add(annotation());
+        }
+        Set<Annotation> parameterAnnotations = null;
+        if (LA(1) == END_PARAMETER_DIRECTIVE) {
+            consume();
+            parameterAnnotations = annotationSet(annotations);
+        } else {
+            methodAnnotations.addAll(annotations);
+        }
+
+        startMethodImplementation();
+        int registerNumber;
+        try {
+            registerNumber = parseRegisterShort(register);
+        } catch (NumberFormatException ex) {
+            throw unsupported();
+        }
+        if (registerNumber >= totalMethodRegisters) {
+            throw unsupported();
+        }
+        final int indexGuess = registerNumber - (totalMethodRegisters - methodParameterRegisters) - (isStatic?0:1);
+        if (indexGuess < 0) {
+            throw unsupported();
+        }
+
+        int parameterIndex = LinearSearch.linearSearch(parameters, SmaliMethodParameter.COMPARATOR,
+                new WithRegister() { public int getRegister() { return indexGuess; } },
+                indexGuess);
+        if (parameterIndex < 0) {
+            throw unsupported();
+        }
+
+        SmaliMethodParameter methodParameter = parameters.get(parameterIndex);
+        methodParameter.name = name;
+        if (parameterAnnotations != null) {
+            methodParameter.annotations = parameterAnnotations;
+        }
+    }
+
+    private void orderedMethodItem() {
+        MethodImplementationBuilder methodBuilder = startMethodImplementation();
+        Token token = consume();
+        // Like the tree walker, which reports any error in an instruction as a semantic error, this treats the
+        // validation errors from LiteralTools and the builder instructions as invalid input. They both throw an
+        // IllegalArgumentException, e.g. a NumberFormatException for a literal or register that is out of range.
+        try {
+            orderedMethodItem(methodBuilder, token);
+        } catch (IllegalArgumentException ex) {
+            throw unsupported();
+        }
+    }
+
+    private void orderedMethodItem(@Nonnull MethodImplementationBuilder methodBuilder, @Nonnull Token token) {
+
+        switch (token.getType()) {
+            case LINE_DIRECTIVE:
+                methodBuilder.addLineNumber(integralLiteral(consume()));
+                return;
+            case LOCAL_DIRECTIVE: {
+                int registerNumber = parseRegisterShort(match(REGISTER).getText());
+                String name = null;
+                String type = null;
+                String signature = null;
+                if (LA(1) == COMMA) {
+                    consume();
+                    if (LA(1) == NULL_LITERAL) {
+                        consume();
+                    } else {
+                        name = stringLiteral(match(STRING_LITERAL));
+                    }
+                    match(COLON);
+                    if (LA(1) == VOID_TYPE) {
+                        consume();
+                    } else {
+                        type = nonvoidTypeDescriptor();
+                    }
+                    if (LA(1) == COMMA) {
+                        consume();
+                        signature = stringLiteral(match(STRING_LITERAL));
+                    }
+                }
+                methodBuilder.addStartLocal(registerNumber,
+                        dexBuilder.internNullableStringReference(name),
+                        dexBuilder.internNullableTypeReference(type),
+                        dexBuilder.internNullableStringReference(signature));
+                return;
+            }
+            case END_LOCAL_DIRECTIVE:
+                methodBuilder.addEndLocal(parseRegisterShort(match(REGISTER).getText()));
+                return;
+            case RESTART_LOCAL_DIRECTIVE:
+                methodBuilder.addRestartLocal(parseRegisterShort(match(REGISTER).getText()));
+                return;
+            case PROLOGUE_DIRECTIVE:
+                methodBuilder.addPrologue();
+                return;
+            case EPILOGUE_DIRECTIVE:
+                methodBuilder.addEpilogue();
+                return;
+            case SOURCE_DIRECTIVE: {
+                String source = null;
+                if (LA(1) == STRING_LITERAL) {
+                    source = stringLiteral(consume());
+                }
+                methodBuilder.addSetSourceFile(dexBuilder.internNullableStringReference(source));
+                return;
+            }
+            case ARRAY_DATA_DIRECTIVE: {
+                Token widthToken = consume();
+                if (widthToken.getType() != POSITIVE_INTEGER_LITERAL &&
+                        widthToken.getType() != NEGATIVE_INTEGER_LITERAL) {
+                    throw unsupported();
+                }
+                int elementWidth = shortIntegralLiteral(widthToken);
+                if (elementWidth != 4 && elementWidth != 8 && elementWidth != 1 && elementWidth != 2) {
+                    throw unsupported();
+                }
+                List<Number> elements = Lists.newArrayList();
+                while (LA(1) != END_ARRAY_DATA_DIRECTIVE) {
+                    elements.add(fixed64bitLiteralNumber(consume()));
+                }
+                consume();
+                methodBuilder.addInstruction(new BuilderArrayPayload(elementWidth, elements));
+                return;
+            }
+            case PACKED_SWITCH_DIRECTIVE: {
+                int startKey = fixed32bitLiteral(consume());
+                List<Label> elements = Lists.newArrayList();
+                while (LA(1) != END_PACKED_SWITCH_DIRECTIVE) {
+                    elements.add(labelRef());
+                }
+                consume();
+                methodBuilder.addInstruction(new BuilderPackedSwitchPayload(startKey, elements));
+                return;
+            }
+            case SPARSE_SWITCH_DIRECTIVE: {
+                List<SwitchLabelElement> elements = Lists.newArrayList();
+                while (LA(1) != END_SPARSE_SWITCH_DIRECTIVE) {
+                    int key = fixed32bitLiteral(consume());
+                    match(ARROW);
+                    elements.add(new SwitchLabelElement(key, labelRef()));
+                }
+                consume();
+                methodBuilder.addInstruction(new BuilderSparseSwitchPayload(elements));
+                return;
+            }
+        }
+
+        Opcode opcode = opcodes.getOpcodeByName(token.getText());
+        if (opcode == null) {
+            throw unsupported();
+        }
+
+        switch (token.getType()) {
+            case INSTRUCTION_FORMAT10t:
+                methodBuilder.addInstruction(new BuilderInstruction10t(opcode, labelRef()));
+                return;
+            case INSTRUCTION_FORMAT10x:
+                methodBuilder.addInstruction(new BuilderInstruction10x(opcode));
+                return;
+            case INSTRUCTION_FORMAT11n: {
+                byte regA = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                short litB = shortIntegralLiteral(consume());
+                LiteralTools.checkNibble(litB);
+                methodBuilder.addInstruction(new BuilderInstruction11n(opcode, regA, litB));
+                return;
+            }
+            case INSTRUCTION_FORMAT11x:
+                methodBuilder.addInstruction(new BuilderInstruction11x(opcode,
+                        parseRegisterByte(match(REGISTER).getText())));
+                return;
+            case INSTRUCTION_FORMAT12x:
+            case INSTRUCTION_FORMAT12x_OR_ID: {
+                byte regA = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                byte regB = parseRegisterNibble(match(REGISTER).getText());
+                methodBuilder.addInstruction(new BuilderInstruction12x(opcode, regA, regB));
+                return;
+            }
+            case INSTRUCTION_FORMAT20bc: {
+                if (!allowOdex || apiLevel >= 14) {
+                    throw unsupported();
+                }
+                int verificationError = VerificationError.getVerificationError(
+                        match(VERIFICATION_ERROR_TYPE).getText());
+                match(COMMA);
+                ImmutableReference reference;
+                if (LA(1) == CLASS_DESCRIPTOR && LA(2) != ARROW) {
+                    reference = new ImmutableTypeReference(consume().getText());
+                } else {
+                    reference = fieldOrMethodReference();
+                }
+                methodBuilder.addInstruction(new BuilderInstruction20bc(opcode, verificationError,
+                        dexBuilder.internReference(reference)));
+                return;
+            }
+            case INSTRUCTION_FORMAT20t:
+                methodBuilder.addInstruction(new BuilderInstruction20t(opcode, labelRef()));
+                return;
+            case INSTRUCTION_FORMAT21c_FIELD_ODEX:
+                if (!allowOdex || apiLevel >= 14) {
+                    throw unsupported();
+                }
+                // fall through
+            case INSTRUCTION_FORMAT21c_FIELD: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction21c(opcode, regA,
+                        dexBuilder.internFieldReference(fieldReference())));
+                return;
+            }
+            case INSTRUCTION_FORMAT21c_STRING:
+            case INSTRUCTION_FORMAT21c_LAMBDA: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction21c(opcode, regA,
+                        dexBuilder.internStringReference(stringLiteral(match(STRING_LITERAL)))));
+                return;
+            }
+            case INSTRUCTION_FORMAT21c_TYPE: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction21c(opcode, regA,
+                        dexBuilder.internTypeReference(nonvoidTypeDescriptor())));
+                return;
+            }
+            case INSTRUCTION_FORMAT21c_METHOD: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction21c(opcode, regA,
+                        dexBuilder.internMethodReference(methodReference())));
+                return;
+            }
+            case INSTRUCTION_FORMAT21ih: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction21ih(opcode, regA, fixed32bitLiteral(consume())));
+                return;
+            }
+            case INSTRUCTION_FORMAT21lh: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                Token literal = consume();
+                // the parser only accepts a 32 bit literal here, but the tree walker widens it the 64 bit way
+                if (literal.getType() == DOUBLE_LITERAL || literal.getType() == DOUBLE_LITERAL_OR_ID) {
+                    throw unsupported();
+                }
+                methodBuilder.addInstruction(new BuilderInstruction21lh(opcode, regA, fixed64bitLiteral(literal)));
+                return;
+            }
+            case INSTRUCTION_FORMAT21s: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction21s(opcode, regA, shortIntegralLiteral(consume())));
+                return;
+            }
+            case INSTRUCTION_FORMAT21t: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction21t(opcode, regA, labelRef()));
+                return;
+            }
+            case INSTRUCTION_FORMAT22b: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                short regB = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                short litC = shortIntegralLiteral(consume());
+                LiteralTools.checkByte(litC);
+                methodBuilder.addInstruction(new BuilderInstruction22b(opcode, regA, regB, litC));
+                return;
+            }
+            case INSTRUCTION_FORMAT22c_FIELD_ODEX:
+                if (!allowOdex || apiLevel >= 14) {
+                    throw unsupported();
+                }
+                // fall through
+            case INSTRUCTION_FORMAT22c_FIELD: {
+                byte regA = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                byte regB = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction22c(opcode, regA, regB,
+                        dexBuilder.internFieldReference(fieldReference())));
+                return;
+            }
+            case INSTRUCTION_FORMAT22c_TYPE: {
+                byte regA = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                byte regB = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction22c(opcode, regA, regB,
+                        dexBuilder.internTypeReference(nonvoidTypeDescriptor())));
+                return;
+            }
+            case INSTRUCTION_FORMAT22c_STRING: {
+                byte regA = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                byte regB = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction22c(opcode, regA, regB,
+                        dexBuilder.internStringReference(stringLiteral(match(STRING_LITERAL)))));
+                return;
+            }
+            case INSTRUCTION_FORMAT22s:
+            case INSTRUCTION_FORMAT22s_OR_ID: {
+                byte regA = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                byte regB = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction22s(opcode, regA, regB,
+                        shortIntegralLiteral(consume())));
+                return;
+            }
+            case INSTRUCTION_FORMAT22t: {
+                byte regA = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                byte regB = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction22t(opcode, regA, regB, labelRef()));
+                return;
+            }
+            case INSTRUCTION_FORMAT22x: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                int regB = parseRegisterShort(match(REGISTER).getText());
+                methodBuilder.addInstruction(new BuilderInstruction22x(opcode, regA, regB));
+                return;
+            }
+            case INSTRUCTION_FORMAT23x: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                short regB = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                short regC = parseRegisterByte(match(REGISTER).getText());
+                methodBuilder.addInstruction(new BuilderInstruction23x(opcode, regA, regB, regC));
+                return;
+            }
+            case INSTRUCTION_FORMAT25x: {
+                byte closureRegister = parseRegisterNibble(match(REGISTER).getText());
+                match(COMMA);
+                byte[] registers = new byte[4];
+                int registerCount = registerList(registers);
+                methodBuilder.addInstruction(new BuilderInstruction25x(opcode, registerCount, closureRegister,
+                        registers[0], registers[1], registers[2], registers[3]));
+                return;
+            }
+            case INSTRUCTION_FORMAT30t:
+                methodBuilder.addInstruction(new BuilderInstruction30t(opcode, labelRef()));
+                return;
+            case INSTRUCTION_FORMAT31c: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction31c(opcode, regA,
+                        dexBuilder.internStringReference(stringLiteral(match(STRING_LITERAL)))));
+                return;
+            }
+            case INSTRUCTION_FORMAT31i:
+            case INSTRUCTION_FORMAT31i_OR_ID: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction31i(opcode, regA, fixed32bitLiteral(consume())));
+                return;
+            }
+            case INSTRUCTION_FORMAT31t: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction31t(opcode, regA, labelRef()));
+                return;
+            }
+            case INSTRUCTION_FORMAT32x: {
+                int regA = parseRegisterShort(match(REGISTER).getText());
+                match(COMMA);
+                int regB = parseRegisterShort(match(REGISTER).getText());
+                methodBuilder.addInstruction(new BuilderInstruction32x(opcode, regA, regB));
+                return;
+            }
+            case INSTRUCTION_FORMAT35c_METHOD: {
+                byte[] registers = new byte[5];
+                int registerCount = registerList(registers);
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction35c(opcode, registerCount, registers[0],
+                        registers[1], registers[2], registers[3], registers[4],
+                        dexBuilder.internMethodReference(methodReference())));
+                return;
+            }
+            case INSTRUCTION_FORMAT35c_TYPE: {
+                byte[] registers = new byte[5];
+                int registerCount = registerList(registers);
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction35c(opcode, registerCount, registers[0],
+                        registers[1], registers[2], registers[3], registers[4],
+                        dexBuilder.internTypeReference(nonvoidTypeDescriptor())));
+                return;
+            }
+            case INSTRUCTION_FORMAT3rc_METHOD: {
+                int[] range = registerRange();
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction3rc(opcode, range[0], range[1],
+                        dexBuilder.internMethodReference(methodReference())));
+                return;
+            }
+            case INSTRUCTION_FORMAT3rc_TYPE: {
+                int[] range = registerRange();
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction3rc(opcode, range[0], range[1],
+                        dexBuilder.internTypeReference(nonvoidTypeDescriptor())));
+                return;
+            }
+            case INSTRUCTION_FORMAT51l: {
+                short regA = parseRegisterByte(match(REGISTER).getText());
+                match(COMMA);
+                methodBuilder.addInstruction(new BuilderInstruction51l(opcode, regA, fixed64bitLiteral(consume())));
+                return;
+            }
+            default:
+                // this includes the odexed instructions that the parser always rejects
+                throw unsupported();
+        }
+    }
+
+    /**
+     * Parses a braced list of registers into the given array, which is sized for the maximum number of registers
+     *
+     * @return The number of registers in the list
+     */
+    private int registerList(@Nonnull byte[] registers) {
+        match(OPEN_BRACE);
+        int registerCount = 0;
+        if (LA(1) == REGISTER) {
+            while (true) {
+                if (registerCount == registers.length) {
+                    throw unsupported();
+                }
+                registers[registerCount++] = parseRegisterNibble(consume().getText());
+                if (LA(1) != COMMA) {
+                    break;
+                }
+                consume();
+                if (LA(1) != REGISTER) {
+                    throw unsupported();
+                }
+            }
+        }
+        match(CLOSE_BRACE);
+        return registerCount;
+    }
+
+    /**
+     * Parses a braced register range
+     *
+     * @return The start register and the register count
+     */
+    @Nonnull
+    private int[] registerRange() {
+        match(OPEN_BRACE);
+        int startRegister = 0;
+        int endRegister = -1;
+        if (LA(1) == REGISTER) {
+            startRegister = parseRegisterShort(consume().getText());
+            endRegister = startRegister;
+            if (LA(1) == DOTDOT) {
+                consume();
+                endRegister = parseRegisterShort(match(REGISTER).getText());
+            }
+            if (endRegister - startRegister + 1 < 1) {
+                throw unsupported();
+            }
+        }
+        match(CLOSE_BRACE);
+        return new int[] { startRegister, endRegister - startRegister + 1 };
+    }
+
+    private byte parseRegisterNibble(@Nonnull String register) {
+        int val = Byte.parseByte(register.substring(1));
+        if (register.charAt(0) == 'p') {
+            val = totalMethodRegisters - methodParameterRegisters + val;
+        }
+        // these limits match the tree walker's
+        if (val >= 2<<4) {
+            throw unsupported();
+        }
+        return (byte)val;
+    }
+
+    private short parseRegisterByte(@Nonnull String register) {
+        int val = Short.parseShort(register.substring(1));
+        if (register.charAt(0) == 'p') {
+            val = totalMethodRegisters - methodParameterRegisters + val;
+        }
+        if (val >= 2<<8) {
+            throw unsupported();
+        }
+        return (short)val;
+    }
+
+    private int parseRegisterShort(@Nonnull String register) {
+        int val = Integer.parseInt(register.substring(1));
+        if (register.charAt(0) == 'p') {
+            val = totalMethodRegisters - methodParameterRegisters + val;
+        }
+        if (val >= 2<<16) {
+            throw unsupported();
+        }
+        return val;
+    }
+
+    @Nonnull
+    private Label labelRef() {
+        match(COLON);
+        Label label = startMethodImplementation().getLabel(simpleName());
+        referencedLabels.add(label);
+        return label;
+    }
+
+    /**
+     * Gets one of the labels of a .catch or .catchall directive, which must have been placed by the end of the method.
+     */
+    @Nonnull
+    private Label catchLabel(@Nonnull String name) {
+        Label label = startMethodImplementation().getLabel(name);
+        referencedLabels.add(label);
+        return label;
+    }
+
+    private static boolean isSimpleName(int type) {
+        switch (type) {
+            case SIMPLE_NAME:
+            case ACCESS_SPEC:
+            case VERIFICATION_ERROR_TYPE:
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL:
+            case FLOAT_LITERAL_OR_ID:
+            case DOUBLE_LITERAL_OR_ID:
+            case BOOL_LITERAL:
+            case NULL_LITERAL:
+            case REGISTER:
+            case PARAM_LIST_OR_ID_PRIMITIVE_TYPE:
+            case PRIMITIVE_TYPE:
+            case VOID_TYPE:
+            case ANNOTATION_VISIBILITY:
+            case INSTRUCTION_FORMAT10t:
+            case INSTRUCTION_FORMAT10x:
+            case INSTRUCTION_FORMAT10x_ODEX:
+            case INSTRUCTION_FORMAT11x:
+            case INSTRUCTION_FORMAT12x_OR_ID:
+            case INSTRUCTION_FORMAT21c_FIELD:
+            case INSTRUCTION_FORMAT21c_FIELD_ODEX:
+            case INSTRUCTION_FORMAT21c_STRING:
+            case INSTRUCTION_FORMAT21c_TYPE:
+            case INSTRUCTION_FORMAT21c_LAMBDA:
+            case INSTRUCTION_FORMAT21c_METHOD:
+            case INSTRUCTION_FORMAT21t:
+            case INSTRUCTION_FORMAT22c_FIELD:
+            case INSTRUCTION_FORMAT22c_FIELD_ODEX:
+            case INSTRUCTION_FORMAT22c_TYPE:
+            case INSTRUCTION_FORMAT22c_STRING:
+            case INSTRUCTION_FORMAT22cs_FIELD:
+            case INSTRUCTION_FORMAT22s_OR_ID:
+            case INSTRUCTION_FORMAT22t:
+            case INSTRUCTION_FORMAT23x:
+            case INSTRUCTION_FORMAT25x:
+            case INSTRUCTION_FORMAT31i_OR_ID:
+            case INSTRUCTION_FORMAT31t:
+            case INSTRUCTION_FORMAT35c_METHOD:
+            case INSTRUCTION_FORMAT35c_METHOD_ODEX:
+            case INSTRUCTION_FORMAT35c_TYPE:
+            case INSTRUCTION_FORMAT35mi_METHOD:
+            case INSTRUCTION_FORMAT35ms_METHOD:
+            case INSTRUCTION_FORMAT51l:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Nonnull
+    private String simpleName() {
+        Token token = consume();
+        if (token.getType() == PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+            if (LA(1) != PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+                return token.getText();
+            }
+            // the parser uses the text of the whole run, which would include anything hidden between the tokens
+            StringBuilder sb = new StringBuilder(token.getText());
+            while (LA(1) == PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+                Token next = consume();
+                if (((CommonToken)next).getStartIndex() != ((CommonToken)token).getStopIndex() + 1) {
+                    throw unsupported();
+                }
+                sb.append(next.getText());
+                token = next;
+            }
+            return sb.toString();
+        }
+        if (!isSimpleName(token.getType())) {
+            throw unsupported();
+        }
+        return token.getText();
+    }
+
+    @Nonnull
+    private String memberName() {
+        if (LA(1) == MEMBER_NAME) {
+            return consume().getText();
+        }
+        return simpleName();
+    }
+
+    /**
+     * Parses a method prototype
+     *
+     * @param parameterTypes The list to add the parameter types to
+     * @return The return type
+     */
+    @Nonnull
+    private String methodPrototype(@Nonnull List<String> parameterTypes) {
+        match(OPEN_PAREN);
+        if (LA(1) == PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+            while (LA(1) == PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+                parameterTypes.add(consume().getText());
+            }
+        } else {
+            while (LA(1) != CLOSE_PAREN) {
+                parameterTypes.add(nonvoidTypeDescriptor());
+            }
+        }
+        match(CLOSE_PAREN);
+        return typeDescriptor();
+    }
+
+    @Nonnull
+    private String typeDescriptor() {
+        if (LA(1) == VOID_TYPE) {
+            consume();
+            return "V";
+        }
+        return nonvoidTypeDescriptor();
+    }
+
+    @Nonnull
+    private String nonvoidTypeDescriptor() {
+        if (LA(1) == PRIMITIVE_TYPE) {
+            return consume().getText();
+        }
+        return referenceTypeDescriptor();
+    }
+
+    @Nonnull
+    private String referenceTypeDescriptor() {
+        Token token = consume();
+        switch (token.getType()) {
+            case CLASS_DESCRIPTOR:
+                return token.getText();
+            case ARRAY_TYPE_PREFIX: {
+                Token elementType = consume();
+                if (elementType.getType() != PRIMITIVE_TYPE && elementType.getType() != CLASS_DESCRIPTOR) {
+                    throw unsupported();
+                }
+                return token.getText() + elementType.getText();
+            }
+            default:
+                throw unsupported();
+        }
+    }
+
+    private static boolean isReferenceType(int type) {
+        return type == CLASS_DESCRIPTOR || type == ARRAY_TYPE_PREFIX;
+    }
+
+    @Nonnull
+    private ImmutableFieldReference fieldReference() {
+        ImmutableReference reference = fieldOrMethodReference();
+        if (!(reference instanceof ImmutableFieldReference)) {
+            throw unsupported();
+        }
+        return (ImmutableFieldReference)reference;
+    }
+
+    @Nonnull
+    private ImmutableMethodReference methodReference() {
+        ImmutableReference reference = fieldOrMethodReference();
+        if (!(reference instanceof ImmutableMethodReference)) {
+            throw unsupported();
+        }
+        return (ImmutableMethodReference)reference;
+    }
+
+    /**
+     * Parses a field or method reference, with an optional defining class.
+     */
+    @Nonnull
+    private ImmutableReference fieldOrMethodReference() {
+        String type = classType;
+        if (isReferenceType(LA(1))) {
+            type = referenceTypeDescriptor();
+            match(ARROW);
+        }
+        String name = memberName();
+        if (LA(1) == COLON) {
+            consume();
+            return new ImmutableFieldReference(type, name, nonvoidTypeDescriptor());
+        }
+        List<String> parameterTypes = Lists.newArrayList();
+        String returnType = methodPrototype(parameterTypes);
+        return new ImmutableMethodReference(type, name, parameterTypes, returnType);
+    }
+
+    @Nonnull
+    private EncodedValue literal() {
+        int type = LA(1);
+
+        // a name followed by a : or ( is a field or method without an explicit type
+        if ((isSimpleName(type) || type == MEMBER_NAME) && type != PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+            int next = LA(2);
+            if (next == COLON || next == OPEN_PAREN) {
+                return fieldOrMethodLiteral();
+            }
+        }
+
+        switch (type) {
+            case PARAM_LIST_OR_ID_PRIMITIVE_TYPE:
+            case MEMBER_NAME:
+                return fieldOrMethodLiteral();
+            case CLASS_DESCRIPTOR:
+            case ARRAY_TYPE_PREFIX: {
+                int typeLength = type == CLASS_DESCRIPTOR ? 1 : 2;
+                if (LA(typeLength + 1) == ARROW) {
+                    return fieldOrMethodLiteral();
+                }
+                return new ImmutableTypeEncodedValue(referenceTypeDescriptor());
+            }
+            case PRIMITIVE_TYPE:
+                return new ImmutableTypeEncodedValue(consume().getText());
+            case VOID_TYPE:
+                consume();
+                return new ImmutableTypeEncodedValue("V");
+            case OPEN_BRACE: {
+                consume();
+                List<EncodedValue> elements = Lists.newArrayList();
+                if (LA(1) != CLOSE_BRACE) {
+                    elements.add(literal());
+                    while (LA(1) == COMMA) {
+                        consume();
+                        elements.add(literal());
+                    }
+                }
+                match(CLOSE_BRACE);
+                return new ImmutableArrayEncodedValue(elements);
+            }
+            case SUBANNOTATION_DIRECTIVE: {
+                consume();
+                String annotationType = match(CLASS_DESCRIPTOR).getText();
+                List<AnnotationElement> elements = annotationElements(END_SUBANNOTATION_DIRECTIVE);
+                return new ImmutableAnnotationEncodedValue(annotationType, elements);
+            }
+            case ENUM_DIRECTIVE:
+                consume();
+                return new ImmutableEnumEncodedValue(fieldReference());
+        }
+
+        Token token = consume();
+        try {
+            return simpleLiteral(token);
+        } catch (NumberFormatException ex) {
+            throw unsupported();
+        }
+    }
+
+    @Nonnull
+    private static EncodedValue simpleLiteral(@Nonnull Token token) {
+        String text = token.getText();
+        switch (token.getType()) {
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL:
+                return new ImmutableIntEncodedValue(LiteralTools.parseInt(text));
+            case LONG_LITERAL:
+                return new ImmutableLongEncodedValue(LiteralTools.parseLong(text));
+            case SHORT_LITERAL:
+                return new ImmutableShortEncodedValue(LiteralTools.parseShort(text));
+            case BYTE_LITERAL:
+                return new ImmutableByteEncodedValue(LiteralTools.parseByte(text));
+            case FLOAT_LITERAL:
+            case FLOAT_LITERAL_OR_ID:
+                return new ImmutableFloatEncodedValue(LiteralTools.parseFloat(text));
+            case DOUBLE_LITERAL:
+            case DOUBLE_LITERAL_OR_ID:
+                return new ImmutableDoubleEncodedValue(LiteralTools.parseDouble(text));
+            case CHAR_LITERAL:
+                return new ImmutableCharEncodedValue(text.charAt(1));
+            case STRING_LITERAL:
+                return new ImmutableStringEncodedValue(stringLiteral(token));
+            case BOOL_LITERAL:
+                return ImmutableBooleanEncodedValue.forBoolean(Boolean.parseBoolean(text));
+            case NULL_LITERAL:
+                return ImmutableNullEncodedValue.INSTANCE;
+            default:
+                throw unsupported();
+        }
+    }
+
+    @Nonnull
+    private EncodedValue fieldOrMethodLiteral() {
+        ImmutableReference reference = fieldOrMethodReference();
+        if (reference instanceof ImmutableFieldReference) {
+            return new ImmutableFieldEncodedValue((ImmutableFieldReference)reference);
+        }
+        return new ImmutableMethodEncodedValue((ImmutableMethodReference)reference);
+    }
+
+    @Nonnull
+    private Annotation annotation() {
+        match(ANNOTATION_DIRECTIVE);
+        int visibility = AnnotationVisibility.getVisibility(match(ANNOTATION_VISIBILITY).getText());
+        String type = match(CLASS_DESCRIPTOR).getText();
+        return new ImmutableAnnotation(visibility, type, annotationElements(END_ANNOTATION_DIRECTIVE));
+    }
+
+    @Nonnull
+    private List<AnnotationElement> annotationElements(int endDirective) {
+        List<AnnotationElement> elements = Lists.newArrayList();
+        while (LA(1) != endDirective) {
+            String name = simpleName();
+            match(EQUAL);
+            elements.add(new ImmutableAnnotationElement(name, literal()));
+        }
+        consume();
+        return elements;
+    }
+
+    @Nullable
+    private Set<Annotation> annotationSet(@Nonnull List<Annotation> annotations) {
+        HashMap<String, Annotation> annotationMap = Maps.newHashMap();
+        for (Annotation annotation: annotations) {
+            if (annotationMap.put(annotation.getType(), annotation) != null) {
+                throw unsupported();
+            }
+        }
+        if (annotationMap.size() > 0) {
+            return ImmutableSet.copyOf(annotationMap.values());
+        }
+        return null;
+    }
+
+    @Nonnull
+    private static String stringLiteral(@Nonnull Token token) {
+        String text = token.getText();
+        return text.substring(1, text.length()-1);
+    }
+
+    private static short shortIntegralLiteral(@Nonnull Token token) {
+        String text = token.getText();
+        switch (token.getType()) {
+            case LONG_LITERAL: {
+                long value = LiteralTools.parseLong(text);
+                LiteralTools.checkShort(value);
+                return (short)value;
+            }
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL: {
+                int value = LiteralTools.parseInt(text);
+                LiteralTools.checkShort(value);
+                return (short)value;
+            }
+            case SHORT_LITERAL:
+                return LiteralTools.parseShort(text);
+            case CHAR_LITERAL:
+                return (short)text.charAt(1);
+            case BYTE_LITERAL:
+                return LiteralTools.parseByte(text);
+            default:
+                throw unsupported();
+        }
+    }
+
+    private static int integralLiteral(@Nonnull Token token) {
+        String text = token.getText();
+        switch (token.getType()) {
+            case LONG_LITERAL: {
+                long value = LiteralTools.parseLong(text);
+                LiteralTools.checkInt(value);
+                return (int)value;
+            }
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL:
+                return LiteralTools.parseInt(text);
+            case SHORT_LITERAL:
+                return LiteralTools.parseShort(text);
+            case BYTE_LITERAL:
+                return LiteralTools.parseByte(text);
+            default:
+                // the tree walker doesn't accept a char literal here, even though the parser does
+                throw unsupported();
+        }
+    }
+
+    private static int fixed32bitLiteral(@Nonnull Token token) {
+        String text = token.getText();
+        switch (token.getType()) {
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL:
+                return LiteralTools.parseInt(text);
+            case LONG_LITERAL: {
+                long value = LiteralTools.parseLong(text);
+                LiteralTools.checkInt(value);
+                return (int)value;
+            }
+            case SHORT_LITERAL:
+                return LiteralTools.parseShort(text);
+            case BYTE_LITERAL:
+                return LiteralTools.parseByte(text);
+            case FLOAT_LITERAL:
+            case FLOAT_LITERAL_OR_ID:
+                return Float.floatToRawIntBits(LiteralTools.parseFloat(text));
+            case CHAR_LITERAL:
+                return text.charAt(1);
+            case BOOL_LITERAL:
+                return Boolean.parseBoolean(text)?1:0;
+            default:
+                throw unsupported();
+        }
+    }
+
+    private static long fixed64bitLiteral(@Nonnull Token token) {
+        if (token.getType() == DOUBLE_LITERAL || token.getType() == DOUBLE_LITERAL_OR_ID) {
+            return Double.doubleToRawLongBits(LiteralTools.parseDouble(token.getText()));
+        }
+        if (token.getType() == LONG_LITERAL) {
+            return LiteralTools.parseLong(token.getText());
+        }
+        return fixed32bitLiteral(token);
+    }
+
+    @Nonnull
+    private static Number fixed64bitLiteralNumber(@Nonnull Token token) {
+        String text = token.getText();
+        switch (token.getType()) {
+            case LONG_LITERAL:
+                return LiteralTools.parseLong(text);
+            case SHORT_LITERAL:
+                return LiteralTools.parseShort(text);
+            case BYTE_LITERAL:
+                return LiteralTools.parseByte(text);
+            case DOUBLE_LITERAL:
+            case DOUBLE_LITERAL_OR_ID:
+                return Double.doubleToRawLongBits(LiteralTools.parseDouble(text));
+            default:
+                return fixed32bitLiteral(token);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.io.CharStreams;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.RecognitionException;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.CommonTreeNodeStream;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Assembles smali source that is already in memory, without going through files.
+ *
+ * The lexer, parser, tree walker and opcode tables are created once per thread, and reused by later calls on the same
+ * thread with the same api level. This avoids their setup cost when assembling many small classes.
+ *
+ * As with the command line tool, any errors are printed to stderr.
+ */
+public final class SmaliAssembler {
+    private static final char[] NO_CHARS = new char[0];
+
+    private static final ThreadLocal<SmaliAssembler> threadAssembler = new ThreadLocal<SmaliAssembler>();
+
+    private final int apiLevel;
+    private final boolean experimental;
+    @Nonnull private final Opcodes opcodes;
+    @Nonnull private final smaliFlexLexer lexer;
+    @Nonnull private final smaliParser parser;
+    @Nonnull private final smaliTreeWalker treeWalker;
+
+    private SmaliAssembler(int apiLevel, boolean experimental) {
+        this.apiLevel = apiLevel;
+        this.experimental = experimental;
+        this.opcodes = Opcodes.forApi(apiLevel, experimental);
+        this.lexer = new smaliFlexLexer(NO_CHARS);
+        this.parser = new smaliParser(null);
+        this.parser.setApiLevel(apiLevel, experimental);
+        this.treeWalker = new smaliTreeWalker(null);
+        this.treeWalker.setApiLevel(apiLevel, experimental);
+    }
+
+    @Nonnull
+    private static SmaliAssembler getAssembler(@Nonnull SmaliOptions options) {
+        SmaliAssembler assembler = threadAssembler.get();
+        if (assembler == null || assembler.apiLevel != options.apiLevel ||
+                assembler.experimental != options.experimental) {
+            assembler = new SmaliAssembler(options.apiLevel, options.experimental);
+            threadAssembler.set(assembler);
+        }
+        return assembler;
+    }
+
+    /**
+     * Assembles a single smali class into the given DexBuilder.
+     *
+     * @param smali The smali source of the class
+     * @param dexBuilder The DexBuilder to intern the class into
+     * @param options The options to assemble with. Only the options that affect how a class is assembled are used.
+     * @return true if the class was assembled with no errors
+     */
+    public static boolean assemble(@Nonnull CharSequence smali, @Nonnull DexBuilder dexBuilder,
+                                   @Nonnull SmaliOptions options) {
+        try {
+            return assemble(smali.toString().toCharArray(), null, dexBuilder, options);
+        } catch (RecognitionException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Assembles a single smali class into the given DexBuilder.
+     *
+     * @param smali The smali source of the class. This is read fully, but not closed.
+     * @param dexBuilder The DexBuilder to intern the class into
+     * @param options The options to assemble with. Only the options that affect how a class is assembled are used.
+     * @return true if the class was assembled with no errors
+     */
+    public static boolean assemble(@Nonnull Reader smali, @Nonnull DexBuilder dexBuilder,
+                                   @Nonnull SmaliOptions options) throws IOException {
+        return assemble(CharStreams.toString(smali), dexBuilder, options);
+    }
+
+    /**
+     * Assembles a set of smali classes into a dex file in memory.
+     *
+     * @param sources The smali source of each class
+     * @param options The options to assemble with. Only the options that affect how a class is assembled are used.
+     * @return The contents of the dex file, or null if there were errors
+     */
+    @Nullable
+    public static byte[] assembleDex(@Nonnull Iterable<? extends CharSequence> sources,
+                                     @Nonnull SmaliOptions options) throws IOException {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(getAssembler(options).opcodes);
+
+        boolean errors = false;
+        for (CharSequence source: sources) {
+            if (!assemble(source, dexBuilder, options)) {
+                errors = true;
+            }
+        }
+        if (errors) {
+            return null;
+        }
+
+        MemoryDataStore dataStore = new MemoryDataStore(64 * 1024);
+        dexBuilder.writeTo(dataStore);
+        return Arrays.copyOf(dataStore.getData(), dataStore.getSize());
+    }
+
+    /**
+     * Assembles a single smali class into the given DexBuilder.
+     *
+     * @param smaliChars The smali source of the class. This must not be modified while the call is in progress.
+     * @param smaliFile The file to report in error messages, or null if the class didn't come from a file
+     * @return true if the class was assembled with no errors
+     */
+    static boolean assemble(@Nonnull char[] smaliChars, @Nullable File smaliFile, @Nonnull DexBuilder dexBuilder,
+                            @Nonnull SmaliOptions options) throws RecognitionException {
+        SmaliAssembler assembler = getAssembler(options);
+        try {
+            return assembler.assembleClass(smaliChars, smaliFile, dexBuilder, options);
+        } finally {
+            assembler.clear();
+        }
+    }
+
+    private boolean assembleClass(@Nonnull char[] smaliChars, @Nullable File smaliFile,
+                                  @Nonnull DexBuilder dexBuilder, @Nonnull SmaliOptions options)
+            throws RecognitionException {
+        // The single pass assembler doesn't report any errors, so anything it doesn't accept is assembled again with
+        // the parser and tree walker, which do. They're also needed to print the tokens and the tree.
+        if (!options.verboseErrors && !options.printTokens) {
+            lexer.reset(smaliChars);
+            if (SinglePassAssembler.assemble(lexer, opcodes, dexBuilder, options)) {
+                return true;
+            }
+        }
+
+        lexer.reset(smaliChars);
+        lexer.setSuppressErrors(false);
+        lexer.setSourceFile(smaliFile);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+
+        if (options.printTokens) {
+            tokens.getTokens();
+
+            for (int i=0; i<tokens.size(); i++) {
+                Token token = tokens.get(i);
+                if (token.getChannel() == smaliParser.HIDDEN) {
+                    continue;
+                }
+
+                System.out.println(smaliParser.tokenNames[token.getType()] + ": " + token.getText());
+            }
+
+            System.out.flush();
+        }
+
+        parser.setTokenStream(tokens);
+        parser.setVerboseErrors(options.verboseErrors);
+        parser.setAllowOdex(options.allowOdex);
+
+        smaliParser.smali_file_return result = parser.smali_file();
+
+        if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
+            return false;
+        }
+
+        CommonTree t = result.getTree();
+
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
+        treeStream.setTokenStream(tokens);
+
+        if (options.printTokens) {
+            System.out.println(t.toStringTree());
+        }
+
+        treeWalker.setTreeNodeStream(treeStream);
+        treeWalker.setVerboseErrors(options.verboseErrors);
+        treeWalker.setDexBuilder(dexBuilder);
+        treeWalker.smali_file();
+
+        return treeWalker.getNumberOfSyntaxErrors() == 0;
+    }
+
+    /**
+     * Drops the references to the last input and output, so they aren't kept alive by the thread's instance
+     */
+    private void clear() {
+        lexer.reset(NO_CHARS);
+        parser.setTokenStream(null);
+        treeWalker.setTreeNodeStream(null);
+        treeWalker.setDexBuilder(null);
+    }
+}
@@ -40,6 +40,9 @@ public class SmaliOptions {
     public boolean verboseErrors = false;
     public boolean printTokens = false;
     public boolean experimental = false;
+    public boolean compactCode = false;
+
+    public String cacheDirectory = null;
 
     public boolean listMethods = false;
     public String methodListFilename = null;
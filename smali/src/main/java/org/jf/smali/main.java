@@ -31,22 +31,26 @@ package org.jf.smali;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
-import org.antlr.runtime.CommonTokenStream;
-import org.antlr.runtime.Token;
-import org.antlr.runtime.TokenSource;
-import org.antlr.runtime.tree.CommonTree;
-import org.antlr.runtime.tree.CommonTreeNodeStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import org.apache.commons.cli.*;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
 import org.jf.util.ConsoleUtil;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.JobServer;
 import org.jf.util.SmaliHelpFormatter;
+import org.jf.util.Utf8Utils;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Main class for smali. It recognizes enough options to be able to dispatch
@@ -98,6 +102,8 @@ public class main {
      */
     public static boolean run(final SmaliOptions options, String... input) throws IOException {
         LinkedHashSet<File> filesToProcessSet = new LinkedHashSet<File>();
+        List<ZipFile> archives = Lists.newArrayList();
+        List<File> dexFiles = Lists.newArrayList();
 
         for (String fileToProcess: input) {
             File argFile = new File(fileToProcess);
@@ -107,7 +113,21 @@ public class main {
             }
 
             if (argFile.isDirectory()) {
-                getSmaliFilesInDir(argFile, filesToProcessSet);
+                // the order of the files in a directory can vary, so sort them the same way as the entries of an
+                // archive, to get the same dex file from an archive and from its extracted contents
+                List<File> dirFiles = Lists.newArrayList();
+                getSmaliFilesInDir(argFile, dirFiles);
+                final String dirPath = argFile.getPath();
+                Collections.sort(dirFiles, new Comparator<File>() {
+                    @Override public int compare(File o1, File o2) {
+                        return getRelativeEntryName(dirPath, o1).compareTo(getRelativeEntryName(dirPath, o2));
+                    }
+                });
+                filesToProcessSet.addAll(dirFiles);
+            } else if (isArchive(argFile)) {
+                archives.add(new ZipFile(argFile));
+            } else if (isDexFile(argFile)) {
+                dexFiles.add(argFile);
             } else if (argFile.isFile()) {
                 filesToProcessSet.add(argFile);
             }
@@ -115,8 +135,31 @@ public class main {
 
         boolean errors = false;
 
-        final DexBuilder dexBuilder = DexBuilder.makeDexBuilder(
-                Opcodes.forApi(options.apiLevel, options.experimental));
+        final Opcodes opcodes = Opcodes.forApi(options.apiLevel, options.experimental);
+        final DexBuilder dexBuilder = DexBuilder.makeDexBuilder(opcodes);
+        dexBuilder.setEncodeMethodImplementations(options.compactCode);
+
+        // Each thread assembles into its own DexBuilder, so that the threads don't contend on the shared pools for
+        // common strings and types. They're merged into dexBuilder once everything is assembled, along with any
+        // existing dex files. The merge interns all of the classes in order of their type, so the dex file doesn't
+        // depend on the number of jobs, the order of the input files, or which classes came from a dex file. This
+        // is done with a single job too, even though it then interns each class twice.
+        final List<DexBuilder> workerBuilders = Collections.synchronizedList(Lists.<DexBuilder>newArrayList());
+        final ThreadLocal<DexBuilder> workerBuilder = new ThreadLocal<DexBuilder>() {
+            @Override protected DexBuilder initialValue() {
+                DexBuilder builder = DexBuilder.makeDexBuilder(opcodes);
+                builder.setEncodeMethodImplementations(options.compactCode);
+                workerBuilders.add(builder);
+                return builder;
+            }
+        };
+
+        final AssemblyCache cache;
+        if (options.cacheDirectory != null) {
+            cache = new AssemblyCache(new File(options.cacheDirectory), options);
+        } else {
+            cache = null;
+        }
 
         ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
         List<Future<Boolean>> tasks = Lists.newArrayList();
@@ -124,11 +167,52 @@ public class main {
         for (final File file: filesToProcessSet) {
             tasks.add(executor.submit(new Callable<Boolean>() {
                 @Override public Boolean call() throws Exception {
-                    return assembleSmaliFile(file, dexBuilder, options);
+                    return assembleSmaliFile(file, workerBuilder.get(), options, cache);
                 }
             }));
         }
 
+        // Each worker thread reads an archive through its own ZipFile, since reads through a single ZipFile are
+        // serialized
+        final List<ZipFile> workerArchives = Collections.synchronizedList(Lists.<ZipFile>newArrayList());
+
+        for (final ZipFile archive: archives) {
+            final File archiveFile = new File(archive.getName());
+            final ThreadLocal<ZipFile> workerArchive = new ThreadLocal<ZipFile>() {
+                @Override protected ZipFile initialValue() {
+                    try {
+                        ZipFile zipFile = new ZipFile(archiveFile);
+                        workerArchives.add(zipFile);
+                        return zipFile;
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+            // the order of the entries in the archive can vary, so sort them to get a consistent dex file
+            List<ZipEntry> entries = Lists.newArrayList();
+            for (ZipEntry entry: Collections.list(archive.entries())) {
+                if (!entry.isDirectory() && entry.getName().endsWith(".smali")) {
+                    entries.add(entry);
+                }
+            }
+            Collections.sort(entries, new Comparator<ZipEntry>() {
+                @Override public int compare(ZipEntry o1, ZipEntry o2) {
+                    return o1.getName().compareTo(o2.getName());
+                }
+            });
+            for (final ZipEntry entry: entries) {
+                tasks.add(executor.submit(new Callable<Boolean>() {
+                    @Override public Boolean call() throws Exception {
+                        byte[] smaliBytes = readArchiveEntry(options.jobs > 1 ? workerArchive.get() : archive,
+                                entry.getName());
+                        return assembleSmaliFile(smaliBytes, new File(archiveFile, entry.getName()),
+                                workerBuilder.get(), options, cache);
+                    }
+                }));
+            }
+        }
+
         for (Future<Boolean> task: tasks) {
             while(true) {
                 try {
@@ -148,10 +232,33 @@ public class main {
 
         executor.shutdown();
 
+        for (ZipFile archive: archives) {
+            archive.close();
+        }
+        for (ZipFile archive: workerArchives) {
+            archive.close();
+        }
+
         if (errors) {
             return false;
         }
 
+        List<DexBackedDexFile> dexFilesToMerge = Lists.newArrayList();
+        for (File dexFile: dexFiles) {
+            dexFilesToMerge.add(new DexBackedDexFile(opcodes, Files.toByteArray(dexFile)));
+        }
+
+        try {
+            dexBuilder.internClassDefs(workerBuilders, dexFilesToMerge);
+        } catch (ExceptionWithContext ex) {
+            // a class defined in files that were assembled by different threads, or in more than one dex file
+            System.err.println(ex.getMessage());
+            return false;
+        }
+        // the rest of the worker builders' pools aren't needed once their classes have been merged
+        workerBuilders.clear();
+        dexFilesToMerge.clear();
+
         if (options.listMethods) {
             if (Strings.isNullOrEmpty(options.methodListFilename)) {
                 options.methodListFilename = options.outputDexFile + ".methods";
@@ -185,94 +292,171 @@ public class main {
         Locale locale = new Locale("en", "US");
         Locale.setDefault(locale);
 
-        CommandLineParser parser = new PosixParser();
-        CommandLine commandLine;
-
-        try {
-            commandLine = parser.parse(options, args);
-        } catch (ParseException ex) {
-            usage();
-            return;
+        int exitCode = execute(args, false);
+        if (exitCode != 0) {
+            System.exit(exitCode);
         }
+    }
 
+    /**
+     * Runs smali with the given command line arguments
+     *
+     * @param args The command line arguments
+     * @param daemonJob Whether this is a job being run by a daemon
+     * @return The exit code
+     */
+    private static int execute(String[] args, boolean daemonJob) {
         SmaliOptions smaliOptions = new SmaliOptions();
+        String[] remainingArgs;
+        String daemonPort = null;
+        String daemonTokenFile = null;
 
-        String[] remainingArgs = commandLine.getArgs();
+        // The commons-cli Option objects hold the parsed values, so parsing has to be serialized when running
+        // concurrent daemon jobs
+        synchronized (main.class) {
+            CommandLineParser parser = new PosixParser();
+            CommandLine commandLine;
+
+            try {
+                commandLine = parser.parse(main.options, args);
+            } catch (ParseException ex) {
+                usage();
+                return 0;
+            }
 
-        Option[] options = commandLine.getOptions();
+            remainingArgs = commandLine.getArgs();
 
-        for (int i=0; i<options.length; i++) {
-            Option option = options[i];
-            String opt = option.getOpt();
+            Option[] options = commandLine.getOptions();
 
-            switch (opt.charAt(0)) {
-                case 'v':
-                    version();
-                    return;
-                case '?':
-                    while (++i < options.length) {
-                        if (options[i].getOpt().charAt(0) == '?') {
-                            usage(true);
-                            return;
+            for (int i=0; i<options.length; i++) {
+                Option option = options[i];
+                String opt = option.getOpt();
+
+                switch (opt.charAt(0)) {
+                    case 'v':
+                        version();
+                        return 0;
+                    case '?':
+                        while (++i < options.length) {
+                            if (options[i].getOpt().charAt(0) == '?') {
+                                usage(true);
+                                return 0;
+                            }
                         }
-                    }
-                    usage(false);
-                    return;
-                case 'o':
-                    smaliOptions.outputDexFile = commandLine.getOptionValue("o");
-                    break;
-                case 'x':
-                    smaliOptions.allowOdex = true;
-                    break;
-                case 'X':
-                    smaliOptions.experimental = true;
-                    break;
-                case 'a':
-                    smaliOptions.apiLevel = Integer.parseInt(commandLine.getOptionValue("a"));
-                    break;
-                case 'j':
-                    smaliOptions.jobs = Integer.parseInt(commandLine.getOptionValue("j"));
-                    break;
-                case 'm':
-                    smaliOptions.listMethods = true;
-                    smaliOptions.methodListFilename = commandLine.getOptionValue("m");
-                    break;
-                case 'f':
-                    smaliOptions.listFields = true;
-                    smaliOptions.fieldListFilename = commandLine.getOptionValue("f");
-                    break;
-                case 't':
-                    smaliOptions.listTypes = true;
-                    smaliOptions.typeListFilename = commandLine.getOptionValue("t");
-                    break;
-                case 'V':
-                    smaliOptions.verboseErrors = true;
-                    break;
-                case 'T':
-                    smaliOptions.printTokens = true;
-                    break;
-                default:
-                    assert false;
+                        usage(false);
+                        return 0;
+                    case 'o':
+                        smaliOptions.outputDexFile = commandLine.getOptionValue("o");
+                        break;
+                    case 'x':
+                        smaliOptions.allowOdex = true;
+                        break;
+                    case 'X':
+                        smaliOptions.experimental = true;
+                        break;
+                    case 'a':
+                        smaliOptions.apiLevel = Integer.parseInt(commandLine.getOptionValue("a"));
+                        break;
+                    case 'C':
+                        smaliOptions.compactCode = true;
+                        break;
+                    case 'j':
+                        smaliOptions.jobs = Integer.parseInt(commandLine.getOptionValue("j"));
+                        break;
+                    case 'm':
+                        smaliOptions.listMethods = true;
+                        smaliOptions.methodListFilename = commandLine.getOptionValue("m");
+                        break;
+                    case 'f':
+                        smaliOptions.listFields = true;
+                        smaliOptions.fieldListFilename = commandLine.getOptionValue("f");
+                        break;
+                    case 't':
+                        smaliOptions.listTypes = true;
+                        smaliOptions.typeListFilename = commandLine.getOptionValue("t");
+                        break;
+                    case 'V':
+                        smaliOptions.verboseErrors = true;
+                        break;
+                    case 'T':
+                        smaliOptions.printTokens = true;
+                        break;
+                    case 'S':
+                        daemonPort = commandLine.getOptionValue("S", "");
+                        break;
+                    case 'K':
+                        daemonTokenFile = commandLine.getOptionValue("K");
+                        break;
+                    case 'c':
+                        smaliOptions.cacheDirectory = commandLine.getOptionValue("c");
+                        break;
+                    default:
+                        assert false;
+                }
             }
         }
 
+        if (daemonPort != null) {
+            if (daemonJob) {
+                System.err.println("The --daemon option can't be used for a daemon job");
+                return 1;
+            }
+            if (daemonPort.length() > 0 && daemonTokenFile == null) {
+                System.err.println("The --daemon-token-file option is required when the daemon listens on a port");
+                return 1;
+            }
+            try {
+                runDaemon(daemonPort.length() == 0 ? -1 : Integer.parseInt(daemonPort), daemonTokenFile,
+                        smaliOptions.jobs);
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
+                return 1;
+            }
+            return 0;
+        }
+
         if (remainingArgs.length == 0) {
             usage();
-            return;
+            return 0;
         }
 
         try {
             if (!run(smaliOptions, remainingArgs)) {
-                System.exit(1);
+                return 1;
             }
         } catch (RuntimeException ex) {
             System.err.println("\nUNEXPECTED TOP-LEVEL EXCEPTION:");
             ex.printStackTrace();
-            System.exit(2);
+            return 2;
         } catch (Throwable ex) {
             System.err.println("\nUNEXPECTED TOP-LEVEL ERROR:");
             ex.printStackTrace();
-            System.exit(3);
+            return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * Runs smali as a long-lived daemon, so that the startup and warm-up cost is only paid once for a series of jobs.
+     *
+     * @param port The loopback port to listen on, or -1 to read jobs from stdin
+     * @param tokenFile The file to write the token that connections must send to, when listening on a port
+     * @param maxConcurrentJobs The maximum number of jobs to run at once
+     */
+    private static void runDaemon(int port, String tokenFile, int maxConcurrentJobs) throws IOException {
+        JobServer server = new JobServer(new JobServer.JobHandler() {
+            @Override public int runJob(@Nonnull String[] args) throws Exception {
+                return execute(args, true);
+            }
+        }, maxConcurrentJobs);
+
+        if (port < 0) {
+            // Job output goes to stderr, so that it can't be mixed in with the responses on stdout
+            PrintStream responseStream = System.out;
+            System.setOut(System.err);
+            server.serve(System.in, responseStream);
+        } else {
+            server.serve(port, new File(tokenFile), System.out);
         }
     }
 
@@ -293,7 +477,7 @@ public class main {
         }
     }
 
-    private static void getSmaliFilesInDir(@Nonnull File dir, @Nonnull Set<File> smaliFiles) {
+    private static void getSmaliFilesInDir(@Nonnull File dir, @Nonnull List<File> smaliFiles) {
         File[] files = dir.listFiles();
         if (files != null) {
             for(File file: files) {
@@ -306,64 +490,83 @@ public class main {
         }
     }
 
-    private static boolean assembleSmaliFile(File smaliFile, DexBuilder dexBuilder, SmaliOptions options)
-            throws Exception {
-        CommonTokenStream tokens;
-
-        LexerErrorInterface lexer;
-
-        FileInputStream fis = new FileInputStream(smaliFile);
-        InputStreamReader reader = new InputStreamReader(fis, "UTF-8");
+    /**
+     * @return The path of the file relative to dirPath, in the same form as the name of an archive entry
+     */
+    @Nonnull
+    private static String getRelativeEntryName(@Nonnull String dirPath, @Nonnull File file) {
+        return file.getPath().substring(dirPath.length() + 1).replace(File.separatorChar, '/');
+    }
 
-        lexer = new smaliFlexLexer(reader);
-        ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
-        tokens = new CommonTokenStream((TokenSource)lexer);
+    private static boolean isArchive(@Nonnull File file) {
+        String name = file.getName().toLowerCase();
+        return file.isFile() && (name.endsWith(".zip") || name.endsWith(".jar"));
+    }
 
-        if (options.printTokens) {
-            tokens.getTokens();
+    private static boolean isDexFile(@Nonnull File file) {
+        return file.isFile() && file.getName().toLowerCase().endsWith(".dex");
+    }
 
-            for (int i=0; i<tokens.size(); i++) {
-                Token token = tokens.get(i);
-                if (token.getChannel() == smaliParser.HIDDEN) {
-                    continue;
-                }
+    private static boolean assembleSmaliFile(File smaliFile, DexBuilder dexBuilder, SmaliOptions options,
+                                             @Nullable AssemblyCache cache) throws Exception {
+        return assembleSmaliFile(Files.toByteArray(smaliFile), smaliFile, dexBuilder, options, cache);
+    }
 
-                System.out.println(smaliParser.tokenNames[token.getType()] + ": " + token.getText());
+    /**
+     * Reads an entry from an archive. The size of the entry is known up front, so it's read in a single pass straight
+     * into an exactly-sized array.
+     */
+    @Nonnull
+    private static byte[] readArchiveEntry(@Nonnull ZipFile archive, @Nonnull String entryName) throws IOException {
+        ZipEntry entry = archive.getEntry(entryName);
+        InputStream stream = archive.getInputStream(entry);
+        try {
+            long size = entry.getSize();
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                return ByteStreams.toByteArray(stream);
             }
-
-            System.out.flush();
+            byte[] bytes = new byte[(int)size];
+            ByteStreams.readFully(stream, bytes);
+            return bytes;
+        } finally {
+            stream.close();
         }
+    }
 
-        smaliParser parser = new smaliParser(tokens);
-        parser.setVerboseErrors(options.verboseErrors);
-        parser.setAllowOdex(options.allowOdex);
-        parser.setApiLevel(options.apiLevel, options.experimental);
-
-        smaliParser.smali_file_return result = parser.smali_file();
-
-        if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
-            return false;
+    /**
+     * @param smaliFile The file to report in error messages. For an entry in an archive, this is the entry's path
+     *                  under the archive file
+     */
+    private static boolean assembleSmaliFile(byte[] smaliBytes, File smaliFile, DexBuilder dexBuilder,
+                                             SmaliOptions options, @Nullable AssemblyCache cache) throws Exception {
+        // The tokens are printed as the file is assembled, so the cache can't be used for that
+        if (cache == null || options.printTokens) {
+            return assembleSmaliFile(smaliBytes, smaliFile, dexBuilder, options);
         }
 
-        CommonTree t = result.getTree();
-
-        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
-        treeStream.setTokenStream(tokens);
-
-        if (options.printTokens) {
-            System.out.println(t.toStringTree());
+        String key = cache.getKey(smaliBytes);
+        byte[] dexBytes = cache.get(key);
+        if (dexBytes == null) {
+            DexBuilder classBuilder = cache.makeDexBuilder();
+            if (!assembleSmaliFile(smaliBytes, smaliFile, classBuilder, options)) {
+                return false;
+            }
+            dexBytes = cache.put(key, classBuilder);
         }
 
-        smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
-        dexGen.setApiLevel(options.apiLevel, options.experimental);
-
-        dexGen.setVerboseErrors(options.verboseErrors);
-        dexGen.setDexBuilder(dexBuilder);
-        dexGen.smali_file();
-
-        return dexGen.getNumberOfSyntaxErrors() == 0;
+        try {
+            cache.intern(dexBytes, dexBuilder);
+        } catch (ExceptionWithContext ex) {
+            System.err.println(smaliFile.getPath() + ": " + ex.getMessage());
+            return false;
+        }
+        return true;
     }
 
+    private static boolean assembleSmaliFile(byte[] smaliBytes, File smaliFile, DexBuilder dexBuilder,
+                                             SmaliOptions options) throws Exception {
+        return SmaliAssembler.assemble(Utf8Utils.utf8BytesToChars(smaliBytes), smaliFile, dexBuilder, options);
+    }
 
     /**
      * Prints the usage message.
@@ -378,7 +581,7 @@ public class main {
 
         formatter.setWidth(consoleWidth);
 
-        formatter.printHelp("java -jar smali.jar [options] [--] [<smali-file>|folder]*",
+        formatter.printHelp("java -jar smali.jar [options] [--] [<smali-file>|folder|zip|dex]*",
                 "assembles a set of smali files into a dex file", basicOptions, printDebugOptions?debugOptions:null);
     }
 
@@ -393,7 +596,6 @@ public class main {
         System.out.println("smali " + VERSION + " (http://smali.googlecode.com)");
         System.out.println("Copyright (C) 2010 Ben Gruver (JesusFreke@JesusFreke.com)");
         System.out.println("BSD license (http://www.opensource.org/licenses/bsd-license.php)");
-        System.exit(0);
     }
 
     @SuppressWarnings("AccessStaticViaInstance")
@@ -458,6 +660,19 @@ public class main {
                 .withArgName("NUM_THREADS")
                 .create("j");
 
+        Option compactCodeOption = OptionBuilder.withLongOpt("compact-code")
+                .withDescription("Keep the code of each assembled method in its encoded form until the dex file is " +
+                        "written. This reduces the memory used when assembling a large number of classes")
+                .create("C");
+
+        Option cacheOption = OptionBuilder.withLongOpt("cache")
+                .withDescription("Caches each assembled class in DIR, keyed by the contents of its smali file and " +
+                        "the options used. Files that haven't changed since a previous run with the same cache are " +
+                        "loaded from the cache instead of being assembled again")
+                .hasArg()
+                .withArgName("DIR")
+                .create("c");
+
         Option verboseErrorsOption = OptionBuilder.withLongOpt("verbose-errors")
                 .withDescription("Generate verbose error messages")
                 .create("V");
@@ -466,6 +681,26 @@ public class main {
                 .withDescription("Print the name and text of each token")
                 .create("T");
 
+        Option daemonOption = OptionBuilder.withLongOpt("daemon")
+                .withDescription("runs smali as a daemon that can assemble several jobs without restarting. " +
+                        "Jobs are read from stdin as lines of the form \"<id> <smali arguments>\", and smali " +
+                        "responds to each with a line of the form \"<id> <exit code>\". A \"shutdown\" line stops " +
+                        "the daemon once the running jobs have finished. If PORT is given, jobs are read from " +
+                        "connections to PORT on the loopback interface instead. Any local user can connect to the " +
+                        "port, and a job can read and write any file that the daemon's user can, so each " +
+                        "connection must first send the token from the --daemon-token-file file")
+                .hasOptionalArg()
+                .withArgName("PORT")
+                .create("S");
+
+        Option daemonTokenFileOption = OptionBuilder.withLongOpt("daemon-token-file")
+                .withDescription("the file that a daemon listening on a port writes its token to. The file must " +
+                        "not already exist. It is created readable only by its owner, and is deleted when the " +
+                        "daemon stops")
+                .hasArg()
+                .withArgName("FILE")
+                .create("K");
+
         basicOptions.addOption(versionOption);
         basicOptions.addOption(helpOption);
         basicOptions.addOption(outputOption);
@@ -476,6 +711,10 @@ public class main {
         basicOptions.addOption(listMethodsOption);
         basicOptions.addOption(listFieldsOption);
         basicOptions.addOption(listClassesOption);
+        basicOptions.addOption(daemonOption);
+        basicOptions.addOption(daemonTokenFileOption);
+        basicOptions.addOption(cacheOption);
+        basicOptions.addOption(compactCodeOption);
 
         debugOptions.addOption(verboseErrorsOption);
         debugOptions.addOption(printTokensOption);
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.jf.smali.SmaliOptions;
+import org.jf.smali.main;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ArchiveInputTest {
+    // b-c.smali sorts before b/x.smali in an archive, but its directory would usually be listed first
+    private static final String[][] SOURCES = new String[][] {
+            { "a.smali", makeClass("LA;", "Ljava/lang/Runnable;", "(II)V") },
+            { "b-c.smali", makeClass("LC;", "Ljava/lang/Comparable;", "(JI)V") },
+            { "b/x.smali", makeClass("LX;", "Ljava/io/Serializable;", "(IJ)V") },
+            { "b/y/z.smali", makeClass("LZ;", "Ljava/lang/Cloneable;", "(Ljava/lang/String;)V") },
+            { "d.smali", makeClass("LD;", "Ljava/lang/Iterable;", "(ZZ)V") },
+    };
+
+    private File tempDir;
+    private File sourceDir;
+    private File archiveFile;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDir();
+        sourceDir = new File(tempDir, "src");
+        archiveFile = new File(tempDir, "src.zip");
+
+        ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(archiveFile));
+        try {
+            // written in reverse, so the archive order doesn't match the sorted order
+            for (int i=SOURCES.length-1; i>=0; i--) {
+                File file = new File(sourceDir, SOURCES[i][0]);
+                Files.createParentDirs(file);
+                Files.write(SOURCES[i][1], file, Charsets.UTF_8);
+
+                zipStream.putNextEntry(new ZipEntry(SOURCES[i][0]));
+                zipStream.write(SOURCES[i][1].getBytes(Charsets.UTF_8));
+                zipStream.closeEntry();
+            }
+        } finally {
+            zipStream.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testArchiveMatchesDirectory() throws IOException {
+        byte[] expected = assemble(sourceDir, 1);
+        Assert.assertArrayEquals(expected, assemble(archiveFile, 1));
+    }
+
+    @Test
+    public void testParallelArchiveMatchesDirectory() throws IOException {
+        byte[] expected = assemble(sourceDir, 3);
+        Assert.assertArrayEquals(expected, assemble(archiveFile, 3));
+    }
+
+    private byte[] assemble(File input, int jobs) throws IOException {
+        File outputFile = new File(tempDir, "out.dex");
+        SmaliOptions options = new SmaliOptions();
+        options.jobs = jobs;
+        options.outputDexFile = outputFile.getPath();
+        Assert.assertTrue(main.run(options, input.getPath()));
+        return Files.toByteArray(outputFile);
+    }
+
+    private static String makeClass(String type, String iface, String proto) {
+        return "" +
+                ".class public " + type + "\n" +
+                ".super Ljava/lang/Object;\n" +
+                ".implements " + iface + "\n" +
+                ".method public static run" + proto + "\n" +
+                "    .registers 5\n" +
+                "    return-void\n" +
+                ".end method\n";
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
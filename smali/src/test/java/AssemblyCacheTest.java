@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.jf.smali.SmaliOptions;
+import org.jf.smali.main;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class AssemblyCacheTest {
+    private static final String CLASS_A = "" +
+            ".class public LA;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".source \"A.java\"\n" +
+            ".field private static final NAME:Ljava/lang/String; = \"a\"\n" +
+            ".method public static run([Ljava/lang/String;)V\n" +
+            "    .registers 4\n" +
+            "    .param p0, \"args\"    # [Ljava/lang/String;\n" +
+            "    .line 10\n" +
+            "    :try_start\n" +
+            "    new-instance v0, LB;\n" +
+            "    invoke-direct {v0}, LB;-><init>()V\n" +
+            "    .local v0, \"b\":LB;\n" +
+            "    const-string v1, \"hello\"\n" +
+            "    invoke-virtual {v0, v1}, LB;->say(Ljava/lang/String;)V\n" +
+            "    :try_end\n" +
+            "    .catch Ljava/lang/RuntimeException; {:try_start .. :try_end} :handler\n" +
+            "    return-void\n" +
+            "    :handler\n" +
+            "    move-exception v0\n" +
+            "    throw v0\n" +
+            ".end method\n";
+
+    private static final String CLASS_B = "" +
+            ".class public LB;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public constructor <init>()V\n" +
+            "    .registers 1\n" +
+            "    invoke-direct {p0}, Ljava/lang/Object;-><init>()V\n" +
+            "    return-void\n" +
+            ".end method\n" +
+            ".method public say(Ljava/lang/String;)V\n" +
+            "    .registers 3\n" +
+            "    sget-object v0, Ljava/lang/System;->out:Ljava/io/PrintStream;\n" +
+            "    invoke-virtual {v0, p1}, Ljava/io/PrintStream;->println(Ljava/lang/String;)V\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    private static final String CLASS_C = "" +
+            ".class public LC;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".field public count:I\n" +
+            ".method public run()V\n" +
+            "    .registers 1\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    private File tempDir;
+    private File sourceDir;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDir();
+        sourceDir = new File(tempDir, "src");
+        cacheDir = new File(tempDir, "cache");
+        Assert.assertTrue(sourceDir.mkdir());
+        Files.write(CLASS_A, new File(sourceDir, "A.smali"), Charsets.UTF_8);
+        Files.write(CLASS_B, new File(sourceDir, "B.smali"), Charsets.UTF_8);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testCachedBuildIsIdentical() throws IOException {
+        byte[] expected = assemble(false);
+
+        Assert.assertArrayEquals(expected, assemble(true));
+        Assert.assertEquals(2, cacheDir.list().length);
+
+        // the second build is loaded entirely from the cache
+        Assert.assertArrayEquals(expected, assemble(true));
+        Assert.assertEquals(2, cacheDir.list().length);
+
+        Files.write(CLASS_B.replace("println", "print"), new File(sourceDir, "B.smali"), Charsets.UTF_8);
+        expected = assemble(false);
+        Assert.assertArrayEquals(expected, assemble(true));
+        Assert.assertEquals(3, cacheDir.list().length);
+    }
+
+    @Test
+    public void testCachedBuildWithoutAnnotationsIsIdentical() throws IOException {
+        // there are no annotations or method parameters at all, so the parser doesn't intern any empty annotation
+        // sets, but the classes loaded from the cache do have empty sets of annotations
+        Assert.assertTrue(new File(sourceDir, "A.smali").delete());
+        Assert.assertTrue(new File(sourceDir, "B.smali").delete());
+        Files.write(CLASS_C, new File(sourceDir, "C.smali"), Charsets.UTF_8);
+        byte[] expected = assemble(false);
+
+        Assert.assertArrayEquals(expected, assemble(true));
+        Assert.assertArrayEquals(expected, assemble(true));
+    }
+
+    @Test
+    public void testOptionsAffectKey() throws IOException {
+        assemble(true);
+        Assert.assertEquals(2, cacheDir.list().length);
+
+        SmaliOptions options = new SmaliOptions();
+        options.apiLevel = 21;
+        options.cacheDirectory = cacheDir.getPath();
+        options.outputDexFile = new File(tempDir, "out.dex").getPath();
+        Assert.assertTrue(main.run(options, sourceDir.getPath()));
+        Assert.assertEquals(4, cacheDir.list().length);
+    }
+
+    @Test
+    public void testErrorsAreNotCached() throws IOException {
+        Files.write(CLASS_B.replace("return-void", "bogus"), new File(sourceDir, "B.smali"), Charsets.UTF_8);
+        SmaliOptions options = new SmaliOptions();
+        options.cacheDirectory = cacheDir.getPath();
+        options.outputDexFile = new File(tempDir, "out.dex").getPath();
+        Assert.assertFalse(main.run(options, sourceDir.getPath()));
+        Assert.assertEquals(1, cacheDir.list().length);
+    }
+
+    private byte[] assemble(boolean useCache) throws IOException {
+        File outputFile = new File(tempDir, "out.dex");
+        SmaliOptions options = new SmaliOptions();
+        options.jobs = 1;
+        options.outputDexFile = outputFile.getPath();
+        if (useCache) {
+            options.cacheDirectory = cacheDir.getPath();
+        }
+        Assert.assertTrue(main.run(options, sourceDir.getPath()));
+        return Files.toByteArray(outputFile);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.jf.smali.SmaliOptions;
+import org.jf.smali.main;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class DexMergeTest {
+    private static final String CLASS_A = "" +
+            ".class public LA;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".implements Ljava/lang/Runnable;\n" +
+            ".source \"A.java\"\n" +
+            ".field private static final NAME:Ljava/lang/String; = \"a\"\n" +
+            ".method public run()V\n" +
+            "    .registers 3\n" +
+            "    .line 10\n" +
+            "    :try_start\n" +
+            "    new-instance v0, LB;\n" +
+            "    invoke-direct {v0}, LB;-><init>()V\n" +
+            "    .local v0, \"b\":LB;\n" +
+            "    const-string v1, \"hello\"\n" +
+            "    invoke-virtual {v0, v1}, LB;->say(Ljava/lang/String;)V\n" +
+            "    :try_end\n" +
+            "    .catch Ljava/lang/RuntimeException; {:try_start .. :try_end} :handler\n" +
+            "    return-void\n" +
+            "    :handler\n" +
+            "    move-exception v0\n" +
+            "    throw v0\n" +
+            ".end method\n";
+
+    private static final String CLASS_B = "" +
+            ".class public LB;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public constructor <init>()V\n" +
+            "    .registers 1\n" +
+            "    invoke-direct {p0}, Ljava/lang/Object;-><init>()V\n" +
+            "    return-void\n" +
+            ".end method\n" +
+            ".method public say(Ljava/lang/String;)V\n" +
+            "    .registers 3\n" +
+            "    .param p1, \"message\"    # Ljava/lang/String;\n" +
+            "    sget-object v0, Ljava/lang/System;->out:Ljava/io/PrintStream;\n" +
+            "    invoke-virtual {v0, p1}, Ljava/io/PrintStream;->println(Ljava/lang/String;)V\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    private static final String CLASS_C = "" +
+            ".class public LC;\n" +
+            ".super LB;\n" +
+            ".implements Ljava/lang/Runnable;\n" +
+            ".method public run()V\n" +
+            "    .registers 2\n" +
+            "    const-wide v0, 0x123456789L\n" +
+            "    sput-wide v0, LC;->count:J\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    private File tempDir;
+    private File allDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDir();
+        allDir = new File(tempDir, "all");
+        writeClass(allDir, "A.smali", CLASS_A);
+        writeClass(allDir, "B.smali", CLASS_B);
+        writeClass(allDir, "C.smali", CLASS_C);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testMergeMatchesSingleAssembly() throws IOException {
+        byte[] expected = assemble(1, allDir.getPath());
+
+        File shard1 = new File(tempDir, "shard1");
+        writeClass(shard1, "C.smali", CLASS_C);
+        writeClass(shard1, "A.smali", CLASS_A);
+        File shard2 = new File(tempDir, "shard2");
+        writeClass(shard2, "B.smali", CLASS_B);
+
+        File dex1 = new File(tempDir, "shard1.dex");
+        File dex2 = new File(tempDir, "shard2.dex");
+        Files.write(assemble(1, shard1.getPath()), dex1);
+        Files.write(assemble(1, shard2.getPath()), dex2);
+
+        Assert.assertArrayEquals(expected, assemble(1, dex1.getPath(), dex2.getPath()));
+        Assert.assertArrayEquals(expected, assemble(1, dex2.getPath(), dex1.getPath()));
+        Assert.assertArrayEquals(expected, assemble(2, dex1.getPath(), dex2.getPath()));
+
+        // a shard can also be merged with smali files that are assembled at the same time
+        Assert.assertArrayEquals(expected, assemble(1, dex1.getPath(), shard2.getPath()));
+    }
+
+    @Test
+    public void testSingleJobMatchesAnySplit() throws IOException {
+        // The type lists of the method parameters are written in the order of the type list pool, which depends on
+        // the order they're interned in. The file names sort in the opposite order to the types of the classes in
+        // them, so assembling the files in order interns the type lists in a different order than the merge does.
+        int classCount = 8;
+        File unsortedDir = new File(tempDir, "unsorted");
+        for (int i=0; i<classCount; i++) {
+            writeClass(unsortedDir, getGeneratedFileName(classCount, i), generateClass(classCount, i));
+        }
+        byte[] expected = assemble(1, unsortedDir.getPath());
+        Assert.assertArrayEquals(expected, assemble(3, unsortedDir.getPath()));
+
+        int[] splits = new int[] {0x01, 0x80, 0x0f, 0x55, 0xaa, 0x36};
+        for (int split: splits) {
+            File shard1 = new File(tempDir, "split" + split + "-1");
+            File shard2 = new File(tempDir, "split" + split + "-2");
+            for (int i=0; i<classCount; i++) {
+                writeClass((split & (1<<i)) != 0 ? shard1 : shard2, getGeneratedFileName(classCount, i),
+                        generateClass(classCount, i));
+            }
+
+            File dex1 = new File(tempDir, "split" + split + "-1.dex");
+            File dex2 = new File(tempDir, "split" + split + "-2.dex");
+            Files.write(assemble(1, shard1.getPath()), dex1);
+            Files.write(assemble(1, shard2.getPath()), dex2);
+
+            Assert.assertArrayEquals(expected, assemble(1, dex1.getPath(), dex2.getPath()));
+            Assert.assertArrayEquals(expected, assemble(1, dex2.getPath(), shard1.getPath()));
+        }
+    }
+
+    @Test
+    public void testDuplicateClassInShards() throws IOException {
+        File dex = new File(tempDir, "all.dex");
+        Files.write(assemble(1, allDir.getPath()), dex);
+
+        SmaliOptions options = new SmaliOptions();
+        options.outputDexFile = new File(tempDir, "out.dex").getPath();
+        Assert.assertFalse(main.run(options, dex.getPath(), new File(allDir, "B.smali").getPath()));
+    }
+
+    private byte[] assemble(int jobs, String... input) throws IOException {
+        File outputFile = new File(tempDir, "out.dex");
+        SmaliOptions options = new SmaliOptions();
+        options.jobs = jobs;
+        options.outputDexFile = outputFile.getPath();
+        Assert.assertTrue(main.run(options, input));
+        return Files.toByteArray(outputFile);
+    }
+
+    private static String getGeneratedFileName(int classCount, int index) {
+        return (classCount - index) + ".smali";
+    }
+
+    private static String generateClass(int classCount, int index) {
+        StringBuilder parameters = new StringBuilder();
+        for (int i=0; i<=index%4; i++) {
+            parameters.append("LC").append((index + i) % classCount).append(';');
+        }
+        return ".class public LC" + index + ";\n" +
+                ".super Ljava/lang/Object;\n" +
+                ".method public static run(" + parameters + ")V\n" +
+                "    .registers " + (index%4 + 1) + "\n" +
+                "    return-void\n" +
+                ".end method\n";
+    }
+
+    private static void writeClass(File dir, String name, String contents) throws IOException {
+        File file = new File(dir, name);
+        Files.createParentDirs(file);
+        Files.write(contents, file, Charsets.UTF_8);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -26,6 +26,7 @@
  * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import com.google.common.io.ByteStreams;
 import org.antlr.runtime.ANTLRInputStream;
 import org.antlr.runtime.CommonToken;
 import org.antlr.runtime.CommonTokenStream;
@@ -34,6 +35,7 @@ import org.jf.smali.expectedTokensTestGrammarLexer;
 import org.jf.smali.expectedTokensTestGrammarParser;
 import org.jf.smali.smaliFlexLexer;
 import org.jf.smali.smaliParser;
+import org.jf.util.Utf8Utils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -167,6 +169,8 @@ public class LexerTest {
         tokenStream.fill();
         List tokens = tokenStream.getTokens();
 
+        verifyBufferLexer(smaliFile, tokens);
+
         int expectedTokenIndex = 0;
         CommonToken token;
         for (int i=0; i<tokens.size()-1; i++) {
@@ -211,6 +215,46 @@ public class LexerTest {
         }
     }
 
+    /**
+     * Lexes the file again, directly out of an in-memory buffer, and checks that the tokens are the same as the
+     * ones read through a Reader
+     */
+    private static void verifyBufferLexer(String smaliFile, List tokens) {
+        InputStream smaliStream = LexerTest.class.getClassLoader().getResourceAsStream(smaliFile);
+        char[] smaliChars;
+        try {
+            try {
+                smaliChars = Utf8Utils.utf8BytesToChars(ByteStreams.toByteArray(smaliStream));
+            } finally {
+                smaliStream.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        smaliFlexLexer lexer = new smaliFlexLexer(smaliChars);
+        lexer.setSuppressErrors(true);
+
+        CommonTokenStream tokenStream = new CommonTokenStream(lexer);
+        tokenStream.fill();
+        List bufferTokens = tokenStream.getTokens();
+
+        Assert.assertEquals(tokens.size(), bufferTokens.size());
+        for (int i=0; i<tokens.size(); i++) {
+            CommonToken token = (CommonToken)tokens.get(i);
+            CommonToken bufferToken = (CommonToken)bufferTokens.get(i);
+
+            String message = String.format("Token mismatch at index %d", i);
+            Assert.assertEquals(message, token.getType(), bufferToken.getType());
+            Assert.assertEquals(message, token.getText(), bufferToken.getText());
+            Assert.assertEquals(message, token.getChannel(), bufferToken.getChannel());
+            Assert.assertEquals(message, token.getLine(), bufferToken.getLine());
+            Assert.assertEquals(message, token.getCharPositionInLine(), bufferToken.getCharPositionInLine());
+            Assert.assertEquals(message, token.getStartIndex(), bufferToken.getStartIndex());
+            Assert.assertEquals(message, token.getStopIndex(), bufferToken.getStopIndex());
+        }
+    }
+
 
 
     private static String getTokenName(int tokenType) {
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.TokenSource;
+import org.antlr.runtime.tree.CommonTreeNodeStream;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.smali.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+public class SinglePassAssemblerTest {
+    private static final String SMALI = "" +
+            ".class public LTest;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".implements Ljava/lang/Runnable;\n" +
+            ".source \"Test.java\"\n" +
+            ".annotation system Ldalvik/annotation/MemberClasses;\n" +
+            "    value = {\n" +
+            "        LTest$Inner;,\n" +
+            "        [I\n" +
+            "    }\n" +
+            ".end annotation\n" +
+            ".field private static final LONG:J = 0x123456789L\n" +
+            ".field public static NAMES:[Ljava/lang/String;\n" +
+            "    .annotation runtime LAnno;\n" +
+            "        method = LTest;->run()V\n" +
+            "        field = value:I\n" +
+            "        nested = .subannotation LNested;\n" +
+            "            e = .enum LEnum;->A:LEnum;\n" +
+            "            d = 1.5\n" +
+            "            c = 'c'\n" +
+            "            n = null\n" +
+            "        .end subannotation\n" +
+            "    .end annotation\n" +
+            ".end field\n" +
+            ".field value:I\n" +
+            ".method public abstract abs(II)V\n" +
+            ".end method\n" +
+            ".method public run()V\n" +
+            "    const/4 v0, 0x1\n" +
+            "    .registers 4\n" +
+            "    .line 10\n" +
+            "    .local v0, \"x\":I\n" +
+            "    :try_start\n" +
+            "    const-wide v2, 1.0\n" +
+            "    const-wide/high16 v2, 0x4000000000000000L\n" +
+            "    invoke-virtual {p0}, LTest;->run()V\n" +
+            "    invoke-static/range {v0 .. v1}, Ljava/lang/Long;->valueOf(J)Ljava/lang/Long;\n" +
+            "    :try_end\n" +
+            "    .catch Ljava/lang/Exception; {:try_start .. :try_end} :handler\n" +
+            "    .catchall {:try_start .. :try_end} :handler\n" +
+            "    iget v1, p0, value:I\n" +
+            "    packed-switch v1, :packed\n" +
+            "    sparse-switch v1, :sparse\n" +
+            "    fill-array-data v0, :array\n" +
+            "    .end local v0\n" +
+            "    :handler\n" +
+            "    return-void\n" +
+            "    :packed\n" +
+            "    .packed-switch 0x1\n" +
+            "        :handler\n" +
+            "        :try_start\n" +
+            "    .end packed-switch\n" +
+            "    :sparse\n" +
+            "    .sparse-switch\n" +
+            "        -0x1 -> :handler\n" +
+            "        0x10 -> :try_end\n" +
+            "    .end sparse-switch\n" +
+            "    :array\n" +
+            "    .array-data 2\n" +
+            "        0x1s\n" +
+            "        -0x2s\n" +
+            "    .end array-data\n" +
+            ".end method\n" +
+            ".method static wide(JLjava/lang/String;D)V\n" +
+            "    .locals 0\n" +
+            "    .param p0, \"l\"\n" +
+            "    .param p2, \"s\"\n" +
+            "        .annotation runtime LAnno;\n" +
+            "        .end annotation\n" +
+            "    .end param\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    @Test
+    public void testSameAsTreeWalker() throws Exception {
+        SmaliOptions options = new SmaliOptions();
+
+        Opcodes opcodes = Opcodes.forApi(options.apiLevel);
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(opcodes);
+        Assert.assertTrue(SinglePassAssembler.assemble(SMALI.toCharArray(), opcodes, dexBuilder, options));
+
+        Assert.assertArrayEquals(assembleWithTreeWalker(SMALI, options), writeDex(dexBuilder));
+    }
+
+    @Test
+    public void testUnsupportedInput() throws Exception {
+        assertUnsupported(".class LTest;\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n.class LTest2;\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n.field value:I = 1\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\n.locals 1\nreturn-void\n.end method\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\nconst/4 v0, 0x10\nreturn-void\n.end method\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\nreturn-void-barrier\n.end method\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\nreturn-void\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\nconst-string v0, \"\\q\"\n.end method\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\nconst/16 v0, 0x10000\nreturn-void\n.end method\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\nmove v20, v0\nreturn-void\n.end method\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\ngoto :missing\n.end method\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n" +
+                ".method test()V\n.registers 1\n:a\n:a\nreturn-void\n.end method\n");
+        assertUnsupported(".class LTest;\n.super Ljava/lang/Object;\n.field static value:I = 0x100000000\n");
+    }
+
+    @Test
+    public void testDuplicateClassIsUnsupported() throws Exception {
+        String smaliText = ".class LTest;\n.super Ljava/lang/Object;\n";
+        SmaliOptions options = new SmaliOptions();
+        Opcodes opcodes = Opcodes.forApi(options.apiLevel);
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(opcodes);
+        Assert.assertTrue(SinglePassAssembler.assemble(smaliText.toCharArray(), opcodes, dexBuilder, options));
+        Assert.assertFalse(SinglePassAssembler.assemble(smaliText.toCharArray(), opcodes, dexBuilder, options));
+    }
+
+    private static void assertUnsupported(String smaliText) {
+        SmaliOptions options = new SmaliOptions();
+        Opcodes opcodes = Opcodes.forApi(options.apiLevel);
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(opcodes);
+        Assert.assertFalse(SinglePassAssembler.assemble(smaliText.toCharArray(), opcodes, dexBuilder, options));
+    }
+
+    private static byte[] assembleWithTreeWalker(String smaliText, SmaliOptions options) throws Exception {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(Opcodes.forApi(options.apiLevel));
+
+        smaliFlexLexer lexer = new smaliFlexLexer(new StringReader(smaliText));
+        CommonTokenStream tokens = new CommonTokenStream((TokenSource)lexer);
+        smaliParser parser = new smaliParser(tokens);
+        parser.setApiLevel(options.apiLevel, options.experimental);
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(parser.smali_file().getTree());
+        treeStream.setTokenStream(tokens);
+        Assert.assertEquals(0, parser.getNumberOfSyntaxErrors());
+
+        smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
+        dexGen.setApiLevel(options.apiLevel, options.experimental);
+        dexGen.setDexBuilder(dexBuilder);
+        dexGen.smali_file();
+        Assert.assertEquals(0, dexGen.getNumberOfSyntaxErrors());
+
+        return writeDex(dexBuilder);
+    }
+
+    private static byte[] writeDex(DexBuilder dexBuilder) throws Exception {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexBuilder.writeTo(dataStore);
+        return Arrays.copyOf(dataStore.getData(), dataStore.getData().length);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.smali.SmaliAssembler;
+import org.jf.smali.SmaliOptions;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+public class SmaliAssemblerTest {
+    private static final String CLASS_A = "" +
+            ".class public LA;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public static run()I\n" +
+            "    .registers 1\n" +
+            "    invoke-static {}, LB;->value()I\n" +
+            "    move-result v0\n" +
+            "    return v0\n" +
+            ".end method\n";
+
+    private static final String CLASS_B = "" +
+            ".class public LB;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public static value()I\n" +
+            "    .registers 1\n" +
+            "    const/4 v0, 0x5\n" +
+            "    return v0\n" +
+            ".end method\n";
+
+    private static final String BAD_CLASS = "" +
+            ".class public LC;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public static value()I\n" +
+            "    .registers 1\n" +
+            "    bogus v0\n" +
+            ".end method\n";
+
+    private static List<String> getClassTypes(byte[] dexBytes) {
+        List<String> types = Lists.newArrayList();
+        for (ClassDef classDef: new DexBackedDexFile(Opcodes.forApi(15), dexBytes).getClasses()) {
+            types.add(classDef.getType());
+        }
+        return types;
+    }
+
+    @Test
+    public void testAssembleDex() throws IOException {
+        byte[] dexBytes = SmaliAssembler.assembleDex(ImmutableList.of(CLASS_A, CLASS_B), new SmaliOptions());
+        Assert.assertNotNull(dexBytes);
+        Assert.assertEquals(ImmutableList.of("LA;", "LB;"), getClassTypes(dexBytes));
+    }
+
+    @Test
+    public void testReuseAfterError() throws IOException {
+        SmaliOptions options = new SmaliOptions();
+        byte[] expected = SmaliAssembler.assembleDex(ImmutableList.of(CLASS_A, CLASS_B), options);
+
+        Assert.assertNull(SmaliAssembler.assembleDex(ImmutableList.of(CLASS_A, BAD_CLASS), options));
+        options.verboseErrors = true;
+        Assert.assertNull(SmaliAssembler.assembleDex(ImmutableList.of(BAD_CLASS), options));
+        options.verboseErrors = false;
+
+        Assert.assertArrayEquals(expected, SmaliAssembler.assembleDex(ImmutableList.of(CLASS_A, CLASS_B), options));
+    }
+
+    @Test
+    public void testApiLevelChange() throws IOException {
+        SmaliOptions options = new SmaliOptions();
+        options.apiLevel = 21;
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(Opcodes.forApi(21));
+        Assert.assertTrue(SmaliAssembler.assemble(CLASS_A, dexBuilder, options));
+
+        options.apiLevel = 15;
+        dexBuilder = DexBuilder.makeDexBuilder(Opcodes.forApi(15));
+        Assert.assertTrue(SmaliAssembler.assemble(new StringReader(CLASS_B), dexBuilder, options));
+    }
+}
@@ -28,16 +28,15 @@
 
 package org.jf.util;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.IntBuffer;
-import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -48,6 +47,10 @@ import java.util.regex.Pattern;
  * - append a '#123' style numeric suffix if 2 physical representations collide
  * - replace some number of characters in the middle with a '#' character name if an individual path element is too long
  * - append a '#' if an individual path element would otherwise be considered a reserved filename
+ *
+ * This class is safe to use from multiple threads. Looking up an existing package directory doesn't lock anything, and
+ * numeric suffixes are assigned atomically, in the order that the colliding names are requested. Callers that need
+ * the same names to be chosen on every run should request them in a deterministic order.
  */
 public class ClassFileNameHandler {
     private static final int MAX_FILENAME_LENGTH = 255;
@@ -71,12 +74,13 @@ public class ClassFileNameHandler {
         this.modifyWindowsReservedFilenames = isWindows();
     }
 
-    // for testing
+    // for testing, or when the names are not going to be created on the local file system
     public ClassFileNameHandler(File path, String fileExtension, boolean caseSensitive,
                                 boolean modifyWindowsReservedFilenames) {
+        // this must be set before creating the top level entry, which picks it up
+        this.forcedCaseSensitivity = caseSensitive?CASE_SENSITIVE:CASE_INSENSITIVE;
         this.top = new DirectoryEntry(path);
         this.fileExtension = fileExtension;
-        this.forcedCaseSensitivity = caseSensitive?CASE_SENSITIVE:CASE_INSENSITIVE;
         this.modifyWindowsReservedFilenames = modifyWindowsReservedFilenames;
     }
 
@@ -130,21 +134,21 @@ public class ClassFileNameHandler {
     @Nonnull
     private File addUniqueChild(@Nonnull DirectoryEntry parent, @Nonnull String[] packageElements,
                                 int packageElementIndex) {
-        if (packageElementIndex == packageElements.length - 1) {
-            FileEntry fileEntry = new FileEntry(parent, packageElements[packageElementIndex] + fileExtension);
-            parent.addChild(fileEntry);
+        DirectoryEntry directoryEntry = parent;
+        for (int i=packageElementIndex; i<packageElements.length - 1; i++) {
+            directoryEntry = directoryEntry.getOrAddDirectory(packageElements[i]);
+        }
 
-            String physicalName = fileEntry.getPhysicalName();
+        FileEntry fileEntry = new FileEntry(directoryEntry,
+                packageElements[packageElements.length - 1] + fileExtension);
+        directoryEntry.addFile(fileEntry);
 
-            // the physical name should be set when adding it as a child to the parent
-            assert  physicalName != null;
+        String physicalName = fileEntry.getPhysicalName();
 
-            return new File(parent.file, physicalName);
-        } else {
-            DirectoryEntry directoryEntry = new DirectoryEntry(parent, packageElements[packageElementIndex]);
-            directoryEntry = (DirectoryEntry)parent.addChild(directoryEntry);
-            return addUniqueChild(directoryEntry, packageElements, packageElementIndex+1);
-        }
+        // the physical name should be set when adding it as a child to the parent
+        assert  physicalName != null;
+
+        return new File(directoryEntry.file, physicalName);
     }
 
     private static int utf8Length(String str) {
@@ -285,14 +289,28 @@ public class ClassFileNameHandler {
         protected abstract String makePhysicalName(int suffix);
     }
 
+    /**
+     * The entries in a directory that share the same normalized (but not suffixed) name. Each of them must have a
+     * distinct physical name, which is done by giving each a distinct numeric suffix.
+     */
+    private static class NameSlot {
+        private final AtomicInteger nextSuffix = new AtomicInteger(0);
+        // the directories in this slot, by logical name
+        private final ConcurrentMap<String, DirectoryEntry> directories =
+                new ConcurrentHashMap<String, DirectoryEntry>(4);
+    }
+
     private class DirectoryEntry extends FileSystemEntry {
         @Nullable private File file = null;
-        private int caseSensitivity = forcedCaseSensitivity;
+        private volatile int caseSensitivity = forcedCaseSensitivity;
+
+        // maps a normalized (but not suffixed) entry name to the entries that share that name
+        private final ConcurrentMap<String, NameSlot> children = new ConcurrentHashMap<String, NameSlot>();
 
-        // maps a normalized (but not suffixed) entry name to 1 or more FileSystemEntries.
-        // Each FileSystemEntry asociated with a normalized entry name must have a distinct
-        // physical name
-        private final Multimap<String, FileSystemEntry> children = ArrayListMultimap.create();
+        // maps the logical name of each subdirectory directly to its entry. This lets an existing directory be found
+        // without normalizing its name again
+        private final ConcurrentMap<String, DirectoryEntry> subdirectories =
+                new ConcurrentHashMap<String, DirectoryEntry>();
 
         public DirectoryEntry(@Nonnull File path) {
             super(null, path.getName());
@@ -304,19 +322,46 @@ public class ClassFileNameHandler {
             super(parent, logicalName);
         }
 
-        public synchronized FileSystemEntry addChild(FileSystemEntry entry) {
-            String normalizedChildName = entry.getNormalizedName(false);
-            Collection<FileSystemEntry> entries = children.get(normalizedChildName);
-            if (entry instanceof DirectoryEntry) {
-                for (FileSystemEntry childEntry: entries) {
-                    if (childEntry.logicalName.equals(entry.logicalName)) {
-                        return childEntry;
-                    }
+        @Nonnull
+        private NameSlot getSlot(@Nonnull String normalizedName) {
+            NameSlot slot = children.get(normalizedName);
+            if (slot == null) {
+                slot = new NameSlot();
+                NameSlot existing = children.putIfAbsent(normalizedName, slot);
+                if (existing != null) {
+                    slot = existing;
                 }
             }
-            entry.setSuffix(entries.size());
-            entries.add(entry);
-            return entry;
+            return slot;
+        }
+
+        @Nonnull
+        public DirectoryEntry getOrAddDirectory(@Nonnull String logicalName) {
+            DirectoryEntry directoryEntry = subdirectories.get(logicalName);
+            if (directoryEntry != null) {
+                return directoryEntry;
+            }
+
+            directoryEntry = new DirectoryEntry(this, logicalName);
+            NameSlot slot = getSlot(directoryEntry.getNormalizedName(false));
+
+            // A new directory is only added once per package, so it's fine to serialize this part on the slot. The
+            // suffix must be set before the entry is published, and only the entry that's actually added may take a
+            // suffix, so that the suffixes don't depend on which thread wins a race
+            synchronized (slot) {
+                DirectoryEntry existing = slot.directories.get(logicalName);
+                if (existing != null) {
+                    return existing;
+                }
+                directoryEntry.setSuffix(slot.nextSuffix.getAndIncrement());
+                slot.directories.put(logicalName, directoryEntry);
+            }
+            subdirectories.put(logicalName, directoryEntry);
+            return directoryEntry;
+        }
+
+        public void addFile(@Nonnull FileEntry entry) {
+            entry.setSuffix(getSlot(entry.getNormalizedName(false)).nextSuffix.getAndIncrement());
         }
 
         @Override
@@ -337,6 +382,14 @@ public class ClassFileNameHandler {
         }
 
         protected boolean isCaseSensitive() {
+            int caseSensitivity = this.caseSensitivity;
+            if (caseSensitivity != NO_VALUE) {
+                return caseSensitivity == CASE_SENSITIVE;
+            }
+            return detectCaseSensitivity();
+        }
+
+        private synchronized boolean detectCaseSensitivity() {
             if (getPhysicalName() == null || file == null) {
                 throw new IllegalStateException("Must call setSuffix() first");
             }
@@ -362,6 +415,7 @@ public class ClassFileNameHandler {
                 caseSensitivity = result?CASE_SENSITIVE:CASE_INSENSITIVE;
                 return result;
             } catch (IOException ex) {
+                caseSensitivity = CASE_INSENSITIVE;
                 return false;
             }
         }
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs command line style jobs for a long running process, using a simple line based protocol.
+ *
+ * Each request is a single line, consisting of a job id followed by the job's command line arguments, separated by
+ * whitespace. An argument containing whitespace can be enclosed in double quotes, within which \" and \\ are escapes.
+ * Jobs run concurrently, and when a job finishes, a line containing the job id and the job's exit code is written
+ * back. A job that throws an exception has an exit code of 2, and a job that is received after the server has started
+ * shutting down isn't run, and has an exit code of -1.
+ *
+ * The request "shutdown" stops the server once the running jobs have finished.
+ *
+ * Jobs are normally read from a stream, such as the stdin of the process, so that only the process that started the
+ * server can send them. The server can also listen on a loopback port, but any local user can connect to that, and a
+ * job can generally read and write any file that the server's user can. So the server writes a random token to a file
+ * that only its owner can read, and a connection's first line must be that token before any of its requests are run.
+ */
+public class JobServer {
+    public interface JobHandler {
+        /**
+         * Runs a single job
+         *
+         * @param args The job's command line arguments
+         * @return The job's exit code, with 0 indicating success
+         */
+        int runJob(@Nonnull String[] args) throws Exception;
+    }
+
+    public static final String SHUTDOWN = "shutdown";
+
+    // how long a new connection has to send the token
+    private static final int TOKEN_TIMEOUT_MILLIS = 10000;
+
+    @Nonnull private final JobHandler handler;
+    @Nonnull private final ExecutorService executor;
+    private volatile boolean shutdown = false;
+    private ServerSocket serverSocket = null;
+
+    public JobServer(@Nonnull JobHandler handler, int maxConcurrentJobs) {
+        this.handler = handler;
+        this.executor = Executors.newFixedThreadPool(maxConcurrentJobs);
+    }
+
+    /**
+     * Serves requests from the given stream until it is exhausted or a shutdown request is received, and then waits
+     * for the running jobs to finish.
+     */
+    public void serve(@Nonnull InputStream in, @Nonnull OutputStream out) throws IOException {
+        serveConnection(new BufferedReader(new InputStreamReader(in, "UTF-8")), out);
+        shutdown();
+    }
+
+    /**
+     * Listens for connections on the given port of the loopback interface, and serves the requests from each
+     * connection until a shutdown request is received on any of them.
+     *
+     * A random token is written to tokenFile, which is only readable by its owner, and is deleted when the server
+     * stops. The first line of each connection must be this token, and a connection that doesn't send it is closed
+     * without running any of its requests.
+     *
+     * @param port The port to listen on, or 0 to pick a free port
+     * @param tokenFile The file to write the token to. This must not already exist.
+     * @param portListener If not null, the port that is actually being listened on is written to this stream
+     */
+    public void serve(int port, @Nonnull File tokenFile, @Nullable PrintStream portListener) throws IOException {
+        final byte[] token = generateToken();
+        writeTokenFile(tokenFile, token);
+
+        try {
+            serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        } catch (IOException ex) {
+            tokenFile.delete();
+            throw ex;
+        }
+        if (portListener != null) {
+            portListener.println(serverSocket.getLocalPort());
+            portListener.flush();
+        }
+
+        try {
+            while (!shutdown) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException ex) {
+                    // the server socket was closed by a shutdown request
+                    break;
+                }
+
+                Thread connectionThread = new Thread(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            BufferedReader reader =
+                                    new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                            socket.setSoTimeout(TOKEN_TIMEOUT_MILLIS);
+                            String tokenLine;
+                            try {
+                                tokenLine = reader.readLine();
+                            } catch (SocketTimeoutException ex) {
+                                tokenLine = null;
+                            }
+                            if (tokenLine == null || !MessageDigest.isEqual(token, tokenLine.getBytes("UTF-8"))) {
+                                System.err.println("Rejected a connection that didn't send the token");
+                                return;
+                            }
+                            socket.setSoTimeout(0);
+                            serveConnection(reader, socket.getOutputStream());
+                        } catch (IOException ex) {
+                            ex.printStackTrace(System.err);
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException ex) {
+                                // ignore
+                            }
+                        }
+                    }
+                });
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            }
+        } finally {
+            shutdown();
+            tokenFile.delete();
+        }
+    }
+
+    @Nonnull
+    private static byte[] generateToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b: bytes) {
+            token.append(String.format("%02x", b & 0xff));
+        }
+        try {
+            return token.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Writes the token to a new file that only its owner can read.
+     *
+     * The file is first written in a new directory that only the owner can access, and then moved into place. A file
+     * created directly at its final location would briefly have the default permissions, and another user that opened
+     * it during that time could read the token later.
+     */
+    private static void writeTokenFile(@Nonnull File tokenFile, @Nonnull byte[] token) throws IOException {
+        tokenFile = tokenFile.getAbsoluteFile();
+        if (tokenFile.exists()) {
+            throw new IOException("The token file already exists: " + tokenFile);
+        }
+
+        File privateDir = new File(tokenFile.getParentFile(),
+                "." + tokenFile.getName() + "." + new String(generateToken(), "UTF-8"));
+        if (!privateDir.mkdir()) {
+            throw new IOException("Couldn't create directory: " + privateDir);
+        }
+        File tempFile = new File(privateDir, "token");
+        try {
+            if (!restrictToOwner(privateDir)) {
+                throw new IOException("Couldn't restrict the permissions of " + privateDir);
+            }
+            if (!tempFile.createNewFile() || !restrictToOwner(tempFile)) {
+                throw new IOException("Couldn't create the token file: " + tempFile);
+            }
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(token);
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(tokenFile)) {
+                throw new IOException("Couldn't move the token file to " + tokenFile);
+            }
+        } finally {
+            tempFile.delete();
+            privateDir.delete();
+        }
+    }
+
+    private static boolean restrictToOwner(@Nonnull File file) {
+        return file.setReadable(false, false) && file.setReadable(true, true) &&
+                file.setWritable(false, false) && file.setWritable(true, true) &&
+                file.setExecutable(false, false) && (!file.isDirectory() || file.setExecutable(true, true));
+    }
+
+    private void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serveConnection(@Nonnull BufferedReader reader, @Nonnull OutputStream out) throws IOException {
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+
+        String line;
+        while (!shutdown && (line = reader.readLine()) != null) {
+            List<String> request;
+            try {
+                request = splitArguments(line);
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Invalid request: " + ex.getMessage());
+                continue;
+            }
+            if (request.isEmpty()) {
+                continue;
+            }
+            if (request.size() == 1 && request.get(0).equals(SHUTDOWN)) {
+                shutdown();
+                break;
+            }
+
+            final String jobId = request.get(0);
+            final String[] args = request.subList(1, request.size()).toArray(new String[request.size() - 1]);
+            try {
+                executor.submit(new Runnable() {
+                    @Override public void run() {
+                        int exitCode;
+                        try {
+                            exitCode = handler.runJob(args);
+                        } catch (Throwable ex) {
+                            System.err.println("Job " + jobId + " failed");
+                            ex.printStackTrace(System.err);
+                            exitCode = 2;
+                        }
+                        synchronized (writer) {
+                            writer.println(jobId + " " + exitCode);
+                            writer.flush();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the server is shutting down
+                synchronized (writer) {
+                    writer.println(jobId + " -1");
+                    writer.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a request line into its whitespace separated arguments, handling double quoted arguments.
+     */
+    @Nonnull
+    public static List<String> splitArguments(@Nonnull String line) {
+        List<String> args = Lists.newArrayList();
+        StringBuilder current = null;
+        boolean quoted = false;
+
+        for (int i=0; i<line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                } else if (c == '\\' && i + 1 < line.length() &&
+                        (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\')) {
+                    current.append(line.charAt(++i));
+                } else {
+                    current.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (current != null) {
+                    args.add(current.toString());
+                    current = null;
+                }
+            } else {
+                if (current == null) {
+                    current = new StringBuilder();
+                }
+                if (c == '"') {
+                    quoted = true;
+                } else {
+                    current.append(c);
+                }
+            }
+        }
+
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote in: " + line);
+        }
+        if (current != null) {
+            args.add(current.toString());
+        }
+        return args;
+    }
+}
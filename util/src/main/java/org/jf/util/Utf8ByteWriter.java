@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A Writer that encodes directly into a growable UTF-8 byte array, without going through a CharsetEncoder.
+ *
+ * The buffer is retained across {@link #reset()}, so a single instance can be reused to render many files. Malformed
+ * surrogates are written as '?', matching the behavior of an OutputStreamWriter using the UTF-8 charset.
+ */
+public class Utf8ByteWriter extends Writer {
+    private byte[] buf;
+    private int count;
+    private char highSurrogate;
+
+    public Utf8ByteWriter() {
+        this(8192);
+    }
+
+    public Utf8ByteWriter(int initialCapacity) {
+        buf = new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = count + additional;
+        if (required > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length * 2, required)];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureCapacity(4);
+        if (c < 0x80 && highSurrogate == 0) {
+            buf[count++] = (byte)c;
+        } else {
+            encodeChar((char)c);
+        }
+    }
+
+    @Override
+    public void write(@Nonnull char[] chars, int off, int len) throws IOException {
+        ensureCapacity(len * 3 + 1);
+        byte[] buf = this.buf;
+        int count = this.count;
+        int end = off + len;
+        if (highSurrogate == 0) {
+            // fast path for the common case of pure ascii text
+            while (off < end) {
+                char c = chars[off];
+                if (c >= 0x80) {
+                    break;
+                }
+                buf[count++] = (byte)c;
+                off++;
+            }
+        }
+        this.count = count;
+        while (off < end) {
+            encodeChar(chars[off++]);
+        }
+    }
+
+    @Override
+    public void write(@Nonnull String str, int off, int len) throws IOException {
+        ensureCapacity(len * 3 + 1);
+        byte[] buf = this.buf;
+        int count = this.count;
+        int end = off + len;
+        if (highSurrogate == 0) {
+            while (off < end) {
+                char c = str.charAt(off);
+                if (c >= 0x80) {
+                    break;
+                }
+                buf[count++] = (byte)c;
+                off++;
+            }
+        }
+        this.count = count;
+        while (off < end) {
+            encodeChar(str.charAt(off++));
+        }
+    }
+
+    /**
+     * Encodes a single char. The caller must ensure there is room for at least 4 more bytes.
+     */
+    private void encodeChar(char c) {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                // callers always reserve at least 4 bytes, which covers a full supplementary character
+                buf[count++] = (byte)(0xf0 | (codePoint >> 18));
+                buf[count++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+                buf[count++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+                buf[count++] = (byte)(0x80 | (codePoint & 0x3f));
+                return;
+            }
+            buf[count++] = '?';
+            ensureCapacity(3);
+        }
+
+        if (c < 0x80) {
+            buf[count++] = (byte)c;
+        } else if (c < 0x800) {
+            buf[count++] = (byte)(0xc0 | (c >> 6));
+            buf[count++] = (byte)(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buf[count++] = '?';
+        } else {
+            buf[count++] = (byte)(0xe0 | (c >> 12));
+            buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte)(0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * @return The underlying buffer. Only the first {@link #size()} bytes are valid.
+     */
+    @Nonnull
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return The number of encoded bytes. A trailing unpaired high surrogate is not included until the writer is
+     * flushed.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Discards the encoded contents, while retaining the underlying buffer
+     */
+    public void reset() {
+        count = 0;
+        highSurrogate = 0;
+    }
+
+    public void writeTo(@Nonnull OutputStream out) throws IOException {
+        flush();
+        out.write(buf, 0, count);
+    }
+
+    @Override
+    public void flush() {
+        if (highSurrogate != 0) {
+            ensureCapacity(1);
+            buf[count++] = '?';
+            highSurrogate = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
@@ -26,6 +26,9 @@ package org.jf.util;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 
 /**
  * Constants of type <code>CONSTANT_Utf8_info</code>.
@@ -270,6 +273,39 @@ public final class Utf8Utils {
         return new String(chars, 0, outAt);
     }
 
+    /**
+     * Decodes a buffer of standard (not Java-style) UTF-8 text, such as the
+     * contents of a source file. Malformed input is replaced rather than
+     * rejected, the same as an {@link java.io.InputStreamReader} would do.
+     *
+     * Leading ASCII bytes are copied directly, and the general purpose decoder
+     * is only used from the first non-ASCII byte onwards.
+     *
+     * @param bytes non-null; the bytes to decode
+     * @return non-null; an exactly-sized array of the decoded characters
+     */
+    @Nonnull
+    public static char[] utf8BytesToChars(@Nonnull byte[] bytes) {
+        char[] chars = new char[bytes.length];
+        int i = 0;
+        for (; i<bytes.length; i++) {
+            byte b = bytes[i];
+            if (b < 0) {
+                break;
+            }
+            chars[i] = (char)b;
+        }
+        if (i == bytes.length) {
+            return chars;
+        }
+
+        CharBuffer rest = Charset.forName("UTF-8").decode(ByteBuffer.wrap(bytes, i, bytes.length - i));
+        char[] result = new char[i + rest.remaining()];
+        System.arraycopy(chars, 0, result, 0, i);
+        rest.get(result, i, rest.remaining());
+        return result;
+    }
+
     /**
      * Helper for {@link #utf8BytesToString}, which throws the right
      * exception for a bogus utf-8 byte.
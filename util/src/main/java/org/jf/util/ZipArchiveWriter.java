@@ -0,0 +1,405 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive from entries that have already been compressed.
+ *
+ * The expensive part of writing an archive is the compression, so compress() is meant to be called from any number
+ * of worker threads, each of which reuses its own Deflater and output buffer. The compressed entries are then handed
+ * to addEntry(), which queues them for a single writer thread that appends them to the file. The queue is bounded,
+ * so addEntry() blocks if the writer falls behind.
+ *
+ * Entries are written to the file in the order they are added, but the central directory is sorted by name. All
+ * entries get the same fixed timestamp, so the listing of the archive doesn't depend on when or in what order the
+ * entries were produced.
+ *
+ * The archive is finished by close(), which also reports any error that occurred while writing.
+ */
+public class ZipArchiveWriter implements Closeable {
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    // 1980-01-01 00:00:00, the earliest date that can be represented
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = (1 << 5) | 1;
+
+    private static final long MAX_UINT32 = 0xffffffffL;
+    private static final int MAX_UINT16 = 0xffff;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Entry END_OF_ENTRIES = new Entry("", METHOD_STORED, new byte[0], 0, 0, 0);
+
+    private static final ThreadLocal<CompressionBuffers> compressionBuffers = new ThreadLocal<CompressionBuffers>() {
+        @Override protected CompressionBuffers initialValue() {
+            return new CompressionBuffers();
+        }
+    };
+
+    @Nonnull private final CountingOutputStream out;
+    @Nonnull private final BlockingQueue<Entry> queue;
+    @Nonnull private final Thread writerThread;
+    @Nonnull private final List<Entry> writtenEntries = Lists.newArrayList();
+    @Nullable private volatile Throwable writeError = null;
+    private boolean closed = false;
+
+    public ZipArchiveWriter(@Nonnull File file) throws IOException {
+        this(file, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param file The archive to write
+     * @param queueCapacity The number of compressed entries that can be waiting for the writer thread before
+     *                      addEntry() blocks
+     */
+    public ZipArchiveWriter(@Nonnull File file, int queueCapacity) throws IOException {
+        this.out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+        this.writerThread = new Thread("zip writer: " + file.getName()) {
+            @Override public void run() {
+                writeEntries();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Compresses an entry, using a Deflater and output buffer that are reused by the current thread.
+     *
+     * @param name The name of the entry in the archive, using '/' as the separator
+     * @param data The uncompressed contents of the entry
+     * @param length The number of bytes of data to use
+     * @return An entry that can be passed to addEntry()
+     */
+    @Nonnull
+    public static Entry compress(@Nonnull String name, @Nonnull byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        CompressionBuffers buffers = compressionBuffers.get();
+        Deflater deflater = buffers.deflater;
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+
+        byte[] buffer = buffers.buffer;
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffers.buffer = buffer;
+            }
+            compressedLength += deflater.deflate(buffer, compressedLength, buffer.length - compressedLength);
+        }
+
+        if (compressedLength >= length) {
+            return new Entry(name, METHOD_STORED, Arrays.copyOf(data, length), length, length,
+                    (int)crc.getValue());
+        }
+        return new Entry(name, METHOD_DEFLATED, Arrays.copyOf(buffer, compressedLength), compressedLength,
+                length, (int)crc.getValue());
+    }
+
+    /**
+     * Queues an entry to be written to the archive. This may be called from any thread.
+     *
+     * @param entry An entry returned by compress()
+     * @throws IOException if an earlier entry could not be written
+     */
+    public void addEntry(@Nonnull Entry entry) throws IOException {
+        checkWriteError();
+        try {
+            queue.put(entry);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write " + entry.name);
+        }
+    }
+
+    /**
+     * Waits for all queued entries to be written, and then finishes the archive.
+     *
+     * This must not be called concurrently with addEntry().
+     */
+    @Override public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(END_OF_ENTRIES);
+                    writerThread.join();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            checkWriteError();
+            writeCentralDirectory();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        Throwable error = writeError;
+        if (error != null) {
+            if (error instanceof IOException) {
+                throw new IOException(error.getMessage(), error);
+            }
+            throw new RuntimeException(error);
+        }
+    }
+
+    private void writeEntries() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if (entry == END_OF_ENTRIES) {
+                return;
+            }
+            // after an error, keep draining the queue so that producers don't block forever
+            if (writeError == null) {
+                try {
+                    writeLocalEntry(entry);
+                } catch (Throwable ex) {
+                    writeError = ex;
+                }
+            }
+        }
+    }
+
+    private void writeLocalEntry(@Nonnull Entry entry) throws IOException {
+        entry.offset = out.getPosition();
+        if (entry.offset > MAX_UINT32) {
+            throw new IOException("Archives larger than 4GB are not supported");
+        }
+        writeInt(LOCAL_FILE_HEADER_SIGNATURE);
+        writeShort(VERSION);
+        writeShort(UTF8_FLAG);
+        writeShort(entry.method);
+        writeShort(DOS_TIME);
+        writeShort(DOS_DATE);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize);
+        writeInt(entry.size);
+        writeShort(entry.nameBytes.length);
+        writeShort(0);
+        out.write(entry.nameBytes);
+        out.write(entry.data, 0, entry.compressedSize);
+
+        // the data is no longer needed once it has been written
+        entry.data = null;
+        writtenEntries.add(entry);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        List<Entry> entries = Ordering.from(new Comparator<Entry>() {
+            @Override public int compare(Entry o1, Entry o2) {
+                return o1.name.compareTo(o2.name);
+            }
+        }).sortedCopy(writtenEntries);
+
+        long centralDirectoryOffset = out.getPosition();
+        for (Entry entry: entries) {
+            writeInt(CENTRAL_DIRECTORY_SIGNATURE);
+            writeShort(VERSION);
+            writeShort(VERSION);
+            writeShort(UTF8_FLAG);
+            writeShort(entry.method);
+            writeShort(DOS_TIME);
+            writeShort(DOS_DATE);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+            writeShort(entry.nameBytes.length);
+            writeShort(0); // extra field length
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0);   // external attributes
+            writeInt((int)entry.offset);
+            out.write(entry.nameBytes);
+        }
+        long centralDirectoryEnd = out.getPosition();
+        long centralDirectorySize = centralDirectoryEnd - centralDirectoryOffset;
+
+        // Dex files can have more classes than fit in the 16-bit entry count, in which case the zip64 end records
+        // are needed to hold the real count
+        boolean zip64 = entries.size() >= MAX_UINT16 || centralDirectoryOffset >= MAX_UINT32;
+        if (zip64) {
+            writeInt(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            writeLong(44); // size of the remainder of this record
+            writeShort(ZIP64_VERSION);
+            writeShort(ZIP64_VERSION);
+            writeInt(0); // disk number
+            writeInt(0); // disk with the central directory
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(centralDirectorySize);
+            writeLong(centralDirectoryOffset);
+
+            writeInt(ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE);
+            writeInt(0); // disk with the zip64 end of central directory record
+            writeLong(centralDirectoryEnd);
+            writeInt(1); // total number of disks
+        }
+
+        writeInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        writeShort(0); // disk number
+        writeShort(0); // disk with the central directory
+        writeShort(zip64 ? MAX_UINT16 : entries.size());
+        writeShort(zip64 ? MAX_UINT16 : entries.size());
+        writeInt((int)centralDirectorySize);
+        writeInt(zip64 ? (int)MAX_UINT32 : (int)centralDirectoryOffset);
+        writeShort(0); // comment length
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value);
+        writeShort(value >>> 16);
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt((int)value);
+        writeInt((int)(value >>> 32));
+    }
+
+    /**
+     * A compressed entry, ready to be written to the archive
+     */
+    public static final class Entry {
+        @Nonnull private final String name;
+        @Nonnull private final byte[] nameBytes;
+        private final int method;
+        @Nullable private byte[] data;
+        private final int compressedSize;
+        private final int size;
+        private final int crc;
+        private long offset;
+
+        private Entry(@Nonnull String name, int method, @Nonnull byte[] data, int compressedSize, int size,
+                      int crc) {
+            this.name = name;
+            this.nameBytes = name.getBytes(UTF8);
+            this.method = method;
+            this.data = data;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        @Nonnull public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getCompressedSize() {
+            return compressedSize;
+        }
+    }
+
+    private static class CompressionBuffers {
+        @Nonnull public final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        @Nonnull public byte[] buffer = new byte[8192];
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long position = 0;
+
+        public CountingOutputStream(@Nonnull OutputStream out) {
+            super(out);
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+    }
+}
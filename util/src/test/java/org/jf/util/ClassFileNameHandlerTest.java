@@ -32,12 +32,18 @@
 package org.jf.util;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import junit.framework.Assert;
 import org.junit.Test;
 
 import java.io.File;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
 
 public class ClassFileNameHandlerTest {
     private final Charset UTF8 = Charset.forName("UTF-8");
@@ -235,6 +241,48 @@ public class ClassFileNameHandlerTest {
         }
     }
 
+    @Test
+    public void testConcurrentCollisions() throws Exception {
+        File tempDir = Files.createTempDir();
+        final ClassFileNameHandler handler = new ClassFileNameHandler(tempDir, ".smali", false, false);
+
+        // every thread asks for the same set of colliding names. Each name must be handed out exactly once, and the
+        // directories that differ only by case must still be kept apart
+        final int threadCount = 8;
+        final int classesPerThread = 50;
+        final Set<String> paths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int t=0; t<threadCount; t++) {
+            final String pkg = (t % 2 == 0) ? "La/b/" : "La/B/";
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override public Void call() throws Exception {
+                    barrier.await();
+                    for (int i=0; i<classesPerThread; i++) {
+                        File file = handler.getUniqueFilenameForClass(pkg + "c" + (i % 5) + ";");
+                        Assert.assertTrue(paths.add(file.getAbsolutePath()));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future: futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(threadCount * classesPerThread, paths.size());
+
+        Set<String> directories = Sets.newHashSet();
+        for (String path: paths) {
+            directories.add(new File(path).getParentFile().getName());
+        }
+        // which of the two directories gets the suffix depends on which thread gets there first
+        Assert.assertTrue(directories.equals(Sets.newHashSet("b", "B.1")) ||
+                directories.equals(Sets.newHashSet("B", "b.1")));
+    }
+
     private void checkFilename(File base, File file, String... elements) {
         for (int i=elements.length-1; i>=0; i--) {
             Assert.assertEquals(elements[i], file.getName());
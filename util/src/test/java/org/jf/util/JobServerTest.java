@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JobServerTest {
+    @Test
+    public void testSplitArguments() {
+        Assert.assertEquals(ImmutableList.of(), JobServer.splitArguments("   "));
+        Assert.assertEquals(ImmutableList.of("1", "-o", "out"), JobServer.splitArguments(" 1  -o\tout "));
+        Assert.assertEquals(ImmutableList.of("1", "a b", "c\"d", ""),
+                JobServer.splitArguments("1 \"a b\" \"c\\\"d\" \"\""));
+        Assert.assertEquals(ImmutableList.of("x=a b"), JobServer.splitArguments("x=\"a b\""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnterminatedQuote() {
+        JobServer.splitArguments("1 \"abc");
+    }
+
+    @Test
+    public void testServeStream() throws IOException {
+        JobServer server = new JobServer(new JobServer.JobHandler() {
+            @Override public int runJob(@Nonnull String[] args) throws Exception {
+                if (args.length == 0) {
+                    throw new Exception("no arguments");
+                }
+                return Integer.parseInt(args[0]);
+            }
+        }, 2);
+
+        String requests = "a 0\nb 3\n\nc\nshutdown\nd 0\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        server.serve(new ByteArrayInputStream(requests.getBytes("UTF-8")), out);
+
+        // responses can arrive in any order, and the request after the shutdown is never read
+        Set<String> responses = Sets.newHashSet(Arrays.asList(out.toString("UTF-8").split("\\r?\\n")));
+        Assert.assertEquals(Sets.newHashSet("a 0", "b 3", "c 2"), responses);
+    }
+
+    @Test
+    public void testServeSocketRequiresToken() throws Exception {
+        final AtomicInteger jobCount = new AtomicInteger();
+        final JobServer server = new JobServer(new JobServer.JobHandler() {
+            @Override public int runJob(@Nonnull String[] args) throws Exception {
+                jobCount.incrementAndGet();
+                return Integer.parseInt(args[0]);
+            }
+        }, 2);
+
+        File tempDir = Files.createTempDir();
+        final File tokenFile = new File(tempDir, "token");
+        PipedInputStream portIn = new PipedInputStream();
+        final PrintStream portOut = new PrintStream(new PipedOutputStream(portIn), true);
+        Thread serverThread = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    server.serve(0, tokenFile, portOut);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        serverThread.start();
+
+        try {
+            int port = Integer.parseInt(new BufferedReader(new InputStreamReader(portIn)).readLine());
+            String token = Files.readFirstLine(tokenFile, Charset.forName("UTF-8"));
+            Assert.assertEquals(32, token.length());
+
+            // a connection without the token is closed without running its requests
+            Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            writer.println("a 0");
+            Assert.assertNull(reader.readLine());
+            socket.close();
+            Assert.assertEquals(0, jobCount.get());
+
+            socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            writer.println(token);
+            writer.println("b 3");
+            Assert.assertEquals("b 3", reader.readLine());
+            writer.println(JobServer.SHUTDOWN);
+            socket.close();
+
+            serverThread.join(10000);
+            Assert.assertFalse(serverThread.isAlive());
+            Assert.assertEquals(1, jobCount.get());
+            Assert.assertFalse(tokenFile.exists());
+        } finally {
+            tokenFile.delete();
+            tempDir.delete();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+public class Utf8ByteWriterTest {
+    private static byte[] encodeWithCharset(String str) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        writer.write(str);
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] getBytes(Utf8ByteWriter writer) {
+        writer.flush();
+        return Arrays.copyOf(writer.getBuffer(), writer.size());
+    }
+
+    private static void assertMatchesCharset(String str) throws IOException {
+        byte[] expected = encodeWithCharset(str);
+
+        Utf8ByteWriter writer = new Utf8ByteWriter(1);
+        writer.write(str);
+        Assert.assertArrayEquals(expected, getBytes(writer));
+
+        writer.reset();
+        writer.write(str.toCharArray());
+        Assert.assertArrayEquals(expected, getBytes(writer));
+
+        writer.reset();
+        for (int i=0; i<str.length(); i++) {
+            writer.write(str.charAt(i));
+        }
+        Assert.assertArrayEquals(expected, getBytes(writer));
+    }
+
+    @Test
+    public void testAscii() throws IOException {
+        assertMatchesCharset("");
+        assertMatchesCharset("Lorg/jf/Test;->method(I)V\n");
+    }
+
+    @Test
+    public void testMultiByte() throws IOException {
+        assertMatchesCharset("caf\u00e9 \u0800\u4e2d\uffff\u0000");
+    }
+
+    @Test
+    public void testSurrogates() throws IOException {
+        assertMatchesCharset("a\ud83d\ude00b");
+        assertMatchesCharset("\ud83d\ude00");
+        assertMatchesCharset("a\ud83db");
+        assertMatchesCharset("a\ude00b");
+        assertMatchesCharset("\ud83d\ud83d\ude00");
+        assertMatchesCharset("a\ud83d");
+    }
+
+    @Test
+    public void testSurrogatePairSplitAcrossWrites() throws IOException {
+        Utf8ByteWriter writer = new Utf8ByteWriter();
+        writer.write("a\ud83d");
+        writer.write("\ude00b");
+        Assert.assertArrayEquals(encodeWithCharset("a\ud83d\ude00b"), getBytes(writer));
+    }
+
+    @Test
+    public void testThroughIndentingWriter() throws IOException {
+        Utf8ByteWriter buffer = new Utf8ByteWriter();
+        IndentingWriter writer = new IndentingWriter(buffer);
+        writer.write(".class \u00e9\n");
+        writer.indent(4);
+        writer.write("x\n");
+        writer.flush();
+
+        String newLine = System.getProperty("line.separator");
+        Assert.assertArrayEquals(encodeWithCharset(".class \u00e9" + newLine + "    x" + newLine), getBytes(buffer));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+public class Utf8UtilsTest {
+    private static String decodeWithReader(byte[] bytes) throws IOException {
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8");
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[64];
+        int read;
+        while ((read = reader.read(buf)) != -1) {
+            sb.append(buf, 0, read);
+        }
+        return sb.toString();
+    }
+
+    private static void verifyChars(byte[] bytes) throws IOException {
+        char[] chars = Utf8Utils.utf8BytesToChars(bytes);
+        Assert.assertEquals(decodeWithReader(bytes), new String(chars));
+    }
+
+    @Test
+    public void testAscii() throws IOException {
+        verifyChars(new byte[0]);
+        verifyChars(".class public LFoo;\n".getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testNonAscii() throws IOException {
+        verifyChars("\u00e9".getBytes("UTF-8"));
+        verifyChars("const-string v0, \"\u00e9\u4e2d\ud83d\ude00\"\n".getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+        verifyChars(new byte[] {'a', (byte)0xc3});
+        verifyChars(new byte[] {'a', (byte)0xff, 'b', (byte)0xe4, (byte)0xb8, 'c'});
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class ZipArchiveWriterTest {
+    private final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File tempDir = Files.createTempDir();
+        File archiveFile = new File(tempDir, "test.zip");
+
+        byte[] text = Strings.repeat("some compressible text\n", 1000).getBytes(UTF8);
+        byte[] random = new byte[1000];
+        new Random(1234).nextBytes(random);
+
+        ZipArchiveWriter writer = new ZipArchiveWriter(archiveFile, 1);
+        ZipArchiveWriter.Entry textEntry = ZipArchiveWriter.compress("b/text.txt", text, text.length);
+        Assert.assertTrue(textEntry.getCompressedSize() < text.length);
+        writer.addEntry(textEntry);
+        // incompressible data is stored as is
+        ZipArchiveWriter.Entry randomEntry = ZipArchiveWriter.compress("a/random.bin", random, random.length);
+        Assert.assertEquals(random.length, randomEntry.getCompressedSize());
+        writer.addEntry(randomEntry);
+        writer.addEntry(ZipArchiveWriter.compress("a/\u00e9t\u00e9.txt", text, 10));
+        writer.close();
+
+        ZipFile zipFile = new ZipFile(archiveFile);
+        try {
+            List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+            Assert.assertEquals(3, entries.size());
+            Assert.assertEquals("a/random.bin", entries.get(0).getName());
+            Assert.assertEquals("a/\u00e9t\u00e9.txt", entries.get(1).getName());
+            Assert.assertEquals("b/text.txt", entries.get(2).getName());
+
+            Assert.assertTrue(Arrays.equals(random, read(zipFile, entries.get(0))));
+            Assert.assertEquals("some compr", new String(read(zipFile, entries.get(1)), UTF8));
+            Assert.assertTrue(Arrays.equals(text, read(zipFile, entries.get(2))));
+        } finally {
+            zipFile.close();
+            archiveFile.delete();
+            tempDir.delete();
+        }
+    }
+
+    @Test
+    public void testManyEntries() throws IOException {
+        File tempDir = Files.createTempDir();
+        File archiveFile = new File(tempDir, "test.zip");
+
+        // more entries than fit in the 16-bit count of the end of central directory record
+        int entryCount = 70000;
+        ZipArchiveWriter writer = new ZipArchiveWriter(archiveFile);
+        for (int i=0; i<entryCount; i++) {
+            byte[] data = Integer.toString(i).getBytes(UTF8);
+            writer.addEntry(ZipArchiveWriter.compress(String.format("%05d", i), data, data.length));
+        }
+        writer.close();
+
+        ZipFile zipFile = new ZipFile(archiveFile);
+        try {
+            Assert.assertEquals(entryCount, zipFile.size());
+            ZipEntry entry = zipFile.getEntry("69999");
+            Assert.assertEquals("69999", new String(read(zipFile, entry), UTF8));
+        } finally {
+            zipFile.close();
+            archiveFile.delete();
+            tempDir.delete();
+        }
+    }
+
+    private static byte[] read(ZipFile zipFile, ZipEntry entry) throws IOException {
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}